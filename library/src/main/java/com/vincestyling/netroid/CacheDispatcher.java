@@ -97,65 +97,12 @@ public class CacheDispatcher extends Thread {
                 // Get a request from the cache triage queue, blocking until
                 // at least one is available.
                 final Request request = mCacheQueue.take();
-                request.addMarker("cache-queue-take");
-                mDelivery.postPreExecute(request);
-
-                // If the request has been canceled, don't bother dispatching it.
-                if (request.isCanceled()) {
-                    request.finish("cache-discard-canceled");
-                    mDelivery.postCancel(request);
-                    mDelivery.postFinish(request);
-                    continue;
-                }
-
-                // Attempt to retrieve this item from cache.
-                DiskCache.Entry entry = mCache != null ? mCache.getEntry(request.getCacheKey()) : null;
-                if (entry == null) {
-                    request.addMarker("cache-miss");
-                    // Cache miss; send off to the network dispatcher.
-                    mNetworkQueue.put(request);
-                    mDelivery.postNetworking(request);
-                    continue;
-                }
-
-                // If it is completely expired, just send it to the network.
-                if (entry.isExpired()) {
-                    request.addMarker("cache-hit-expired");
-                    mNetworkQueue.put(request);
-                    mDelivery.postNetworking(request);
-                    continue;
-                }
-
-                // We have a cache hit; parse its data for delivery back to the request.
-                request.addMarker("cache-hit");
-                Response<?> response = request.parseNetworkResponse(new NetworkResponse(entry.getData(), entry.getCharset()));
-                request.addMarker("cache-hit-parsed");
-                mDelivery.postUsedCache(request);
-
-                if (!entry.refreshNeeded()) {
-                    // Completely unexpired cache hit. Just deliver the response.
-                    mDelivery.postResponse(request, response);
-                } else {
-                    // Soft-expired cache hit. We can deliver the cached response,
-                    // but we need to also send the request to the network for
-                    // refreshing.
-                    request.addMarker("cache-hit-refresh-needed");
-
-                    // Mark the response as intermediate.
-                    response.intermediate = true;
-
-                    // Post the intermediate response back to the user and have
-                    // the delivery then forward the request along to the network.
-                    mDelivery.postResponse(request, response, new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                mNetworkQueue.put(request);
-                            } catch (InterruptedException e) {
-                                // Not much we can do about this.
-                            }
-                        }
-                    });
+                // The delivery may run on this thread too, whatever it adds to the queue must not block it.
+                RequestQueue previous = RequestQueue.beginDispatch(request);
+                try {
+                    dispatch(request);
+                } finally {
+                    RequestQueue.endDispatch(previous);
                 }
             } catch (InterruptedException e) {
                 // We may have been interrupted because it was time to quit.
@@ -164,4 +111,79 @@ public class CacheDispatcher extends Thread {
         }
     }
 
+    /**
+     * Serves the given request from the cache, or sends it to the network.
+     */
+    private void dispatch(final Request request) throws InterruptedException {
+        request.addMarker("cache-queue-take");
+        mDelivery.postPreExecute(request);
+
+        // If the request has been canceled, don't bother dispatching it.
+        if (request.isCanceled()) {
+            request.finish("cache-discard-canceled");
+            mDelivery.postCancel(request);
+            mDelivery.postFinish(request);
+            return;
+        }
+
+        // If the deadline passed while waiting in the queue, don't bother reading the cache.
+        if (request.isDeadlineExceeded()) {
+            request.addMarker("cache-discard-deadline");
+            mDelivery.postError(request, request.parseNetworkError(new DeadlineExceededError()));
+            return;
+        }
+
+        // Attempt to retrieve this item from cache.
+        DiskCache.Entry entry = mCache != null ? mCache.getEntry(request.getCacheKey()) : null;
+        if (entry == null) {
+            request.addMarker("cache-miss");
+            // Cache miss; send off to the network dispatcher.
+            mNetworkQueue.put(request);
+            mDelivery.postNetworking(request);
+            return;
+        }
+
+        // If it is completely expired, send it to the network, which revalidates
+        // it if it has a validator, so an unchanged response costs no body.
+        if (entry.isExpired()) {
+            request.addMarker("cache-hit-expired");
+            if (entry.hasValidators()) request.setCacheEntry(entry);
+            mNetworkQueue.put(request);
+            mDelivery.postNetworking(request);
+            return;
+        }
+
+        // We have a cache hit; parse its data for delivery back to the request.
+        request.addMarker("cache-hit");
+        Response<?> response = request.parseNetworkResponse(new NetworkResponse(entry.getData(), entry.getCharset()));
+        request.addMarker("cache-hit-parsed");
+        mDelivery.postUsedCache(request);
+
+        if (!entry.refreshNeeded()) {
+            // Completely unexpired cache hit. Just deliver the response.
+            mDelivery.postResponse(request, response);
+        } else {
+            // Soft-expired cache hit. We can deliver the cached response,
+            // but we need to also send the request to the network for
+            // refreshing.
+            request.addMarker("cache-hit-refresh-needed");
+
+            // Mark the response as intermediate.
+            response.intermediate = true;
+
+            // Post the intermediate response back to the user and have
+            // the delivery then forward the request along to the network.
+            mDelivery.postResponse(request, response, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mNetworkQueue.put(request);
+                    } catch (InterruptedException e) {
+                        // Not much we can do about this.
+                    }
+                }
+            });
+        }
+    }
+
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import android.text.TextUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A content coding, such as gzip, which decodes the response bodies the server encoded with it
+ * and may encode the request bodies, see {@link Request#setBodyCompression(ContentCodec, long)}.
+ * <p/>
+ * The stacks advertise the registered codings in the Accept-Encoding header of every request
+ * which doesn't set its own. gzip and deflate are always registered, br when the pure-Java
+ * Brotli decoder (org.brotli:dec) is on the classpath, more by {@link #register(ContentCodec)}.
+ */
+public abstract class ContentCodec {
+    /**
+     * The gzip coding, see RFC 1952.
+     */
+    public static final ContentCodec GZIP = new ContentCodec("gzip") {
+        @Override
+        public InputStream decode(InputStream in) throws IOException {
+            // The stack might have decoded it already.
+            return in instanceof GZIPInputStream ? in : new GZIPInputStream(in);
+        }
+
+        @Override
+        public boolean canEncode() {
+            return true;
+        }
+
+        @Override
+        public OutputStream encode(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out);
+        }
+    };
+
+    /**
+     * The deflate coding, zlib-wrapped as RFC 7230 tells. Some servers send the raw
+     * deflate data instead, which is told apart by the missing zlib header.
+     */
+    public static final ContentCodec DEFLATE = new ContentCodec("deflate") {
+        @Override
+        public InputStream decode(InputStream in) throws IOException {
+            PushbackInputStream pushback = new PushbackInputStream(in, 2);
+            int cmf = pushback.read();
+            int flg = cmf != -1 ? pushback.read() : -1;
+            if (flg != -1) pushback.unread(flg);
+            if (cmf != -1) pushback.unread(cmf);
+            boolean zlib = (cmf & 0x0F) == 8 && flg != -1 && (cmf * 256 + flg) % 31 == 0;
+            return new InflaterInputStream(pushback, new Inflater(!zlib));
+        }
+
+        @Override
+        public boolean canEncode() {
+            return true;
+        }
+
+        @Override
+        public OutputStream encode(OutputStream out) throws IOException {
+            return new DeflaterOutputStream(out);
+        }
+    };
+
+    /**
+     * The registered codings by name, in the order they're advertised. Guarded by itself.
+     */
+    private static final Map<String, ContentCodec> CODECS = new LinkedHashMap<String, ContentCodec>();
+
+    static {
+        register(GZIP);
+        register(DEFLATE);
+        ContentCodec brotli = BrotliCodec.create();
+        if (brotli != null) register(brotli);
+    }
+
+    private final String mName;
+
+    /**
+     * @param name the token of the coding in the Content-Encoding header, e.g. "gzip"
+     */
+    protected ContentCodec(String name) {
+        mName = name.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Returns the token of the coding in the Content-Encoding header.
+     */
+    public final String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns a stream which decodes the given one.
+     */
+    public abstract InputStream decode(InputStream in) throws IOException;
+
+    /**
+     * Returns true if this coding can encode request bodies.
+     */
+    public boolean canEncode() {
+        return false;
+    }
+
+    /**
+     * Returns a stream which encodes to the given one, closing it must finish the
+     * encoded data and close the given stream.
+     *
+     * @throws UnsupportedOperationException if the coding can't encode
+     */
+    public OutputStream encode(OutputStream out) throws IOException {
+        throw new UnsupportedOperationException(mName + " can't encode.");
+    }
+
+    /**
+     * Registers a coding, replacing the one of the same name.
+     */
+    public static void register(ContentCodec codec) {
+        synchronized (CODECS) {
+            CODECS.put(codec.getName(), codec);
+        }
+    }
+
+    /**
+     * Returns the registered coding of the given name, or null if there is none.
+     */
+    public static ContentCodec get(String name) {
+        synchronized (CODECS) {
+            return CODECS.get(name.trim().toLowerCase(Locale.US));
+        }
+    }
+
+    /**
+     * Returns the value of the Accept-Encoding header which advertises the registered codings.
+     */
+    public static String getAcceptEncoding() {
+        synchronized (CODECS) {
+            return TextUtils.join(", ", CODECS.keySet());
+        }
+    }
+
+    /**
+     * Decodes by the org.brotli.dec.BrotliInputStream, reached by reflection
+     * so the library doesn't depend on the decoder.
+     */
+    private static class BrotliCodec extends ContentCodec {
+        private final Constructor<? extends InputStream> mConstructor;
+
+        private BrotliCodec(Constructor<? extends InputStream> constructor) {
+            super("br");
+            mConstructor = constructor;
+        }
+
+        /**
+         * Returns the coding if the decoder is on the classpath, null otherwise.
+         */
+        static ContentCodec create() {
+            try {
+                Class<? extends InputStream> clazz =
+                        Class.forName("org.brotli.dec.BrotliInputStream").asSubclass(InputStream.class);
+                return new BrotliCodec(clazz.getConstructor(InputStream.class));
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        @Override
+        public InputStream decode(InputStream in) throws IOException {
+            try {
+                return mConstructor.newInstance(in);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IOException("Can't decode brotli: " + e.getCause());
+            } catch (Exception e) {
+                throw new IOException("Can't decode brotli: " + e);
+            }
+        }
+    }
+}
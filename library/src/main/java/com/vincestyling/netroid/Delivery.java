@@ -67,4 +67,14 @@ public interface Delivery {
      * Posts file download progress stat.
      */
     void postDownloadProgress(Request<?> request, long fileSize, long downloadedSize);
+
+    /**
+     * Posts a partial result of a streaming request, see {@link com.vincestyling.netroid.request.StreamingRequest}.
+     */
+    void postPartialResponse(Request<?> request, Object partial);
+
+    /**
+     * Posts request body upload progress stat.
+     */
+    void postUploadProgress(Request<?> request, long totalSize, long uploadedSize);
 }
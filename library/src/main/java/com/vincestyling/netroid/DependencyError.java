@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+/**
+ * Error indicating that a request wasn't performed because a request it depends on
+ * finished without a result, see {@link Request#dependsOn(Request, Request.DependencyListener)}.
+ */
+public class DependencyError extends NetroidError {
+    /**
+     * The dependency which finished without a result.
+     */
+    public final Request<?> dependency;
+
+    public DependencyError(Request<?> dependency) {
+        super("Dependency finished without a result: " + dependency);
+        this.dependency = dependency;
+    }
+}
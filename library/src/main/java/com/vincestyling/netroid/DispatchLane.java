@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import com.vincestyling.netroid.cache.DiskCache;
+
+/**
+ * A named lane of a {@link RequestQueue}, with a network queue and network dispatchers
+ * of its own. The requests routed to a lane never wait for the dispatchers of another
+ * lane, nor occupy them, see {@link RequestQueue#addLane(String, int, int)}.
+ */
+public class DispatchLane {
+    /**
+     * The name the requests are routed by.
+     */
+    private final String mName;
+
+    /**
+     * Number of network dispatchers of this lane.
+     */
+    private final int mThreadCount;
+
+    /**
+     * The {@link android.os.Process} thread priority the dispatchers run at.
+     */
+    private final int mThreadPriority;
+
+    /**
+     * The queue of requests of this lane going out to the network.
+     */
+    private final NetworkQueue mQueue;
+
+    /**
+     * The network dispatchers, null until started.
+     */
+    private NetworkDispatcher[] mDispatchers;
+
+    DispatchLane(String name, int threadCount, int threadPriority, NetworkQueue queue) {
+        mName = name;
+        mThreadCount = threadCount;
+        mThreadPriority = threadPriority;
+        mQueue = queue;
+    }
+
+    /**
+     * Starts the network dispatchers of this lane.
+     */
+    synchronized void start(Network network, DiskCache cache, Delivery delivery) {
+        mDispatchers = new NetworkDispatcher[mThreadCount];
+        for (int i = 0; i < mThreadCount; i++) {
+            mDispatchers[i] = new NetworkDispatcher(mQueue,
+                    network, cache, delivery, null, 0, mThreadPriority);
+            mDispatchers[i].start();
+        }
+    }
+
+    /**
+     * Stops the network dispatchers of this lane.
+     */
+    synchronized void stop() {
+        if (mDispatchers == null) return;
+        for (NetworkDispatcher dispatcher : mDispatchers) {
+            dispatcher.quit();
+        }
+        mDispatchers = null;
+    }
+
+    NetworkQueue getQueue() {
+        return mQueue;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    public int getThreadPriority() {
+        return mThreadPriority;
+    }
+
+    /**
+     * Returns the number of requests waiting in the network queue of this lane.
+     */
+    public int getQueuedCount() {
+        return mQueue.size();
+    }
+
+    /**
+     * Returns how long the requests of the given original priority waited in the network queue of this lane.
+     */
+    public QueueWaitStats getQueueWaitStats(Request.Priority priority) {
+        return mQueue.getWaitStats(priority);
+    }
+
+    @Override
+    public String toString() {
+        return mName + " threads=" + mThreadCount + " queued=" + mQueue.size();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A request body compressed by a {@link ContentCodec} as it's written, see
+ * {@link Request#setBodyCompression(ContentCodec, long)}. The compressed length is
+ * unknown until the end, so the body is sent chunked.
+ */
+class EncodedRequestBody extends RequestBody {
+    private final RequestBody mBody;
+    private final ContentCodec mCodec;
+
+    EncodedRequestBody(RequestBody body, ContentCodec codec) {
+        mBody = body;
+        mCodec = codec;
+    }
+
+    /**
+     * Compresses the content in memory, so the body is still sent with a Content-Length.
+     * Returns the content as is if it doesn't get any smaller.
+     */
+    static RequestBody encode(byte[] content, final ContentCodec codec) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 2);
+        try {
+            OutputStream out = codec.encode(bytes);
+            out.write(content);
+            out.close();
+        } catch (IOException e) {
+            NetroidLog.e(e, "Can't encode the request body by %s", codec.getName());
+            return RequestBody.create(content);
+        }
+        if (bytes.size() >= content.length) return RequestBody.create(content);
+
+        final byte[] encoded = bytes.toByteArray();
+        return new RequestBody() {
+            @Override
+            public long getContentLength() {
+                return encoded.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(encoded);
+            }
+
+            @Override
+            public String getContentEncoding() {
+                return codec.getName();
+            }
+        };
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return mCodec.getName();
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return mBody.isRepeatable();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        // Closing the encoder finishes the encoded data, but the connection must stay open.
+        OutputStream encoder = mCodec.encode(new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] buffer, int offset, int count) throws IOException {
+                out.write(buffer, offset, count);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        });
+        mBody.writeTo(encoder);
+        encoder.close();
+    }
+}
@@ -32,6 +32,9 @@ import java.util.concurrent.Executor;
  * });}</pre>
  * Take advantage of it, we're able to perform a Http Request on
  * blocking purpose while we on background thread explicitly.
+ * <p/>
+ * A request can also pick its own executor by {@link Request#setDeliveryExecutor(Executor)},
+ * which the {@link RequestFuture}s of {@link RequestQueue#submit(Request)} rely on.
  */
 public class ExecutorDelivery implements Delivery {
     /**
@@ -64,10 +67,18 @@ public class ExecutorDelivery implements Delivery {
         mResponsePoster = executor;
     }
 
+    /**
+     * Returns the executor to deliver the given request on, see {@link Request#setDeliveryExecutor}.
+     */
+    private Executor getPoster(Request<?> request) {
+        Executor executor = request.getDeliveryExecutor();
+        return executor != null ? executor : mResponsePoster;
+    }
+
     @Override
     public void postFinish(final Request<?> request) {
         request.addMarker("post-finish");
-        mResponsePoster.execute(new Runnable() {
+        getPoster(request).execute(new Runnable() {
             @Override
             public void run() {
                 request.deliverFinish();
@@ -84,20 +95,20 @@ public class ExecutorDelivery implements Delivery {
     public void postResponse(Request<?> request, Response<?> response, Runnable runnable) {
         request.markDelivered();
         request.addMarker("post-response");
-        mResponsePoster.execute(new ResponseDeliveryRunnable(request, response, runnable));
+        getPoster(request).execute(new ResponseDeliveryRunnable(request, response, runnable));
     }
 
     @Override
     public void postError(Request<?> request, NetroidError error) {
         request.addMarker("post-error");
         Response<?> response = Response.error(error);
-        mResponsePoster.execute(new ResponseDeliveryRunnable(request, response, null));
+        getPoster(request).execute(new ResponseDeliveryRunnable(request, response, null));
     }
 
     @Override
     public void postCancel(final Request<?> request) {
         request.addMarker("post-cancel");
-        mResponsePoster.execute(new Runnable() {
+        getPoster(request).execute(new Runnable() {
             @Override
             public void run() {
                 request.deliverCancel();
@@ -108,7 +119,7 @@ public class ExecutorDelivery implements Delivery {
     @Override
     public void postPreExecute(final Request<?> request) {
         request.addMarker("post-preexecute");
-        mResponsePoster.execute(new Runnable() {
+        getPoster(request).execute(new Runnable() {
             @Override
             public void run() {
                 request.deliverPreExecute();
@@ -119,7 +130,7 @@ public class ExecutorDelivery implements Delivery {
     @Override
     public void postUsedCache(final Request<?> request) {
         request.addMarker("post-usedcache");
-        mResponsePoster.execute(new Runnable() {
+        getPoster(request).execute(new Runnable() {
             @Override
             public void run() {
                 request.deliverUsedCache();
@@ -130,7 +141,7 @@ public class ExecutorDelivery implements Delivery {
     @Override
     public void postNetworking(final Request<?> request) {
         request.addMarker("post-networking");
-        mResponsePoster.execute(new Runnable() {
+        getPoster(request).execute(new Runnable() {
             @Override
             public void run() {
                 request.deliverNetworking();
@@ -141,7 +152,7 @@ public class ExecutorDelivery implements Delivery {
     @Override
     public void postRetry(final Request<?> request) {
         request.addMarker("post-retry");
-        mResponsePoster.execute(new Runnable() {
+        getPoster(request).execute(new Runnable() {
             @Override
             public void run() {
                 request.deliverRetry();
@@ -152,7 +163,7 @@ public class ExecutorDelivery implements Delivery {
     @Override
     public void postDownloadProgress(final Request<?> request, final long fileSize, final long downloadedSize) {
         request.addMarker("post-downloadprogress");
-        mResponsePoster.execute(new Runnable() {
+        getPoster(request).execute(new Runnable() {
             @Override
             public void run() {
                 request.deliverDownloadProgress(fileSize, downloadedSize);
@@ -160,6 +171,28 @@ public class ExecutorDelivery implements Delivery {
         });
     }
 
+    @Override
+    public void postPartialResponse(final Request<?> request, final Object partial) {
+        request.addMarker("post-partialresponse");
+        getPoster(request).execute(new Runnable() {
+            @Override
+            public void run() {
+                request.deliverPartialResponse(partial);
+            }
+        });
+    }
+
+    @Override
+    public void postUploadProgress(final Request<?> request, final long totalSize, final long uploadedSize) {
+        request.addMarker("post-uploadprogress");
+        getPoster(request).execute(new Runnable() {
+            @Override
+            public void run() {
+                request.deliverUploadProgress(totalSize, uploadedSize);
+            }
+        });
+    }
+
     /**
      * A Runnable used for delivering network responses to a listener on the
      * main thread.
@@ -187,6 +220,7 @@ public class ExecutorDelivery implements Delivery {
 
             // Deliver a normal response or error, depending.
             if (mResponse.isSuccess()) {
+                mRequest.onDelivered(mResponse.result);
                 mRequest.deliverSuccess(mResponse.result);
             } else {
                 mRequest.deliverError(mResponse.errorDetail);
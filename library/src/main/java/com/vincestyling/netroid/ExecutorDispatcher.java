@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import android.os.Process;
+import com.vincestyling.netroid.cache.DiskCache;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provides a thread which takes requests from a queue and performs each of them
+ * as a task of an {@link Executor}, instead of performing them on its own thread.
+ * <p/>
+ * The number of requests performing at the same time is bounded by a concurrency
+ * limit rather than by a number of threads, a request is only taken from the queue
+ * once a permit is free, so the queue ordering still decides which request goes next.
+ * With an executor which starts a thread per task, e.g. the virtual threads given by
+ * {@link #newVirtualThreadPerTaskExecutor()}, thousands of blocking requests can be
+ * in flight at once.
+ */
+public class ExecutorDispatcher extends Thread {
+    /**
+     * The queue of requests to service.
+     */
+    private final BlockingQueue<Request> mQueue;
+
+    /**
+     * The network interface for processing requests.
+     */
+    private final Network mNetwork;
+
+    /**
+     * The cache to write to.
+     */
+    private final DiskCache mCache;
+
+    /**
+     * For posting responses and errors.
+     */
+    private final Delivery mDelivery;
+
+    /**
+     * The executor which performs the requests.
+     */
+    private final Executor mExecutor;
+
+    /**
+     * One permit per request allowed to perform at the same time.
+     */
+    private final Semaphore mPermits;
+
+    /**
+     * Number of requests currently performing.
+     */
+    private final AtomicInteger mInFlightCount = new AtomicInteger();
+
+    /**
+     * Used for telling us to die.
+     */
+    private volatile boolean mQuit = false;
+
+    /**
+     * Creates a new executor dispatcher thread.  You must call {@link #start()}
+     * in order to begin processing.
+     *
+     * @param queue                 Queue of incoming requests for triage
+     * @param network               Network interface to use for performing requests
+     * @param cache                 Cache interface to use for writing responses to cache
+     * @param delivery              Delivery interface to use for posting responses
+     * @param executor              Executor to perform the requests on
+     * @param maxConcurrentRequests Maximum number of requests performing at the same time
+     */
+    public ExecutorDispatcher(BlockingQueue<Request> queue,
+                              Network network, DiskCache cache,
+                              Delivery delivery, Executor executor,
+                              int maxConcurrentRequests) {
+        mQueue = queue;
+        mCache = cache;
+        mNetwork = network;
+        mDelivery = delivery;
+        mExecutor = executor;
+        mPermits = new Semaphore(maxConcurrentRequests);
+    }
+
+    /**
+     * Returns an executor which starts a new virtual thread for each task,
+     * or null if the runtime doesn't offer virtual threads.
+     */
+    public static Executor newVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) method.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of requests currently performing.
+     */
+    public int getInFlightCount() {
+        return mInFlightCount.get();
+    }
+
+    /**
+     * Forces this dispatcher to quit immediately.  If any requests are still in
+     * the queue, they are not guaranteed to be processed. The requests already
+     * handed to the executor keep performing.
+     */
+    public void quit() {
+        mQuit = true;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            final Request request;
+            try {
+                // Wait for a free permit first, then take the request the queue considers next.
+                mPermits.acquire();
+                try {
+                    request = mQueue.take();
+                } catch (InterruptedException e) {
+                    mPermits.release();
+                    throw e;
+                }
+            } catch (InterruptedException e) {
+                // We may have been interrupted because it was time to quit.
+                if (mQuit) return;
+                continue;
+            }
+
+            mInFlightCount.incrementAndGet();
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Like the network dispatchers, don't compete with the UI thread, but the
+                        // thread belongs to the caller's executor, give its priority back after.
+                        int tid = Process.myTid();
+                        int priority = Process.getThreadPriority(tid);
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        try {
+                            perform(request);
+                        } finally {
+                            Process.setThreadPriority(tid, priority);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                NetroidLog.e(e, "Executor rejected %s, performing it on the dispatcher.", request);
+                perform(request);
+            }
+        }
+    }
+
+    private void perform(Request request) {
+        try {
+            RequestPerformer.perform(request, mNetwork, mCache, mDelivery);
+        } finally {
+            // Give the slot of the request's host back.
+            if (mQueue instanceof NetworkQueue) ((NetworkQueue) mQueue).finish(request);
+            mInFlightCount.decrementAndGet();
+            mPermits.release();
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import java.util.Arrays;
+
+/**
+ * Hedging policy for idempotent requests. When an attempt got no response after the
+ * hedge delay, a second attempt is fired on another connection, whichever completes
+ * first wins and the other one is aborted. The delay is either static, or learned as
+ * a percentile of the latencies recently seen by the requests sharing this policy.
+ * <p/>
+ * Share one policy among the requests of similar latency, e.g. the calls of an API.
+ * The {@link com.vincestyling.netroid.toolbox.BasicNetwork} limits how many hedges are
+ * fired overall, see {@link com.vincestyling.netroid.toolbox.BasicNetwork#setHedgeBudget(double)}.
+ */
+public class HedgePolicy {
+    /**
+     * Number of recent latencies the percentile is computed from.
+     */
+    private static final int MAX_SAMPLES = 128;
+
+    /**
+     * Number of latencies to learn before the percentile replaces the initial delay.
+     */
+    private static final int MIN_SAMPLES = 20;
+
+    /**
+     * The static delay, or the delay until enough latencies were learned.
+     */
+    private final long mDelayMs;
+
+    /**
+     * The percentile of the recent latencies to use as delay, 0 if the delay is static.
+     */
+    private final double mPercentile;
+
+    /**
+     * The recent latencies in milliseconds, a ring buffer.
+     */
+    private final long[] mSamples = new long[MAX_SAMPLES];
+
+    /**
+     * Number of latencies in the ring buffer.
+     */
+    private int mSampleCount;
+
+    /**
+     * Where the next latency goes in the ring buffer.
+     */
+    private int mNextSample;
+
+    /**
+     * Constructs a hedging policy with a static delay.
+     *
+     * @param delayMs The wait for a response in milliseconds before hedging
+     */
+    public HedgePolicy(long delayMs) {
+        this(delayMs, 0);
+    }
+
+    /**
+     * Constructs a hedging policy which learns its delay.
+     *
+     * @param initialDelayMs The wait in milliseconds before hedging until enough latencies were learned
+     * @param percentile     The percentile of the recent latencies to wait before hedging, e.g. 0.95
+     */
+    public HedgePolicy(long initialDelayMs, double percentile) {
+        if (percentile < 0 || percentile >= 1) {
+            throw new IllegalArgumentException("percentile must be in [0, 1).");
+        }
+        mDelayMs = initialDelayMs;
+        mPercentile = percentile;
+    }
+
+    /**
+     * Returns the wait for a response in milliseconds before hedging.
+     */
+    public synchronized long getHedgeDelayMs() {
+        if (mPercentile <= 0 || mSampleCount < MIN_SAMPLES) return mDelayMs;
+
+        long[] sorted = Arrays.copyOf(mSamples, mSampleCount);
+        Arrays.sort(sorted);
+        return sorted[(int) Math.max(0, Math.ceil(mPercentile * mSampleCount) - 1)];
+    }
+
+    /**
+     * Records the latency of a completed attempt.
+     */
+    public synchronized void recordLatency(long latencyMs) {
+        mSamples[mNextSample] = latencyMs;
+        mNextSample = (mNextSample + 1) % MAX_SAMPLES;
+        mSampleCount = Math.min(mSampleCount + 1, MAX_SAMPLES);
+    }
+}
@@ -26,7 +26,8 @@ import org.apache.http.protocol.HTTP;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.util.zip.GZIPInputStream;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class HttpUtils {
 
@@ -44,13 +45,10 @@ public class HttpUtils {
         byte[] buffer = null;
         try {
             InputStream in = entity.getContent();
-            if (isGzipContent(response) && !(in instanceof GZIPInputStream)) {
-                in = new GZIPInputStream(in);
-            }
-
             if (in == null) {
                 throw new ServerError();
             }
+            in = decodeContent(response, in);
 
             buffer = ByteArrayPool.get().getBuf(1024);
             int count;
@@ -97,6 +95,18 @@ public class HttpUtils {
         return header == null ? null : header.getValue();
     }
 
+    /**
+     * Returns the headers of the response by name, ignoring the case of the names. Of a
+     * repeated header, the last value wins.
+     */
+    public static Map<String, String> convertHeaders(HttpResponse response) {
+        Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        for (Header header : response.getAllHeaders()) {
+            headers.put(header.getName(), header.getValue());
+        }
+        return headers;
+    }
+
     public static boolean isSupportRange(HttpResponse response) {
         if (TextUtils.equals(getHeader(response, "Accept-Ranges"), "bytes")) {
             return true;
@@ -109,6 +119,36 @@ public class HttpUtils {
         return TextUtils.equals(getHeader(response, "Content-Encoding"), "gzip");
     }
 
+    /**
+     * Returns true if the body is encoded by some content coding, then its Content-Length
+     * isn't the length of the decoded body.
+     */
+    public static boolean isEncodedContent(HttpResponse response) {
+        String encoding = getHeader(response, HTTP.CONTENT_ENCODING);
+        return !TextUtils.isEmpty(encoding) && !"identity".equalsIgnoreCase(encoding.trim());
+    }
+
+    /**
+     * Returns a stream which decodes the body by the codings of the Content-Encoding header.
+     *
+     * @throws IOException if a coding isn't registered to {@link ContentCodec}
+     */
+    public static InputStream decodeContent(HttpResponse response, InputStream in) throws IOException {
+        String encoding = getHeader(response, HTTP.CONTENT_ENCODING);
+        if (TextUtils.isEmpty(encoding)) return in;
+
+        // The codings are listed in the order they were applied.
+        String[] codings = encoding.split(",");
+        for (int i = codings.length - 1; i >= 0; i--) {
+            String coding = codings[i].trim();
+            if (coding.length() == 0 || "identity".equalsIgnoreCase(coding)) continue;
+            ContentCodec codec = ContentCodec.get(coding);
+            if (codec == null) throw new IOException("Unsupported Content-Encoding: " + coding);
+            in = codec.decode(in);
+        }
+        return in;
+    }
+
     public static String parseResponse(NetworkResponse response) {
         String parsed;
         try {
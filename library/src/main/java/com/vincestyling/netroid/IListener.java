@@ -17,7 +17,8 @@ package com.vincestyling.netroid;
 
 /**
  * Callback interface for delivering request status or response result.
- * Note : all method are calls over UI thread.
+ * Note : all method are calls over UI thread, unless the request was given
+ * another executor by {@link Request#setDeliveryExecutor(java.util.concurrent.Executor)}.
  *
  * @param <T> Parsed type of this response.
  */
@@ -73,4 +74,11 @@ public interface IListener<T> {
      * when request was {@link com.vincestyling.netroid.request.FileDownloadRequest}.
      */
     void onProgressChange(long fileSize, long downloadedSize);
+
+    /**
+     * Inform when upload progress of the request body change, e.g. the files of a
+     * {@link com.vincestyling.netroid.request.MultipartRequest}. The totalSize is -1
+     * until the end of a body of unknown length.
+     */
+    void onUploadProgress(long totalSize, long uploadedSize);
 }
@@ -51,4 +51,8 @@ public class Listener<T> implements IListener<T> {
     @Override
     public void onProgressChange(long fileSize, long downloadedSize) {
     }
+
+    @Override
+    public void onUploadProgress(long totalSize, long uploadedSize) {
+    }
 }
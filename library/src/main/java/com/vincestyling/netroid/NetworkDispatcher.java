@@ -19,6 +19,7 @@ import android.os.Process;
 import com.vincestyling.netroid.cache.DiskCache;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provides a thread for performing network dispatch from a queue of requests.
@@ -49,6 +50,26 @@ public class NetworkDispatcher extends Thread {
      */
     private final Delivery mDelivery;
 
+    /**
+     * The elastic pool this dispatcher belongs to, null if it lives forever.
+     */
+    private final RequestQueue mPool;
+
+    /**
+     * How long this dispatcher may stay idle before asking the pool to retire it.
+     */
+    private final long mKeepAliveMs;
+
+    /**
+     * The {@link Process} thread priority this dispatcher runs at.
+     */
+    private final int mThreadPriority;
+
+    /**
+     * Whether this dispatcher is waiting on the queue for a request.
+     */
+    private volatile boolean mIdle = true;
+
     /**
      * Used for telling us to die.
      */
@@ -66,10 +87,35 @@ public class NetworkDispatcher extends Thread {
     public NetworkDispatcher(BlockingQueue<Request> queue,
                              Network network, DiskCache cache,
                              Delivery delivery) {
+        this(queue, network, cache, delivery, null, 0, Process.THREAD_PRIORITY_BACKGROUND);
+    }
+
+    /**
+     * Creates a new network dispatcher thread which may belong to an elastic pool. When no request
+     * arrives within the keep-alive time, the pool is asked whether this dispatcher should retire.
+     *
+     * @param pool           The RequestQueue which manages the elastic pool, null if none
+     * @param keepAliveMs    Idle time in milliseconds before asking to retire, 0 to never retire
+     * @param threadPriority The {@link Process} thread priority to run at
+     */
+    NetworkDispatcher(BlockingQueue<Request> queue,
+                      Network network, DiskCache cache,
+                      Delivery delivery, RequestQueue pool,
+                      long keepAliveMs, int threadPriority) {
         mQueue = queue;
         mCache = cache;
         mNetwork = network;
         mDelivery = delivery;
+        mPool = pool;
+        mKeepAliveMs = keepAliveMs;
+        mThreadPriority = threadPriority;
+    }
+
+    /**
+     * Returns true if this dispatcher is waiting on the queue for a request.
+     */
+    public boolean isIdle() {
+        return mIdle;
     }
 
     /**
@@ -83,19 +129,36 @@ public class NetworkDispatcher extends Thread {
 
     @Override
     public void run() {
-        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        Process.setThreadPriority(mThreadPriority);
         Request request;
         while (true) {
             try {
-                // Take a request from the queue.
-                request = mQueue.take();
+                mIdle = true;
+                if (mPool != null && mKeepAliveMs > 0) {
+                    // Wait for a request no longer than the keep-alive time.
+                    request = mQueue.poll(mKeepAliveMs, TimeUnit.MILLISECONDS);
+                    if (request == null) {
+                        // Idle too long, retire if the pool doesn't need us anymore.
+                        if (mPool.retireDispatcher(this)) return;
+                        continue;
+                    }
+                } else {
+                    // Take a request from the queue.
+                    request = mQueue.take();
+                }
             } catch (InterruptedException e) {
                 // We may have been interrupted because it was time to quit.
                 if (mQuit) return;
                 continue;
             }
 
-            RequestPerformer.perform(request, mNetwork, mCache, mDelivery);
+            mIdle = false;
+            try {
+                RequestPerformer.perform(request, mNetwork, mCache, mDelivery);
+            } finally {
+                // Give the slot of the request's host back.
+                if (mQueue instanceof NetworkQueue) ((NetworkQueue) mQueue).finish(request);
+            }
         }
     }
 
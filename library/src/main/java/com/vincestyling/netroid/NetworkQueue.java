@@ -0,0 +1,918 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * The queue of requests that are going out to the network. Besides ordering the
+ * requests by {@link Request#compareTo(Request)}, it stamps the time each request
+ * was enqueued and notifies the {@link RequestQueue} that owns it, so the owner
+ * can watch the queue depth and the head-of-line wait.
+ * <p/>
+ * When host scheduling is enabled, every host has its own sub-queue and a limit of
+ * requests it may have in flight. A request whose host already reached the limit
+ * stays in the queue and doesn't hold a dispatcher, other hosts are served meanwhile.
+ * Among the hosts whose next request has the highest {@link Request.Priority}, the
+ * host is chosen by stride scheduling, which is round-robin if all hosts have the
+ * same weight, and weighted-fair otherwise.
+ * <p/>
+ * Dispatchers must call {@link #finish(Request)} once the network processing of a
+ * taken request is done, to give the slot of its host back.
+ * <p/>
+ * When priority aging is enabled, a queued request gains one priority level for every
+ * aging interval it waits, up to the max boost, so low priority requests don't starve
+ * under a steady stream of higher priority ones. The boosts are recomputed at most twice
+ * per interval, by re-inserting the queued requests, since a heap can't have its keys
+ * changing underneath.
+ * <p/>
+ * Requests matching a rate limit need a token of its bucket to be taken. A request
+ * whose bucket is empty is moved aside until the bucket refills, it doesn't hold back
+ * the other requests of its host, and no dispatcher waits for it, the dispatchers
+ * sleep on this queue until the earliest token is due.
+ */
+class NetworkQueue extends AbstractQueue<Request> implements BlockingQueue<Request> {
+
+    /**
+     * The stride of a host which weight is one, the larger weight the smaller stride.
+     */
+    private static final long STRIDE = 1 << 20;
+
+    /**
+     * The lane key of all requests when host scheduling is disabled.
+     */
+    private static final String SHARED_LANE = "";
+
+    /**
+     * The owner to notify after a request was enqueued, may be null.
+     */
+    private final RequestQueue mOwner;
+
+    /**
+     * Guards all the state below.
+     */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /**
+     * Signalled whenever a request might have become available to take.
+     */
+    private final Condition mAvailable = mLock.newCondition();
+
+    /**
+     * The lanes which have either queued or in flight requests, by host.
+     */
+    private final Map<String, HostLane> mLanes = new LinkedHashMap<String, HostLane>();
+
+    /**
+     * The lanes of the requests which were taken but not finished yet.
+     */
+    private final Map<Request, HostLane> mInFlight = new IdentityHashMap<Request, HostLane>();
+
+    /**
+     * Number of requests queued in all lanes.
+     */
+    private int mCount;
+
+    /**
+     * The pass of the latest chosen lane, new lanes start from here.
+     */
+    private long mVirtualTime;
+
+    /**
+     * Whether requests are queued per host.
+     */
+    private boolean mHostScheduling;
+
+    /**
+     * Default maximum in flight requests of a host, 0 means unlimited.
+     */
+    private int mMaxRequestsPerHost;
+
+    /**
+     * The per host overrides of the maximum in flight requests.
+     */
+    private final Map<String, Integer> mHostMaxRequests = new HashMap<String, Integer>();
+
+    /**
+     * The per host weights, 1 if absent.
+     */
+    private final Map<String, Integer> mHostWeights = new HashMap<String, Integer>();
+
+    /**
+     * The wait in milliseconds for a request to gain one priority level, 0 means no aging.
+     */
+    private long mAgingIntervalMs;
+
+    /**
+     * Maximum priority levels a request can gain by waiting.
+     */
+    private int mMaxPriorityBoost;
+
+    /**
+     * When the boosts of the queued requests are due to be recomputed, in elapsedRealtime milliseconds.
+     */
+    private long mNextAgingTime;
+
+    /**
+     * The rate limits by URL pattern, checked in the order they were set, before the hosts.
+     */
+    private final Map<String, RateBucket> mPatternBuckets = new LinkedHashMap<String, RateBucket>();
+
+    /**
+     * The compiled URL patterns of mPatternBuckets.
+     */
+    private final Map<String, Pattern> mPatterns = new HashMap<String, Pattern>();
+
+    /**
+     * The rate limits by host.
+     */
+    private final Map<String, RateBucket> mHostBuckets = new HashMap<String, RateBucket>();
+
+    /**
+     * The rate limit of each queued request which matches one.
+     */
+    private final Map<Request, RateBucket> mRequestBuckets = new IdentityHashMap<Request, RateBucket>();
+
+    /**
+     * Number of requests taken, by original priority.
+     */
+    private final long[] mWaitCounts = new long[Request.Priority.values().length];
+
+    /**
+     * Sum of the queue wait in milliseconds of the requests taken, by original priority.
+     */
+    private final long[] mWaitTotals = new long[Request.Priority.values().length];
+
+    /**
+     * The longest queue wait in milliseconds of the requests taken, by original priority.
+     */
+    private final long[] mWaitMaxes = new long[Request.Priority.values().length];
+
+    /**
+     * Number of requests taken with a gained priority, by original priority.
+     */
+    private final long[] mBoostedCounts = new long[Request.Priority.values().length];
+
+    NetworkQueue(RequestQueue owner) {
+        mOwner = owner;
+    }
+
+    /**
+     * Takes over the host scheduling, priority aging and rate limit settings of the given
+     * queue, with buckets of its own, the new queue must not be in use yet.
+     */
+    void copySettings(NetworkQueue source) {
+        source.mLock.lock();
+        try {
+            mHostScheduling = source.mHostScheduling;
+            mMaxRequestsPerHost = source.mMaxRequestsPerHost;
+            mHostMaxRequests.putAll(source.mHostMaxRequests);
+            mHostWeights.putAll(source.mHostWeights);
+            mAgingIntervalMs = source.mAgingIntervalMs;
+            mMaxPriorityBoost = source.mMaxPriorityBoost;
+
+            long now = SystemClock.elapsedRealtime();
+            for (RateBucket bucket : source.mPatternBuckets.values()) {
+                mPatterns.put(bucket.key, source.mPatterns.get(bucket.key));
+                mPatternBuckets.put(bucket.key, new RateBucket(bucket.key,
+                        bucket.permitsPerMs * 1000, bucket.burst, now));
+            }
+            for (RateBucket bucket : source.mHostBuckets.values()) {
+                mHostBuckets.put(bucket.key, new RateBucket(bucket.key,
+                        bucket.permitsPerMs * 1000, bucket.burst, now));
+            }
+        } finally {
+            source.mLock.unlock();
+        }
+    }
+
+    /**
+     * Enables host scheduling.
+     *
+     * @param maxRequestsPerHost Default maximum in flight requests of a host, 0 means unlimited
+     */
+    void setHostScheduling(int maxRequestsPerHost) {
+        mLock.lock();
+        try {
+            mHostScheduling = true;
+            mMaxRequestsPerHost = maxRequestsPerHost;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Overrides the maximum in flight requests and the weight of the given host.
+     */
+    void setHostPolicy(String host, int maxRequests, int weight) {
+        mLock.lock();
+        try {
+            host = host.toLowerCase(Locale.US);
+            mHostMaxRequests.put(host, maxRequests);
+            mHostWeights.put(host, weight);
+
+            HostLane lane = mLanes.get(host);
+            if (lane != null) {
+                lane.maxRequests = maxRequests;
+                lane.stride = STRIDE / weight;
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Enables priority aging, or disables it if the interval is 0.
+     *
+     * @param agingIntervalMs The wait in milliseconds for a request to gain one priority level
+     * @param maxBoost        Maximum priority levels a request can gain by waiting
+     */
+    void setPriorityAging(long agingIntervalMs, int maxBoost) {
+        mLock.lock();
+        try {
+            mAgingIntervalMs = agingIntervalMs;
+            mMaxPriorityBoost = maxBoost;
+            mNextAgingTime = 0;
+            ageRequests();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Limits the requests of the given host, or matching the given URL pattern, to the given rate.
+     *
+     * @param key              The host name, or the URL pattern if isPattern
+     * @param permitsPerSecond How many requests may go out per second on average
+     * @param burst            How many requests may go out at once after a quiet period
+     */
+    void setRateLimit(String key, boolean isPattern, double permitsPerSecond, int burst) {
+        mLock.lock();
+        try {
+            long now = SystemClock.elapsedRealtime();
+            if (!isPattern) key = key.toLowerCase(Locale.US);
+
+            // Keep the bucket of a changed limit, requests may be waiting for its tokens.
+            RateBucket bucket = isPattern ? mPatternBuckets.get(key) : mHostBuckets.get(key);
+            if (bucket != null) {
+                bucket.setRate(permitsPerSecond, burst, now);
+                mAvailable.signalAll();
+                return;
+            }
+
+            bucket = new RateBucket(key, permitsPerSecond, burst, now);
+            if (isPattern) {
+                mPatterns.put(key, Pattern.compile(key));
+                mPatternBuckets.put(key, bucket);
+            } else {
+                mHostBuckets.put(bucket.key, bucket);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the state of all the rate limits.
+     */
+    List<RateLimitStats> getRateLimitStats() {
+        mLock.lock();
+        try {
+            long now = SystemClock.elapsedRealtime();
+            List<RateLimitStats> stats = new ArrayList<RateLimitStats>();
+            for (RateBucket bucket : mPatternBuckets.values()) {
+                stats.add(bucket.getStats(now));
+            }
+            for (RateBucket bucket : mHostBuckets.values()) {
+                stats.add(bucket.getStats(now));
+            }
+            return stats;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the rate limit the given request matches, or null, must hold the lock.
+     */
+    private RateBucket matchBucket(Request request) {
+        String url = request.getUrl();
+        if (url == null) return null;
+        for (Map.Entry<String, RateBucket> entry : mPatternBuckets.entrySet()) {
+            if (mPatterns.get(entry.getKey()).matcher(url).find()) return entry.getValue();
+        }
+        return mHostBuckets.isEmpty() ? null : mHostBuckets.get(getHost(request));
+    }
+
+    /**
+     * Moves the heads of the given lane which have to wait for a token aside, then returns
+     * the head which may go, or null, must hold the lock.
+     */
+    private Request throttleHead(HostLane lane, long now) {
+        Request head;
+        while ((head = lane.queue.peek()) != null) {
+            RateBucket bucket = mRequestBuckets.get(head);
+            if (bucket == null || bucket.hasToken(now)) break;
+            lane.queue.poll();
+            bucket.throttle(head, now);
+        }
+        return head;
+    }
+
+    /**
+     * Gives the requests which waited for a token back to their lanes once their
+     * bucket refilled, must hold the lock.
+     */
+    private void releaseThrottled(long now) {
+        for (RateBucket bucket : mPatternBuckets.values()) {
+            releaseThrottled(bucket, now);
+        }
+        for (RateBucket bucket : mHostBuckets.values()) {
+            releaseThrottled(bucket, now);
+        }
+    }
+
+    private void releaseThrottled(RateBucket bucket, long now) {
+        // One at a time, the next one follows once this one took the token.
+        if (bucket.waiting.isEmpty() || !bucket.hasToken(now)) return;
+        Request request = bucket.waiting.poll();
+        laneFor(request).queue.offer(request);
+    }
+
+    /**
+     * Returns the milliseconds until the earliest token for a waiting request is due,
+     * or 0 if no request waits for a token, must hold the lock.
+     */
+    private long getThrottleWaitMs(long now) {
+        long waitMs = 0;
+        for (RateBucket bucket : mPatternBuckets.values()) {
+            waitMs = minWait(waitMs, bucket, now);
+        }
+        for (RateBucket bucket : mHostBuckets.values()) {
+            waitMs = minWait(waitMs, bucket, now);
+        }
+        return waitMs;
+    }
+
+    private static long minWait(long waitMs, RateBucket bucket, long now) {
+        if (bucket.waiting.isEmpty()) return waitMs;
+        long bucketWaitMs = Math.max(1, bucket.getMsUntilToken(now));
+        return waitMs == 0 ? bucketWaitMs : Math.min(waitMs, bucketWaitMs);
+    }
+
+    /**
+     * Recomputes the boosts of the queued requests if due, must hold the lock.
+     */
+    private void ageRequests() {
+        long now = SystemClock.elapsedRealtime();
+        if (mCount == 0 || now < mNextAgingTime) return;
+        mNextAgingTime = mAgingIntervalMs > 0 ? now + Math.max(mAgingIntervalMs / 2, 1) : Long.MAX_VALUE;
+
+        for (HostLane lane : mLanes.values()) {
+            boolean changed = false;
+            for (Request request : lane.queue) {
+                if (getBoost(request, now) != request.getPriorityBoost()) {
+                    changed = true;
+                    break;
+                }
+            }
+            if (!changed) continue;
+
+            // Take them all out before changing the boosts, so the heap stays consistent.
+            List<Request> requests = new ArrayList<Request>(lane.queue);
+            lane.queue.clear();
+            for (Request request : requests) {
+                request.setPriorityBoost(getBoost(request, now));
+            }
+            lane.queue.addAll(requests);
+        }
+    }
+
+    private int getBoost(Request request, long now) {
+        if (mAgingIntervalMs <= 0) return 0;
+        long levels = (now - request.getEnqueueTime()) / mAgingIntervalMs;
+        return (int) Math.min(levels, mMaxPriorityBoost);
+    }
+
+    /**
+     * Returns the queue wait statistics of the taken requests of the given original priority.
+     */
+    QueueWaitStats getWaitStats(Request.Priority priority) {
+        mLock.lock();
+        try {
+            int i = priority.ordinal();
+            return new QueueWaitStats(priority, mWaitCounts[i], mWaitTotals[i], mWaitMaxes[i], mBoostedCounts[i]);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the lane for the given request, creates it if absent, must hold the lock.
+     */
+    private HostLane laneFor(Request request) {
+        String host = mHostScheduling ? getHost(request) : SHARED_LANE;
+        HostLane lane = mLanes.get(host);
+        if (lane == null) {
+            lane = new HostLane();
+            if (mHostScheduling) {
+                Integer maxRequests = mHostMaxRequests.get(host);
+                Integer weight = mHostWeights.get(host);
+                lane.maxRequests = maxRequests != null ? maxRequests : mMaxRequestsPerHost;
+                lane.stride = STRIDE / (weight != null ? weight : 1);
+            } else {
+                lane.stride = STRIDE;
+            }
+            lane.pass = mVirtualTime;
+            mLanes.put(host, lane);
+        }
+        return lane;
+    }
+
+    private static String getHost(Request request) {
+        String url = request.getUrl();
+        String host = url != null ? Uri.parse(url).getHost() : null;
+        return host != null ? host.toLowerCase(Locale.US) : SHARED_LANE;
+    }
+
+    /**
+     * Returns the lane to take the next request from, or null if none is available, must hold the lock.
+     */
+    private HostLane selectLane() {
+        ageRequests();
+
+        long now = SystemClock.elapsedRealtime();
+        if (!mRequestBuckets.isEmpty()) releaseThrottled(now);
+
+        HostLane best = null;
+        Iterator<HostLane> iterator = mLanes.values().iterator();
+        while (iterator.hasNext()) {
+            HostLane lane = iterator.next();
+            Request head = mRequestBuckets.isEmpty() ? lane.queue.peek() : throttleHead(lane, now);
+            if (head == null) {
+                // All its requests wait for a token.
+                if (lane.active == 0) iterator.remove();
+                continue;
+            }
+            if (!lane.hasCapacity()) continue;
+            if (best == null) {
+                best = lane;
+                continue;
+            }
+
+            // Higher priority always goes first, the smaller pass breaks the tie.
+            int diff = head.getEffectivePriority() - best.queue.peek().getEffectivePriority();
+            if (diff > 0 || (diff == 0 && lane.pass < best.pass)) {
+                best = lane;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Takes the head request of the given lane, must hold the lock.
+     */
+    private Request dequeue(HostLane lane) {
+        Request request = lane.queue.poll();
+        mCount--;
+        lane.active++;
+        mVirtualTime = Math.max(mVirtualTime, lane.pass);
+        lane.pass += lane.stride;
+        mInFlight.put(request, lane);
+
+        long now = SystemClock.elapsedRealtime();
+        RateBucket bucket = mRequestBuckets.remove(request);
+        if (bucket != null) bucket.take(request, now);
+
+        int i = request.getPriority().ordinal();
+        long waitMs = now - request.getEnqueueTime();
+        mWaitCounts[i]++;
+        mWaitTotals[i] += waitMs;
+        mWaitMaxes[i] = Math.max(mWaitMaxes[i], waitMs);
+        if (request.getPriorityBoost() > 0) mBoostedCounts[i]++;
+        return request;
+    }
+
+    /**
+     * Removes the lane if nothing is queued or in flight, must hold the lock.
+     */
+    private void dropIfUnused(HostLane lane) {
+        if (lane.active == 0 && lane.queue.isEmpty()) {
+            mLanes.values().remove(lane);
+        }
+    }
+
+    /**
+     * Called by a dispatcher once the network processing of the given request was done.
+     */
+    void finish(Request request) {
+        mLock.lock();
+        try {
+            HostLane lane = mInFlight.remove(request);
+            if (lane != null) {
+                lane.active--;
+                dropIfUnused(lane);
+                mAvailable.signalAll();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns how long the request at the head of this queue has been waiting,
+     * in milliseconds, or 0 if the queue is empty.
+     */
+    long getHeadWaitMs() {
+        Request head = peek();
+        return head != null ? SystemClock.elapsedRealtime() - head.getEnqueueTime() : 0;
+    }
+
+    /**
+     * Both {@link #add(Request)} and {@link #put(Request)} end up here.
+     * A request routed to another dispatch lane is passed to the queue of that lane.
+     */
+    @Override
+    public boolean offer(Request request) {
+        if (request == null) throw new NullPointerException();
+
+        // A request which belongs to another dispatch lane goes to the queue of that lane.
+        if (mOwner != null) {
+            NetworkQueue queue = mOwner.getNetworkQueue(request);
+            if (queue != this) return queue.offer(request);
+        }
+
+        request.setEnqueueTime(SystemClock.elapsedRealtime());
+        request.setPriorityBoost(0);
+
+        mLock.lock();
+        try {
+            RateBucket bucket = matchBucket(request);
+            if (bucket != null) mRequestBuckets.put(request, bucket);
+            laneFor(request).queue.offer(request);
+            mCount++;
+            mAvailable.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+
+        if (mOwner != null) mOwner.onNetworkQueued(this);
+        return true;
+    }
+
+    @Override
+    public void put(Request request) {
+        offer(request);
+    }
+
+    @Override
+    public boolean offer(Request request, long timeout, TimeUnit unit) {
+        return offer(request);
+    }
+
+    @Override
+    public Request take() throws InterruptedException {
+        Request request;
+        mLock.lockInterruptibly();
+        try {
+            HostLane lane;
+            while ((lane = selectLane()) == null) {
+                long throttleWaitMs = getThrottleWaitMs(SystemClock.elapsedRealtime());
+                if (throttleWaitMs > 0) {
+                    // Wake up when the earliest token is due.
+                    mAvailable.await(throttleWaitMs, TimeUnit.MILLISECONDS);
+                } else {
+                    mAvailable.await();
+                }
+            }
+            request = dequeue(lane);
+        } finally {
+            mLock.unlock();
+        }
+        return onTaken(request);
+    }
+
+    @Override
+    public Request poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        Request request;
+        mLock.lockInterruptibly();
+        try {
+            HostLane lane;
+            while ((lane = selectLane()) == null) {
+                if (nanos <= 0) return null;
+                long throttleWaitNanos = TimeUnit.MILLISECONDS.toNanos(
+                        getThrottleWaitMs(SystemClock.elapsedRealtime()));
+                if (throttleWaitNanos > 0 && throttleWaitNanos < nanos) {
+                    // Wake up when the earliest token is due.
+                    nanos -= throttleWaitNanos - mAvailable.awaitNanos(throttleWaitNanos);
+                } else {
+                    nanos = mAvailable.awaitNanos(nanos);
+                }
+            }
+            request = dequeue(lane);
+        } finally {
+            mLock.unlock();
+        }
+        return onTaken(request);
+    }
+
+    @Override
+    public Request poll() {
+        Request request = null;
+        mLock.lock();
+        try {
+            HostLane lane = selectLane();
+            if (lane != null) request = dequeue(lane);
+        } finally {
+            mLock.unlock();
+        }
+        return request != null ? onTaken(request) : null;
+    }
+
+    /**
+     * Notifies the owner that the queue has drained by the given request, must not hold the lock.
+     */
+    private Request onTaken(Request request) {
+        if (mOwner != null) mOwner.onQueueDrained();
+        return request;
+    }
+
+    @Override
+    public Request peek() {
+        mLock.lock();
+        try {
+            HostLane lane = selectLane();
+            return lane != null ? lane.queue.peek() : null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        mLock.lock();
+        try {
+            for (HostLane lane : mLanes.values()) {
+                if (lane.queue.remove(o)) {
+                    mCount--;
+                    dropIfUnused(lane);
+                    forgetBucket(o);
+                    return true;
+                }
+            }
+            RateBucket bucket = mRequestBuckets.get(o);
+            if (bucket != null && bucket.waiting.remove(o)) {
+                mCount--;
+                forgetBucket(o);
+                return true;
+            }
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        mLock.lock();
+        try {
+            Iterator<HostLane> iterator = mLanes.values().iterator();
+            while (iterator.hasNext()) {
+                HostLane lane = iterator.next();
+                lane.queue.clear();
+                if (lane.active == 0) iterator.remove();
+            }
+            for (RateBucket bucket : mRequestBuckets.values()) {
+                bucket.waiting.clear();
+                bucket.throttledSince.clear();
+            }
+            mRequestBuckets.clear();
+            mCount = 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request> c, int maxElements) {
+        if (c == this) throw new IllegalArgumentException();
+        int n = 0;
+        Request request;
+        while (n < maxElements && (request = poll()) != null) {
+            c.add(request);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queued requests, in no particular order.
+     */
+    @Override
+    public Iterator<Request> iterator() {
+        final List<Request> snapshot = new ArrayList<Request>();
+        mLock.lock();
+        try {
+            for (HostLane lane : mLanes.values()) {
+                snapshot.addAll(lane.queue);
+            }
+            for (RateBucket bucket : mPatternBuckets.values()) {
+                snapshot.addAll(bucket.waiting);
+            }
+            for (RateBucket bucket : mHostBuckets.values()) {
+                snapshot.addAll(bucket.waiting);
+            }
+        } finally {
+            mLock.unlock();
+        }
+
+        return new Iterator<Request>() {
+            private final Iterator<Request> mIterator = snapshot.iterator();
+            private Request mLast;
+
+            @Override
+            public boolean hasNext() {
+                return mIterator.hasNext();
+            }
+
+            @Override
+            public Request next() {
+                return mLast = mIterator.next();
+            }
+
+            @Override
+            public void remove() {
+                if (mLast == null) throw new IllegalStateException();
+                NetworkQueue.this.remove(mLast);
+                mLast = null;
+            }
+        };
+    }
+
+    /**
+     * Unlinks the given request, which left the queue, from its rate limit, must hold the lock.
+     */
+    private void forgetBucket(Object request) {
+        RateBucket bucket = mRequestBuckets.remove(request);
+        if (bucket != null) bucket.throttledSince.remove(request);
+    }
+
+    /**
+     * The token bucket of a rate limit, along with the requests waiting for a token.
+     */
+    private static class RateBucket {
+        final String key;
+        double permitsPerMs;
+        int burst;
+
+        /**
+         * The tokens in the bucket, refilled lazily.
+         */
+        double tokens;
+        long lastRefillTime;
+
+        /**
+         * The requests moved aside until a token is available.
+         */
+        final PriorityQueue<Request> waiting = new PriorityQueue<Request>();
+
+        /**
+         * When each throttled request began to wait for a token.
+         */
+        final Map<Request, Long> throttledSince = new IdentityHashMap<Request, Long>();
+
+        long throttledCount;
+        long totalThrottleMs;
+        long maxThrottleMs;
+
+        RateBucket(String key, double permitsPerSecond, int burst, long now) {
+            this.key = key;
+            this.permitsPerMs = permitsPerSecond / 1000;
+            this.burst = burst;
+            this.tokens = burst;
+            this.lastRefillTime = now;
+        }
+
+        void setRate(double permitsPerSecond, int burst, long now) {
+            refill(now);
+            this.permitsPerMs = permitsPerSecond / 1000;
+            this.burst = burst;
+            tokens = Math.min(tokens, burst);
+        }
+
+        void refill(long now) {
+            if (now <= lastRefillTime) return;
+            tokens = Math.min(burst, tokens + (now - lastRefillTime) * permitsPerMs);
+            lastRefillTime = now;
+        }
+
+        boolean hasToken(long now) {
+            refill(now);
+            return tokens >= 1;
+        }
+
+        long getMsUntilToken(long now) {
+            refill(now);
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / permitsPerMs);
+        }
+
+        void throttle(Request request, long now) {
+            waiting.offer(request);
+            if (!throttledSince.containsKey(request)) throttledSince.put(request, now);
+        }
+
+        /**
+         * Takes a token for the given request which is going out.
+         */
+        void take(Request request, long now) {
+            refill(now);
+            tokens--;
+            Long since = throttledSince.remove(request);
+            if (since != null) {
+                long throttleMs = now - since;
+                throttledCount++;
+                totalThrottleMs += throttleMs;
+                maxThrottleMs = Math.max(maxThrottleMs, throttleMs);
+            }
+        }
+
+        RateLimitStats getStats(long now) {
+            refill(now);
+            return new RateLimitStats(key, tokens, waiting.size(),
+                    throttledCount, totalThrottleMs, maxThrottleMs);
+        }
+    }
+
+    /**
+     * The sub-queue and scheduling state of a host.
+     */
+    private static class HostLane {
+        final PriorityQueue<Request> queue = new PriorityQueue<Request>();
+
+        /**
+         * Number of requests taken but not finished yet.
+         */
+        int active;
+
+        /**
+         * Maximum in flight requests, 0 means unlimited.
+         */
+        int maxRequests;
+
+        /**
+         * How far the pass moves forward each time this lane is chosen.
+         */
+        long stride;
+
+        /**
+         * The lane with the smallest pass is chosen first.
+         */
+        long pass;
+
+        boolean hasCapacity() {
+            return maxRequests <= 0 || active < maxRequests;
+        }
+    }
+}
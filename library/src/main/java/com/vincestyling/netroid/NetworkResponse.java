@@ -17,6 +17,9 @@ package com.vincestyling.netroid;
 
 import org.apache.http.HttpStatus;
 
+import java.util.Collections;
+import java.util.Map;
+
 /**
  * Data and headers returned from {@link Network#performRequest(Request)}.
  */
@@ -24,14 +27,23 @@ public class NetworkResponse {
     /**
      * Creates a new network response.
      *
-     * @param statusCode the HTTP status code
-     * @param data       Response body
-     * @param charset    The response body charset, parse by http header
+     * @param statusCode  the HTTP status code
+     * @param data        Response body
+     * @param charset     The response body charset, parse by http header
+     * @param headers     Headers returned with this response, by case-insensitive name
+     * @param notModified True if the server returned a 304 and the data came from the cache
      */
-    public NetworkResponse(int statusCode, byte[] data, String charset) {
+    public NetworkResponse(int statusCode, byte[] data, String charset,
+                           Map<String, String> headers, boolean notModified) {
         this.statusCode = statusCode;
         this.data = data;
         this.charset = charset;
+        this.headers = headers;
+        this.notModified = notModified;
+    }
+
+    public NetworkResponse(int statusCode, byte[] data, String charset) {
+        this(statusCode, data, charset, Collections.<String, String>emptyMap(), false);
     }
 
 //    public NetworkResponse(byte[] data) {
@@ -56,4 +68,14 @@ public class NetworkResponse {
      * Charset from this response.
      */
     public final String charset;
+
+    /**
+     * Response headers, by case-insensitive name.
+     */
+    public final Map<String, String> headers;
+
+    /**
+     * True if the server returned a 304 (Not Modified), the data is the cached one.
+     */
+    public final boolean notModified;
 }
\ No newline at end of file
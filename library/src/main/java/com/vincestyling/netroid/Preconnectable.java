@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import java.io.IOException;
+
+/**
+ * Implemented by the {@link Network}s and {@link com.vincestyling.netroid.stack.HttpStack}s which
+ * can open connections ahead of time, e.g. the {@link com.vincestyling.netroid.stack.PooledHttpStack}
+ * which pools its connections itself. The other ones don't need to care.
+ *
+ * @see RequestQueue#preconnect(String, int)
+ */
+public interface Preconnectable {
+    /**
+     * Opens and hand-shakes connections to the origin of the given url ahead of time and keeps
+     * them idle, so the next requests to it don't wait for the setup. Blocks until they're open.
+     *
+     * @param url   any url of the origin
+     * @param count the number of requests expected to go out at once
+     * @return the number of connections opened, 0 if none was missing
+     * @throws IOException if connecting failed
+     */
+    int preconnect(String url, int count) throws IOException;
+}
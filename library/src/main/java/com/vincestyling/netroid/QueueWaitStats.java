@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+/**
+ * How long the requests of one original {@link Request.Priority} waited in
+ * the network queue before a dispatcher took them, since the queue was created.
+ */
+public class QueueWaitStats {
+
+    /**
+     * The original priority of the requests these statistics are about.
+     */
+    public final Request.Priority priority;
+
+    /**
+     * Number of requests taken from the queue.
+     */
+    public final long count;
+
+    /**
+     * Sum of the queue wait of all taken requests, in milliseconds.
+     */
+    public final long totalWaitMs;
+
+    /**
+     * The longest queue wait of a taken request, in milliseconds.
+     */
+    public final long maxWaitMs;
+
+    /**
+     * Number of requests which had gained priority by waiting when they were taken.
+     */
+    public final long boostedCount;
+
+    QueueWaitStats(Request.Priority priority, long count, long totalWaitMs, long maxWaitMs, long boostedCount) {
+        this.priority = priority;
+        this.count = count;
+        this.totalWaitMs = totalWaitMs;
+        this.maxWaitMs = maxWaitMs;
+        this.boostedCount = boostedCount;
+    }
+
+    /**
+     * Returns the average queue wait of the taken requests in milliseconds, 0 if none were taken.
+     */
+    public long getAverageWaitMs() {
+        return count > 0 ? totalWaitMs / count : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s count=%d avg=%dms max=%dms boosted=%d",
+                priority, count, getAverageWaitMs(), maxWaitMs, boostedCount);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+/**
+ * The state of one rate limit of a {@link RequestQueue}, see {@link RequestQueue#setRateLimit}.
+ */
+public class RateLimitStats {
+
+    /**
+     * The host or the URL pattern the rate limit applies to.
+     */
+    public final String key;
+
+    /**
+     * The tokens currently in the bucket, a request takes one to go out.
+     */
+    public final double tokens;
+
+    /**
+     * Number of requests waiting for a token right now.
+     */
+    public final int waitingCount;
+
+    /**
+     * Number of requests which had to wait for a token.
+     */
+    public final long throttledCount;
+
+    /**
+     * Sum of the waits for a token, in milliseconds.
+     */
+    public final long totalThrottleMs;
+
+    /**
+     * The longest wait for a token, in milliseconds.
+     */
+    public final long maxThrottleMs;
+
+    RateLimitStats(String key, double tokens, int waitingCount,
+                   long throttledCount, long totalThrottleMs, long maxThrottleMs) {
+        this.key = key;
+        this.tokens = tokens;
+        this.waitingCount = waitingCount;
+        this.throttledCount = throttledCount;
+        this.totalThrottleMs = totalThrottleMs;
+        this.maxThrottleMs = maxThrottleMs;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s tokens=%.2f waiting=%d throttled=%d total=%dms max=%dms",
+                key, tokens, waitingCount, throttledCount, totalThrottleMs, maxThrottleMs);
+    }
+}
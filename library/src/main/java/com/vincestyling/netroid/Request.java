@@ -19,14 +19,25 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.SystemClock;
 import com.vincestyling.netroid.NetroidLog.MarkerLog;
+import com.vincestyling.netroid.cache.DiskCache;
 import org.apache.http.HttpResponse;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Base class for all network requests.
@@ -79,11 +90,21 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     private IListener<T> mListener;
 
+    /**
+     * The executor the listener is called on, null to use the one of the {@link Delivery}.
+     */
+    private volatile Executor mDeliveryExecutor;
+
     /**
      * Sequence number of this request, used to enforce FIFO ordering.
      */
     private Integer mSequence;
 
+    /**
+     * When this request entered the network queue, in elapsedRealtime milliseconds.
+     */
+    private long mEnqueueTime;
+
     /**
      * The request queue this request is associated with.
      */
@@ -97,7 +118,45 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /**
      * Whether or not this request has been canceled.
      */
-    private boolean mCanceled = false;
+    private volatile boolean mCanceled = false;
+
+    /**
+     * Abort the I/O of the attempts in flight by the thread performing them, set by the
+     * {@link com.vincestyling.netroid.stack.HttpStack} while performing, guarded by this request.
+     * There are two attempts at most, when the request is hedged.
+     */
+    private final Map<Thread, Runnable> mAbortHandles = new HashMap<Thread, Runnable>(2);
+
+    /**
+     * The threads whose attempt was aborted before it set its abort handle, the handle runs as soon
+     * as it's set. Cleared once the attempt is over, guarded by this request.
+     */
+    private final Set<Thread> mPendingAborts = new HashSet<Thread>(2);
+
+    /**
+     * The hedging policy of this request, null if it's never hedged.
+     */
+    private HedgePolicy mHedgePolicy;
+
+    /**
+     * The body streamed to the connection, null to send {@link #getBody()}.
+     */
+    private RequestBody mRequestBody;
+
+    /**
+     * The delivery the body upload progress is posted to, given by the Network performing this request.
+     */
+    private volatile Delivery mUploadDelivery;
+
+    /**
+     * The coding the body is compressed with, null to send it as is.
+     */
+    private ContentCodec mBodyCodec;
+
+    /**
+     * The minimum length of the body to be compressed.
+     */
+    private long mBodyCompressionThreshold;
 
     /**
      * Whether or not a response has been delivered for this request yet.
@@ -127,6 +186,57 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     private long mCacheExpireTime;
 
+    /**
+     * The expired cache entry the network revalidates, null if there's none.
+     */
+    private DiskCache.Entry mCacheEntry;
+
+    /**
+     * Priority levels gained by waiting in the network queue, see {@link RequestQueue#setPriorityAging}.
+     */
+    private int mPriorityBoost;
+
+    /**
+     * The absolute deadline of this request in elapsedRealtime milliseconds, 0 if none.
+     */
+    private long mDeadline;
+
+    /**
+     * The requests which must succeed before this request is scheduled, null if none.
+     */
+    private List<Dependency<?>> mDependencies;
+
+    /**
+     * Number of dependencies not finished yet, plus one while they're being registered.
+     */
+    private final AtomicInteger mPendingDependencies = new AtomicInteger();
+
+    /**
+     * The error of the first dependency which finished without a result.
+     */
+    private volatile DependencyError mDependencyError;
+
+    /**
+     * The requests waiting for this request to finish, guarded by this request.
+     */
+    private List<Request<?>> mDependents;
+
+    /**
+     * Whether this request has finished, guarded by this request.
+     */
+    private boolean mFinished;
+
+    /**
+     * The parsed result of the latest successful delivery, only kept while dependents
+     * wait for it, guarded by this request.
+     */
+    private T mResult;
+
+    /**
+     * Whether a parsed result was delivered.
+     */
+    private volatile boolean mSucceeded;
+
     /**
      * An opaque token tagging this request; used for bulk cancellation.
      */
@@ -168,6 +278,34 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         mListener = listener;
     }
 
+    /**
+     * Returns the response listener.
+     */
+    public IListener<T> getListener() {
+        return mListener;
+    }
+
+    /**
+     * Makes the {@link ExecutorDelivery} call the listener of this request on the given executor
+     * rather than on its own, which is the main thread by default. With an executor which runs
+     * the task directly, the listener is called on the dispatcher thread.
+     *
+     * @param executor The executor to call the listener on, null to use the one of the Delivery
+     * @return This Request object to allow for chaining.
+     * @see RequestQueue#submit(Request, Executor)
+     */
+    public Request<?> setDeliveryExecutor(Executor executor) {
+        mDeliveryExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Returns the executor the listener is called on, null if it's the one of the Delivery.
+     */
+    public Executor getDeliveryExecutor() {
+        return mDeliveryExecutor;
+    }
+
     /**
      * Set a tag on this request. Can be used to cancel all requests with this
      * tag by {@link RequestQueue#cancelAll(Object)}.
@@ -218,6 +356,7 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         if (mRequestQueue != null) {
             mRequestQueue.finish(this);
         }
+        notifyDependents();
         if (MarkerLog.ENABLED) {
             final long threadId = Thread.currentThread().getId();
             if (Looper.myLooper() != Looper.getMainLooper()) {
@@ -255,6 +394,13 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return this;
     }
 
+    /**
+     * Returns the queue this request was added to, null if none.
+     */
+    RequestQueue getRequestQueue() {
+        return mRequestQueue;
+    }
+
     /**
      * Sets the sequence number of this request.  Used by {@link RequestQueue}.
      *
@@ -275,6 +421,20 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mSequence;
     }
 
+    /**
+     * Stamps the time this request entered the network queue. Used by {@link NetworkQueue}.
+     */
+    void setEnqueueTime(long enqueueTime) {
+        mEnqueueTime = enqueueTime;
+    }
+
+    /**
+     * Returns the time this request entered the network queue, in elapsedRealtime milliseconds.
+     */
+    long getEnqueueTime() {
+        return mEnqueueTime;
+    }
+
     /**
      * Returns the URL of this request.
      */
@@ -308,6 +468,21 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mCacheExpireTime;
     }
 
+    /**
+     * Returns the expired cache entry the network revalidates, or null if there's none.
+     */
+    public DiskCache.Entry getCacheEntry() {
+        return mCacheEntry;
+    }
+
+    /**
+     * Set the expired cache entry, the network asks the server whether it's still valid by
+     * its validators, and serves it if the server answers 304 (Not Modified).
+     */
+    public void setCacheEntry(DiskCache.Entry entry) {
+        mCacheEntry = entry;
+    }
+
     /**
      * Set how long the cache is expired, {@link com.vincestyling.netroid.cache.DiskCache}
      * will determine whether the cache entry is expired or not.<p/>
@@ -323,10 +498,295 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     }
 
     /**
-     * Mark this request as canceled.  No callback will be delivered.
+     * Set a deadline on this request, counted from now. Once it passed, the request is no longer
+     * useful, so the dispatchers fail it fast with a {@link DeadlineExceededError} rather than
+     * starting any I/O, and every network attempt including retries is capped by the time remaining.
+     * Within the same {@link Priority}, the request which deadline comes first is dispatched first.
+     * <p/>
+     * Must be called before adding this request to the {@link RequestQueue}.
+     *
+     * @param timeUnit what unit for the amount value
+     * @param amount   how much unit from now until the deadline
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setDeadline(TimeUnit timeUnit, long amount) {
+        mDeadline = SystemClock.elapsedRealtime() + timeUnit.toMillis(amount);
+        return this;
+    }
+
+    /**
+     * Returns the absolute deadline of this request in elapsedRealtime milliseconds, 0 if none.
+     */
+    public long getDeadline() {
+        return mDeadline;
+    }
+
+    /**
+     * Returns how many milliseconds remain until the deadline, or {@link Long#MAX_VALUE} if
+     * there's no deadline.
+     */
+    public long getRemainingTimeMs() {
+        return mDeadline > 0 ? mDeadline - SystemClock.elapsedRealtime() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns true if this request has a deadline and it already passed.
+     */
+    public boolean isDeadlineExceeded() {
+        return getRemainingTimeMs() <= 0;
+    }
+
+    /**
+     * Makes this request wait for the given request's parsed result. The {@link RequestQueue}
+     * holds this request back without occupying any dispatcher until all its dependencies
+     * have finished, then schedules it, requests which don't depend on each other run in
+     * parallel as usual. If a dependency fails, is canceled or is rejected, this request
+     * fails with a {@link DependencyError} instead, and so do the requests depending on it.
+     * <p/>
+     * Must be called before this request is added to the queue, the dependency has to be
+     * added to a queue as well, either before or after this one.
+     *
+     * @param dependency The request to wait for
+     * @param listener   Receives the dependency's parsed result on the thread which delivered it,
+     *                   before this request is scheduled, may be null. A dependency which had
+     *                   already finished when this request was added hands over null instead.
+     * @return This Request object to allow for chaining.
+     */
+    public <D> Request<?> dependsOn(Request<D> dependency, DependencyListener<D> listener) {
+        if (dependency == this || dependency.isWaitingFor(this)) {
+            throw new IllegalArgumentException("Dependency cycle between " + this + " and " + dependency);
+        }
+        if (mDependencies == null) mDependencies = new ArrayList<Dependency<?>>();
+        mDependencies.add(new Dependency<D>(dependency, listener));
+        return this;
+    }
+
+    /**
+     * Makes this request wait for the given request to succeed.
+     *
+     * @see #dependsOn(Request, DependencyListener)
+     */
+    public Request<?> dependsOn(Request<?> dependency) {
+        return dependsOn(dependency, null);
+    }
+
+    /**
+     * Returns true if this request waits for the given request, directly or indirectly.
+     */
+    private boolean isWaitingFor(Request<?> request) {
+        if (mDependencies == null) return false;
+        for (Dependency<?> dependency : mDependencies) {
+            if (dependency.request == request || dependency.request.isWaitingFor(request)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if this request has dependencies.
+     */
+    public boolean hasDependencies() {
+        return mDependencies != null && !mDependencies.isEmpty();
+    }
+
+    /**
+     * Registers this request with its dependencies, the request queue is notified by
+     * {@link RequestQueue#onDependenciesFinished(Request)} once all of them have finished.
+     */
+    void awaitDependencies() {
+        // The extra count keeps the dependencies finished meanwhile from releasing us too early.
+        mPendingDependencies.set(mDependencies.size() + 1);
+        addMarker("await-dependencies");
+        for (Dependency<?> dependency : mDependencies) {
+            dependency.request.addDependent(this);
+        }
+        releaseDependency();
+    }
+
+    /**
+     * Returns the error of the first dependency which finished without a result, or null.
+     */
+    DependencyError getDependencyError() {
+        return mDependencyError;
+    }
+
+    private void addDependent(Request<?> dependent) {
+        synchronized (this) {
+            if (!mFinished) {
+                if (mDependents == null) mDependents = new ArrayList<Request<?>>();
+                mDependents.add(dependent);
+                return;
+            }
+        }
+        dependent.onDependencyFinished(this);
+    }
+
+    /**
+     * Called once the given dependency of this request has finished.
+     */
+    @SuppressWarnings("unchecked")
+    private void onDependencyFinished(Request<?> request) {
+        Object result;
+        synchronized (request) {
+            result = request.mResult;
+        }
+        for (Dependency dependency : mDependencies) {
+            if (dependency.request != request) continue;
+            if (request.mSucceeded) {
+                if (dependency.listener != null) dependency.listener.onDependencyResolved(result);
+            } else if (mDependencyError == null) {
+                mDependencyError = new DependencyError(request);
+            }
+        }
+        releaseDependency();
+    }
+
+    private void releaseDependency() {
+        if (mPendingDependencies.decrementAndGet() == 0 && mRequestQueue != null) {
+            mRequestQueue.onDependenciesFinished(this);
+        }
+    }
+
+    /**
+     * Tells the requests depending on this request that it has finished.
+     */
+    private void notifyDependents() {
+        List<Request<?>> dependents;
+        synchronized (this) {
+            if (mFinished) return;
+            mFinished = true;
+            dependents = mDependents;
+            mDependents = null;
+        }
+        if (dependents == null) return;
+        for (Request<?> dependent : dependents) {
+            dependent.onDependencyFinished(this);
+        }
+        // Every dependent got the result, don't hold on to it for as long as this request lives.
+        synchronized (this) {
+            mResult = null;
+        }
+    }
+
+    /**
+     * Records the successful delivery of the given result, called by the {@link Delivery}
+     * before {@link #deliverSuccess(Object)}, the result is only kept if dependents wait for it.
+     */
+    void onDelivered(T result) {
+        synchronized (this) {
+            if (mDependents != null) mResult = result;
+        }
+        mSucceeded = true;
+    }
+
+    /**
+     * Mark this request as canceled.  No callback will be delivered. If the request is
+     * performing on the network, the connection is aborted so the blocked I/O fails at once
+     * and the dispatcher is free to take the next request.
      */
     public void cancel() {
-        mCanceled = true;
+        List<Runnable> abortHandles;
+        synchronized (this) {
+            mCanceled = true;
+            abortHandles = new ArrayList<Runnable>(mAbortHandles.values());
+            mAbortHandles.clear();
+        }
+        for (Runnable abortHandle : abortHandles) {
+            abort(abortHandle);
+        }
+    }
+
+    /**
+     * Sets how to abort the I/O of the attempt the current thread performs, called by the
+     * {@link com.vincestyling.netroid.stack.HttpStack} once the connection is opened, and with
+     * null by the {@link Network} once the attempt is over. If this request was canceled
+     * already, or the attempt was aborted by {@link #abortAttempt(Thread)}, the given handle
+     * runs at once.
+     */
+    public void setAbortHandle(Runnable abortHandle) {
+        Thread thread = Thread.currentThread();
+        synchronized (this) {
+            if (abortHandle == null) {
+                mAbortHandles.remove(thread);
+                mPendingAborts.remove(thread);
+                return;
+            }
+            if (!mCanceled && !mPendingAborts.contains(thread)) {
+                mAbortHandles.put(thread, abortHandle);
+                return;
+            }
+            mAbortHandles.remove(thread);
+        }
+        abort(abortHandle);
+    }
+
+    /**
+     * Aborts the I/O of the attempt the given thread performs, without canceling this request,
+     * used by the {@link Network} to stop the losing attempt of a hedged request. Any handle that
+     * attempt sets afterwards, e.g. because it didn't open its connection yet, runs at once, until
+     * the attempt is over.
+     */
+    public void abortAttempt(Thread thread) {
+        Runnable abortHandle;
+        synchronized (this) {
+            abortHandle = mAbortHandles.remove(thread);
+            mPendingAborts.add(thread);
+        }
+        if (abortHandle != null) abort(abortHandle);
+    }
+
+    /**
+     * Makes this request hedged, see {@link HedgePolicy}. Only the idempotent
+     * {@link Method#GET} and {@link Method#HEAD} requests which are {@link #isSideEffectFree()}
+     * are ever hedged, since both attempts handle their response.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setHedgePolicy(HedgePolicy hedgePolicy) {
+        mHedgePolicy = hedgePolicy;
+        return this;
+    }
+
+    /**
+     * Returns the hedging policy of this request, null if it's never hedged.
+     */
+    public HedgePolicy getHedgePolicy() {
+        if (mMethod != Method.GET && mMethod != Method.HEAD) return null;
+        if (!isSideEffectFree()) return null;
+        return mHedgePolicy;
+    }
+
+    private void abort(final Runnable abortHandle) {
+        addMarker("abort-in-flight");
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    abortHandle.run();
+                } catch (RuntimeException e) {
+                    NetroidLog.e(e, "Failed to abort %s", Request.this);
+                }
+            }
+        };
+        // Closing a connection might touch the network, keep it off the main thread.
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            AbortExecutor.INSTANCE.execute(runnable);
+        } else {
+            runnable.run();
+        }
+    }
+
+    /**
+     * Runs the aborts requested on the main thread, created on first use.
+     */
+    private static class AbortExecutor {
+        static final Executor INSTANCE = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Netroid-Abort");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     /**
@@ -413,6 +873,69 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return null;
     }
 
+    /**
+     * Sets a body which is streamed to the connection rather than held in memory, for a POST,
+     * PUT or PATCH request, its content type is still the {@link #getBodyContentType()}.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setRequestBody(RequestBody requestBody) {
+        mRequestBody = requestBody;
+        return this;
+    }
+
+    /**
+     * Returns the body the {@link com.vincestyling.netroid.stack.HttpStack} sends, either the one
+     * set by {@link #setRequestBody(RequestBody)} or the {@link #getBody()}, null if there is none.
+     *
+     * @throws AuthFailureError in the event of auth failure
+     */
+    public RequestBody getRequestBody() throws AuthFailureError {
+        RequestBody body = mRequestBody;
+        ContentCodec codec = mBodyCodec;
+        if (body == null) {
+            byte[] content = getBody();
+            if (content == null) return null;
+            body = codec != null && content.length >= mBodyCompressionThreshold
+                    ? EncodedRequestBody.encode(content, codec) : RequestBody.create(content);
+        } else if (codec != null && body.getContentEncoding() == null) {
+            long contentLength = body.getContentLength();
+            if (contentLength < 0 || contentLength >= mBodyCompressionThreshold) {
+                body = new EncodedRequestBody(body, codec);
+            }
+        }
+        Delivery delivery = mUploadDelivery;
+        return delivery != null ? new UploadProgressBody(this, body, delivery) : body;
+    }
+
+    /**
+     * Compresses the body by the given coding when it's at least threshold bytes long, e.g. a large
+     * JSON batch, the server must accept the coding told by the Content-Encoding header. The
+     * {@link #getBody()} is compressed in memory and still sent with a Content-Length, a body set
+     * by {@link #setRequestBody(RequestBody)} is compressed as it's written and sent chunked.
+     *
+     * @param codec     the coding, e.g. {@link ContentCodec#GZIP}, null to send the body as is
+     * @param threshold the minimum length of the body to be compressed, the bodies of unknown
+     *                  length always are
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setBodyCompression(ContentCodec codec, long threshold) {
+        if (codec != null && !codec.canEncode()) {
+            throw new IllegalArgumentException(codec.getName() + " can't encode.");
+        }
+        mBodyCodec = codec;
+        mBodyCompressionThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Sets the delivery which the upload progress of the body is posted to,
+     * see {@link IListener#onUploadProgress(long, long)}.
+     */
+    public void setUploadDelivery(Delivery delivery) {
+        mUploadDelivery = delivery;
+    }
+
     /**
      * Converts <code>params</code> into an application/x-www-form-urlencoded encoded string.
      */
@@ -460,6 +983,26 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         }
     }
 
+    /**
+     * Returns true if handling the response of this request has no side effect, and its parsed
+     * result depends on nothing but the response and the {@link #getCollapseKey()}. Only such a
+     * request may share its parsed response with identical requests, see
+     * {@link RequestQueue#setRequestCollapsing(boolean)}, or be performed twice at once, see
+     * {@link #setHedgePolicy(HedgePolicy)}. False by default, since a subclass may
+     * write files or post progress from {@link #handleResponse(HttpResponse, Delivery)}.
+     */
+    public boolean isSideEffectFree() {
+        return false;
+    }
+
+    /**
+     * Returns the key identical requests share when collapsed: the class, method, URL and headers.
+     * A subclass whose parsing depends on settings of its own adds them.
+     */
+    public String getCollapseKey() throws AuthFailureError {
+        return getClass().getName() + ' ' + mMethod + ' ' + getUrl() + ' ' + new TreeMap<String, String>(getHeaders());
+    }
+
     /**
      * By default, everyone Request is http-base request, if you wants to load
      * local file or perform others, also wants to use Cache, you can override
@@ -493,6 +1036,26 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mShouldRetryServerErrors;
     }
 
+    /**
+     * Receives the parsed result of a dependency, see {@link #dependsOn(Request, DependencyListener)}.
+     */
+    public interface DependencyListener<D> {
+        void onDependencyResolved(D result);
+    }
+
+    /**
+     * A request this request waits for, along with the listener of its result.
+     */
+    private static class Dependency<D> {
+        final Request<D> request;
+        final DependencyListener<D> listener;
+
+        Dependency(Request<D> request, DependencyListener<D> listener) {
+            this.request = request;
+            this.listener = listener;
+        }
+    }
+
     /**
      * Priority values.  Requests will be processed from higher priorities to
      * lower priorities, in FIFO order.
@@ -511,13 +1074,39 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return Priority.NORMAL;
     }
 
+    /**
+     * Sets the priority levels this request gained by waiting. Used by {@link NetworkQueue}.
+     */
+    void setPriorityBoost(int priorityBoost) {
+        mPriorityBoost = priorityBoost;
+    }
+
+    /**
+     * Returns the priority levels this request gained by waiting.
+     */
+    int getPriorityBoost() {
+        return mPriorityBoost;
+    }
+
+    /**
+     * Returns the ordinal of {@link #getPriority()} raised by the levels gained by waiting,
+     * never beyond {@link Priority#IMMEDIATE}.
+     */
+    int getEffectivePriority() {
+        return Math.min(getPriority().ordinal() + mPriorityBoost, Priority.IMMEDIATE.ordinal());
+    }
+
     /**
      * Returns the socket timeout in milliseconds per retry attempt. (This value can be changed
      * per retry attempt if a backoff is specified via backoffTimeout()). If there are no retry
      * attempts remaining, this will cause delivery of a {@link TimeoutError} error.
+     * <p/>
+     * If this request has a deadline, the timeout never exceeds the time remaining.
      */
     public final int getTimeoutMs() {
-        return mRetryPolicy.getCurrentTimeout();
+        int timeoutMs = mRetryPolicy.getCurrentTimeout();
+        long remainingMs = getRemainingTimeMs();
+        return remainingMs < timeoutMs ? (int) Math.max(1, remainingMs) : timeoutMs;
     }
 
     /**
@@ -661,19 +1250,54 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     }
 
     /**
-     * Our comparator sorts from high to low priority, and secondarily by
-     * sequence number to provide FIFO ordering.
+     * Delivers when request body upload progress change to the Listener.
+     */
+    public void deliverUploadProgress(long totalSize, long uploadedSize) {
+        if (mListener != null) {
+            mListener.onUploadProgress(totalSize, uploadedSize);
+        }
+    }
+
+    /**
+     * Delivers a partial result, only the {@link com.vincestyling.netroid.request.StreamingRequest}
+     * posts them, to a listener of its own.
+     */
+    public void deliverPartialResponse(Object partial) {
+    }
+
+    /**
+     * Our comparator sorts from high to low priority, secondarily by earliest
+     * deadline first, and lastly by sequence number to provide FIFO ordering.
+     * The priority includes the levels gained by waiting in the network queue.
+     * Unlike {@link #compareTo(Request)} it compares requests of any response type.
+     */
+    static final Comparator<Request<?>> ORDER = new Comparator<Request<?>>() {
+        @Override
+        public int compare(Request<?> left, Request<?> right) {
+            int leftPriority = left.getEffectivePriority();
+            int rightPriority = right.getEffectivePriority();
+
+            // High-priority requests are "lesser" so they are sorted to the front.
+            if (leftPriority != rightPriority) return rightPriority - leftPriority;
+
+            // Equal priorities are sorted by deadline, requests without deadline go last.
+            if (left.mDeadline != right.mDeadline) {
+                if (left.mDeadline == 0) return 1;
+                if (right.mDeadline == 0) return -1;
+                return left.mDeadline < right.mDeadline ? -1 : 1;
+            }
+
+            // Then by sequence number to provide FIFO ordering.
+            return left.mSequence - right.mSequence;
+        }
+    };
+
+    /**
+     * Sorts the requests by {@link #ORDER}.
      */
     @Override
     public int compareTo(Request<T> other) {
-        Priority left = this.getPriority();
-        Priority right = other.getPriority();
-
-        // High-priority requests are "lesser" so they are sorted to the front.
-        // Equal priorities are sorted by sequence number to provide FIFO ordering.
-        return left == right ?
-                this.mSequence - other.mSequence :
-                right.ordinal() - left.ordinal();
+        return ORDER.compare(this, other);
     }
 
     @Override
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The body of a request, written straight to the connection by the
+ * {@link com.vincestyling.netroid.stack.HttpStack} instead of being held as a byte[], so a large
+ * upload takes no more memory than a write buffer and starts going out at once. A body of known
+ * length is sent with a Content-Length, the other ones chunked.
+ * <p/>
+ * Set it by {@link Request#setRequestBody(RequestBody)}, the {@link Request#getBody()} of the
+ * requests which don't is sent as a body of known length.
+ */
+public abstract class RequestBody {
+
+    /**
+     * Returns the number of bytes {@link #writeTo} writes, or -1 if unknown, then the body is sent chunked.
+     */
+    public abstract long getContentLength();
+
+    /**
+     * Writes the body, exactly {@link #getContentLength()} bytes if it's known.
+     * Must not close the given stream.
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Returns true if the body can be written again, to retry the request on another connection.
+     */
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    /**
+     * Returns the content coding the body was compressed with, sent as the Content-Encoding
+     * header, or null if it's sent as is.
+     */
+    public String getContentEncoding() {
+        return null;
+    }
+
+    /**
+     * Creates a body of the given bytes.
+     */
+    public static RequestBody create(final byte[] content) {
+        return new RequestBody() {
+            @Override
+            public long getContentLength() {
+                return content.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(content);
+            }
+        };
+    }
+
+    /**
+     * Creates a body which sends the given file, read as it's written.
+     */
+    public static RequestBody create(final File file) {
+        return new RequestBody() {
+            @Override
+            public long getContentLength() {
+                return file.length();
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                InputStream in = new FileInputStream(file);
+                try {
+                    copy(in, out);
+                } finally {
+                    in.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates a body which sends the given stream. The stream is read once,
+     * so a request with such a body can't be retried after it went out.
+     *
+     * @param contentLength the number of bytes the stream holds, -1 if unknown
+     */
+    public static RequestBody create(final InputStream in, final long contentLength) {
+        return new RequestBody() {
+            private boolean mWritten;
+
+            @Override
+            public long getContentLength() {
+                return contentLength;
+            }
+
+            @Override
+            public synchronized void writeTo(OutputStream out) throws IOException {
+                if (mWritten) throw new IOException("The stream body was sent already.");
+                mWritten = true;
+                try {
+                    copy(in, out);
+                } finally {
+                    in.close();
+                }
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return false;
+            }
+        };
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8 * 1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+    }
+}
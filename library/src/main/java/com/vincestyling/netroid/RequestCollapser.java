@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Collapses identical in flight GET requests which skip the cache into a single network call.
+ * <p/>
+ * Two requests are identical when they have the same {@link Request#getCollapseKey()}, only the
+ * requests which opted in by {@link Request#isSideEffectFree()} are collapsed. The first one (the leader) goes to the network, the later ones (the followers) wait
+ * until the leader's response was parsed, then that very {@link Response} is delivered to every
+ * follower as well, without touching the network, the cache or the parser again. If the leader
+ * finishes without a response, e.g. it was canceled, a follower takes over and goes to the network.
+ */
+class RequestCollapser {
+
+    /**
+     * Flights in the air by key.
+     */
+    private final Map<String, Flight> mFlights = new HashMap<String, Flight>();
+
+    /**
+     * Flights by their leader, the key is kept since the headers might change after joining.
+     */
+    private final Map<Request<?>, Flight> mLeaders = new IdentityHashMap<Request<?>, Flight>();
+
+    /**
+     * The delivery of the owner RequestQueue.
+     */
+    private final Delivery mDelivery;
+
+    /**
+     * The queue to send a follower to when it takes over.
+     */
+    private final BlockingQueue<Request> mNetworkQueue;
+
+    RequestCollapser(Delivery delivery, BlockingQueue<Request> networkQueue) {
+        mDelivery = delivery;
+        mNetworkQueue = networkQueue;
+    }
+
+    /**
+     * Returns true if the given request can share the network call of identical requests.
+     */
+    static boolean isCollapsible(Request<?> request) {
+        return request.getMethod() == Request.Method.GET && request.isSideEffectFree();
+    }
+
+    /**
+     * Returns the key which identical requests share, or null if the request can't be collapsed.
+     */
+    private static String getKey(Request<?> request) {
+        if (!isCollapsible(request)) return null;
+        try {
+            return request.getCollapseKey();
+        } catch (AuthFailureError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Makes the given request follow an identical request in flight if there is one,
+     * otherwise it becomes the leader of a new flight.
+     *
+     * @return true if the request follows a flight and must not go to the network.
+     */
+    boolean join(Request<?> request) {
+        String key = getKey(request);
+        if (key == null) return false;
+
+        synchronized (mFlights) {
+            Flight flight = mFlights.get(key);
+            if (flight == null) {
+                flight = new Flight(key);
+                mFlights.put(key, flight);
+                mLeaders.put(request, flight);
+                return false;
+            }
+            flight.followers.add(request);
+        }
+        if (NetroidLog.DEBUG) {
+            NetroidLog.v("Identical request is in flight, collapsing %s.", request);
+        }
+        return true;
+    }
+
+    /**
+     * Called when the given request was finished, if it's a leader which ended without
+     * a response, the first follower takes over the flight.
+     */
+    void finish(Request<?> request) {
+        Request<?> successor;
+        synchronized (mFlights) {
+            Flight flight = mLeaders.remove(request);
+            if (flight == null) return;
+
+            successor = flight.followers.poll();
+            if (successor == null) {
+                mFlights.remove(flight.key);
+                return;
+            }
+            mLeaders.put(successor, flight);
+        }
+        successor.addMarker("collapsed-takeover");
+        mNetworkQueue.add(successor);
+    }
+
+    /**
+     * Ends the flight the given request leads, delivers the response to every follower.
+     *
+     * @return true if the request was a leader.
+     */
+    private boolean land(Request<?> request, Response<?> response) {
+        Flight flight;
+        synchronized (mFlights) {
+            flight = mLeaders.get(request);
+            if (flight == null) return false;
+            // Don't deliver the response of a canceled leader, a follower will take over.
+            if (request.isCanceled()) return false;
+            mLeaders.remove(request);
+            mFlights.remove(flight.key);
+        }
+
+        for (Request<?> follower : flight.followers) {
+            follower.addMarker("collapsed-response");
+            mDelivery.postPreExecute(follower);
+            if (response.isSuccess()) {
+                mDelivery.postResponse(follower, response);
+            } else {
+                mDelivery.postError(follower, response.errorDetail);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wraps the given delivery so that a leader's response or error is also delivered to its followers.
+     */
+    Delivery wrap(final Delivery delivery) {
+        return new Delivery() {
+            @Override
+            public void postFinish(Request<?> request) {
+                delivery.postFinish(request);
+            }
+
+            @Override
+            public void postResponse(Request<?> request, Response<?> response) {
+                postResponse(request, response, null);
+            }
+
+            @Override
+            public void postResponse(Request<?> request, Response<?> response, Runnable runnable) {
+                if (!response.intermediate) land(request, response);
+                delivery.postResponse(request, response, runnable);
+            }
+
+            @Override
+            public void postError(Request<?> request, NetroidError error) {
+                land(request, Response.error(error));
+                delivery.postError(request, error);
+            }
+
+            @Override
+            public void postCancel(Request<?> request) {
+                delivery.postCancel(request);
+            }
+
+            @Override
+            public void postPreExecute(Request<?> request) {
+                delivery.postPreExecute(request);
+            }
+
+            @Override
+            public void postUsedCache(Request<?> request) {
+                delivery.postUsedCache(request);
+            }
+
+            @Override
+            public void postNetworking(Request<?> request) {
+                delivery.postNetworking(request);
+            }
+
+            @Override
+            public void postRetry(Request<?> request) {
+                delivery.postRetry(request);
+            }
+
+            @Override
+            public void postDownloadProgress(Request<?> request, long fileSize, long downloadedSize) {
+                delivery.postDownloadProgress(request, fileSize, downloadedSize);
+            }
+
+            @Override
+            public void postPartialResponse(Request<?> request, Object partial) {
+                delivery.postPartialResponse(request, partial);
+            }
+
+            @Override
+            public void postUploadProgress(Request<?> request, long totalSize, long uploadedSize) {
+                delivery.postUploadProgress(request, totalSize, uploadedSize);
+            }
+        };
+    }
+
+    /**
+     * A leader and the identical requests which wait for its response.
+     */
+    private static class Flight {
+        final String key;
+        final LinkedList<Request<?>> followers = new LinkedList<Request<?>>();
+
+        Flight(String key) {
+            this.key = key;
+        }
+    }
+}
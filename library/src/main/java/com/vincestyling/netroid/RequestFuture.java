@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The result of a request submitted by {@link RequestQueue#submit(Request)}, which can be
+ * waited for by {@link #get()}, or composed with other results without blocking by
+ * {@link #then(Transform)}, {@link #combine(RequestFuture, RequestFuture, Combiner)} and
+ * {@link #allOf(List)}.
+ * <p/>
+ * A future completes on the thread which delivers the request, the dispatcher thread unless
+ * another executor was given to {@link RequestQueue#submit(Request, Executor)}, the callbacks
+ * and the compositions run there too, so a pipeline of background requests never goes through
+ * the main thread. Don't call {@link #get()} on the main thread.
+ * <p/>
+ * The listener the request had when submitted still receives all the callbacks, on the same thread.
+ *
+ * @param <T> The type of the parsed response
+ */
+public class RequestFuture<T> implements Future<T>, IListener<T> {
+    /**
+     * The request this future is the result of, null if it's composed of other futures.
+     */
+    private final Request<T> mRequest;
+
+    /**
+     * The listener the request had when submitted, null if none.
+     */
+    private final IListener<T> mDelegate;
+
+    /**
+     * Whether this future completed, either way.
+     */
+    private boolean mDone;
+
+    /**
+     * Whether this future completed by cancellation.
+     */
+    private boolean mCancelled;
+
+    /**
+     * The result once completed successfully.
+     */
+    private T mResult;
+
+    /**
+     * The error once completed exceptionally.
+     */
+    private NetroidError mError;
+
+    /**
+     * The callbacks waiting for the completion, null once completed.
+     */
+    private List<Callback<? super T>> mCallbacks = new ArrayList<Callback<? super T>>(2);
+
+    /**
+     * The pending timeouts set by {@link #withTimeout}, cancelled once completed, null if none.
+     */
+    private List<Future<?>> mTimeouts;
+
+    RequestFuture(Request<T> request) {
+        mRequest = request;
+        mDelegate = request != null ? request.getListener() : null;
+    }
+
+    /**
+     * Makes a future the listener of the given request, in front of its current listener.
+     */
+    static <T> RequestFuture<T> attach(Request<T> request) {
+        RequestFuture<T> future = new RequestFuture<T>(request);
+        request.setListener(future);
+        return future;
+    }
+
+    /**
+     * Returns the request this future is the result of, null if it's composed of other futures.
+     */
+    public Request<T> getRequest() {
+        return mRequest;
+    }
+
+    /**
+     * Completes this future unless it's already completed, then runs the callbacks.
+     *
+     * @return true if this call completed the future.
+     */
+    boolean complete(T result, NetroidError error, boolean cancelled) {
+        List<Callback<? super T>> callbacks;
+        List<Future<?>> timeouts;
+        synchronized (this) {
+            if (mDone) return false;
+            mDone = true;
+            mResult = result;
+            mError = error;
+            mCancelled = cancelled;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+            timeouts = mTimeouts;
+            mTimeouts = null;
+            notifyAll();
+        }
+
+        // Don't let the timeout scheduler hold this future until the timeouts would have fired.
+        if (timeouts != null) {
+            for (Future<?> timeout : timeouts) {
+                timeout.cancel(false);
+            }
+        }
+
+        for (Callback<? super T> callback : callbacks) {
+            runCallback(callback);
+        }
+        return true;
+    }
+
+    private void runCallback(Callback<? super T> callback) {
+        try {
+            callback.onComplete(this);
+        } catch (RuntimeException e) {
+            NetroidLog.e(e, "Unhandled exception in a callback of %s", mRequest);
+        }
+    }
+
+    /**
+     * Calls the given callback once this future completed, at once if it's already completed.
+     */
+    public void addCallback(Callback<? super T> callback) {
+        synchronized (this) {
+            if (!mDone) {
+                mCallbacks.add(callback);
+                return;
+            }
+        }
+        runCallback(callback);
+    }
+
+    /**
+     * Returns a future which completes with the result of this one passed through the given
+     * transform, or with the error of this one. The transform runs on the thread which
+     * completes this future.
+     */
+    public <R> RequestFuture<R> then(final Transform<? super T, ? extends R> transform) {
+        final RequestFuture<R> next = new RequestFuture<R>(null);
+        addCallback(new Callback<T>() {
+            @Override
+            public void onComplete(RequestFuture<? extends T> future) {
+                if (!future.isSuccess()) {
+                    next.complete(null, future.getError(), future.isCancelled());
+                    return;
+                }
+                try {
+                    next.complete(transform.apply(future.getResult()), null, false);
+                } catch (NetroidError e) {
+                    next.complete(null, e, false);
+                } catch (RuntimeException e) {
+                    next.complete(null, new NetroidError(e), false);
+                }
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Returns a future which completes with the result of the request built from the result of
+     * this one, e.g. a detail request for an id a list request returned. The next request is
+     * submitted to the given queue and delivered on the same executor as the request of this future.
+     */
+    public <R> RequestFuture<R> thenSubmit(final RequestQueue queue,
+                                           final Transform<? super T, ? extends Request<R>> nextRequest) {
+        final RequestFuture<R> next = new RequestFuture<R>(null);
+        addCallback(new Callback<T>() {
+            @Override
+            public void onComplete(RequestFuture<? extends T> future) {
+                if (!future.isSuccess()) {
+                    next.complete(null, future.getError(), future.isCancelled());
+                    return;
+                }
+                Request<R> request;
+                try {
+                    request = nextRequest.apply(future.getResult());
+                } catch (NetroidError e) {
+                    next.complete(null, e, false);
+                    return;
+                } catch (RuntimeException e) {
+                    next.complete(null, new NetroidError(e), false);
+                    return;
+                }
+                Executor executor = mRequest != null ? mRequest.getDeliveryExecutor() : null;
+                queue.submit(request, executor != null ? executor : RequestQueue.DIRECT_EXECUTOR)
+                        .addCallback(new Callback<R>() {
+                            @Override
+                            public void onComplete(RequestFuture<? extends R> future) {
+                                next.complete(future.getResult(), future.getError(), future.isCancelled());
+                            }
+                        });
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Returns a future which completes with the results of the given futures, in the same order,
+     * once all of them succeeded. It fails as soon as one of them fails, with the same error,
+     * and is cancelled as soon as one of them is cancelled.
+     */
+    public static <T> RequestFuture<List<T>> allOf(final List<? extends RequestFuture<? extends T>> futures) {
+        final RequestFuture<List<T>> all = new RequestFuture<List<T>>(null);
+        if (futures.isEmpty()) {
+            all.complete(new ArrayList<T>(0), null, false);
+            return all;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        Callback<T> callback = new Callback<T>() {
+            @Override
+            public void onComplete(RequestFuture<? extends T> future) {
+                if (!future.isSuccess()) {
+                    all.complete(null, future.getError(), future.isCancelled());
+                } else if (remaining.decrementAndGet() == 0) {
+                    List<T> results = new ArrayList<T>(futures.size());
+                    for (RequestFuture<? extends T> each : futures) {
+                        results.add(each.getResult());
+                    }
+                    all.complete(results, null, false);
+                }
+            }
+        };
+        for (RequestFuture<? extends T> future : futures) {
+            future.addCallback(callback);
+        }
+        return all;
+    }
+
+    /**
+     * Returns a future which completes with the results of the given two futures passed through
+     * the given combiner, once both succeeded. It fails as soon as one of them fails.
+     */
+    public static <A, B, R> RequestFuture<R> combine(final RequestFuture<A> first, final RequestFuture<B> second,
+                                                     final Combiner<? super A, ? super B, ? extends R> combiner) {
+        List<RequestFuture<?>> both = new ArrayList<RequestFuture<?>>(2);
+        both.add(first);
+        both.add(second);
+        return allOf(both).then(new Transform<List<Object>, R>() {
+            @Override
+            public R apply(List<Object> results) throws NetroidError {
+                return combiner.combine(first.getResult(), second.getResult());
+            }
+        });
+    }
+
+    /**
+     * Fails this future with a {@link TimeoutError} if it doesn't complete within the given
+     * time, and cancels its request. Unlike {@link #get(long, TimeUnit)}, it doesn't block,
+     * so it suits the futures which are only composed.
+     *
+     * @return This future to allow for chaining.
+     */
+    public RequestFuture<T> withTimeout(long timeout, TimeUnit unit) {
+        synchronized (this) {
+            if (mDone) return this;
+            Future<?> future = TimeoutScheduler.INSTANCE.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (complete(null, new TimeoutError(), false) && mRequest != null) {
+                        mRequest.cancel();
+                    }
+                }
+            }, timeout, unit);
+            if (mTimeouts == null) mTimeouts = new ArrayList<Future<?>>(1);
+            mTimeouts.add(future);
+        }
+        return this;
+    }
+
+    /**
+     * Fires the timeouts of the futures, created on first use.
+     */
+    private static class TimeoutScheduler {
+        static final ScheduledThreadPoolExecutor INSTANCE =
+                new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "Netroid-Timeout");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Cancels the request of this future, the future completes as cancelled at once.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!complete(null, null, true)) return false;
+        if (mRequest != null) mRequest.cancel();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Returns true if this future completed with a result.
+     */
+    public synchronized boolean isSuccess() {
+        return mDone && !mCancelled && mError == null;
+    }
+
+    /**
+     * Returns the result without blocking, null unless this future completed with a result.
+     */
+    public synchronized T getResult() {
+        return mResult;
+    }
+
+    /**
+     * Returns the error without blocking, null unless this future completed exceptionally.
+     */
+    public synchronized NetroidError getError() {
+        return mError;
+    }
+
+    /**
+     * Waits for the result.
+     *
+     * @throws ExecutionException    if the request failed, the cause is the {@link NetroidError}
+     * @throws CancellationException if the request was cancelled
+     */
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        try {
+            return doGet(null);
+        } catch (TimeoutException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Waits for the result at most the given time.
+     *
+     * @throws ExecutionException    if the request failed, the cause is the {@link NetroidError}
+     * @throws CancellationException if the request was cancelled
+     * @throws TimeoutException      if the wait timed out, the request goes on
+     */
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return doGet(TimeUnit.MILLISECONDS.convert(timeout, unit));
+    }
+
+    private synchronized T doGet(Long timeoutMs) throws InterruptedException, ExecutionException, TimeoutException {
+        if (timeoutMs == null) {
+            while (!mDone) {
+                wait();
+            }
+        } else {
+            long deadline = SystemClock.uptimeMillis() + timeoutMs;
+            long waitMs = timeoutMs;
+            while (!mDone && waitMs > 0) {
+                wait(waitMs);
+                waitMs = deadline - SystemClock.uptimeMillis();
+            }
+        }
+
+        if (!mDone) throw new TimeoutException();
+        if (mCancelled) throw new CancellationException();
+        if (mError != null) throw new ExecutionException(mError);
+        return mResult;
+    }
+
+    @Override
+    public void onPreExecute() {
+        if (mDelegate != null) mDelegate.onPreExecute();
+    }
+
+    @Override
+    public void onFinish() {
+        if (mDelegate != null) mDelegate.onFinish();
+        // A request canceled at delivery only gets finished.
+        if (mRequest != null && mRequest.isCanceled()) complete(null, null, true);
+    }
+
+    @Override
+    public void onSuccess(T response) {
+        complete(response, null, false);
+        if (mDelegate != null) mDelegate.onSuccess(response);
+    }
+
+    @Override
+    public void onError(NetroidError error) {
+        complete(null, error, false);
+        if (mDelegate != null) mDelegate.onError(error);
+    }
+
+    @Override
+    public void onCancel() {
+        complete(null, null, true);
+        if (mDelegate != null) mDelegate.onCancel();
+    }
+
+    @Override
+    public void onNetworking() {
+        if (mDelegate != null) mDelegate.onNetworking();
+    }
+
+    @Override
+    public void onUsedCache() {
+        if (mDelegate != null) mDelegate.onUsedCache();
+    }
+
+    @Override
+    public void onRetry() {
+        if (mDelegate != null) mDelegate.onRetry();
+    }
+
+    @Override
+    public void onProgressChange(long fileSize, long downloadedSize) {
+        if (mDelegate != null) mDelegate.onProgressChange(fileSize, downloadedSize);
+    }
+
+    @Override
+    public void onUploadProgress(long totalSize, long uploadedSize) {
+        if (mDelegate != null) mDelegate.onUploadProgress(totalSize, uploadedSize);
+    }
+
+    /**
+     * Called once a future completed, either way.
+     */
+    public interface Callback<T> {
+        void onComplete(RequestFuture<? extends T> future);
+    }
+
+    /**
+     * Turns the result of a future into another value.
+     */
+    public interface Transform<T, R> {
+        R apply(T result) throws NetroidError;
+    }
+
+    /**
+     * Combines the results of two futures into one value.
+     */
+    public interface Combiner<A, B, R> {
+        R combine(A first, B second) throws NetroidError;
+    }
+}
@@ -25,6 +25,8 @@ import com.vincestyling.netroid.cache.DiskCache;
 public final class RequestPerformer {
 
     public static void perform(Request request, Network network, DiskCache cache, Delivery delivery) {
+        // The delivery may run on this thread too, whatever it adds to the queue must not block it.
+        RequestQueue previous = RequestQueue.beginDispatch(request);
         try {
             request.addMarker("network-queue-take");
             delivery.postPreExecute(request);
@@ -38,6 +40,12 @@ public final class RequestPerformer {
                 return;
             }
 
+            // If the deadline passed while waiting in the queue, nobody cares about the response.
+            if (request.isDeadlineExceeded()) {
+                request.addMarker("network-discard-deadline");
+                throw new DeadlineExceededError();
+            }
+
             // Perform the network request.
             NetworkResponse networkResponse = network.performRequest(request);
             request.addMarker("network-http-complete");
@@ -46,11 +54,11 @@ public final class RequestPerformer {
             Response<?> response = request.parseNetworkResponse(networkResponse);
             request.addMarker("network-parse-complete");
 
-            // Write to cache if applicable.
+            // Write to cache if applicable, a 304 refreshes the expiry of the cached entry.
             if (cache != null && request.shouldCache() && response.cacheEntry != null) {
                 response.cacheEntry.setExpireTime(request.getCacheExpireTime());
                 cache.putEntry(request.getCacheKey(), response.cacheEntry);
-                request.addMarker("network-cache-written");
+                request.addMarker(networkResponse.notModified ? "network-cache-refreshed" : "network-cache-written");
             }
 
             // Post the response back.
@@ -61,6 +69,8 @@ public final class RequestPerformer {
         } catch (Exception e) {
             NetroidLog.e(e, "Unhandled exception %s", e.toString());
             delivery.postError(request, new NetroidError(e));
+        } finally {
+            RequestQueue.endDispatch(previous);
         }
     }
 
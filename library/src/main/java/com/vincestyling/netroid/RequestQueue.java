@@ -17,11 +17,21 @@ package com.vincestyling.netroid;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Process;
 import com.vincestyling.netroid.cache.DiskCache;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 /**
  * A request dispatch queue with a thread pool of dispatchers.
@@ -36,6 +46,84 @@ public class RequestQueue {
      */
     public static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
 
+    /**
+     * Number of cache triage dispatcher threads to start.
+     */
+    public static final int DEFAULT_CACHE_THREAD_POOL_SIZE = 1;
+
+    /**
+     * Default queue depth at which an elastic pool starts one more dispatcher.
+     */
+    public static final int DEFAULT_GROW_QUEUE_DEPTH = 4;
+
+    /**
+     * Default head-of-line wait in milliseconds at which an elastic pool starts one more dispatcher.
+     */
+    public static final long DEFAULT_GROW_QUEUE_WAIT_MS = 500;
+
+    /**
+     * Default time in milliseconds an idle dispatcher above the core size stays alive.
+     */
+    public static final long DEFAULT_KEEP_ALIVE_MS = 30 * 1000;
+
+    /**
+     * Runs the deliveries on the thread which posts them, i.e. the dispatcher thread.
+     */
+    static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Opens the preconnected connections, at background priority so they never
+     * slow the dispatchers down, created on first use.
+     */
+    private static class PreconnectExecutor {
+        static final ThreadPoolExecutor INSTANCE = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "Netroid-Preconnect");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        static {
+            INSTANCE.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Re-checks the growth of the elastic pools while every dispatcher is busy, created on first use.
+     */
+    private static class GrowthScheduler {
+        static final ScheduledExecutorService INSTANCE =
+                new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "Netroid-Growth");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * The queue whose request the current thread is dispatching, which includes the delivery when it
+     * runs on the same thread. Such a thread must never block on a full queue of its own, since the
+     * queue may only drain by that very thread.
+     */
+    private static final ThreadLocal<RequestQueue> sDispatchingQueue = new ThreadLocal<RequestQueue>();
+
     /**
      * Used for generating monotonically-increasing sequence numbers for requests.
      */
@@ -55,23 +143,44 @@ public class RequestQueue {
             new HashMap<String, Queue<Request>>();
 
     /**
-     * The set of all requests currently being processed by this RequestQueue. A Request
-     * will be in this set if it is waiting in any queue or currently being processed by
+     * The registry of all requests currently being processed by this RequestQueue. A Request
+     * will be in this registry if it is waiting in any queue or currently being processed by
      * any dispatcher.
      */
-    private final Set<Request> mCurrentRequests = new HashSet<Request>();
+    private final RequestRegistry mCurrentRequests = new RequestRegistry();
 
     /**
      * The cache triage queue.
      */
     private final PriorityBlockingQueue<Request> mCacheQueue =
-            new PriorityBlockingQueue<Request>();
+            new PriorityBlockingQueue<Request>() {
+                @Override
+                public Request take() throws InterruptedException {
+                    Request request = super.take();
+                    onQueueDrained();
+                    return request;
+                }
+            };
 
     /**
      * The queue of requests that are actually going out to the network.
      */
-    private final PriorityBlockingQueue<Request> mNetworkQueue =
-            new PriorityBlockingQueue<Request>();
+    private final NetworkQueue mNetworkQueue = new NetworkQueue(this);
+
+    /**
+     * The dispatch lanes by name, besides the default lane made of the network queue and dispatchers above.
+     */
+    private final Map<String, DispatchLane> mLanes = new LinkedHashMap<String, DispatchLane>();
+
+    /**
+     * The lanes the requests of a type go to, tried in the order they were routed.
+     */
+    private final Map<Class<?>, DispatchLane> mTypeRoutes = new LinkedHashMap<Class<?>, DispatchLane>();
+
+    /**
+     * The lanes the requests of a tag go to, the tag equality is by identity.
+     */
+    private final Map<Object, DispatchLane> mTagRoutes = new IdentityHashMap<Object, DispatchLane>();
 
     /**
      * Disk cache for retrieving and storing responses.
@@ -89,14 +198,94 @@ public class RequestQueue {
     private final Delivery mDelivery;
 
     /**
-     * The network dispatchers.
+     * The network dispatchers currently alive.
+     */
+    private final List<NetworkDispatcher> mDispatchers = new ArrayList<NetworkDispatcher>();
+
+    /**
+     * Number of network dispatchers which always stay alive.
+     */
+    private final int mCorePoolSize;
+
+    /**
+     * Maximum number of network dispatchers, equals the core size unless the pool is elastic.
+     */
+    private int mMaxPoolSize;
+
+    /**
+     * Time in milliseconds an idle dispatcher above the core size stays alive.
+     */
+    private long mKeepAliveMs;
+
+    /**
+     * Queue depth at which an elastic pool starts one more dispatcher.
+     */
+    private int mGrowQueueDepth;
+
+    /**
+     * Head-of-line wait in milliseconds at which an elastic pool starts one more dispatcher.
+     */
+    private long mGrowQueueWaitMs;
+
+    /**
+     * The highest number of network dispatchers alive at the same time.
+     */
+    private int mPeakDispatcherCount;
+
+    /**
+     * Whether the dispatchers were started and not stopped yet.
+     */
+    private boolean mStarted;
+
+    /**
+     * Whether a re-check of the elastic pool growth is scheduled.
+     */
+    private boolean mGrowthCheckPending;
+
+    /**
+     * The executor to perform the network requests on, null to use the network dispatchers.
+     */
+    private Executor mExecutor;
+
+    /**
+     * Maximum number of network requests performing at the same time on the executor.
      */
-    private NetworkDispatcher[] mDispatchers;
+    private int mMaxConcurrentRequests;
 
     /**
-     * The cache dispatcher.
+     * Feeds the executor with network requests, null unless an executor was set and started.
      */
-    private CacheDispatcher mCacheDispatcher;
+    private ExecutorDispatcher mExecutorDispatcher;
+
+    /**
+     * Maximum number of requests waiting in the cache queue, 0 means unbounded.
+     */
+    private int mCacheQueueCapacity;
+
+    /**
+     * Maximum number of requests waiting in the network queue, 0 means unbounded.
+     */
+    private int mNetworkQueueCapacity;
+
+    /**
+     * What to do with a request added while its queue is full.
+     */
+    private RejectionPolicy mRejectionPolicy = RejectionPolicy.REJECT;
+
+    /**
+     * Guards the admission to the bounded queues, notified when a queue has drained.
+     */
+    private final Object mAdmissionLock = new Object();
+
+    /**
+     * Collapses identical GET requests which skip the cache, null if disabled.
+     */
+    private RequestCollapser mCollapser;
+
+    /**
+     * The cache dispatchers.
+     */
+    private CacheDispatcher[] mCacheDispatchers = new CacheDispatcher[DEFAULT_CACHE_THREAD_POOL_SIZE];
 
     /**
      * Creates the worker pool. Processing will not begin until {@link #start()} is called.
@@ -111,7 +300,8 @@ public class RequestQueue {
         mNetwork = network;
         mDelivery = delivery;
         mNetwork.setDelivery(delivery);
-        mDispatchers = new NetworkDispatcher[threadPoolSize];
+        mCorePoolSize = threadPoolSize;
+        mMaxPoolSize = threadPoolSize;
     }
 
     /**
@@ -134,21 +324,411 @@ public class RequestQueue {
         this(network, DEFAULT_NETWORK_THREAD_POOL_SIZE, null);
     }
 
+    /**
+     * Makes the network dispatcher pool elastic with the default thresholds.
+     *
+     * @see #setElasticPool(int, long, int, long)
+     */
+    public void setElasticPool(int maxPoolSize, long keepAliveMs) {
+        setElasticPool(maxPoolSize, keepAliveMs, DEFAULT_GROW_QUEUE_DEPTH, DEFAULT_GROW_QUEUE_WAIT_MS);
+    }
+
+    /**
+     * Makes the network dispatcher pool elastic. The threadPoolSize given to the constructor
+     * becomes the core size which always stays alive, whenever no dispatcher is idle while the
+     * queue depth or the head-of-line wait crosses the given thresholds, one more dispatcher is
+     * started until the maximum size. The head-of-line wait is also re-checked while requests
+     * stay queued, so a burst queued at once makes the pool grow as it waits.
+     * Dispatchers above the core size retire after staying idle for the keep-alive time.
+     * <p/>
+     * Must be called before {@link #start()}.
+     *
+     * @param maxPoolSize     Maximum number of network dispatchers
+     * @param keepAliveMs     Idle time in milliseconds before a dispatcher above the core size retires
+     * @param growQueueDepth  Queue depth which makes the pool grow
+     * @param growQueueWaitMs Head-of-line wait in milliseconds which makes the pool grow
+     */
+    public void setElasticPool(int maxPoolSize, long keepAliveMs, int growQueueDepth, long growQueueWaitMs) {
+        if (maxPoolSize < mCorePoolSize) {
+            throw new IllegalArgumentException("maxPoolSize[" + maxPoolSize
+                    + "] must not less than threadPoolSize[" + mCorePoolSize + "].");
+        }
+        if (keepAliveMs <= 0) {
+            throw new IllegalArgumentException("keepAliveMs must be positive.");
+        }
+        synchronized (mDispatchers) {
+            mMaxPoolSize = maxPoolSize;
+            mKeepAliveMs = keepAliveMs;
+            mGrowQueueDepth = growQueueDepth;
+            mGrowQueueWaitMs = growQueueWaitMs;
+        }
+    }
+
+    /**
+     * Enables host aware scheduling of the network queue. Every host gets its own sub-queue and
+     * may have at most the given number of requests in flight, so a slow or overloaded host can't
+     * hold every dispatcher while requests to the other hosts wait behind it. Hosts take turns in
+     * round-robin, or weighted-fair if {@link #setHostPolicy(String, int, int)} gives them different
+     * weights, a request of higher {@link Request.Priority} still goes ahead of all lower ones.
+     * <p/>
+     * Must be called before {@link #start()}.
+     *
+     * @param maxRequestsPerHost Default maximum in flight requests of a host, 0 means unlimited
+     */
+    public void setHostScheduling(int maxRequestsPerHost) {
+        for (NetworkQueue queue : getNetworkQueues()) {
+            queue.setHostScheduling(maxRequestsPerHost);
+        }
+    }
+
+    /**
+     * Overrides the scheduling policy of the given host, takes effect when host scheduling is enabled.
+     *
+     * @param host        The host name, case insensitive
+     * @param maxRequests Maximum in flight requests of this host, 0 means unlimited
+     * @param weight      How many turns this host takes relative to a host of weight one
+     * @see #setHostScheduling(int)
+     */
+    public void setHostPolicy(String host, int maxRequests, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight must be positive.");
+        }
+        for (NetworkQueue queue : getNetworkQueues()) {
+            queue.setHostPolicy(host, maxRequests, weight);
+        }
+    }
+
+    /**
+     * Performs the network requests as tasks of the given executor instead of on a fixed number
+     * of network dispatchers, e.g. with {@link ExecutorDispatcher#newVirtualThreadPerTaskExecutor()}
+     * on a runtime which offers virtual threads. A blocking request then no longer pins one of
+     * a few dispatchers, at most maxConcurrentRequests requests perform at the same time, the
+     * others wait in the network queue. The threadPoolSize and the elastic pool are ignored.
+     * The requests perform at background priority, like on the network dispatchers.
+     * <p/>
+     * The executor isn't shut down by {@link #stop()}. Must be called before {@link #start()}.
+     *
+     * @param executor              The executor to perform the network requests on, null to use
+     *                              the network dispatchers again
+     * @param maxConcurrentRequests Maximum number of network requests performing at the same time
+     */
+    public void setExecutor(Executor executor, int maxConcurrentRequests) {
+        if (executor != null && maxConcurrentRequests <= 0) {
+            throw new IllegalArgumentException("maxConcurrentRequests must be positive.");
+        }
+        mExecutor = executor;
+        mMaxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * Bounds the number of requests waiting in the cache queue and in the network queue, the
+     * requests being processed by a dispatcher don't count. When {@link #add(Request)} is called
+     * while the queue the request goes to is full, the given policy decides what happens, a
+     * request which doesn't make it into the queue fails fast with a {@link RejectedError}.
+     * <p/>
+     * Only {@link #add(Request)} is bounded, a request moving from the cache queue to the network
+     * queue on a cache miss was admitted already and is never refused.
+     * Must be called before {@link #start()}.
+     *
+     * @param cacheQueueCapacity   Maximum requests waiting in the cache queue, 0 means unbounded
+     * @param networkQueueCapacity Maximum requests waiting in the network queue, 0 means unbounded
+     * @param policy               What to do with a request added while its queue is full
+     */
+    public void setQueueCapacity(int cacheQueueCapacity, int networkQueueCapacity, RejectionPolicy policy) {
+        if (cacheQueueCapacity < 0 || networkQueueCapacity < 0) {
+            throw new IllegalArgumentException("queue capacity must not be negative.");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must not be null.");
+        }
+        mCacheQueueCapacity = cacheQueueCapacity;
+        mNetworkQueueCapacity = networkQueueCapacity;
+        mRejectionPolicy = policy;
+    }
+
+    /**
+     * Enables priority aging of the network queue, a request gains one {@link Request.Priority}
+     * level for every interval it waits there, up to the given max boost. Without aging, the
+     * {@link Request.Priority#LOW} requests such as images and downloads can wait indefinitely
+     * under a steady stream of higher priority requests.
+     *
+     * @param agingIntervalMs The wait in milliseconds to gain one priority level, 0 disables aging
+     * @param maxBoost        Maximum priority levels a request can gain by waiting
+     * @see #getQueueWaitStats(Request.Priority)
+     */
+    public void setPriorityAging(long agingIntervalMs, int maxBoost) {
+        if (agingIntervalMs < 0 || maxBoost < 0) {
+            throw new IllegalArgumentException("agingIntervalMs and maxBoost must not be negative.");
+        }
+        for (NetworkQueue queue : getNetworkQueues()) {
+            queue.setPriorityAging(agingIntervalMs, maxBoost);
+        }
+    }
+
+    /**
+     * Returns how long the requests of the given original priority waited in the network queue
+     * of the default lane, see {@link DispatchLane#getQueueWaitStats(Request.Priority)} for the others.
+     */
+    public QueueWaitStats getQueueWaitStats(Request.Priority priority) {
+        return mNetworkQueue.getWaitStats(priority);
+    }
+
+    /**
+     * Limits the requests to the given host to the given rate, with a token bucket. A request
+     * whose bucket is empty stays in the network queue without holding a dispatcher, the other
+     * hosts' requests go ahead of it meanwhile. Calling it again for the same host changes the limit.
+     *
+     * @param host             The host name to limit
+     * @param permitsPerSecond How many requests may go out per second on average
+     * @param burst            How many requests may go out at once after a quiet period
+     * @see #getRateLimitStats()
+     */
+    public void setRateLimit(String host, double permitsPerSecond, int burst) {
+        checkRateLimit(permitsPerSecond, burst);
+        for (NetworkQueue queue : getNetworkQueues()) {
+            queue.setRateLimit(host, false, permitsPerSecond, burst);
+        }
+    }
+
+    /**
+     * Limits the requests whose URL contains a match of the given pattern to the given rate,
+     * e.g. one endpoint of an API. The patterns are tried in the order they were set and
+     * take precedence over the host limits, a request is only counted against one limit.
+     *
+     * @param urlPattern       The pattern to find in the request URLs
+     * @param permitsPerSecond How many requests may go out per second on average
+     * @param burst            How many requests may go out at once after a quiet period
+     * @see #setRateLimit(String, double, int)
+     */
+    public void setRateLimit(Pattern urlPattern, double permitsPerSecond, int burst) {
+        checkRateLimit(permitsPerSecond, burst);
+        for (NetworkQueue queue : getNetworkQueues()) {
+            queue.setRateLimit(urlPattern.pattern(), true, permitsPerSecond, burst);
+        }
+    }
+
+    private static void checkRateLimit(double permitsPerSecond, int burst) {
+        if (!(permitsPerSecond > 0) || burst < 1) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive and burst at least 1.");
+        }
+    }
+
+    /**
+     * Returns the state of the rate limits of the default lane, how often and how long they held
+     * requests back.
+     */
+    public List<RateLimitStats> getRateLimitStats() {
+        return mNetworkQueue.getRateLimitStats();
+    }
+
+    /**
+     * Adds a dispatch lane, with a network queue and network dispatchers of its own. The requests
+     * routed to it by {@link #routeType(Class, String)} or {@link #routeTag(Object, String)} are
+     * performed on its dispatchers only, the other requests stay in the default lane. So a grid of
+     * thumbnails or a large download in a lane of their own never delay an API call, and the other
+     * way round.
+     * <p/>
+     * The host scheduling, priority aging and rate limits apply to every lane, each lane enforcing
+     * them on its own. The elastic pool, the executor and the cache dispatchers only concern the
+     * default lane. Must be called before {@link #start()}.
+     *
+     * @param name           The name to route the requests by
+     * @param threadCount    Number of network dispatcher threads of the lane
+     * @param threadPriority The {@link android.os.Process} thread priority of the dispatchers, e.g.
+     *                       {@link android.os.Process#THREAD_PRIORITY_DEFAULT} for the calls users
+     *                       wait for, the default lane runs at
+     *                       {@link android.os.Process#THREAD_PRIORITY_BACKGROUND}
+     * @return The added lane
+     */
+    public DispatchLane addLane(String name, int threadCount, int threadPriority) {
+        if (name == null || mLanes.containsKey(name)) {
+            throw new IllegalArgumentException("Lane name must be non-null and unique: " + name);
+        }
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("threadCount must be positive.");
+        }
+        NetworkQueue queue = new NetworkQueue(this);
+        queue.copySettings(mNetworkQueue);
+        DispatchLane lane = new DispatchLane(name, threadCount, threadPriority, queue);
+        mLanes.put(name, lane);
+        return lane;
+    }
+
+    /**
+     * Routes the requests of the given type, subclasses included, to the given lane. When several
+     * routed types match a request, the one routed first wins. Must be called before {@link #start()}.
+     *
+     * @param type     The request type, e.g. {@link com.vincestyling.netroid.request.ImageRequest}
+     * @param laneName The name of a lane added by {@link #addLane(String, int, int)}
+     */
+    public void routeType(Class<? extends Request> type, String laneName) {
+        mTypeRoutes.put(type, requireLane(laneName));
+    }
+
+    /**
+     * Routes the requests of the given tag to the given lane, the routes by tag take precedence
+     * over the routes by type. Tag equality is by identity. Must be called before {@link #start()}.
+     *
+     * @param tag      The tag, see {@link Request#setTag(Object)}
+     * @param laneName The name of a lane added by {@link #addLane(String, int, int)}
+     */
+    public void routeTag(Object tag, String laneName) {
+        if (tag == null) {
+            throw new IllegalArgumentException("Cannot route a null tag");
+        }
+        mTagRoutes.put(tag, requireLane(laneName));
+    }
+
+    private DispatchLane requireLane(String name) {
+        DispatchLane lane = mLanes.get(name);
+        if (lane == null) {
+            throw new IllegalArgumentException("No lane named " + name);
+        }
+        return lane;
+    }
+
+    /**
+     * Returns the lane of the given name, or null.
+     */
+    public DispatchLane getLane(String name) {
+        return mLanes.get(name);
+    }
+
+    /**
+     * Returns the lane the requests of the given type are routed to, or null for the default lane.
+     */
+    public DispatchLane getLaneFor(Class<? extends Request> type) {
+        for (Map.Entry<Class<?>, DispatchLane> entry : mTypeRoutes.entrySet()) {
+            if (entry.getKey().isAssignableFrom(type)) return entry.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the network queue of the lane the given request is routed to.
+     */
+    NetworkQueue getNetworkQueue(Request request) {
+        if (mLanes.isEmpty()) return mNetworkQueue;
+
+        Object tag = request.getTag();
+        DispatchLane lane = tag != null ? mTagRoutes.get(tag) : null;
+        if (lane == null) lane = getLaneFor(request.getClass());
+        return lane != null ? lane.getQueue() : mNetworkQueue;
+    }
+
+    /**
+     * Returns the network queues of all the lanes, the default one first.
+     */
+    private List<NetworkQueue> getNetworkQueues() {
+        List<NetworkQueue> queues = new ArrayList<NetworkQueue>(mLanes.size() + 1);
+        queues.add(mNetworkQueue);
+        for (DispatchLane lane : mLanes.values()) {
+            queues.add(lane.getQueue());
+        }
+        return queues;
+    }
+
+    /**
+     * Enables or disables collapsing of identical GET requests which skip the cache. While such
+     * a request is in flight, an identical one (same {@link Request#getCollapseKey()}) added to this
+     * queue doesn't go to the network, it waits and receives the very same parsed {@link Response}.
+     * Only the requests whose {@link Request#isSideEffectFree()} returns true are collapsed.
+     * Requests which use the cache are not affected, they're already staged by their cache key.
+     * <p/>
+     * Must be called before {@link #start()}.
+     */
+    public void setRequestCollapsing(boolean enabled) {
+        mCollapser = enabled ? new RequestCollapser(mDelivery, mNetworkQueue) : null;
+    }
+
+    /**
+     * Sets how many cache dispatchers drain the cache triage queue in parallel. Every cache hit
+     * is read from disk and parsed on a cache dispatcher, more of them let a screen full of
+     * cached responses resolve in parallel rather than one by one. The default is
+     * {@link #DEFAULT_CACHE_THREAD_POOL_SIZE}.
+     * <p/>
+     * Must be called before {@link #start()}.
+     *
+     * @param cacheThreadPoolSize Number of cache dispatcher threads to create
+     */
+    public void setCacheThreadPoolSize(int cacheThreadPoolSize) {
+        if (cacheThreadPoolSize <= 0) {
+            throw new IllegalArgumentException("cacheThreadPoolSize must be positive.");
+        }
+        mCacheDispatchers = new CacheDispatcher[cacheThreadPoolSize];
+    }
+
+    /**
+     * Gets the cache thread pool size.
+     */
+    public int getCacheThreadPoolSize() {
+        return mCacheDispatchers.length;
+    }
+
+    /**
+     * Opens and hand-shakes connections to the origin of the given url in the background, e.g. at
+     * the application start or before a screen shows, so the first requests to it reuse a warm
+     * connection rather than wait for the TCP and TLS setup. The connections stay idle as long as
+     * the stack keeps them, see {@link com.vincestyling.netroid.stack.ConnectionStats} for how many
+     * were used. Only a {@link Preconnectable} network preconnects, the
+     * {@link com.vincestyling.netroid.toolbox.BasicNetwork} does if its stack is one too, e.g. the
+     * {@link com.vincestyling.netroid.stack.PooledHttpStack}, which pools its connections itself.
+     *
+     * @param url   any url of the origin
+     * @param count the number of requests expected to go out at once, a single HTTP/2
+     *              connection carries all of them
+     */
+    public void preconnect(final String url, final int count) {
+        if (!(mNetwork instanceof Preconnectable)) return;
+        final Preconnectable network = (Preconnectable) mNetwork;
+        PreconnectExecutor.INSTANCE.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int opened = network.preconnect(url, count);
+                    if (NetroidLog.DEBUG) {
+                        NetroidLog.v("Preconnected %d connections to %s", opened, url);
+                    }
+                } catch (IOException e) {
+                    NetroidLog.d("Can't preconnect to %s: %s", url, e);
+                }
+            }
+        });
+    }
+
     /**
      * Starts the dispatchers in this queue.
      */
     public void start() {
         stop();  // Make sure any currently running dispatchers are stopped.
-        // Create the cache dispatcher and start it.
-        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
-        mCacheDispatcher.start();
+        // Create the cache dispatchers and start them.
+        for (int i = 0; i < mCacheDispatchers.length; i++) {
+            CacheDispatcher cacheDispatcher =
+                    new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
+            mCacheDispatchers[i] = cacheDispatcher;
+            cacheDispatcher.start();
+        }
+
+        // Let the leaders of collapsed requests hand their response over to the followers.
+        Delivery delivery = mCollapser != null ? mCollapser.wrap(mDelivery) : mDelivery;
+        for (DispatchLane lane : mLanes.values()) {
+            lane.start(mNetwork, mCache, delivery);
+        }
+
+        if (mExecutor != null) {
+            // Perform the network requests on the executor.
+            mExecutorDispatcher = new ExecutorDispatcher(mNetworkQueue,
+                    mNetwork, mCache, delivery, mExecutor, mMaxConcurrentRequests);
+            mExecutorDispatcher.start();
+            return;
+        }
 
-        // Create network dispatchers (and corresponding threads) up to the pool size.
-        for (int i = 0; i < mDispatchers.length; i++) {
-            NetworkDispatcher networkDispatcher =
-                    new NetworkDispatcher(mNetworkQueue, mNetwork, mCache, mDelivery);
-            mDispatchers[i] = networkDispatcher;
-            networkDispatcher.start();
+        // Create network dispatchers (and corresponding threads) up to the core pool size.
+        synchronized (mDispatchers) {
+            mStarted = true;
+            for (int i = 0; i < mCorePoolSize; i++) {
+                startDispatcher();
+            }
         }
     }
 
@@ -156,11 +736,133 @@ public class RequestQueue {
      * Stops the cache and network dispatchers.
      */
     public void stop() {
-        if (mCacheDispatcher != null) {
-            mCacheDispatcher.quit();
+        for (CacheDispatcher cacheDispatcher : mCacheDispatchers) {
+            if (cacheDispatcher != null) cacheDispatcher.quit();
+        }
+        for (DispatchLane lane : mLanes.values()) {
+            lane.stop();
+        }
+        if (mExecutorDispatcher != null) {
+            mExecutorDispatcher.quit();
+            mExecutorDispatcher = null;
+        }
+        synchronized (mDispatchers) {
+            mStarted = false;
+            for (NetworkDispatcher dispatcher : mDispatchers) {
+                dispatcher.quit();
+            }
+            mDispatchers.clear();
+        }
+    }
+
+    /**
+     * Creates a network dispatcher and starts it, must hold the lock of mDispatchers.
+     */
+    private void startDispatcher() {
+        // Let the leaders of collapsed requests hand their response over to the followers.
+        Delivery delivery = mCollapser != null ? mCollapser.wrap(mDelivery) : mDelivery;
+        NetworkDispatcher dispatcher = new NetworkDispatcher(mNetworkQueue,
+                mNetwork, mCache, delivery, this, isElastic() ? mKeepAliveMs : 0,
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mDispatchers.add(dispatcher);
+        mPeakDispatcherCount = Math.max(mPeakDispatcherCount, mDispatchers.size());
+        dispatcher.start();
+    }
+
+    private boolean isElastic() {
+        return mExecutor == null && mMaxPoolSize > mCorePoolSize;
+    }
+
+    /**
+     * Called by {@link NetworkQueue} after a request was put into the given network queue,
+     * starts one more dispatcher if the elastic pool considers it's necessary.
+     */
+    void onNetworkQueued(NetworkQueue queue) {
+        // The lanes have a fixed number of dispatchers.
+        if (queue != mNetworkQueue || !isElastic()) return;
+
+        synchronized (mDispatchers) {
+            maybeGrow();
         }
-        for (NetworkDispatcher mDispatcher : mDispatchers) {
-            if (mDispatcher != null) mDispatcher.quit();
+    }
+
+    /**
+     * Starts one more dispatcher if no dispatcher is idle while the queue depth or the head-of-line
+     * wait crosses its threshold. The head-of-line wait grows while nothing is put into the queue,
+     * so as long as requests are queued, a re-check is scheduled for the moment it would cross the
+     * threshold, the requests already queued then still make the pool grow one dispatcher at a
+     * time. Must hold the lock of {@link #mDispatchers}.
+     */
+    private void maybeGrow() {
+        if (!mStarted || mDispatchers.size() >= mMaxPoolSize || mNetworkQueue.size() == 0) return;
+
+        // An idle dispatcher will take the request soon.
+        boolean idle = false;
+        for (NetworkDispatcher dispatcher : mDispatchers) {
+            if (dispatcher.isIdle()) {
+                idle = true;
+                break;
+            }
+        }
+
+        long delayMs = mGrowQueueWaitMs;
+        if (!idle) {
+            long headWaitMs = mNetworkQueue.getHeadWaitMs();
+            if (mNetworkQueue.size() >= mGrowQueueDepth || headWaitMs >= mGrowQueueWaitMs) {
+                startDispatcher();
+                if (NetroidLog.DEBUG) {
+                    NetroidLog.v("Elastic pool grows to %d dispatchers.", mDispatchers.size());
+                }
+            } else {
+                delayMs = mGrowQueueWaitMs - headWaitMs;
+            }
+        }
+
+        if (!mGrowthCheckPending && mDispatchers.size() < mMaxPoolSize) {
+            mGrowthCheckPending = true;
+            GrowthScheduler.INSTANCE.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mDispatchers) {
+                        mGrowthCheckPending = false;
+                        maybeGrow();
+                    }
+                }
+            }, Math.max(1, delayMs), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Called by an idle dispatcher whose keep-alive time elapsed.
+     *
+     * @return true if the dispatcher was removed from the pool and should quit.
+     */
+    boolean retireDispatcher(NetworkDispatcher dispatcher) {
+        synchronized (mDispatchers) {
+            if (mDispatchers.size() <= mCorePoolSize) return false;
+            mDispatchers.remove(dispatcher);
+            if (NetroidLog.DEBUG) {
+                NetroidLog.v("Elastic pool shrinks to %d dispatchers.", mDispatchers.size());
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the number of network dispatchers currently alive.
+     */
+    public int getDispatcherCount() {
+        synchronized (mDispatchers) {
+            return mDispatchers.size();
+        }
+    }
+
+    /**
+     * Returns the highest number of network dispatchers which were alive at the same time.
+     */
+    public int getPeakDispatcherCount() {
+        synchronized (mDispatchers) {
+            return mPeakDispatcherCount;
         }
     }
 
@@ -172,10 +874,41 @@ public class RequestQueue {
     }
 
     /**
-     * Gets the thread pool size.
+     * Gets the thread pool size, the core size if the pool is elastic, or the
+     * maximum concurrent requests if the requests are performed on an executor.
      */
     public int getThreadPoolSize() {
-        return mDispatchers.length;
+        return mExecutor != null ? mMaxConcurrentRequests : mCorePoolSize;
+    }
+
+    /**
+     * Gets the maximum thread pool size, equals {@link #getThreadPoolSize()} unless the pool is elastic.
+     */
+    public int getMaxThreadPoolSize() {
+        return mExecutor != null ? mMaxConcurrentRequests : mMaxPoolSize;
+    }
+
+    /**
+     * What to do with a request added while its queue is full, see {@link #setQueueCapacity}.
+     */
+    public enum RejectionPolicy {
+        /**
+         * The added request fails with a {@link RejectedError}.
+         */
+        REJECT,
+        /**
+         * The queued request which would be processed last fails with a {@link RejectedError}
+         * and leaves room for the added one, if the added one would be processed before it,
+         * otherwise the added request fails.
+         */
+        EVICT_LOWEST,
+        /**
+         * The caller of {@link #add(Request)} blocks until the queue has room, unless it's the
+         * main thread or a thread of this queue, i.e. a dispatcher or a delivery running on it,
+         * then the added request fails like {@link #REJECT}. The same goes for the dependents
+         * and chained requests scheduled on those threads.
+         */
+        BLOCK
     }
 
     /**
@@ -192,29 +925,61 @@ public class RequestQueue {
      * @param filter The filtering function to use
      */
     public void cancelAll(RequestFilter filter) {
-        synchronized (mCurrentRequests) {
-            for (Request<?> request : mCurrentRequests) {
-                if (filter.apply(request)) {
-                    request.cancel();
-                }
+        for (Request<?> request : mCurrentRequests.snapshot()) {
+            if (filter.apply(request)) {
+                request.cancel();
             }
         }
     }
 
     /**
      * Cancels all requests in this queue with the given tag. Tag must be non-null
-     * and equality is by identity.
+     * and equality is by identity. Only the requests of that tag are visited.
      */
-    public void cancelAll(final Object tag) {
+    public void cancelAll(Object tag) {
         if (tag == null) {
             throw new IllegalArgumentException("Cannot cancelAll with a null tag");
         }
-        cancelAll(new RequestFilter() {
-            @Override
-            public boolean apply(Request<?> request) {
-                return request.getTag() == tag;
-            }
-        });
+        for (Request<?> request : mCurrentRequests.snapshot(tag)) {
+            request.cancel();
+        }
+    }
+
+    /**
+     * Returns the number of requests in this queue with the given tag, for diagnostics.
+     * Tag equality is by identity.
+     */
+    public int countByTag(Object tag) {
+        if (tag == null) {
+            throw new IllegalArgumentException("Cannot countByTag with a null tag");
+        }
+        return mCurrentRequests.countByTag(tag);
+    }
+
+    /**
+     * Returns a snapshot of the requests in this queue with the given tag, for diagnostics.
+     * Tag equality is by identity.
+     */
+    public List<Request<?>> snapshot(Object tag) {
+        if (tag == null) {
+            throw new IllegalArgumentException("Cannot snapshot with a null tag");
+        }
+        return mCurrentRequests.snapshot(tag);
+    }
+
+    /**
+     * Returns a snapshot of all the requests in this queue, either waiting in any queue
+     * or being processed by any dispatcher, for diagnostics.
+     */
+    public List<Request<?>> snapshot() {
+        return mCurrentRequests.snapshot();
+    }
+
+    /**
+     * Returns the number of all the requests in this queue.
+     */
+    public int getCurrentRequestCount() {
+        return mCurrentRequests.size();
     }
 
     /**
@@ -226,21 +991,105 @@ public class RequestQueue {
     public Request add(Request request) {
         // Tag the request as belonging to this queue and add it to the set of current requests.
         request.setRequestQueue(this);
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.add(request);
-        }
+        mCurrentRequests.register(request);
 
         // Process requests in the order they are added.
         request.setSequence(getSequenceNumber());
         request.addMarker("add-to-queue");
 
+        // Hold the request back until the requests it depends on have finished.
+        if (request.hasDependencies()) {
+            request.awaitDependencies();
+            return request;
+        }
+
+        schedule(request);
+        return request;
+    }
+
+    /**
+     * Adds a Request to the dispatch queue and returns the future of its result, which completes
+     * on the dispatcher thread that delivers the request, the main thread isn't involved.
+     *
+     * @param request The request to service
+     * @return The future of the result
+     * @see #submit(Request, Executor)
+     */
+    public <T> RequestFuture<T> submit(Request<T> request) {
+        return submit(request, DIRECT_EXECUTOR);
+    }
+
+    /**
+     * Adds a Request to the dispatch queue and returns the future of its result, which completes
+     * on the given executor. The listener of the request, if any, is called on that executor too.
+     *
+     * @param request  The request to service
+     * @param executor The executor to deliver the request on
+     * @return The future of the result
+     */
+    public <T> RequestFuture<T> submit(Request<T> request, Executor executor) {
+        RequestFuture<T> future = RequestFuture.attach(request);
+        request.setDeliveryExecutor(executor);
+        add(request);
+        return future;
+    }
+
+    /**
+     * Called by a request added with dependencies once all of them have finished,
+     * schedules the request, or fails it if a dependency finished without a result.
+     */
+    void onDependenciesFinished(Request request) {
+        DependencyError error = request.getDependencyError();
+        if (error != null) {
+            fail(request, "dependency-failed", error);
+        } else {
+            request.addMarker("dependencies-resolved");
+            schedule(request);
+        }
+    }
+
+    /**
+     * Puts the given request into the cache queue or the network queue.
+     */
+    private void schedule(Request request) {
         // If the request is uncacheable or forceUpdate, skip the cache queue and go straight to the network.
         if (request.isForceUpdate() || !request.shouldCache()) {
-            mDelivery.postNetworking(request);
-            mNetworkQueue.add(request);
-            return request;
+            if (mNetworkQueueCapacity <= 0) {
+                addToNetworkQueue(request);
+                return;
+            }
+            synchronized (mAdmissionLock) {
+                // Every lane's network queue is bounded on its own.
+                if (admit(request, getNetworkQueue(request), mNetworkQueueCapacity)) {
+                    addToNetworkQueue(request);
+                    return;
+                }
+            }
+            fail(request, "rejected", new RejectedError("Network queue is full."));
+            return;
         }
 
+        if (mCacheQueueCapacity <= 0) {
+            addToCacheQueue(request);
+            return;
+        }
+        synchronized (mAdmissionLock) {
+            if (admit(request, mCacheQueue, mCacheQueueCapacity)) {
+                addToCacheQueue(request);
+                return;
+            }
+        }
+        fail(request, "rejected", new RejectedError("Cache queue is full."));
+    }
+
+    private void addToNetworkQueue(Request request) {
+        mDelivery.postNetworking(request);
+        // Wait for an identical request in flight if there is one.
+        if (mCollapser != null && mCollapser.join(request)) return;
+        mNetworkQueue.add(request);
+    }
+
+    private void addToCacheQueue(Request request) {
         // Insert request into stage if there's already a request with the same cache key in flight.
         synchronized (mWaitingRequests) {
             String cacheKey = request.getCacheKey();
@@ -261,7 +1110,95 @@ public class RequestQueue {
                 mWaitingRequests.put(cacheKey, null);
                 mCacheQueue.add(request);
             }
-            return request;
+        }
+    }
+
+    /**
+     * Makes room for the given request in the given queue according to the rejection policy,
+     * must hold the admission lock.
+     *
+     * @return true if the request can be added to the queue.
+     */
+    private boolean admit(Request request, Queue<Request> queue, int capacity) {
+        while (queue.size() >= capacity) {
+            switch (mRejectionPolicy) {
+                case EVICT_LOWEST:
+                    Request lowest = null;
+                    for (Request queued : queue) {
+                        if (lowest == null || Request.ORDER.compare(queued, lowest) > 0) lowest = queued;
+                    }
+                    // Only evict a request that would be processed after the new one.
+                    if (lowest == null || Request.ORDER.compare(lowest, request) <= 0) return false;
+                    if (queue.remove(lowest)) {
+                        lowest.addMarker("evicted");
+                        mDelivery.postError(lowest, new RejectedError("Evicted from a full queue."));
+                    }
+                    break;
+
+                case BLOCK:
+                    // Never block the main thread, nor a thread this queue relies on to drain,
+                    // e.g. a dispatcher delivering the request that a dependent waited for.
+                    if (Looper.myLooper() == Looper.getMainLooper()) return false;
+                    if (sDispatchingQueue.get() == this) return false;
+                    try {
+                        mAdmissionLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                    break;
+
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fails the given request which never got into any queue.
+     */
+    private void fail(Request request, String marker, NetroidError error) {
+        // It never got in flight, don't let its finish release the requests staged by its cache key.
+        mCurrentRequests.unregister(request);
+        request.setRequestQueue(null);
+        request.addMarker(marker);
+        mDelivery.postError(request, error);
+        if (NetroidLog.DEBUG) {
+            NetroidLog.v("%s Failing %s.", error.getMessage(), request);
+        }
+    }
+
+    /**
+     * Marks the current thread as dispatching the given request until {@link #endDispatch}.
+     *
+     * @return the previous mark, to give back to {@link #endDispatch}.
+     */
+    static RequestQueue beginDispatch(Request request) {
+        RequestQueue previous = sDispatchingQueue.get();
+        sDispatchingQueue.set(request.getRequestQueue());
+        return previous;
+    }
+
+    /**
+     * Restores the mark returned by {@link #beginDispatch}.
+     */
+    static void endDispatch(RequestQueue previous) {
+        if (previous != null) {
+            sDispatchingQueue.set(previous);
+        } else {
+            sDispatchingQueue.remove();
+        }
+    }
+
+    /**
+     * Called after a request was taken from the cache queue or the network queue,
+     * wakes up the callers of {@link #add(Request)} blocked on a full queue.
+     */
+    void onQueueDrained() {
+        if (mRejectionPolicy != RejectionPolicy.BLOCK) return;
+        synchronized (mAdmissionLock) {
+            mAdmissionLock.notifyAll();
         }
     }
 
@@ -273,10 +1210,11 @@ public class RequestQueue {
      * <code>request.shouldCache()</code>.</p>
      */
     void finish(Request request) {
-        // Remove from the set of requests currently being processed.
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.remove(request);
-        }
+        // Remove from the registry of requests currently being processed.
+        mCurrentRequests.unregister(request);
+
+        // Let a follower take over if a collapsed request ended without response.
+        if (mCollapser != null) mCollapser.finish(request);
 
         if (!request.isForceUpdate() && request.shouldCache()) {
             synchronized (mWaitingRequests) {
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The registry of all requests being processed by a {@link RequestQueue}, indexed by tag.
+ * <p/>
+ * Registering and unregistering never take a lock shared by all requests, the only lock
+ * taken is the one of the request's tag bucket, so requests of different tags don't
+ * contend at all, and cancelling the requests of a tag costs as much as that tag has.
+ * Tags are compared by identity, just like {@link RequestQueue#cancelAll(Object)} does.
+ */
+class RequestRegistry {
+
+    /**
+     * Stands for the tag of requests which have no tag.
+     */
+    private static final Object NO_TAG = new Object();
+
+    /**
+     * All the registered requests, along with the tag they were registered with.
+     */
+    private final ConcurrentHashMap<Request<?>, Object> mRequests =
+            new ConcurrentHashMap<Request<?>, Object>();
+
+    /**
+     * The registered requests which have a tag, by tag.
+     */
+    private final ConcurrentHashMap<TagKey, TagBucket> mBuckets =
+            new ConcurrentHashMap<TagKey, TagBucket>();
+
+    void register(Request<?> request) {
+        Object tag = request.getTag();
+        if (mRequests.putIfAbsent(request, tag != null ? tag : NO_TAG) != null || tag == null) return;
+
+        TagKey key = new TagKey(tag);
+        while (true) {
+            TagBucket bucket = mBuckets.get(key);
+            if (bucket == null) {
+                TagBucket created = new TagBucket();
+                bucket = mBuckets.putIfAbsent(key, created);
+                if (bucket == null) bucket = created;
+            }
+            synchronized (bucket) {
+                // The bucket was emptied and removed meanwhile, try again with a new one.
+                if (bucket.dead) continue;
+                bucket.requests.add(request);
+                return;
+            }
+        }
+    }
+
+    void unregister(Request<?> request) {
+        Object tag = mRequests.remove(request);
+        if (tag == null || tag == NO_TAG) return;
+
+        TagKey key = new TagKey(tag);
+        TagBucket bucket = mBuckets.get(key);
+        if (bucket == null) return;
+        synchronized (bucket) {
+            bucket.requests.remove(request);
+            if (bucket.requests.isEmpty()) {
+                bucket.dead = true;
+                mBuckets.remove(key, bucket);
+            }
+        }
+    }
+
+    /**
+     * Returns the registered requests which have the given tag.
+     */
+    List<Request<?>> snapshot(Object tag) {
+        TagBucket bucket = mBuckets.get(new TagKey(tag));
+        if (bucket == null) return new ArrayList<Request<?>>(0);
+        synchronized (bucket) {
+            return new ArrayList<Request<?>>(bucket.requests);
+        }
+    }
+
+    /**
+     * Returns all the registered requests.
+     */
+    List<Request<?>> snapshot() {
+        return new ArrayList<Request<?>>(mRequests.keySet());
+    }
+
+    /**
+     * Returns the number of registered requests which have the given tag.
+     */
+    int countByTag(Object tag) {
+        TagBucket bucket = mBuckets.get(new TagKey(tag));
+        if (bucket == null) return 0;
+        synchronized (bucket) {
+            return bucket.requests.size();
+        }
+    }
+
+    /**
+     * Returns the number of all registered requests.
+     */
+    int size() {
+        return mRequests.size();
+    }
+
+    /**
+     * The registered requests of a tag.
+     */
+    private static class TagBucket {
+        final Set<Request<?>> requests = new HashSet<Request<?>>();
+
+        /**
+         * Set once the bucket became empty and was removed from the index.
+         */
+        boolean dead;
+    }
+
+    /**
+     * Wraps a tag to be compared by identity.
+     */
+    private static class TagKey {
+        final Object tag;
+
+        TagKey(Object tag) {
+            this.tag = tag;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TagKey && ((TagKey) o).tag == tag;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(tag);
+        }
+    }
+}
@@ -69,6 +69,10 @@ public class Response<T> {
     private Response(T result, NetworkResponse response) {
         this.result = result;
         cacheEntry = response != null ? new DiskCache.Entry(response.data, response.charset) : null;
+        if (cacheEntry != null && response.headers != null) {
+            cacheEntry.setEtag(response.headers.get("ETag"));
+            cacheEntry.setLastModified(response.headers.get("Last-Modified"));
+        }
         this.errorDetail = null;
     }
 
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import android.os.SystemClock;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Wraps the body of a request to post its upload progress as the stack writes it. The progress
+ * is posted at most every {@link #PROGRESS_INTERVAL_MS}, so a fast upload doesn't flood the
+ * main thread, plus once at the end of the body.
+ */
+class UploadProgressBody extends RequestBody {
+    /**
+     * The minimum interval between two progress posts.
+     */
+    private static final long PROGRESS_INTERVAL_MS = 100;
+
+    private final Request<?> mRequest;
+    private final RequestBody mBody;
+    private final Delivery mDelivery;
+
+    UploadProgressBody(Request<?> request, RequestBody body, Delivery delivery) {
+        mRequest = request;
+        mBody = body;
+        mDelivery = delivery;
+    }
+
+    @Override
+    public long getContentLength() {
+        return mBody.getContentLength();
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return mBody.isRepeatable();
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return mBody.getContentEncoding();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        final long totalSize = mBody.getContentLength();
+        ProgressOutputStream progressOut = new ProgressOutputStream(out, totalSize);
+        mBody.writeTo(progressOut);
+        mDelivery.postUploadProgress(mRequest, progressOut.mUploadedSize, progressOut.mUploadedSize);
+    }
+
+    /**
+     * Counts the bytes written through and posts the count from time to time.
+     */
+    private class ProgressOutputStream extends FilterOutputStream {
+        private final long mTotalSize;
+        private long mUploadedSize;
+        private long mLastPostTime = SystemClock.elapsedRealtime();
+
+        ProgressOutputStream(OutputStream out, long totalSize) {
+            super(out);
+            mTotalSize = totalSize;
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            out.write(oneByte);
+            onWritten(1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            // FilterOutputStream would write them one by one.
+            out.write(buffer, offset, count);
+            onWritten(count);
+        }
+
+        private void onWritten(int count) {
+            mUploadedSize += count;
+            long now = SystemClock.elapsedRealtime();
+            // The final count is posted once the body is done.
+            if (now - mLastPostTime >= PROGRESS_INTERVAL_MS && mUploadedSize != mTotalSize) {
+                mLastPostTime = now;
+                mDelivery.postUploadProgress(mRequest, mTotalSize, mUploadedSize);
+            }
+        }
+    }
+}
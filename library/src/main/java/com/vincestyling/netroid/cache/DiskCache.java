@@ -48,6 +48,11 @@ public class DiskCache {
      */
     private final int mMaxCacheSizeInBytes;
 
+    /**
+     * Whether the root directory was scanned already.
+     */
+    private boolean mInitialized;
+
     /**
      * Default maximum disk usage in bytes.
      */
@@ -59,9 +64,10 @@ public class DiskCache {
     private static final float HYSTERESIS_FACTOR = 0.9f;
 
     /**
-     * Magic number for current version of cache file format.
+     * Magic number for current version of cache file format, the files of an older
+     * version are dropped by {@link #initialize()}.
      */
-    private static final int CACHE_MAGIC = 0x20120504;
+    private static final int CACHE_MAGIC = 0x20151018;
 
     /**
      * Constructs an instance of the DiskCache at the specified directory.
@@ -101,9 +107,18 @@ public class DiskCache {
 
     /**
      * Returns the cache entry with the specified key if it exists, null otherwise.
+     * <p/>
+     * Only the lookup of the header holds the lock of this cache, the file is read
+     * without it, so several cache dispatchers can read entries at the same time.
+     * That's safe because {@link #putEntry(String, Entry)} never rewrites a file in place,
+     * and the entry is built from the header of the file read, so the metadata always
+     * belongs to the data even if the file was replaced after the lookup.
      */
-    public synchronized Entry getEntry(String key) {
-        CacheHeader entry = mEntries.get(key);
+    public Entry getEntry(String key) {
+        CacheHeader entry;
+        synchronized (this) {
+            entry = mEntries.get(key);
+        }
         // if the entry does not exist, return.
         if (entry == null) {
             return null;
@@ -113,12 +128,16 @@ public class DiskCache {
         CountingInputStream cis = null;
         try {
             cis = new CountingInputStream(new FileInputStream(file));
-            CacheHeader.readHeader(cis); // eat header
-            byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
-            return entry.toCacheEntry(data);
+            // The file might have been replaced since the lookup, its own header goes with its data.
+            CacheHeader header = CacheHeader.readHeader(cis);
+            byte[] data = streamToBytes(cis, (int) (cis.getChannelSize() - cis.bytesRead));
+            return header.toCacheEntry(data);
         } catch (IOException e) {
             NetroidLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            removeEntry(key);
+            synchronized (this) {
+                // Don't remove the entry if it was replaced while we were reading.
+                if (mEntries.get(key) == entry) removeEntry(key);
+            }
             return null;
         } finally {
             if (cis != null) {
@@ -135,6 +154,10 @@ public class DiskCache {
      * specified root directory. Creates the root directory if necessary.
      */
     public synchronized void initialize() {
+        // Every cache dispatcher asks for it, only the first one does the scanning.
+        if (mInitialized) return;
+        mInitialized = true;
+
         if (!mRootDirectory.exists()) {
             if (!mRootDirectory.mkdirs()) {
                 NetroidLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
@@ -147,11 +170,18 @@ public class DiskCache {
             return;
         }
         for (File file : files) {
+            // Left by a write which didn't complete.
+            if (file.getName().endsWith(".tmp")) {
+                file.delete();
+                continue;
+            }
+
             FileInputStream fis = null;
             try {
                 fis = new FileInputStream(file);
                 CacheHeader entry = CacheHeader.readHeader(fis);
-                if (entry.isExpired()) {
+                // An expired entry is still worth a revalidation if it has a validator.
+                if (entry.isExpired() && !entry.hasValidators()) {
                     file.delete();
                 } else {
                     entry.size = file.length();
@@ -184,24 +214,29 @@ public class DiskCache {
     }
 
     /**
-     * Puts the entry with the specified key into the cache.
+     * Puts the entry with the specified key into the cache. The entry is written to a
+     * temporary file first then renamed, so a concurrent reader of the same key keeps
+     * reading the previous file rather than a half-written one.
      */
     public synchronized void putEntry(String key, Entry entry) {
         pruneIfNeeded(entry.getData().length);
         File file = getFileForKey(key);
+        File tmpFile = new File(file.getPath() + ".tmp");
         try {
-            FileOutputStream fos = new FileOutputStream(file);
+            FileOutputStream fos = new FileOutputStream(tmpFile);
             CacheHeader e = new CacheHeader(key, entry);
             e.writeHeader(fos);
             fos.write(entry.getData());
             fos.close();
-            putEntry(key, e);
-            return;
+            if (tmpFile.renameTo(file)) {
+                putEntry(key, e);
+                return;
+            }
         } catch (IOException e) {
         }
-        boolean deleted = file.delete();
+        boolean deleted = tmpFile.delete();
         if (!deleted) {
-            NetroidLog.d("Could not clean up file %s", file.getAbsolutePath());
+            NetroidLog.d("Could not clean up file %s", tmpFile.getAbsolutePath());
         }
     }
 
@@ -344,6 +379,16 @@ public class DiskCache {
          */
         private String charset;
 
+        /**
+         * ETag of the cached response, null if it had none.
+         */
+        private String etag;
+
+        /**
+         * Last-Modified of the cached response, null if it had none.
+         */
+        private String lastModified;
+
         private CacheHeader() {
         }
 
@@ -358,6 +403,8 @@ public class DiskCache {
             this.size = entry.getData().length;
             this.expireTime = entry.getExpireTime();
             this.charset = entry.getCharset();
+            this.etag = entry.getEtag();
+            this.lastModified = entry.getLastModified();
         }
 
         /**
@@ -376,6 +423,8 @@ public class DiskCache {
             entry.key = readString(is);
             entry.expireTime = readLong(is);
             entry.charset = readString(is);
+            entry.etag = emptyToNull(readString(is));
+            entry.lastModified = emptyToNull(readString(is));
             return entry;
         }
 
@@ -387,6 +436,8 @@ public class DiskCache {
             e.data = data;
             e.expireTime = expireTime;
             e.charset = charset;
+            e.etag = etag;
+            e.lastModified = lastModified;
             return e;
         }
 
@@ -397,6 +448,12 @@ public class DiskCache {
             return expireTime < System.currentTimeMillis();
         }
 
+        /**
+         * True if the entry has a validator to revalidate it by.
+         */
+        public boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
 
         /**
          * Writes the contents of this CacheHeader to the specified OutputStream.
@@ -407,6 +464,8 @@ public class DiskCache {
                 writeString(os, key);
                 writeLong(os, expireTime);
                 writeString(os, charset);
+                writeString(os, etag != null ? etag : "");
+                writeString(os, lastModified != null ? lastModified : "");
                 os.flush();
                 return true;
             } catch (IOException e) {
@@ -446,6 +505,14 @@ public class DiskCache {
         public void setCharset(String charset) {
             this.charset = charset;
         }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
     }
 
     /**
@@ -475,6 +542,23 @@ public class DiskCache {
          */
         private String charset;
 
+        /**
+         * ETag of the cached response, sent as If-None-Match to revalidate the entry.
+         */
+        private String etag;
+
+        /**
+         * Last-Modified of the cached response, sent as If-Modified-Since to revalidate the entry.
+         */
+        private String lastModified;
+
+        /**
+         * True if the entry has a validator, so the server can tell it's still fresh by a 304.
+         */
+        public boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+
         /**
          * True if the entry is expired.
          */
@@ -531,15 +615,39 @@ public class DiskCache {
         public void setCharset(String charset) {
             this.charset = charset;
         }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public void setEtag(String etag) {
+            this.etag = etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public void setLastModified(String lastModified) {
+            this.lastModified = lastModified;
+        }
     }
 
     private static class CountingInputStream extends FilterInputStream {
         private int bytesRead = 0;
 
-        private CountingInputStream(InputStream in) {
+        private CountingInputStream(FileInputStream in) {
             super(in);
         }
 
+        /**
+         * Returns the size of the opened file, which stays the same even if the path
+         * was replaced by a newer file after opening.
+         */
+        private long getChannelSize() throws IOException {
+            return ((FileInputStream) in).getChannel().size();
+        }
+
         @Override
         public int read() throws IOException {
             int result = super.read();
@@ -630,6 +738,10 @@ public class DiskCache {
         return new String(b, "UTF-8");
     }
 
+    private static String emptyToNull(String s) {
+        return s.length() == 0 ? null : s;
+    }
+
     static void writeStringStringMap(Map<String, String> map, OutputStream os) throws IOException {
         if (map != null) {
             writeInt(os, map.size());
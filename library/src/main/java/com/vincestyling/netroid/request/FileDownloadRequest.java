@@ -25,7 +25,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.GZIPInputStream;
 
 /**
  * Its purpose is provide a big file download impmenetation, suport continuous transmission
@@ -70,8 +69,8 @@ public class FileDownloadRequest extends Request<Void> {
         // the response header "Content-Range" will return "bytes */[actual length]", that's wrong.
         addHeader("Range", "bytes=" + mTemporaryFile.length() + "-");
 
-//		Suppress the HttpStack accept gzip encoding, avoid the progress calculate wrong problem.
-//		addHeader("Accept-Encoding", "identity");
+        // Suppress the HttpStack accept compressed encoding, avoid the progress calculate wrong problem.
+        addHeader("Accept-Encoding", "identity");
     }
 
     /**
@@ -103,17 +102,18 @@ public class FileDownloadRequest extends Request<Void> {
      */
     @Override
     public byte[] handleResponse(HttpResponse response, Delivery delivery) throws IOException, ServerError {
-        // Content-Length might be negative when use HttpURLConnection because it default header Accept-Encoding is gzip,
-        // we can force set the Accept-Encoding as identity in prepare() method to slove this problem but also disable gzip response.
+        // We force set the Accept-Encoding as identity in prepare() method, but if the server-side
+        // encodes the response anyway, the Content-Length is the encoded size, not the file size.
         HttpEntity entity = response.getEntity();
-        long fileSize = entity.getContentLength();
+        long fileSize = HttpUtils.isEncodedContent(response) ? -1 : entity.getContentLength();
         if (fileSize <= 0) {
             NetroidLog.d("Response doesn't present Content-Length!");
         }
 
         long downloadedSize = mTemporaryFile.length();
         boolean isSupportRange = HttpUtils.isSupportRange(response);
-        if (isSupportRange) {
+        // The size of an unknown length whole file can't be verified.
+        if (isSupportRange && fileSize > 0) {
             fileSize += downloadedSize;
 
             // Verify the Content-Range Header, to ensure temporary file is part of the whole file.
@@ -158,10 +158,8 @@ public class FileDownloadRequest extends Request<Void> {
         InputStream in = null;
         try {
             in = entity.getContent();
-            // Determine the response gzip encoding, support for HttpClientStack download.
-            if (HttpUtils.isGzipContent(response) && !(in instanceof GZIPInputStream)) {
-                in = new GZIPInputStream(in);
-            }
+            // Decode the response if the server-side encoded it anyway.
+            in = HttpUtils.decodeContent(response, in);
             byte[] buffer = new byte[6 * 1024]; // 6K buffer
             int offset;
 
@@ -82,6 +82,19 @@ public class ImageRequest extends Request<Bitmap> {
         return Priority.LOW;
     }
 
+    @Override
+    public boolean isSideEffectFree() {
+        return true;
+    }
+
+    /**
+     * The bitmap is decoded by the size and config of this request, they're part of the key.
+     */
+    @Override
+    public String getCollapseKey() throws AuthFailureError {
+        return super.getCollapseKey() + ' ' + mMaxWidth + 'x' + mMaxHeight + ' ' + mDecodeConfig;
+    }
+
     /**
      * Scales one side of a rectangle to fit aspect ratio.
      *
@@ -47,6 +47,11 @@ public abstract class JsonRequest<T> extends Request<T> {
     @Override
     abstract protected Response<T> parseNetworkResponse(NetworkResponse response);
 
+    @Override
+    public boolean isSideEffectFree() {
+        return true;
+    }
+
     @Override
     public String getBodyContentType() {
         return PROTOCOL_CONTENT_TYPE;
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.request;
+
+import com.vincestyling.netroid.IListener;
+import com.vincestyling.netroid.RequestBody;
+import com.vincestyling.netroid.toolbox.ByteArrayPool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A canned request for posting a multipart/form-data body, e.g. a form with files, and retrieving
+ * the response body as a String. The file parts are read from disk as the body is written, through
+ * buffers of the {@link ByteArrayPool}, so uploading a large file doesn't hold it in memory:
+ * <pre> {@code
+ * new MultipartRequest(url, listener)
+ *         .addPart("title", "Holiday")
+ *         .addPart("photo", new File(path), "image/jpeg");}</pre>
+ * The body is sent with a Content-Length when the length of every part is known up front,
+ * chunked otherwise. The {@link IListener#onUploadProgress(long, long)} tells how much of
+ * it went out.
+ */
+public class MultipartRequest extends StringRequest {
+    private static final String CRLF = "\r\n";
+
+    /**
+     * The size of the buffers the stream parts are copied through.
+     */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * The delimiter of the parts, random so no part contains it.
+     */
+    private final String mBoundary = "NetroidBoundary" + UUID.randomUUID().toString().replace("-", "");
+
+    /**
+     * The parts of the body, in the order they're sent.
+     */
+    private final List<Part> mParts = new ArrayList<Part>();
+
+    /**
+     * Creates a new POST request.
+     *
+     * @param url      URL to post the form to
+     * @param listener Listener to receive the String response
+     */
+    public MultipartRequest(String url, IListener<String> listener) {
+        this(Method.POST, url, listener);
+    }
+
+    /**
+     * Creates a new request with the given method.
+     *
+     * @param method   the request {@link Method} to use, POST or PUT
+     * @param url      URL to send the form to
+     * @param listener Listener to receive the String response or error message
+     */
+    public MultipartRequest(int method, String url, IListener<String> listener) {
+        super(method, url, listener);
+        setRequestBody(new MultipartBody());
+    }
+
+    /**
+     * Adds a text field, encoded by the {@link #getParamsEncoding()}.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public MultipartRequest addPart(String name, String value) {
+        String contentType = "text/plain; charset=" + getParamsEncoding();
+        try {
+            return addPart(new Part(name, null, contentType, value.getBytes(getParamsEncoding()), null, null));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Encoding not supported: " + getParamsEncoding(), e);
+        }
+    }
+
+    /**
+     * Adds a file, named after the file.
+     *
+     * @param contentType the content type of the file, e.g. "image/jpeg"
+     * @return This Request object to allow for chaining.
+     */
+    public MultipartRequest addPart(String name, File file, String contentType) {
+        return addPart(new Part(name, file.getName(), contentType, null, file, null));
+    }
+
+    /**
+     * Adds a file held in memory.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public MultipartRequest addPart(String name, String fileName, byte[] content, String contentType) {
+        return addPart(new Part(name, fileName, contentType, content, null, null));
+    }
+
+    /**
+     * Adds a file read from the given stream. The stream is read once,
+     * so the request can't be retried after it went out.
+     *
+     * @param contentLength the number of bytes the stream holds, -1 if unknown,
+     *                      then the whole body is sent chunked
+     * @return This Request object to allow for chaining.
+     */
+    public MultipartRequest addPart(String name, String fileName, InputStream in,
+                                    long contentLength, String contentType) {
+        return addPart(new Part(name, fileName, contentType, null, null, RequestBody.create(in, contentLength)));
+    }
+
+    private MultipartRequest addPart(Part part) {
+        synchronized (mParts) {
+            mParts.add(part);
+        }
+        return this;
+    }
+
+    @Override
+    public String getBodyContentType() {
+        return "multipart/form-data; boundary=" + mBoundary;
+    }
+
+    /**
+     * A part of the body, either of bytes, a file or a stream.
+     */
+    private class Part {
+        /**
+         * The boundary and the headers which lead the content.
+         */
+        private final byte[] mHeader;
+
+        private final byte[] mContent;
+        private final File mFile;
+        private final RequestBody mStream;
+
+        Part(String name, String fileName, String contentType, byte[] content, File file, RequestBody stream) {
+            StringBuilder header = new StringBuilder();
+            header.append("--").append(mBoundary).append(CRLF);
+            header.append("Content-Disposition: form-data; name=\"").append(escape(name)).append('"');
+            if (fileName != null) header.append("; filename=\"").append(escape(fileName)).append('"');
+            header.append(CRLF);
+            if (contentType != null) header.append("Content-Type: ").append(contentType).append(CRLF);
+            header.append(CRLF);
+            try {
+                mHeader = header.toString().getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+            mContent = content;
+            mFile = file;
+            mStream = stream;
+        }
+
+        /**
+         * Returns the length of the header and content, or -1 if unknown.
+         */
+        long getLength() {
+            long contentLength = mContent != null ? mContent.length
+                    : mFile != null ? mFile.length() : mStream.getContentLength();
+            if (contentLength < 0) return -1;
+            return mHeader.length + contentLength + CRLF.length();
+        }
+
+        void writeTo(OutputStream out, byte[] buffer) throws IOException {
+            out.write(mHeader);
+            if (mContent != null) {
+                out.write(mContent);
+            } else if (mFile != null) {
+                InputStream in = new FileInputStream(mFile);
+                try {
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, count);
+                    }
+                } finally {
+                    in.close();
+                }
+            } else {
+                mStream.writeTo(out);
+            }
+            out.write(CRLF.getBytes());
+        }
+    }
+
+    /**
+     * Escapes the quotes and line breaks of a name, as the browsers do.
+     */
+    private static String escape(String name) {
+        return name.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+    }
+
+    /**
+     * Writes the parts, which may still be added until the request is sent.
+     */
+    private class MultipartBody extends RequestBody {
+        private List<Part> getParts() {
+            synchronized (mParts) {
+                return new ArrayList<Part>(mParts);
+            }
+        }
+
+        private byte[] getClosingBoundary() {
+            return ("--" + mBoundary + "--" + CRLF).getBytes();
+        }
+
+        @Override
+        public long getContentLength() {
+            long length = getClosingBoundary().length;
+            for (Part part : getParts()) {
+                long partLength = part.getLength();
+                if (partLength < 0) return -1;
+                length += partLength;
+            }
+            return length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            byte[] buffer = ByteArrayPool.get().getBuf(BUFFER_SIZE);
+            try {
+                for (Part part : getParts()) {
+                    part.writeTo(out, buffer);
+                }
+                out.write(getClosingBoundary());
+            } finally {
+                ByteArrayPool.get().returnBuf(buffer);
+            }
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            for (Part part : getParts()) {
+                if (part.mStream != null && !part.mStream.isRepeatable()) return false;
+            }
+            return true;
+        }
+    }
+}
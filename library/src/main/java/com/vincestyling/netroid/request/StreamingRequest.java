@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.request;
+
+import com.vincestyling.netroid.*;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A request which parses the response body as it arrives instead of reading it into memory
+ * first, so a large response never needs more memory than the parser holds at a time. The
+ * parser runs on the dispatcher thread, it can post partial results along the way, e.g. every
+ * batch of records of a large export, and returns the final result:
+ * <pre> {@code
+ * new StreamingRequest<List<String>, Integer>(url, listener, partialListener) {
+ *     protected Integer parseStream(InputStream in, long contentLength, String charset) throws IOException {
+ *         BufferedReader reader = new BufferedReader(new InputStreamReader(in, charset != null ? charset : "UTF-8"));
+ *         List<String> batch = new ArrayList<String>();
+ *         int count = 0;
+ *         String line;
+ *         while ((line = reader.readLine()) != null) {
+ *             batch.add(line);
+ *             if (batch.size() == 100) {
+ *                 postPartialResponse(batch);
+ *                 batch = new ArrayList<String>();
+ *             }
+ *             count++;
+ *         }
+ *         if (!batch.isEmpty()) postPartialResponse(batch);
+ *         return count;
+ *     }
+ * };}</pre>
+ * Only the successful responses are streamed, the body of an error response is read as usual.
+ * A streaming request is never cached nor hedged since its body isn't kept. Reading the stream
+ * throws once the request is canceled, which ends the parsing.
+ * <p/>
+ * If the connection breaks while parsing, the request is retried like any other and the parsing
+ * starts over, {@link IListener#onRetry()} tells the partial results delivered so far are void.
+ *
+ * @param <P> Type of the partial results.
+ * @param <T> Type of the final result.
+ */
+public abstract class StreamingRequest<P, T> extends Request<T> {
+    /**
+     * Receives the partial results, on the same thread as the {@link IListener}.
+     */
+    public interface PartialListener<P> {
+        void onPartialResponse(P partial);
+    }
+
+    private final PartialListener<P> mPartialListener;
+
+    /**
+     * The delivery of the attempt being parsed.
+     */
+    private Delivery mDelivery;
+
+    /**
+     * The final result of the last stream parsed, or the error it failed with.
+     */
+    private T mResult;
+    private ParseError mParseError;
+
+    /**
+     * @param method          the request {@link Method} to use
+     * @param listener        Listener to receive the final result or error
+     * @param partialListener Listener to receive the partial results, may be null
+     */
+    public StreamingRequest(int method, String url, IListener<T> listener, PartialListener<P> partialListener) {
+        super(method, url, listener);
+        mPartialListener = partialListener;
+    }
+
+    public StreamingRequest(String url, IListener<T> listener, PartialListener<P> partialListener) {
+        this(Method.GET, url, listener, partialListener);
+    }
+
+    /**
+     * Parses the response body, runs on the dispatcher thread.
+     *
+     * @param in            the response body, decoded if it was compressed
+     * @param contentLength the length of the body as the server told, -1 if unknown
+     * @param charset       the charset of the Content-Type header, null if none
+     * @return the final result
+     * @throws IOException if reading the body failed
+     * @throws ParseError  if the body is malformed
+     */
+    protected abstract T parseStream(InputStream in, long contentLength, String charset)
+            throws IOException, ParseError;
+
+    /**
+     * Posts a partial result to the {@link PartialListener}, call it from {@link #parseStream}.
+     * The result must not be changed afterwards, it's delivered on another thread.
+     */
+    protected final void postPartialResponse(P partial) {
+        if (mPartialListener != null && !isCanceled()) {
+            mDelivery.postPartialResponse(this, partial);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void deliverPartialResponse(Object partial) {
+        if (mPartialListener != null && !isCanceled()) {
+            mPartialListener.onPartialResponse((P) partial);
+        }
+    }
+
+    @Override
+    public byte[] handleResponse(HttpResponse response, Delivery delivery) throws IOException, ServerError {
+        int statusCode = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+        if (entity == null || statusCode < 200 || statusCode > 299) {
+            return super.handleResponse(response, delivery);
+        }
+
+        mDelivery = delivery;
+        mResult = null;
+        mParseError = null;
+        InputStream in = null;
+        try {
+            in = entity.getContent();
+            if (in == null) throw new ServerError();
+            in = new CancelableInputStream(HttpUtils.decodeContent(response, in));
+
+            long contentLength = HttpUtils.isEncodedContent(response) ? -1 : entity.getContentLength();
+            try {
+                mResult = parseStream(in, contentLength, HttpUtils.getCharset(response));
+            } catch (ParseError e) {
+                mParseError = e;
+            } catch (RuntimeException e) {
+                mParseError = new ParseError(e);
+            }
+        } finally {
+            try {
+                // Close the InputStream, which leaves the rest of the body unread if the parser stopped early.
+                if (in != null) in.close();
+            } catch (IOException e) {
+                NetroidLog.v("Error occured when calling InputStream.close");
+            }
+            try {
+                entity.consumeContent();
+            } catch (IOException e) {
+                NetroidLog.v("Error occured when calling consumingContent");
+            }
+        }
+
+        // The body went to the parser, nothing is left to keep.
+        return new byte[0];
+    }
+
+    @Override
+    protected Response<T> parseNetworkResponse(NetworkResponse response) {
+        if (mParseError != null) return Response.error(mParseError);
+        return Response.success(mResult, response);
+    }
+
+    /**
+     * Never use cache in this case, the body isn't kept.
+     */
+    @Override
+    public void setCacheExpireTime(TimeUnit timeUnit, int amount) {
+    }
+
+    /**
+     * Fails the reads once the request is canceled.
+     */
+    private class CancelableInputStream extends FilterInputStream {
+        CancelableInputStream(InputStream in) {
+            super(in);
+        }
+
+        private void checkCanceled() throws IOException {
+            if (isCanceled()) throw new InterruptedIOException("Request was canceled.");
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCanceled();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            checkCanceled();
+            return super.read(buffer, offset, count);
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            checkCanceled();
+            return super.skip(count);
+        }
+    }
+}
@@ -42,6 +42,11 @@ public class StringRequest extends Request<String> {
         this(Method.GET, url, listener);
     }
 
+    @Override
+    public boolean isSideEffectFree() {
+        return true;
+    }
+
     @Override
     protected Response<String> parseNetworkResponse(NetworkResponse response) {
         String parsed = HttpUtils.parseResponse(response);
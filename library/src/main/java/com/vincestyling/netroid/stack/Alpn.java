@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Method;
+
+/**
+ * Application-Layer Protocol Negotiation for the TLS sockets, by reflection since no API offers it
+ * on every platform: {@code SSLParameters.setApplicationProtocols} exists from Android Q and Java 9,
+ * the Conscrypt based sockets of older Android versions offer {@code setAlpnProtocols}.
+ */
+final class Alpn {
+
+    private Alpn() {
+    }
+
+    /**
+     * Offers the given protocols during the handshake, which must not have started yet.
+     *
+     * @return false if the platform doesn't support ALPN.
+     */
+    static boolean configure(SSLSocket socket, String[] protocols) {
+        try {
+            SSLParameters parameters = socket.getSSLParameters();
+            Method method = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+            method.invoke(parameters, (Object) protocols);
+            socket.setSSLParameters(parameters);
+            return true;
+        } catch (Exception ignored) {
+        }
+
+        try {
+            Method method = socket.getClass().getMethod("setAlpnProtocols", byte[].class);
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            for (String protocol : protocols) {
+                byte[] bytes = protocol.getBytes("US-ASCII");
+                encoded.write(bytes.length);
+                encoded.write(bytes);
+            }
+            method.invoke(socket, (Object) encoded.toByteArray());
+            return true;
+        } catch (Exception ignored) {
+        }
+        return false;
+    }
+
+    /**
+     * Returns the protocol the peer selected, or null if none was negotiated.
+     */
+    static String getSelectedProtocol(SSLSocket socket) {
+        try {
+            Method method = SSLSocket.class.getMethod("getApplicationProtocol");
+            String protocol = (String) method.invoke(socket);
+            return protocol != null && protocol.length() > 0 ? protocol : null;
+        } catch (Exception ignored) {
+        }
+
+        try {
+            Method method = socket.getClass().getMethod("getAlpnSelectedProtocol");
+            byte[] protocol = (byte[]) method.invoke(socket);
+            return protocol != null ? new String(protocol, "US-ASCII") : null;
+        } catch (Exception ignored) {
+        }
+        return null;
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import com.vincestyling.netroid.NetroidLog;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the idle keep-alive connections of a {@link PooledHttpStack} for reuse, at most a given
+ * number per origin, for at most the keep-alive duration. The most recently used connection is
+ * reused first, so the surplus ones age out. A reaper thread, alive only while connections are
+ * idle, closes the expired ones.
+ * <p/>
+ * The pool also counts, per origin, how many exchanges opened a new connection and how many reused
+ * one, and how long the new connections took to connect and hand-shake, see {@link #getStats()}.
+ */
+public class ConnectionPool {
+    /**
+     * Default maximum number of idle connections kept per origin.
+     */
+    public static final int DEFAULT_MAX_IDLE_PER_HOST = 5;
+
+    /**
+     * Default time in milliseconds an idle connection is kept.
+     */
+    public static final long DEFAULT_KEEP_ALIVE_MS = 5 * 60 * 1000;
+
+    /**
+     * Maximum number of idle connections kept per origin.
+     */
+    private final int mMaxIdlePerHost;
+
+    /**
+     * Time in nanoseconds an idle connection is kept.
+     */
+    private final long mKeepAliveNanos;
+
+    /**
+     * The idle connections by origin, the most recently used first.
+     */
+    private final Map<String, LinkedList<HttpConnection>> mIdle = new HashMap<String, LinkedList<HttpConnection>>();
+
+    /**
+     * The connection counters by origin.
+     */
+    private final Map<String, OriginStats> mStats = new LinkedHashMap<String, OriginStats>();
+
+    /**
+     * Number of idle connections over all origins.
+     */
+    private int mIdleCount;
+
+    /**
+     * The reaper thread, null while no connection is idle.
+     */
+    private Thread mReaper;
+
+    public ConnectionPool() {
+        this(DEFAULT_MAX_IDLE_PER_HOST, DEFAULT_KEEP_ALIVE_MS);
+    }
+
+    /**
+     * @param maxIdlePerHost Maximum number of idle connections kept per origin, 0 disables the reuse
+     * @param keepAliveMs    Time in milliseconds an idle connection is kept
+     */
+    public ConnectionPool(int maxIdlePerHost, long keepAliveMs) {
+        if (maxIdlePerHost < 0 || keepAliveMs <= 0) {
+            throw new IllegalArgumentException("maxIdlePerHost must not be negative and keepAliveMs must be positive.");
+        }
+        mMaxIdlePerHost = maxIdlePerHost;
+        mKeepAliveNanos = TimeUnit.MILLISECONDS.toNanos(keepAliveMs);
+    }
+
+    /**
+     * Returns the time in nanoseconds an idle connection is kept.
+     */
+    long getKeepAliveNanos() {
+        return mKeepAliveNanos;
+    }
+
+    int getMaxIdlePerHost() {
+        return mMaxIdlePerHost;
+    }
+
+    /**
+     * Returns the number of idle connections to the given origin.
+     */
+    synchronized int getIdleCount(String key) {
+        LinkedList<HttpConnection> idle = mIdle.get(key);
+        return idle != null ? idle.size() : 0;
+    }
+
+    /**
+     * Takes a healthy idle connection to the given origin, counts the reuse, or returns null.
+     * A connection pooled unused counts as a new one, a preconnected one as a reused one.
+     */
+    HttpConnection take(String key) {
+        while (true) {
+            HttpConnection connection;
+            synchronized (this) {
+                LinkedList<HttpConnection> idle = mIdle.get(key);
+                if (idle == null) return null;
+                connection = idle.removeFirst();
+                if (idle.isEmpty()) mIdle.remove(key);
+                mIdleCount--;
+            }
+
+            // Peek outside the lock, the peer may have closed it meanwhile.
+            if (System.nanoTime() - connection.idleSinceNanos < mKeepAliveNanos && connection.isHealthy()) {
+                if (connection.unused) {
+                    connection.unused = false;
+                    onConnected(connection);
+                } else {
+                    connection.reused = true;
+                    synchronized (this) {
+                        OriginStats stats = statsFor(key);
+                        stats.reusedCount++;
+                        if (connection.preconnected) stats.preconnectHitCount++;
+                    }
+                    connection.preconnected = false;
+                }
+                return connection;
+            }
+            synchronized (this) {
+                countMiss(connection);
+            }
+            connection.close();
+        }
+    }
+
+    /**
+     * Counts an exchange which shared a connection to the given origin, e.g. an HTTP/2 stream.
+     */
+    synchronized void onReused(String key) {
+        statsFor(key).reusedCount++;
+    }
+
+    /**
+     * Counts a new connection to the origin of the given one.
+     */
+    synchronized void onConnected(HttpConnection connection) {
+        OriginStats stats = statsFor(connection.key);
+        stats.newCount++;
+        stats.totalHandshakeMs += connection.handshakeMs;
+        stats.maxHandshakeMs = Math.max(stats.maxHandshakeMs, connection.handshakeMs);
+    }
+
+    /**
+     * Counts a connection opened to the given origin by a preconnect.
+     */
+    synchronized void onPreconnected(String key) {
+        statsFor(key).preconnectCount++;
+    }
+
+    /**
+     * Counts a preconnected connection which an exchange used, e.g. an HTTP/2 one.
+     */
+    synchronized void onPreconnectHit(String key) {
+        statsFor(key).preconnectHitCount++;
+    }
+
+    /**
+     * Counts a preconnected connection closed before any exchange used it.
+     */
+    synchronized void onPreconnectMiss(String key) {
+        statsFor(key).preconnectMissCount++;
+    }
+
+    /**
+     * Counts the miss of a connection closed while idle, if a preconnect opened it. Must hold the lock.
+     */
+    private void countMiss(HttpConnection connection) {
+        if (connection.preconnected) statsFor(connection.key).preconnectMissCount++;
+    }
+
+    /**
+     * Keeps the given connection, whose exchange is complete, for reuse,
+     * closes the least recently used one of its origin if there are too many.
+     */
+    void recycle(HttpConnection connection) {
+        HttpConnection surplus = null;
+        synchronized (this) {
+            connection.idleSinceNanos = System.nanoTime();
+            LinkedList<HttpConnection> idle = mIdle.get(connection.key);
+            if (idle == null) {
+                idle = new LinkedList<HttpConnection>();
+                mIdle.put(connection.key, idle);
+            }
+            idle.addFirst(connection);
+            mIdleCount++;
+            if (idle.size() > mMaxIdlePerHost) {
+                surplus = idle.removeLast();
+                mIdleCount--;
+                countMiss(surplus);
+                if (idle.isEmpty()) mIdle.remove(connection.key);
+            }
+
+            if (mIdleCount > 0 && mReaper == null) {
+                mReaper = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        reap();
+                    }
+                }, "Netroid-ConnectionReaper");
+                mReaper.setDaemon(true);
+                mReaper.start();
+            }
+        }
+        if (surplus != null) surplus.close();
+    }
+
+    private void reap() {
+        while (true) {
+            List<HttpConnection> expired = new ArrayList<HttpConnection>();
+            long waitNanos;
+            synchronized (this) {
+                waitNanos = collectExpired(System.nanoTime(), expired);
+                if (waitNanos < 0) {
+                    // Nothing idle, a new reaper starts along with the next idle connection.
+                    mReaper = null;
+                }
+            }
+
+            for (HttpConnection connection : expired) {
+                connection.close();
+            }
+            if (waitNanos < 0) return;
+
+            synchronized (this) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+                } catch (InterruptedException e) {
+                    mReaper = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the expired idle connections to the given list, must hold the lock.
+     *
+     * @return nanoseconds until the next connection expires, or -1 if none is idle anymore.
+     */
+    private long collectExpired(long now, List<HttpConnection> expired) {
+        long waitNanos = -1;
+        Iterator<LinkedList<HttpConnection>> lists = mIdle.values().iterator();
+        while (lists.hasNext()) {
+            LinkedList<HttpConnection> idle = lists.next();
+            Iterator<HttpConnection> iterator = idle.iterator();
+            while (iterator.hasNext()) {
+                HttpConnection connection = iterator.next();
+                long leftNanos = connection.idleSinceNanos + mKeepAliveNanos - now;
+                if (leftNanos <= 0) {
+                    iterator.remove();
+                    mIdleCount--;
+                    countMiss(connection);
+                    expired.add(connection);
+                } else if (waitNanos < 0 || leftNanos < waitNanos) {
+                    waitNanos = leftNanos;
+                }
+            }
+            if (idle.isEmpty()) lists.remove();
+        }
+        return waitNanos;
+    }
+
+    /**
+     * Closes all the idle connections, e.g. after the network changed.
+     */
+    public void evictAll() {
+        List<HttpConnection> evicted = new ArrayList<HttpConnection>();
+        synchronized (this) {
+            for (LinkedList<HttpConnection> idle : mIdle.values()) {
+                for (HttpConnection connection : idle) {
+                    countMiss(connection);
+                }
+                evicted.addAll(idle);
+            }
+            mIdle.clear();
+            mIdleCount = 0;
+            notifyAll();
+        }
+        for (HttpConnection connection : evicted) {
+            connection.close();
+        }
+        if (NetroidLog.DEBUG) {
+            NetroidLog.v("Evicted %d idle connections.", evicted.size());
+        }
+    }
+
+    /**
+     * Returns the number of idle connections over all origins.
+     */
+    public synchronized int getIdleCount() {
+        return mIdleCount;
+    }
+
+    /**
+     * Returns the connection statistics of every origin this pool has seen.
+     */
+    public synchronized List<ConnectionStats> getStats() {
+        List<ConnectionStats> result = new ArrayList<ConnectionStats>(mStats.size());
+        for (Map.Entry<String, OriginStats> entry : mStats.entrySet()) {
+            OriginStats stats = entry.getValue();
+            LinkedList<HttpConnection> idle = mIdle.get(entry.getKey());
+            result.add(new ConnectionStats(entry.getKey(), stats.newCount, stats.reusedCount,
+                    stats.totalHandshakeMs, stats.maxHandshakeMs, idle != null ? idle.size() : 0,
+                    stats.preconnectCount, stats.preconnectHitCount, stats.preconnectMissCount));
+        }
+        return result;
+    }
+
+    private OriginStats statsFor(String key) {
+        OriginStats stats = mStats.get(key);
+        if (stats == null) {
+            stats = new OriginStats();
+            mStats.put(key, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * The connection counters of an origin.
+     */
+    private static class OriginStats {
+        long newCount;
+        long reusedCount;
+        long totalHandshakeMs;
+        long maxHandshakeMs;
+        long preconnectCount;
+        long preconnectHitCount;
+        long preconnectMissCount;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+/**
+ * How the connections to one origin of a {@link ConnectionPool} were obtained, since the pool was created.
+ */
+public class ConnectionStats {
+
+    /**
+     * The origin these statistics are about, "scheme://host:port".
+     */
+    public final String origin;
+
+    /**
+     * Number of exchanges which had to open a new connection.
+     */
+    public final long newCount;
+
+    /**
+     * Number of exchanges which reused an idle connection.
+     */
+    public final long reusedCount;
+
+    /**
+     * Sum of the connect and TLS handshake times of the new connections, in milliseconds.
+     */
+    public final long totalHandshakeMs;
+
+    /**
+     * The longest connect and TLS handshake time of a new connection, in milliseconds.
+     */
+    public final long maxHandshakeMs;
+
+    /**
+     * Number of connections currently idle in the pool.
+     */
+    public final int idleCount;
+
+    /**
+     * Number of connections opened ahead by a preconnect, they aren't counted as new ones.
+     */
+    public final long preconnectCount;
+
+    /**
+     * Number of the preconnected connections an exchange reused, the exchange counts as reused too.
+     */
+    public final long preconnectHitCount;
+
+    /**
+     * Number of the preconnected connections closed before any exchange used them.
+     */
+    public final long preconnectMissCount;
+
+    ConnectionStats(String origin, long newCount, long reusedCount, long totalHandshakeMs, long maxHandshakeMs,
+                    int idleCount, long preconnectCount, long preconnectHitCount, long preconnectMissCount) {
+        this.origin = origin;
+        this.newCount = newCount;
+        this.reusedCount = reusedCount;
+        this.totalHandshakeMs = totalHandshakeMs;
+        this.maxHandshakeMs = maxHandshakeMs;
+        this.idleCount = idleCount;
+        this.preconnectCount = preconnectCount;
+        this.preconnectHitCount = preconnectHitCount;
+        this.preconnectMissCount = preconnectMissCount;
+    }
+
+    /**
+     * Returns the average handshake time of the new connections in milliseconds, 0 if none were opened.
+     */
+    public long getAverageHandshakeMs() {
+        return newCount > 0 ? totalHandshakeMs / newCount : 0;
+    }
+
+    /**
+     * Returns the share of the exchanges which reused a connection, between 0 and 1.
+     */
+    public double getReuseRatio() {
+        long total = newCount + reusedCount;
+        return total > 0 ? (double) reusedCount / total : 0;
+    }
+
+    @Override
+    public String toString() {
+        String stats = String.format("%s new=%d reused=%d handshake avg=%dms max=%dms idle=%d",
+                origin, newCount, reusedCount, getAverageHandshakeMs(), maxHandshakeMs, idleCount);
+        if (preconnectCount == 0) return stats;
+        return stats + String.format(" preconnect=%d hit=%d miss=%d",
+                preconnectCount, preconnectHitCount, preconnectMissCount);
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Resolves the host names the {@link PooledHttpStack} connects to, e.g. by a {@link DnsCache}.
+ */
+public interface Dns {
+    /**
+     * The platform resolver.
+     */
+    Dns SYSTEM = new Dns() {
+        @Override
+        public InetAddress[] lookup(String host) throws UnknownHostException {
+            return InetAddress.getAllByName(host);
+        }
+    };
+
+    /**
+     * Returns the addresses of the given host, in the order to connect to them.
+     *
+     * @throws UnknownHostException if the host can't be resolved
+     */
+    InetAddress[] lookup(String host) throws UnknownHostException;
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import android.os.SystemClock;
+import com.vincestyling.netroid.NetroidLog;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A {@link Dns} which keeps the answers of another one, so only the first connection to a host
+ * waits for the lookup, which costs from tens to hundreds of milliseconds on a mobile network.
+ * <ul>
+ * <li>An answer is kept for the TTL, a failure for the negative TTL, so an unknown host doesn't
+ * cost a lookup per request either.</li>
+ * <li>An answer older than the TTL is still served for the stale period, while it's refreshed in
+ * the background, so a hot host never waits for a lookup again.</li>
+ * <li>A host looked up often is refreshed ahead, before its answer turns stale.</li>
+ * <li>{@link #preResolve(String...)} resolves the hosts known to be used soon, e.g. at
+ * the application start.</li>
+ * </ul>
+ * The platform resolver doesn't tell the TTL of the records, the same TTL goes for every host.
+ * Call {@link #clear()} once the network changed, the answers might not hold on the new one.
+ * <pre> {@code
+ * DnsCache dnsCache = new DnsCache(Dns.SYSTEM);
+ * dnsCache.preResolve("api.example.com", "img.example.com");
+ * PooledHttpStack stack = new PooledHttpStack(userAgent);
+ * stack.setDns(dnsCache);}</pre>
+ */
+public class DnsCache implements Dns {
+    /**
+     * Default time in milliseconds an answer is kept.
+     */
+    public static final long DEFAULT_TTL_MS = 60 * 1000;
+
+    /**
+     * Default time in milliseconds a failure is kept.
+     */
+    public static final long DEFAULT_NEGATIVE_TTL_MS = 10 * 1000;
+
+    /**
+     * Default time in milliseconds an answer is still served after the TTL, while it's refreshed.
+     */
+    public static final long DEFAULT_STALE_MS = 10 * 60 * 1000;
+
+    /**
+     * Maximum number of hosts kept, the least recently used ones go first.
+     */
+    static final int MAX_ENTRIES = 128;
+
+    /**
+     * The lookups within a TTL which make a host hot, then it's refreshed ahead.
+     */
+    private static final int HOT_LOOKUPS = 3;
+
+    /**
+     * The share of the TTL after which the answer of a hot host is refreshed ahead.
+     */
+    private static final float REFRESH_AHEAD_FACTOR = 0.75f;
+
+    private final Dns mDelegate;
+    private final long mTtlMs;
+    private final long mNegativeTtlMs;
+    private final long mStaleMs;
+
+    /**
+     * The answers by host, the least recently used first. Along with the set below, guarded by itself.
+     */
+    private final Map<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * The hosts some thread is looking up in the foreground, the others wait for its answer.
+     */
+    private final Set<String> mResolving = new HashSet<String>();
+
+    /**
+     * @param delegate      The resolver which does the lookups, e.g. {@link Dns#SYSTEM}
+     * @param ttlMs         Time in milliseconds an answer is kept
+     * @param negativeTtlMs Time in milliseconds a failure is kept, 0 to not keep them
+     * @param staleMs       Time in milliseconds an answer is still served after the TTL while it's
+     *                      refreshed, 0 to wait for the lookup once it expired
+     */
+    public DnsCache(Dns delegate, long ttlMs, long negativeTtlMs, long staleMs) {
+        if (ttlMs <= 0 || negativeTtlMs < 0 || staleMs < 0) {
+            throw new IllegalArgumentException("ttlMs must be positive, negativeTtlMs and staleMs not negative.");
+        }
+        mDelegate = delegate;
+        mTtlMs = ttlMs;
+        mNegativeTtlMs = negativeTtlMs;
+        mStaleMs = staleMs;
+    }
+
+    public DnsCache(Dns delegate) {
+        this(delegate, DEFAULT_TTL_MS, DEFAULT_NEGATIVE_TTL_MS, DEFAULT_STALE_MS);
+    }
+
+    @Override
+    public InetAddress[] lookup(String host) throws UnknownHostException {
+        String key = host.toLowerCase(Locale.US);
+        try {
+            synchronized (mEntries) {
+                while (true) {
+                    Entry entry = mEntries.get(key);
+                    if (entry != null) {
+                        long age = now() - entry.resolvedTime;
+                        if (entry.addresses == null) {
+                            if (age < mNegativeTtlMs) {
+                                throw new UnknownHostException(entry.error);
+                            }
+                        } else if (age < mTtlMs) {
+                            entry.lookups++;
+                            if (entry.lookups >= HOT_LOOKUPS && age >= mTtlMs * REFRESH_AHEAD_FACTOR) {
+                                refresh(key, entry);
+                            }
+                            return entry.addresses.clone();
+                        } else if (age < mTtlMs + mStaleMs) {
+                            refresh(key, entry);
+                            return entry.addresses.clone();
+                        }
+                    }
+
+                    if (!mResolving.contains(key)) break;
+                    // Another thread is looking it up, its answer will do for both.
+                    mEntries.wait();
+                }
+                mResolving.add(key);
+            }
+        } catch (InterruptedException e) {
+            throw new UnknownHostException("Interrupted while resolving " + host);
+        }
+
+        try {
+            Entry entry = resolve(key);
+            if (entry.addresses == null) throw new UnknownHostException(entry.error);
+            return entry.addresses.clone();
+        } finally {
+            synchronized (mEntries) {
+                mResolving.remove(key);
+                mEntries.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Resolves the given hosts in the background, e.g. at the application start, so the first
+     * requests to them don't wait for the lookups.
+     */
+    public void preResolve(String... hosts) {
+        preResolve(Arrays.asList(hosts));
+    }
+
+    /**
+     * Resolves the given hosts in the background, those with a fresh answer aren't looked up again.
+     */
+    public void preResolve(Collection<String> hosts) {
+        for (final String host : hosts) {
+            DnsExecutor.INSTANCE.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        lookup(host);
+                    } catch (UnknownHostException e) {
+                        NetroidLog.d("Can't pre-resolve %s: %s", host, e.getMessage());
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Drops every answer, e.g. once the network changed.
+     */
+    public void clear() {
+        synchronized (mEntries) {
+            mEntries.clear();
+        }
+    }
+
+    /**
+     * Returns the number of hosts kept.
+     */
+    public int size() {
+        synchronized (mEntries) {
+            return mEntries.size();
+        }
+    }
+
+    /**
+     * Looks the host up by the delegate and keeps the answer.
+     */
+    private Entry resolve(String key) {
+        Entry entry;
+        try {
+            InetAddress[] addresses = mDelegate.lookup(key);
+            if (addresses == null || addresses.length == 0) {
+                throw new UnknownHostException("No address of " + key);
+            }
+            entry = new Entry(addresses, null, now());
+        } catch (UnknownHostException e) {
+            entry = new Entry(null, e.getMessage() != null ? e.getMessage() : key, now());
+        }
+        synchronized (mEntries) {
+            Entry current = mEntries.get(key);
+            // A failed refresh keeps the stale answer, it's better than none.
+            if (entry.addresses != null || current == null || current.addresses == null) {
+                if (entry.addresses != null || mNegativeTtlMs > 0) mEntries.put(key, entry);
+            } else {
+                current.refreshing = false;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the time in milliseconds the answers are aged by, overridden by the tests.
+     */
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Refreshes the given answer in the background, unless it's being refreshed already.
+     */
+    private void refresh(final String key, Entry entry) {
+        if (entry.refreshing) return;
+        entry.refreshing = true;
+        DnsExecutor.INSTANCE.execute(new Runnable() {
+            @Override
+            public void run() {
+                Entry refreshed = resolve(key);
+                if (NetroidLog.DEBUG && refreshed.addresses == null) {
+                    NetroidLog.v("Refreshing %s failed: %s", key, refreshed.error);
+                }
+            }
+        });
+    }
+
+    /**
+     * An answer or a failure.
+     */
+    private static class Entry {
+        final InetAddress[] addresses;
+        final String error;
+        final long resolvedTime;
+
+        /**
+         * The lookups served by this answer, guarded by the entries.
+         */
+        int lookups;
+
+        /**
+         * Whether a background refresh is running, guarded by the entries.
+         */
+        boolean refreshing;
+
+        Entry(InetAddress[] addresses, String error, long resolvedTime) {
+            this.addresses = addresses;
+            this.error = error;
+            this.resolvedTime = resolvedTime;
+        }
+    }
+
+    /**
+     * Runs the background lookups, created on first use.
+     */
+    private static class DnsExecutor {
+        static final Executor INSTANCE = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Netroid-Dns");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK, the header compression of HTTP/2 (RFC 7541). The {@link Decoder} implements the
+ * whole format, including the dynamic table and the Huffman coding the servers use. The
+ * encoder is stateless, it only refers to the static table and sends the other headers as
+ * literals which aren't indexed, that costs a few bytes per request but never has to keep
+ * a table in sync with the peer.
+ */
+final class Hpack {
+    /**
+     * The dynamic table size both sides start with, and the most we let the peer use.
+     */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    /**
+     * The static table, the entry at index i is the HPACK index i + 1.
+     */
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    /**
+     * The lowest static index of every header name.
+     */
+    private static final Map<String, Integer> STATIC_NAME_INDEX = new HashMap<String, Integer>();
+
+    /**
+     * The static index of every header name and value pair, keyed by "name: value".
+     */
+    private static final Map<String, Integer> STATIC_FIELD_INDEX = new HashMap<String, Integer>();
+
+    /**
+     * The Huffman codes of the octets, right aligned, RFC 7541 appendix B.
+     */
+    private static final int[] CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+    /**
+     * The lengths in bits of the Huffman codes.
+     */
+    private static final byte[] LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+
+
+    /**
+     * The Huffman trie for decoding, two slots per node. A non-negative slot is the
+     * index of the child node, a negative one is a leaf holding -(symbol + 1).
+     */
+    private static final int[] TRIE;
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAME_INDEX.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_FIELD_INDEX.put(STATIC_TABLE[i][0] + ": " + STATIC_TABLE[i][1], i + 1);
+        }
+
+        List<int[]> nodes = new ArrayList<int[]>();
+        nodes.add(new int[2]);
+        for (int symbol = 0; symbol < CODES.length; symbol++) {
+            int node = 0;
+            for (int bit = LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int branch = (CODES[symbol] >>> bit) & 1;
+                if (bit == 0) {
+                    nodes.get(node)[branch] = -(symbol + 1);
+                } else {
+                    if (nodes.get(node)[branch] == 0) {
+                        nodes.get(node)[branch] = nodes.size();
+                        nodes.add(new int[2]);
+                    }
+                    node = nodes.get(node)[branch];
+                }
+            }
+        }
+        TRIE = new int[nodes.size() * 2];
+        for (int i = 0; i < nodes.size(); i++) {
+            TRIE[i * 2] = nodes.get(i)[0];
+            TRIE[i * 2 + 1] = nodes.get(i)[1];
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * Encodes the given header fields, each one a name and value pair with a lowercase name.
+     */
+    static void encode(List<String[]> fields, ByteArrayOutputStream out) throws IOException {
+        for (String[] field : fields) {
+            Integer index = STATIC_FIELD_INDEX.get(field[0] + ": " + field[1]);
+            if (index != null) {
+                // Indexed header field.
+                writeInt(out, index, 7, 0x80);
+                continue;
+            }
+
+            // Literal header field without indexing.
+            index = STATIC_NAME_INDEX.get(field[0]);
+            if (index != null) {
+                writeInt(out, index, 4, 0);
+            } else {
+                out.write(0);
+                writeString(out, field[0]);
+            }
+            writeString(out, field[1]);
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value, int prefixBits, int flags) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("ISO-8859-1");
+        writeInt(out, bytes.length, 7, 0);
+        out.write(bytes);
+    }
+
+    /**
+     * Decodes the header blocks of one connection, in the order they arrived, since they share the dynamic table.
+     */
+    static class Decoder {
+        /**
+         * The dynamic table, the most recent entry first.
+         */
+        private final LinkedList<String[]> mDynamicTable = new LinkedList<String[]>();
+
+        /**
+         * The size of the dynamic table as RFC 7541 counts it.
+         */
+        private int mTableSize;
+
+        /**
+         * The maximum size of the dynamic table, the peer can lower it down to 0.
+         */
+        private int mMaxTableSize = DEFAULT_TABLE_SIZE;
+
+        private byte[] mBlock;
+        private int mPosition;
+        private int mLimit;
+
+        /**
+         * Decodes a complete header block into name and value pairs.
+         */
+        List<String[]> decode(byte[] block, int length) throws IOException {
+            mBlock = block;
+            mPosition = 0;
+            mLimit = length;
+
+            List<String[]> fields = new ArrayList<String[]>();
+            while (mPosition < mLimit) {
+                int b = mBlock[mPosition] & 0xff;
+                if ((b & 0x80) != 0) {
+                    // Indexed header field.
+                    fields.add(get(readInt(7)));
+                } else if ((b & 0x40) != 0) {
+                    // Literal header field with incremental indexing.
+                    String[] field = readLiteral(6);
+                    fields.add(field);
+                    add(field);
+                } else if ((b & 0x20) != 0) {
+                    // Dynamic table size update.
+                    int maxSize = readInt(5);
+                    if (maxSize > DEFAULT_TABLE_SIZE) throw new ProtocolException("HPACK table size too large: " + maxSize);
+                    mMaxTableSize = maxSize;
+                    evict(0);
+                } else {
+                    // Literal header field without indexing, or never indexed.
+                    fields.add(readLiteral(4));
+                }
+            }
+            mBlock = null;
+            return fields;
+        }
+
+        private String[] readLiteral(int prefixBits) throws IOException {
+            int index = readInt(prefixBits);
+            String name = index == 0 ? readString() : get(index)[0];
+            return new String[]{name, readString()};
+        }
+
+        private String[] get(int index) throws IOException {
+            if (index > 0 && index <= STATIC_TABLE.length) return STATIC_TABLE[index - 1];
+            int dynamicIndex = index - STATIC_TABLE.length - 1;
+            if (dynamicIndex < 0 || dynamicIndex >= mDynamicTable.size()) {
+                throw new ProtocolException("HPACK index out of range: " + index);
+            }
+            return mDynamicTable.get(dynamicIndex);
+        }
+
+        private void add(String[] field) {
+            int size = field[0].length() + field[1].length() + 32;
+            // An entry larger than the table empties it.
+            evict(Math.min(size, mMaxTableSize + 1));
+            if (size > mMaxTableSize) return;
+            mDynamicTable.addFirst(field);
+            mTableSize += size;
+        }
+
+        /**
+         * Evicts the oldest entries until the given size fits.
+         */
+        private void evict(int room) {
+            while (!mDynamicTable.isEmpty() && mTableSize + room > mMaxTableSize) {
+                String[] field = mDynamicTable.removeLast();
+                mTableSize -= field[0].length() + field[1].length() + 32;
+            }
+        }
+
+        private int readByte() throws IOException {
+            if (mPosition >= mLimit) throw new ProtocolException("HPACK block truncated.");
+            return mBlock[mPosition++] & 0xff;
+        }
+
+        private int readInt(int prefixBits) throws IOException {
+            int max = (1 << prefixBits) - 1;
+            int value = readByte() & max;
+            if (value < max) return value;
+
+            int shift = 0;
+            int b;
+            do {
+                if (shift > 21) throw new ProtocolException("HPACK integer too large.");
+                b = readByte();
+                value += (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        private String readString() throws IOException {
+            if (mPosition >= mLimit) throw new ProtocolException("HPACK block truncated.");
+            boolean huffman = (mBlock[mPosition] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > mLimit - mPosition) throw new ProtocolException("HPACK string truncated.");
+            int start = mPosition;
+            mPosition += length;
+            return huffman ? decodeHuffman(mBlock, start, length) : new String(mBlock, start, length, "ISO-8859-1");
+        }
+    }
+
+    static String decodeHuffman(byte[] data, int offset, int length) throws IOException {
+        StringBuilder result = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        int depth = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int next = TRIE[node * 2 + ((b >>> bit) & 1)];
+                if (next < 0) {
+                    result.append((char) (-next - 1));
+                    node = 0;
+                    depth = 0;
+                } else if (next == 0) {
+                    // Only EOS, which must never be decoded, leaves a slot empty.
+                    throw new ProtocolException("HPACK Huffman EOS decoded.");
+                } else {
+                    node = next;
+                    depth++;
+                }
+            }
+        }
+        // The padding is the most significant bits of EOS, all ones and shorter than a byte.
+        if (depth > 7) throw new ProtocolException("HPACK Huffman padding too long.");
+        return result.toString();
+    }
+}
@@ -0,0 +1,852 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import com.vincestyling.netroid.NetroidLog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An HTTP/2 connection (RFC 7540) which multiplexes the exchanges of one origin as streams.
+ * A reader thread dispatches the incoming frames to the streams, the dispatchers write their
+ * requests one frame at a time, so a large upload doesn't hold the other streams back.
+ * <p/>
+ * Each stream may buffer up to {@link #STREAM_WINDOW} bytes of response body ahead of its reader,
+ * the window is opened again as the body is read, so a slow reader only stalls its own stream.
+ */
+class Http2Connection {
+    private static final byte[] PREFACE = {
+            'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n',
+            '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n'};
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PUSH_PROMISE = 0x5;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int ERROR_NO_ERROR = 0x0;
+    private static final int ERROR_PROTOCOL = 0x1;
+    private static final int ERROR_FLOW_CONTROL = 0x3;
+    private static final int ERROR_FRAME_SIZE = 0x6;
+    private static final int ERROR_REFUSED_STREAM = 0x7;
+    private static final int ERROR_CANCEL = 0x8;
+    private static final int ERROR_COMPRESSION = 0x9;
+
+    /**
+     * The window every stream starts with until the SETTINGS say otherwise, and the frame size limit we keep to.
+     */
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+
+    /**
+     * How much response body a stream may receive ahead of its reader.
+     */
+    static final int STREAM_WINDOW = 1024 * 1024;
+
+    /**
+     * How much response body all streams together may receive ahead of their readers.
+     */
+    private static final int CONNECTION_WINDOW = 16 * 1024 * 1024;
+
+    /**
+     * The connection, its negotiated protocol is "h2".
+     */
+    final HttpConnection mConnection;
+
+    private final DataInputStream mIn;
+    private final OutputStream mOut;
+
+    /**
+     * Serializes the frames, a frame is written whole under it.
+     */
+    private final Object mWriteLock = new Object();
+
+    /**
+     * The header blocks share the dynamic table, they are decoded in arrival order by the reader thread.
+     */
+    private final Hpack.Decoder mDecoder = new Hpack.Decoder();
+
+    /**
+     * The open streams by id. Along with the other fields below, guarded by this connection.
+     */
+    private final Map<Integer, Stream> mStreams = new HashMap<Integer, Stream>();
+
+    private int mNextStreamId = 1;
+
+    /**
+     * Number of stream slots taken by the streams about to be opened.
+     */
+    private int mPendingStreams;
+
+    private int mMaxConcurrentStreams = Integer.MAX_VALUE;
+    private int mPeerInitialWindow = DEFAULT_WINDOW;
+    private int mPeerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    /**
+     * How much DATA the peer accepts on the connection.
+     */
+    private long mSendWindow = DEFAULT_WINDOW;
+
+    /**
+     * How much DATA arrived since the connection window was last opened again.
+     */
+    private int mUnacknowledged;
+
+    /**
+     * True once no new stream may be opened, after a GOAWAY or a failure.
+     */
+    private boolean mShutdown;
+
+    /**
+     * The failure which broke the connection, thrown to all its streams.
+     */
+    private IOException mFailure;
+
+    /**
+     * Since when no stream is open, by {@link System#nanoTime()}.
+     */
+    private long mIdleSinceNanos = System.nanoTime();
+
+    Http2Connection(HttpConnection connection) {
+        mConnection = connection;
+        mIn = new DataInputStream(connection.in);
+        mOut = connection.out;
+    }
+
+    /**
+     * Sends the connection preface along with our settings, starts the reader thread.
+     */
+    void start() throws IOException {
+        // The reader blocks until a frame arrives, the stream timeouts apply instead.
+        mConnection.socket.setSoTimeout(0);
+
+        synchronized (mWriteLock) {
+            mOut.write(PREFACE);
+            byte[] settings = new byte[12];
+            putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+            putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW);
+            writeFrame(TYPE_SETTINGS, 0, 0, settings, 0, settings.length);
+            writeWindowUpdate(0, CONNECTION_WINDOW - DEFAULT_WINDOW);
+        }
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readFrames();
+            }
+        }, "Netroid-Http2Reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private static void putSetting(byte[] settings, int offset, int id, int value) {
+        settings[offset] = (byte) (id >>> 8);
+        settings[offset + 1] = (byte) id;
+        settings[offset + 2] = (byte) (value >>> 24);
+        settings[offset + 3] = (byte) (value >>> 16);
+        settings[offset + 4] = (byte) (value >>> 8);
+        settings[offset + 5] = (byte) value;
+    }
+
+    /**
+     * Returns true if a new stream may still be opened on this connection.
+     */
+    synchronized boolean isUsable() {
+        return !mShutdown;
+    }
+
+    /**
+     * Returns true if no stream was open for longer than the given time.
+     */
+    synchronized boolean isIdleLongerThan(long nanos) {
+        return mStreams.isEmpty() && System.nanoTime() - mIdleSinceNanos >= nanos;
+    }
+
+    /**
+     * Opens a stream by sending its request headers, waits for a free stream slot if the
+     * peer limits the concurrent streams.
+     *
+     * @param endStream True if the request has no body
+     * @throws RefusedStreamException if the connection can't take new streams anymore,
+     *                                the request is safe to retry on another connection.
+     */
+    Stream newStream(List<String[]> headers, boolean endStream, int timeoutMs) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+        Hpack.encode(headers, block);
+        byte[] encoded = block.toByteArray();
+
+        long deadline = System.nanoTime() + timeoutMs * 1000000L;
+        synchronized (this) {
+            // Not under the write lock, the reader thread must keep answering meanwhile.
+            while (!mShutdown && mStreams.size() + mPendingStreams >= mMaxConcurrentStreams) {
+                waitUntil(deadline);
+            }
+            if (mShutdown) throw new RefusedStreamException("Connection is shut down.");
+            mPendingStreams++;
+        }
+
+        synchronized (mWriteLock) {
+            Stream stream;
+            synchronized (this) {
+                mPendingStreams--;
+                if (mShutdown) throw new RefusedStreamException("Connection is shut down.");
+                // The ids must go out in increasing order, so one is taken under the write lock.
+                stream = new Stream(mNextStreamId, timeoutMs);
+                mNextStreamId += 2;
+                if (mNextStreamId < 0) mShutdown = true;
+                mStreams.put(stream.mId, stream);
+            }
+
+            int maxFrameSize = getPeerMaxFrameSize();
+            int offset = 0;
+            do {
+                int length = Math.min(encoded.length - offset, maxFrameSize);
+                int flags = offset + length == encoded.length ? FLAG_END_HEADERS : 0;
+                if (offset == 0) {
+                    if (endStream) flags |= FLAG_END_STREAM;
+                    writeFrame(TYPE_HEADERS, flags, stream.mId, encoded, offset, length);
+                } else {
+                    writeFrame(TYPE_CONTINUATION, flags, stream.mId, encoded, offset, length);
+                }
+                offset += length;
+            } while (offset < encoded.length);
+            return stream;
+        }
+    }
+
+    private synchronized int getPeerMaxFrameSize() {
+        return mPeerMaxFrameSize;
+    }
+
+    /**
+     * Waits on this connection until notified or the deadline passed, must hold the lock.
+     */
+    private void waitUntil(long deadline) throws IOException {
+        long leftNanos = deadline - System.nanoTime();
+        if (leftNanos <= 0) throw new SocketTimeoutException("HTTP/2 stream timed out.");
+        try {
+            wait(leftNanos / 1000000L, (int) (leftNanos % 1000000L));
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length)
+            throws IOException {
+        synchronized (mWriteLock) {
+            mOut.write(length >>> 16);
+            mOut.write(length >>> 8);
+            mOut.write(length);
+            mOut.write(type);
+            mOut.write(flags);
+            mOut.write(streamId >>> 24);
+            mOut.write(streamId >>> 16);
+            mOut.write(streamId >>> 8);
+            mOut.write(streamId);
+            if (length > 0) mOut.write(payload, offset, length);
+            mOut.flush();
+        }
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        writeFrame(TYPE_WINDOW_UPDATE, 0, streamId, toBytes(increment), 0, 4);
+    }
+
+    private void writeRstStream(int streamId, int errorCode) {
+        try {
+            writeFrame(TYPE_RST_STREAM, 0, streamId, toBytes(errorCode), 0, 4);
+        } catch (IOException ignored) {
+            // The connection broke, the stream is gone either way.
+        }
+    }
+
+    private static byte[] toBytes(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    /**
+     * Closes the socket, fails the open streams with the given cause.
+     */
+    void close(IOException cause) {
+        synchronized (this) {
+            if (mFailure == null) mFailure = cause;
+            mShutdown = true;
+            for (Stream stream : mStreams.values()) {
+                if (stream.mError == null) stream.mError = mFailure;
+            }
+            mStreams.clear();
+            notifyAll();
+        }
+        mConnection.close();
+    }
+
+    /**
+     * Closes the connection politely with a GOAWAY, fails the streams still open.
+     */
+    void shutdown() {
+        byte[] payload = new byte[8];
+        System.arraycopy(toBytes(0), 0, payload, 0, 4);
+        System.arraycopy(toBytes(ERROR_NO_ERROR), 0, payload, 4, 4);
+        try {
+            writeFrame(TYPE_GOAWAY, 0, 0, payload, 0, payload.length);
+        } catch (IOException ignored) {
+        }
+        close(new IOException("HTTP/2 connection closed."));
+    }
+
+    private void readFrames() {
+        try {
+            byte[] header = new byte[9];
+            while (true) {
+                mIn.readFully(header);
+                int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+                int type = header[3] & 0xff;
+                int flags = header[4] & 0xff;
+                int streamId = readInt(header, 5) & 0x7fffffff;
+                if (length > DEFAULT_MAX_FRAME_SIZE) {
+                    throw failure(ERROR_FRAME_SIZE, "Frame too large: " + length);
+                }
+                byte[] payload = new byte[length];
+                mIn.readFully(payload);
+
+                switch (type) {
+                    case TYPE_DATA:
+                        onData(streamId, flags, payload);
+                        break;
+                    case TYPE_HEADERS:
+                        onHeaders(streamId, flags, payload, header);
+                        break;
+                    case TYPE_RST_STREAM:
+                        onRstStream(streamId, payload);
+                        break;
+                    case TYPE_SETTINGS:
+                        onSettings(flags, payload);
+                        break;
+                    case TYPE_PING:
+                        if ((flags & FLAG_ACK) == 0) writeFrame(TYPE_PING, FLAG_ACK, 0, payload, 0, payload.length);
+                        break;
+                    case TYPE_GOAWAY:
+                        onGoAway(payload);
+                        break;
+                    case TYPE_WINDOW_UPDATE:
+                        onWindowUpdate(streamId, payload);
+                        break;
+                    case TYPE_PUSH_PROMISE:
+                        // We disabled the server push.
+                        throw failure(ERROR_PROTOCOL, "Unexpected PUSH_PROMISE.");
+                    case TYPE_CONTINUATION:
+                        throw failure(ERROR_PROTOCOL, "Unexpected CONTINUATION.");
+                    default:
+                        // PRIORITY and unknown frames are ignored.
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            if (NetroidLog.DEBUG) {
+                NetroidLog.v("HTTP/2 connection to %s closed: %s", mConnection.key, e);
+            }
+            close(e);
+        }
+    }
+
+    /**
+     * Tells the peer about a connection error, returns the exception which closes the connection.
+     */
+    private IOException failure(int errorCode, String message) {
+        byte[] payload = new byte[8];
+        System.arraycopy(toBytes(0), 0, payload, 0, 4);
+        System.arraycopy(toBytes(errorCode), 0, payload, 4, 4);
+        try {
+            writeFrame(TYPE_GOAWAY, 0, 0, payload, 0, payload.length);
+        } catch (IOException ignored) {
+        }
+        return new ProtocolException(message);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    /**
+     * Returns the length of the padding of a PADDED frame.
+     */
+    private int getPadding(int flags, byte[] payload, int offset) throws IOException {
+        if ((flags & FLAG_PADDED) == 0) return 0;
+        if (payload.length == 0) throw failure(ERROR_PROTOCOL, "Missing pad length.");
+        int padding = payload[0] & 0xff;
+        if (padding > payload.length - offset - 1) throw failure(ERROR_PROTOCOL, "Padding too long.");
+        return padding;
+    }
+
+    private void onData(int streamId, int flags, byte[] payload) throws IOException {
+        int padding = getPadding(flags, payload, 0);
+        int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        int length = payload.length - offset - padding;
+
+        int connectionIncrement = 0;
+        boolean reset = false;
+        synchronized (this) {
+            // The whole frame counts against the windows, padding included.
+            mUnacknowledged += payload.length;
+            if (mUnacknowledged >= CONNECTION_WINDOW / 2) {
+                connectionIncrement = mUnacknowledged;
+                mUnacknowledged = 0;
+            }
+
+            Stream stream = mStreams.get(streamId);
+            if (stream != null) {
+                stream.mReceived += payload.length;
+                if (stream.mReceived > STREAM_WINDOW + stream.mAcknowledged) {
+                    reset = true;
+                    stream.mError = new ProtocolException("HTTP/2 stream flow control violated.");
+                    removeStream(stream);
+                } else {
+                    // The padding is consumed right away.
+                    stream.mConsumed += payload.length - length;
+                    if (length > 0) {
+                        byte[] chunk = new byte[length];
+                        System.arraycopy(payload, offset, chunk, 0, length);
+                        stream.mChunks.add(chunk);
+                    }
+                    if ((flags & FLAG_END_STREAM) != 0) endStream(stream);
+                }
+                notifyAll();
+            }
+        }
+
+        if (connectionIncrement > 0) writeWindowUpdate(0, connectionIncrement);
+        if (reset) writeRstStream(streamId, ERROR_FLOW_CONTROL);
+    }
+
+    private void onHeaders(int streamId, int flags, byte[] payload, byte[] header) throws IOException {
+        int padding = getPadding(flags, payload, 0);
+        int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        if ((flags & FLAG_PRIORITY) != 0) offset += 5;
+        int length = payload.length - offset - padding;
+        if (length < 0) throw failure(ERROR_PROTOCOL, "HEADERS frame too short.");
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream(Math.max(length, 32));
+        block.write(payload, offset, length);
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+
+        // The header block continues in CONTINUATION frames, which must follow at once.
+        while ((flags & FLAG_END_HEADERS) == 0) {
+            mIn.readFully(header);
+            int continuationLength = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+            if ((header[3] & 0xff) != TYPE_CONTINUATION || (readInt(header, 5) & 0x7fffffff) != streamId) {
+                throw failure(ERROR_PROTOCOL, "Expected CONTINUATION of stream " + streamId);
+            }
+            if (continuationLength > DEFAULT_MAX_FRAME_SIZE) {
+                throw failure(ERROR_FRAME_SIZE, "Frame too large: " + continuationLength);
+            }
+            flags = header[4] & 0xff;
+            byte[] continuation = new byte[continuationLength];
+            mIn.readFully(continuation);
+            block.write(continuation, 0, continuationLength);
+        }
+
+        // Decoded even for a stream gone meanwhile, the dynamic table must stay in sync.
+        List<String[]> fields;
+        try {
+            fields = mDecoder.decode(block.toByteArray(), block.size());
+        } catch (IOException e) {
+            throw failure(ERROR_COMPRESSION, "HPACK decoding failed: " + e.getMessage());
+        }
+
+        synchronized (this) {
+            Stream stream = mStreams.get(streamId);
+            if (stream == null) return;
+
+            String status = null;
+            for (String[] field : fields) {
+                if (":status".equals(field[0])) status = field[1];
+            }
+            // An interim 1xx response is skipped, trailers are ignored.
+            if (stream.mHeaders == null && status != null && !status.startsWith("1")) {
+                stream.mHeaders = fields;
+            }
+            if (endStream) endStream(stream);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Marks the response of a stream complete, must hold the lock.
+     */
+    private void endStream(Stream stream) {
+        stream.mRemoteClosed = true;
+        if (stream.mHeaders == null && stream.mError == null) {
+            stream.mError = new ProtocolException("HTTP/2 stream ended without response headers.");
+        }
+        removeStream(stream);
+    }
+
+    /**
+     * Must hold the lock.
+     */
+    private void removeStream(Stream stream) {
+        if (mStreams.remove(stream.mId) != null && mStreams.isEmpty()) {
+            mIdleSinceNanos = System.nanoTime();
+        }
+    }
+
+    private void onRstStream(int streamId, byte[] payload) throws IOException {
+        if (payload.length != 4) throw failure(ERROR_FRAME_SIZE, "RST_STREAM of wrong length.");
+        int errorCode = readInt(payload, 0);
+        synchronized (this) {
+            Stream stream = mStreams.get(streamId);
+            if (stream == null) return;
+            if (stream.mError == null) {
+                stream.mError = errorCode == ERROR_REFUSED_STREAM
+                        ? new RefusedStreamException("HTTP/2 stream refused.")
+                        : new IOException("HTTP/2 stream reset, error code " + errorCode);
+            }
+            removeStream(stream);
+            notifyAll();
+        }
+    }
+
+    private void onSettings(int flags, byte[] payload) throws IOException {
+        if ((flags & FLAG_ACK) != 0) return;
+        if (payload.length % 6 != 0) throw failure(ERROR_FRAME_SIZE, "SETTINGS of wrong length.");
+
+        synchronized (this) {
+            for (int offset = 0; offset < payload.length; offset += 6) {
+                int id = ((payload[offset] & 0xff) << 8) | (payload[offset + 1] & 0xff);
+                int value = readInt(payload, offset + 2);
+                switch (id) {
+                    case SETTINGS_MAX_CONCURRENT_STREAMS:
+                        mMaxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+                        break;
+                    case SETTINGS_INITIAL_WINDOW_SIZE:
+                        if (value < 0) throw failure(ERROR_FLOW_CONTROL, "Initial window size too large.");
+                        int delta = value - mPeerInitialWindow;
+                        mPeerInitialWindow = value;
+                        for (Stream stream : mStreams.values()) {
+                            stream.mSendWindow += delta;
+                        }
+                        break;
+                    case SETTINGS_MAX_FRAME_SIZE:
+                        if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+                            throw failure(ERROR_PROTOCOL, "Invalid max frame size: " + value);
+                        }
+                        mPeerMaxFrameSize = value;
+                        break;
+                    case SETTINGS_HEADER_TABLE_SIZE:
+                        // Our encoder never indexes, any table size suits it.
+                    default:
+                        break;
+                }
+            }
+            notifyAll();
+        }
+        writeFrame(TYPE_SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+    }
+
+    private void onGoAway(byte[] payload) throws IOException {
+        if (payload.length < 8) throw failure(ERROR_FRAME_SIZE, "GOAWAY too short.");
+        int lastStreamId = readInt(payload, 0) & 0x7fffffff;
+        int errorCode = readInt(payload, 4);
+        synchronized (this) {
+            mShutdown = true;
+            // The streams past the last one weren't processed, they're safe to retry elsewhere.
+            List<Stream> refused = new ArrayList<Stream>();
+            for (Stream stream : mStreams.values()) {
+                if (stream.mId > lastStreamId) refused.add(stream);
+            }
+            for (Stream stream : refused) {
+                if (stream.mError == null) {
+                    stream.mError = new RefusedStreamException("HTTP/2 GOAWAY, error code " + errorCode);
+                }
+                removeStream(stream);
+            }
+            notifyAll();
+            if (!mStreams.isEmpty()) return;
+        }
+        throw new IOException("HTTP/2 GOAWAY, error code " + errorCode);
+    }
+
+    private void onWindowUpdate(int streamId, byte[] payload) throws IOException {
+        if (payload.length != 4) throw failure(ERROR_FRAME_SIZE, "WINDOW_UPDATE of wrong length.");
+        int increment = readInt(payload, 0) & 0x7fffffff;
+        synchronized (this) {
+            if (streamId == 0) {
+                mSendWindow += increment;
+            } else {
+                Stream stream = mStreams.get(streamId);
+                if (stream != null) stream.mSendWindow += increment;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * A stream was refused before the peer processed it, the request can be retried on another connection.
+     */
+    static class RefusedStreamException extends IOException {
+        RefusedStreamException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * One request and its response. Runs as the abort handle of the request, which resets the
+     * stream. All the state is guarded by the connection.
+     */
+    class Stream implements Runnable {
+        final int mId;
+
+        /**
+         * The timeout of every wait for the peer, in milliseconds.
+         */
+        private final int mTimeoutMs;
+
+        /**
+         * How much DATA the peer accepts on this stream.
+         */
+        long mSendWindow = mPeerInitialWindow;
+
+        /**
+         * The response headers, including ":status".
+         */
+        List<String[]> mHeaders;
+
+        /**
+         * The body chunks received and not read yet.
+         */
+        final LinkedList<byte[]> mChunks = new LinkedList<byte[]>();
+
+        /**
+         * How many bytes of the head chunk were read.
+         */
+        int mChunkOffset;
+
+        /**
+         * Bytes of DATA received, read (or padding), and the window was opened again for.
+         */
+        long mReceived;
+        long mConsumed;
+        long mAcknowledged;
+
+        /**
+         * True once the response is complete.
+         */
+        boolean mRemoteClosed;
+
+        /**
+         * Fails every further read or write of the stream.
+         */
+        IOException mError;
+
+        Stream(int id, int timeoutMs) {
+            mId = id;
+            mTimeoutMs = timeoutMs;
+        }
+
+        /**
+         * Sends the given bytes in DATA frames as the flow control windows allow.
+         *
+         * @param endStream True if these are the last bytes of the request body
+         */
+        void writeData(byte[] data, int offset, int count, boolean endStream) throws IOException {
+            int end = offset + count;
+            do {
+                int length;
+                synchronized (Http2Connection.this) {
+                    long deadline = System.nanoTime() + mTimeoutMs * 1000000L;
+                    while (true) {
+                        if (mError != null) throw mError;
+                        // The peer answered already, it doesn't care for the rest.
+                        if (mRemoteClosed) return;
+                        length = (int) Math.min(end - offset,
+                                Math.min(mPeerMaxFrameSize, Math.min(mSendWindow, Http2Connection.this.mSendWindow)));
+                        if (length > 0 || offset == end) break;
+                        waitUntil(deadline);
+                    }
+                    mSendWindow -= length;
+                    Http2Connection.this.mSendWindow -= length;
+                }
+                int flags = endStream && offset + length == end ? FLAG_END_STREAM : 0;
+                if (length > 0 || flags != 0) writeFrame(TYPE_DATA, flags, mId, data, offset, length);
+                offset += length;
+            } while (offset < end);
+        }
+
+        /**
+         * Returns the stream to write the request body to, a DATA frame goes out whenever a frame
+         * is full, closing it ends the stream.
+         */
+        OutputStream getOutputStream() {
+            return new OutputStream() {
+                private final byte[] mBuffer = new byte[DEFAULT_MAX_FRAME_SIZE];
+                private int mCount;
+                private boolean mClosed;
+
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int count) throws IOException {
+                    if (mClosed) throw new IOException("The request body was closed.");
+                    while (count > 0) {
+                        int length = Math.min(count, mBuffer.length - mCount);
+                        System.arraycopy(buffer, offset, mBuffer, mCount, length);
+                        mCount += length;
+                        offset += length;
+                        count -= length;
+                        if (mCount == mBuffer.length) flush();
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    if (mCount == 0) return;
+                    writeData(mBuffer, 0, mCount, false);
+                    mCount = 0;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (mClosed) return;
+                    mClosed = true;
+                    writeData(mBuffer, 0, mCount, true);
+                    mCount = 0;
+                }
+            };
+        }
+
+        /**
+         * Waits for the final response headers.
+         */
+        List<String[]> awaitHeaders() throws IOException {
+            synchronized (Http2Connection.this) {
+                long deadline = System.nanoTime() + mTimeoutMs * 1000000L;
+                while (mHeaders == null && mError == null) {
+                    waitUntil(deadline);
+                }
+                if (mHeaders == null) throw mError;
+                return mHeaders;
+            }
+        }
+
+        /**
+         * Resets the stream unless its response is complete.
+         */
+        @Override
+        public void run() {
+            synchronized (Http2Connection.this) {
+                if (mRemoteClosed || mError != null) return;
+                mError = new IOException("HTTP/2 stream canceled.");
+                mChunks.clear();
+                removeStream(this);
+                Http2Connection.this.notifyAll();
+            }
+            writeRstStream(mId, ERROR_CANCEL);
+        }
+
+        /**
+         * Returns the response body, reading it opens the stream window again.
+         */
+        InputStream getInputStream() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    if (length == 0) return 0;
+                    int count;
+                    int increment = 0;
+                    synchronized (Http2Connection.this) {
+                        long deadline = System.nanoTime() + mTimeoutMs * 1000000L;
+                        while (mChunks.isEmpty() && !mRemoteClosed && mError == null) {
+                            waitUntil(deadline);
+                        }
+                        if (mChunks.isEmpty()) {
+                            if (mError != null) throw mError;
+                            return -1;
+                        }
+
+                        byte[] chunk = mChunks.getFirst();
+                        count = Math.min(length, chunk.length - mChunkOffset);
+                        System.arraycopy(chunk, mChunkOffset, buffer, offset, count);
+                        mChunkOffset += count;
+                        if (mChunkOffset == chunk.length) {
+                            mChunks.removeFirst();
+                            mChunkOffset = 0;
+                        }
+
+                        mConsumed += count;
+                        if (!mRemoteClosed && mConsumed - mAcknowledged >= STREAM_WINDOW / 2) {
+                            increment = (int) (mConsumed - mAcknowledged);
+                            mAcknowledged = mConsumed;
+                        }
+                    }
+                    if (increment > 0) writeWindowUpdate(mId, increment);
+                    return count;
+                }
+
+                @Override
+                public int available() {
+                    synchronized (Http2Connection.this) {
+                        return mChunks.isEmpty() ? 0 : mChunks.getFirst().length - mChunkOffset;
+                    }
+                }
+
+                @Override
+                public void close() {
+                    // Left unread, the rest of the body isn't worth receiving.
+                    Stream.this.run();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import android.text.TextUtils;
+import com.vincestyling.netroid.AuthFailureError;
+import com.vincestyling.netroid.NetroidLog;
+import com.vincestyling.netroid.Request;
+import com.vincestyling.netroid.Request.Method;
+import com.vincestyling.netroid.RequestBody;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.HTTP;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link PooledHttpStack} which speaks HTTP/2 to the HTTPS origins which negotiate it by ALPN,
+ * multiplexing all the requests to such an origin over a single connection instead of one
+ * connection per concurrent request. Plain HTTP, and the origins which only speak HTTP/1.1, go
+ * through the {@link PooledHttpStack} as before; the connection of the failed negotiation isn't
+ * wasted, it goes to the pool for the HTTP/1.1 exchange.
+ * <p/>
+ * The responses look the same as the HTTP/1.1 ones but for the protocol version, so
+ * {@link com.vincestyling.netroid.toolbox.BasicNetwork} works unchanged on top. ALPN needs
+ * Android 5.0 or later, on older platforms every origin is spoken to in HTTP/1.1.
+ */
+public class Http2Stack extends PooledHttpStack {
+    /**
+     * The protocols offered in the TLS handshake, by preference.
+     */
+    private static final String[] PROTOCOLS = {"h2", "http/1.1"};
+
+    /**
+     * The connection-specific headers HTTP/2 forbids.
+     */
+    private static final Set<String> CONNECTION_HEADERS = new HashSet<String>(Arrays.asList(
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "te"));
+
+    /**
+     * How many times a request refused by the server before processing goes to a new connection.
+     */
+    private static final int MAX_REFUSED_RETRIES = 3;
+
+    private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+    /**
+     * The HTTP/2 connection of every origin. Along with the sets below, guarded by itself.
+     */
+    private final Map<String, Http2Connection> mConnections = new HashMap<String, Http2Connection>();
+
+    /**
+     * The origins some dispatcher is connecting to, the others wait for its connection.
+     */
+    private final Set<String> mConnecting = new HashSet<String>();
+
+    /**
+     * The origins which didn't negotiate HTTP/2.
+     */
+    private final Set<String> mHttp1Origins = new HashSet<String>();
+
+    /**
+     * The connections opened by a preconnect which no request used yet.
+     */
+    private final Set<Http2Connection> mPreconnected = new HashSet<Http2Connection>();
+
+    /**
+     * @param sslSocketFactory SSL factory to use for HTTPS connections, null for the platform default
+     * @param pool             The pool of the HTTP/1.1 connections, may be shared with other stacks
+     */
+    public Http2Stack(String userAgent, SSLSocketFactory sslSocketFactory, ConnectionPool pool) {
+        super(userAgent, sslSocketFactory, pool);
+    }
+
+    public Http2Stack(String userAgent, SSLSocketFactory sslSocketFactory) {
+        this(userAgent, sslSocketFactory, new ConnectionPool());
+    }
+
+    public Http2Stack(String userAgent) {
+        this(userAgent, null);
+    }
+
+    /**
+     * Returns the number of HTTP/2 connections, one per origin at most.
+     */
+    public int getHttp2ConnectionCount() {
+        synchronized (mConnections) {
+            return mConnections.size();
+        }
+    }
+
+    /**
+     * Closes the HTTP/2 connections and the idle HTTP/1.1 ones, e.g. after the network changed.
+     * The requests in flight on an HTTP/2 connection fail.
+     */
+    public void evictAll() {
+        List<Http2Connection> connections;
+        synchronized (mConnections) {
+            connections = new ArrayList<Http2Connection>(mConnections.values());
+            for (Map.Entry<String, Http2Connection> entry : mConnections.entrySet()) {
+                if (mPreconnected.remove(entry.getValue())) getConnectionPool().onPreconnectMiss(entry.getKey());
+            }
+            mConnections.clear();
+            mHttp1Origins.clear();
+        }
+        for (Http2Connection connection : connections) {
+            connection.shutdown();
+        }
+        getConnectionPool().evictAll();
+    }
+
+    @Override
+    HttpResponse perform(URL url, Request<?> request, Map<String, String> headers)
+            throws IOException, AuthFailureError {
+        if (!"https".equalsIgnoreCase(url.getProtocol())) {
+            return super.perform(url, request, headers);
+        }
+        String host = url.getHost();
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String key = "https://" + host.toLowerCase(Locale.US) + ":" + port;
+
+        Http2Connection connection = obtain(key, host, port, request.getTimeoutMs(), request);
+        if (connection == null) return super.perform(url, request, headers);
+
+        int method = request.getMethod();
+        RequestBody body = method == Method.POST || method == Method.PUT || method == Method.PATCH
+                ? request.getRequestBody() : null;
+
+        for (int retries = 0; ; retries++) {
+            try {
+                return exchange(connection, url, port, request, headers, body);
+            } catch (Http2Connection.RefusedStreamException e) {
+                if (retries == MAX_REFUSED_RETRIES || request.isCanceled()) throw e;
+                // A body which can't be written again might have gone out partly.
+                if (body != null && !body.isRepeatable()) throw e;
+                if (NetroidLog.DEBUG) {
+                    NetroidLog.v("HTTP/2 stream to %s refused, retrying: %s", key, e);
+                }
+            }
+            connection = obtain(key, host, port, request.getTimeoutMs(), request);
+            if (connection == null) return super.perform(url, request, headers);
+        }
+    }
+
+    /**
+     * Opens the HTTP/2 connection to the origin of the given url, which carries any number of
+     * requests, or the HTTP/1.1 ones if the origin doesn't speak HTTP/2.
+     */
+    @Override
+    public int preconnect(String url, int count) throws IOException {
+        URL parsedUrl = new URL(url);
+        if (!"https".equalsIgnoreCase(parsedUrl.getProtocol())) return super.preconnect(url, count);
+        String host = parsedUrl.getHost();
+        int port = parsedUrl.getPort() != -1 ? parsedUrl.getPort() : parsedUrl.getDefaultPort();
+        String key = "https://" + host.toLowerCase(Locale.US) + ":" + port;
+
+        synchronized (mConnections) {
+            Http2Connection connection = mConnections.get(key);
+            if (connection != null && connection.isUsable()) return 0;
+        }
+        int connectionsBefore = getConnectionPool().getIdleCount(key);
+        if (obtain(key, host, port, PRECONNECT_TIMEOUT_MS, null) != null) return 1;
+        // The failed negotiation left an HTTP/1.1 connection idle, open the missing ones.
+        int opened = getConnectionPool().getIdleCount(key) - connectionsBefore;
+        return Math.max(opened, 0) + super.preconnect(url, count);
+    }
+
+    /**
+     * Returns the HTTP/2 connection to the given origin, connects if there is none yet,
+     * or returns null if the origin speaks HTTP/1.1 only.
+     *
+     * @param request The request to obtain it for, null for a preconnect
+     */
+    private Http2Connection obtain(String key, String host, int port, int timeoutMs, Request<?> request)
+            throws IOException {
+        Http2Connection stale = null;
+        try {
+            synchronized (mConnections) {
+                while (true) {
+                    if (mHttp1Origins.contains(key)) return null;
+
+                    Http2Connection connection = mConnections.get(key);
+                    if (connection != null) {
+                        if (connection.isUsable()
+                                && !connection.isIdleLongerThan(getConnectionPool().getKeepAliveNanos())) {
+                            if (request == null) return connection;
+                            getConnectionPool().onReused(key);
+                            if (mPreconnected.remove(connection)) getConnectionPool().onPreconnectHit(key);
+                            request.addMarker("connection-reused");
+                            return connection;
+                        }
+                        mConnections.remove(key);
+                        if (mPreconnected.remove(connection)) getConnectionPool().onPreconnectMiss(key);
+                        stale = connection;
+                    }
+
+                    if (!mConnecting.contains(key)) break;
+                    // Another dispatcher is connecting, its connection will do for both.
+                    mConnections.wait();
+                }
+                mConnecting.add(key);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            // A connection without streams is closed now, one with streams when the peer closes it.
+            if (stale != null && stale.isIdleLongerThan(0)) stale.shutdown();
+        }
+
+        try {
+            HttpConnection connection = connect(key, "https", host, port, timeoutMs, request, PROTOCOLS);
+            if (!"h2".equals(connection.protocol)) {
+                if (request != null) {
+                    // The negotiated HTTP/1.1 connection serves the fallback, which counts it.
+                    connection.unused = true;
+                } else {
+                    connection.preconnected = true;
+                    getConnectionPool().onPreconnected(key);
+                }
+                getConnectionPool().recycle(connection);
+                synchronized (mConnections) {
+                    mHttp1Origins.add(key);
+                }
+                return null;
+            }
+
+            if (request != null) {
+                getConnectionPool().onConnected(connection);
+                request.addMarker("connection-new");
+            } else {
+                getConnectionPool().onPreconnected(key);
+            }
+
+            Http2Connection http2 = new Http2Connection(connection);
+            try {
+                http2.start();
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+            synchronized (mConnections) {
+                mConnections.put(key, http2);
+                if (request == null) mPreconnected.add(http2);
+            }
+            return http2;
+        } finally {
+            synchronized (mConnections) {
+                mConnecting.remove(key);
+                mConnections.notifyAll();
+            }
+        }
+    }
+
+    private HttpResponse exchange(Http2Connection connection, URL url, int port, Request<?> request,
+                                  Map<String, String> headers, RequestBody body) throws IOException {
+        int method = request.getMethod();
+        String authority = port != url.getDefaultPort() ? url.getHost() + ":" + port : url.getHost();
+        String path = url.getFile();
+
+        List<String[]> fields = new ArrayList<String[]>(headers.size() + 6);
+        List<String[]> regular = new ArrayList<String[]>(headers.size());
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.US);
+            if (HTTP.TARGET_HOST.equalsIgnoreCase(name)) {
+                authority = header.getValue();
+            } else if (!CONNECTION_HEADERS.contains(name) && !HTTP.CONTENT_LEN.equalsIgnoreCase(name)) {
+                // The body framing is ours.
+                regular.add(new String[]{name, header.getValue()});
+            }
+        }
+        fields.add(new String[]{":method", getMethodName(method)});
+        fields.add(new String[]{":scheme", "https"});
+        fields.add(new String[]{":authority", authority});
+        fields.add(new String[]{":path", TextUtils.isEmpty(path) ? "/" : path});
+        fields.addAll(regular);
+        if (body != null) {
+            fields.add(new String[]{"content-type", request.getBodyContentType()});
+            if (body.getContentEncoding() != null) {
+                fields.add(new String[]{"content-encoding", body.getContentEncoding()});
+            }
+        }
+        long contentLength = body != null ? body.getContentLength() : 0;
+        boolean hasBody = body != null || method == Method.POST || method == Method.PUT || method == Method.PATCH;
+        // A body of unknown length simply ends with its stream, HTTP/2 needs no chunking.
+        if (hasBody && contentLength >= 0) {
+            fields.add(new String[]{"content-length", String.valueOf(contentLength)});
+        }
+
+        Http2Connection.Stream stream = connection.newStream(fields, body == null, request.getTimeoutMs());
+        // Let a cancel() reset the stream, the other streams of the connection go on.
+        request.setAbortHandle(stream);
+        try {
+            if (body != null) {
+                OutputStream out = stream.getOutputStream();
+                body.writeTo(out);
+                out.close();
+            }
+
+            List<String[]> responseFields = stream.awaitHeaders();
+            int statusCode = -1;
+            BasicHttpResponse response = null;
+            for (String[] field : responseFields) {
+                if (":status".equals(field[0])) {
+                    try {
+                        statusCode = Integer.parseInt(field[1]);
+                    } catch (NumberFormatException e) {
+                        throw new ProtocolException("Unexpected status code: " + field[1]);
+                    }
+                    response = new BasicHttpResponse(new BasicStatusLine(HTTP_2, statusCode, ""));
+                }
+            }
+            if (response == null) throw new ProtocolException("HTTP/2 response without :status.");
+            for (String[] field : responseFields) {
+                if (!field[0].startsWith(":")) response.addHeader(field[0], field[1]);
+            }
+
+            if (!hasResponseBody(method, statusCode)) {
+                stream.run();
+                return response;
+            }
+
+            BasicHttpEntity entity = new BasicHttpEntity();
+            entity.setContent(stream.getInputStream());
+            entity.setContentLength(getContentLength(response));
+            if (response.getFirstHeader(HTTP.CONTENT_ENCODING) != null) {
+                entity.setContentEncoding(response.getFirstHeader(HTTP.CONTENT_ENCODING));
+            }
+            if (response.getFirstHeader(HTTP.CONTENT_TYPE) != null) {
+                entity.setContentType(response.getFirstHeader(HTTP.CONTENT_TYPE));
+            }
+            response.setEntity(entity);
+            return response;
+        } catch (IOException e) {
+            stream.run();
+            throw e;
+        }
+    }
+
+    private static long getContentLength(HttpResponse response) {
+        Header header = response.getFirstHeader(HTTP.CONTENT_LEN);
+        if (header == null) return -1;
+        try {
+            return Long.parseLong(header.getValue().trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
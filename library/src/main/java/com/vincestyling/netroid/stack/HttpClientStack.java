@@ -17,18 +17,22 @@ package com.vincestyling.netroid.stack;
 
 import android.net.http.AndroidHttpClient;
 import com.vincestyling.netroid.AuthFailureError;
+import com.vincestyling.netroid.ContentCodec;
 import com.vincestyling.netroid.Request;
 import com.vincestyling.netroid.Request.Method;
-import org.apache.http.HttpEntity;
+import com.vincestyling.netroid.RequestBody;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.*;
-import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.HTTP;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -47,6 +51,16 @@ public class HttpClientStack implements HttpStack {
         mClient = client;
     }
 
+    /**
+     * Creates the stack over an {@link AndroidHttpClient} which makes its HTTPS connections by
+     * the given factory, so it shares the TLS sessions with the other stacks using it.
+     */
+    public HttpClientStack(String userAgent, SessionCachingSSLSocketFactory sslSocketFactory) {
+        this(userAgent);
+        mClient.getConnectionManager().getSchemeRegistry().register(
+                new Scheme("https", sslSocketFactory.getHttpClientSocketFactory(), 443));
+    }
+
     private static void addHeaders(HttpUriRequest httpRequest, Map<String, String> headers) {
         for (Entry<String, String> header : headers.entrySet()) {
             httpRequest.setHeader(header.getKey(), header.getValue());
@@ -63,7 +77,7 @@ public class HttpClientStack implements HttpStack {
 
     @Override
     public HttpResponse performRequest(Request<?> request) throws IOException, AuthFailureError {
-        HttpUriRequest httpRequest = createHttpRequest(request);
+        final HttpUriRequest httpRequest = createHttpRequest(request);
         onPrepareRequest(httpRequest);
         addHeaders(httpRequest, request.getHeaders());
         HttpParams httpParams = httpRequest.getParams();
@@ -72,6 +86,13 @@ public class HttpClientStack implements HttpStack {
         // data collection and possibly different for wifi vs. 3G.
         HttpConnectionParams.setConnectionTimeout(httpParams, 5000);
         HttpConnectionParams.setSoTimeout(httpParams, timeoutMs);
+        // Let a cancel() break the blocked connect or read right away.
+        request.setAbortHandle(new Runnable() {
+            @Override
+            public void run() {
+                httpRequest.abort();
+            }
+        });
         return mClient.execute(httpRequest);
     }
 
@@ -115,10 +136,48 @@ public class HttpClientStack implements HttpStack {
 
     private static void setEntityIfNonEmptyBody(HttpEntityEnclosingRequestBase httpRequest,
                                                 Request<?> request) throws AuthFailureError {
-        byte[] body = request.getBody();
+        RequestBody body = request.getRequestBody();
         if (body != null) {
-            HttpEntity entity = new ByteArrayEntity(body);
-            httpRequest.setEntity(entity);
+            httpRequest.setEntity(new RequestBodyEntity(body));
+        }
+    }
+
+    /**
+     * Streams a {@link RequestBody} to the connection, chunked if its length is unknown.
+     */
+    private static class RequestBodyEntity extends AbstractHttpEntity {
+        private final RequestBody mBody;
+
+        RequestBodyEntity(RequestBody body) {
+            mBody = body;
+            setChunked(body.getContentLength() < 0);
+            setContentEncoding(body.getContentEncoding());
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return mBody.isRepeatable();
+        }
+
+        @Override
+        public long getContentLength() {
+            return mBody.getContentLength();
+        }
+
+        @Override
+        public InputStream getContent() {
+            throw new UnsupportedOperationException("The request body can only be written.");
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            mBody.writeTo(out);
+            out.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
         }
     }
 
@@ -128,7 +187,7 @@ public class HttpClientStack implements HttpStack {
      * <p>Overwrite in subclasses to augment the request.</p>
      */
     protected void onPrepareRequest(HttpUriRequest request) throws IOException {
-        request.addHeader("Accept-Encoding", "gzip");
+        request.addHeader("Accept-Encoding", ContentCodec.getAcceptEncoding());
     }
 
     /**
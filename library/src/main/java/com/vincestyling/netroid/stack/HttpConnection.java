@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connected socket to an origin, either idle in a {@link ConnectionPool}
+ * or carrying one exchange at a time.
+ */
+class HttpConnection {
+    /**
+     * Idle time in nanoseconds from which a connection taken from the pool is probed by a read,
+     * a connection idle shorter is rarely closed by the peer already, the exchange retries if it was.
+     */
+    static final long PROBE_IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The origin this connection goes to, "scheme://host:port".
+     */
+    final String key;
+
+    final Socket socket;
+    final InputStream in;
+    final OutputStream out;
+
+    /**
+     * Time in milliseconds spent to connect, and to hand-shake if it's secure.
+     */
+    final long handshakeMs;
+
+    /**
+     * The protocol negotiated by ALPN, null if none was.
+     */
+    String protocol;
+
+    /**
+     * Since when this connection is idle in the pool, by {@link System#nanoTime()}.
+     */
+    long idleSinceNanos;
+
+    /**
+     * Whether an exchange was already carried, a stale reused connection is worth a retry.
+     */
+    boolean reused;
+
+    /**
+     * Whether this connection was pooled right after it was opened, so taking it counts as a new one.
+     */
+    boolean unused;
+
+    /**
+     * Whether this connection was opened by a preconnect and no exchange used it yet.
+     */
+    boolean preconnected;
+
+    HttpConnection(String key, Socket socket, long handshakeMs) throws IOException {
+        this.key = key;
+        this.socket = socket;
+        this.handshakeMs = handshakeMs;
+        in = new BufferedInputStream(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Returns true if the peer didn't close this idle connection. Only a connection idle for
+     * {@link #PROBE_IDLE_NANOS} is probed by a read, which blocks a millisecond.
+     */
+    boolean isHealthy() {
+        if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) return false;
+        try {
+            // An idle connection has nothing to read, it's either closed by the peer or out of sync.
+            if (in.available() > 0) return false;
+            if (System.nanoTime() - idleSinceNanos < PROBE_IDLE_NANOS) return true;
+
+            int soTimeout = socket.getSoTimeout();
+            try {
+                socket.setSoTimeout(1);
+                in.read();
+                return false;
+            } finally {
+                socket.setSoTimeout(soTimeout);
+            }
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public String toString() {
+        return key + (reused ? " reused" : " new");
+    }
+}
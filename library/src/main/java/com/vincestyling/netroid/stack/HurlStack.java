@@ -17,8 +17,10 @@ package com.vincestyling.netroid.stack;
 
 import android.text.TextUtils;
 import com.vincestyling.netroid.AuthFailureError;
+import com.vincestyling.netroid.ContentCodec;
 import com.vincestyling.netroid.Request;
 import com.vincestyling.netroid.Request.Method;
+import com.vincestyling.netroid.RequestBody;
 import org.apache.http.*;
 import org.apache.http.entity.BasicHttpEntity;
 import org.apache.http.message.BasicHeader;
@@ -28,9 +30,9 @@ import org.apache.http.protocol.HTTP;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.HashMap;
@@ -63,10 +65,19 @@ public class HurlStack implements HttpStack {
         if (!TextUtils.isEmpty(mUserAgent)) {
             map.put(HTTP.USER_AGENT, mUserAgent);
         }
+        // Decoding ourselves, the connection doesn't transparently ungzip then.
+        map.put("Accept-Encoding", ContentCodec.getAcceptEncoding());
         map.putAll(request.getHeaders());
 
         URL parsedUrl = new URL(request.getUrl());
-        HttpURLConnection connection = openConnection(parsedUrl, request);
+        final HttpURLConnection connection = openConnection(parsedUrl, request);
+        // Let a cancel() break the blocked connect or read right away.
+        request.setAbortHandle(new Runnable() {
+            @Override
+            public void run() {
+                connection.disconnect();
+            }
+        });
         for (String headerName : map.keySet()) {
             connection.addRequestProperty(headerName, map.get(headerName));
         }
@@ -204,15 +215,31 @@ public class HurlStack implements HttpStack {
         }
     }
 
+    /**
+     * Streams the body if the request has one, in the fixed length mode if its length is known,
+     * chunked otherwise, so the connection never buffers the whole body.
+     */
     private static void addBodyIfExists(
             HttpURLConnection connection, Request<?> request) throws IOException, AuthFailureError {
-        byte[] body = request.getBody();
+        RequestBody body = request.getRequestBody();
         if (body != null) {
             connection.setDoOutput(true);
             connection.addRequestProperty(HTTP.CONTENT_TYPE, request.getBodyContentType());
-            DataOutputStream out = new DataOutputStream(connection.getOutputStream());
-            out.write(body);
-            out.close();
+            if (body.getContentEncoding() != null) {
+                connection.addRequestProperty(HTTP.CONTENT_ENCODING, body.getContentEncoding());
+            }
+            long contentLength = body.getContentLength();
+            if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+                connection.setFixedLengthStreamingMode((int) contentLength);
+            } else {
+                connection.setChunkedStreamingMode(0);
+            }
+            OutputStream out = connection.getOutputStream();
+            try {
+                body.writeTo(out);
+            } finally {
+                out.close();
+            }
         }
     }
 }
@@ -0,0 +1,759 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import android.os.SystemClock;
+import android.text.TextUtils;
+import com.vincestyling.netroid.AuthFailureError;
+import com.vincestyling.netroid.ContentCodec;
+import com.vincestyling.netroid.NetroidLog;
+import com.vincestyling.netroid.Preconnectable;
+import com.vincestyling.netroid.Request;
+import com.vincestyling.netroid.Request.Method;
+import com.vincestyling.netroid.RequestBody;
+import org.apache.http.*;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.HTTP;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An {@link HttpStack} which speaks HTTP/1.1 over sockets of its own, kept alive in a
+ * {@link ConnectionPool}. Unlike {@link HurlStack}, whose connections are pooled out of
+ * sight by the platform, the reuse is explicit: a connection goes back to the pool as
+ * soon as the response body was read to the end, rather than when the entity is
+ * closed, and the pool tells how many connections were reused and how long the new
+ * ones took to connect and hand-shake.
+ * <p/>
+ * Redirects are followed like {@link HttpURLConnection} does, for GET and HEAD requests,
+ * within the same protocol. Proxies aren't supported, use {@link HurlStack} behind one.
+ */
+public class PooledHttpStack implements HttpStack, Preconnectable {
+    /**
+     * Maximum number of redirects followed, the same as {@link HttpURLConnection}.
+     */
+    private static final int MAX_REDIRECTS = 20;
+
+    /**
+     * Longest status or header line accepted.
+     */
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    /**
+     * Largest redirect body read to keep its connection, a larger one closes it.
+     */
+    private static final int MAX_DRAIN_LENGTH = 64 * 1024;
+
+    /**
+     * Time in milliseconds a preconnect may take to connect and hand-shake.
+     */
+    static final int PRECONNECT_TIMEOUT_MS = 10 * 1000;
+
+    private final String mUserAgent;
+    private final SSLSocketFactory mSslSocketFactory;
+    private final ConnectionPool mPool;
+
+    /**
+     * The resolver of the hosts connected to.
+     */
+    private volatile Dns mDns = Dns.SYSTEM;
+
+    /**
+     * @param sslSocketFactory SSL factory to use for HTTPS connections, null for the platform default
+     * @param pool             The pool of the keep-alive connections, may be shared with other stacks
+     */
+    public PooledHttpStack(String userAgent, SSLSocketFactory sslSocketFactory, ConnectionPool pool) {
+        mUserAgent = userAgent;
+        mSslSocketFactory = sslSocketFactory;
+        mPool = pool;
+    }
+
+    public PooledHttpStack(String userAgent, SSLSocketFactory sslSocketFactory) {
+        this(userAgent, sslSocketFactory, new ConnectionPool());
+    }
+
+    public PooledHttpStack(String userAgent) {
+        this(userAgent, null);
+    }
+
+    /**
+     * Sets the resolver of the hosts connected to, e.g. a {@link DnsCache}, the platform resolver by default.
+     */
+    public void setDns(Dns dns) {
+        mDns = dns != null ? dns : Dns.SYSTEM;
+    }
+
+    public Dns getDns() {
+        return mDns;
+    }
+
+    /**
+     * Returns the pool of the keep-alive connections, for its statistics.
+     */
+    public ConnectionPool getConnectionPool() {
+        return mPool;
+    }
+
+    @Override
+    public HttpResponse performRequest(Request<?> request) throws IOException, AuthFailureError {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        if (!TextUtils.isEmpty(mUserAgent)) {
+            headers.put(HTTP.USER_AGENT, mUserAgent);
+        }
+        headers.put("Accept-Encoding", ContentCodec.getAcceptEncoding());
+        headers.putAll(request.getHeaders());
+
+        URL url = new URL(request.getUrl());
+        boolean canRedirect = HttpURLConnection.getFollowRedirects()
+                && (request.getMethod() == Method.GET || request.getMethod() == Method.HEAD);
+        for (int redirects = 0; ; redirects++) {
+            HttpResponse response = perform(url, request, headers);
+            int statusCode = response.getStatusLine().getStatusCode();
+            Header location = response.getFirstHeader("Location");
+            if (!canRedirect || !isRedirect(statusCode) || location == null || redirects == MAX_REDIRECTS) {
+                return response;
+            }
+
+            URL next = new URL(url, location.getValue());
+            // Like HttpURLConnection, never follow a redirect to another protocol.
+            if (!next.getProtocol().equals(url.getProtocol())) return response;
+            drain(response.getEntity());
+            url = next;
+            request.addMarker("redirect-" + statusCode);
+        }
+    }
+
+    private static boolean isRedirect(int statusCode) {
+        return (statusCode >= HttpStatus.SC_MULTIPLE_CHOICES && statusCode <= HttpStatus.SC_SEE_OTHER)
+                || statusCode == HttpStatus.SC_TEMPORARY_REDIRECT || statusCode == 308;
+    }
+
+    /**
+     * Reads the body of a response which is skipped so its connection can be reused, or closes it.
+     */
+    private static void drain(HttpEntity entity) throws IOException {
+        if (entity == null) return;
+        InputStream in = entity.getContent();
+        try {
+            byte[] buffer = new byte[4096];
+            int total = 0;
+            int count;
+            while (total < MAX_DRAIN_LENGTH && (count = in.read(buffer)) != -1) {
+                total += count;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Performs one exchange on a pooled or a new connection. A reused connection which
+     * turns out closed by the peer before any response arrived is replaced and the
+     * exchange retried, a new connection's failure is thrown.
+     */
+    HttpResponse perform(URL url, Request<?> request, Map<String, String> headers)
+            throws IOException, AuthFailureError {
+        String scheme = url.getProtocol().toLowerCase(Locale.US);
+        if (!"http".equals(scheme) && !"https".equals(scheme)) {
+            throw new MalformedURLException("Unsupported protocol: " + scheme);
+        }
+        String host = url.getHost();
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String key = scheme + "://" + host.toLowerCase(Locale.US) + ":" + port;
+
+        int method = request.getMethod();
+        RequestBody body = method == Method.POST || method == Method.PUT || method == Method.PATCH
+                ? request.getRequestBody() : null;
+
+        while (true) {
+            HttpConnection connection = mPool.take(key);
+            if (connection == null) {
+                connection = connect(key, scheme, host, port, request.getTimeoutMs(), request, null);
+                mPool.onConnected(connection);
+            }
+            request.addMarker(connection.reused ? "connection-reused" : "connection-new");
+
+            Exchange exchange = new Exchange(connection);
+            // Let a cancel() break the blocked connect or read right away.
+            request.setAbortHandle(exchange);
+            try {
+                return exchange.perform(url, port, request, headers, body);
+            } catch (IOException e) {
+                exchange.release(false);
+                if (!connection.reused || exchange.mResponded || request.isCanceled()) throw e;
+                // A body which can't be written again might have gone out partly.
+                if (body != null && !body.isRepeatable()) throw e;
+                if (NetroidLog.DEBUG) {
+                    NetroidLog.v("Stale pooled connection to %s, retrying on another: %s", key, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the missing idle connections to the origin of the given url, so up to count
+     * requests to it find one ready, at most as many as the pool keeps per origin.
+     */
+    @Override
+    public int preconnect(String url, int count) throws IOException {
+        URL parsedUrl = new URL(url);
+        String scheme = parsedUrl.getProtocol().toLowerCase(Locale.US);
+        if (!"http".equals(scheme) && !"https".equals(scheme)) {
+            throw new MalformedURLException("Unsupported protocol: " + scheme);
+        }
+        String host = parsedUrl.getHost();
+        int port = parsedUrl.getPort() != -1 ? parsedUrl.getPort() : parsedUrl.getDefaultPort();
+        String key = scheme + "://" + host.toLowerCase(Locale.US) + ":" + port;
+
+        int missing = Math.min(count, mPool.getMaxIdlePerHost()) - mPool.getIdleCount(key);
+        for (int i = 0; i < missing; i++) {
+            HttpConnection connection = connect(key, scheme, host, port, PRECONNECT_TIMEOUT_MS, null, null);
+            connection.preconnected = true;
+            mPool.onPreconnected(key);
+            mPool.recycle(connection);
+        }
+        return Math.max(missing, 0);
+    }
+
+    /**
+     * Opens a connection, hand-shakes it if it's secure. The lookup of the host is marked on the
+     * request, the connect time the pool tells excludes it.
+     *
+     * @param request   The request to connect for, null for a preconnect
+     * @param protocols The protocols to offer by ALPN if it's secure, null to not negotiate
+     */
+    HttpConnection connect(String key, String scheme, String host, int port, int timeoutMs,
+                           Request<?> request, String[] protocols) throws IOException {
+        if (request != null) request.addMarker("dns-lookup");
+        InetAddress[] addresses = mDns.lookup(host);
+        if (request != null) request.addMarker("dns-resolved");
+
+        long startTime = SystemClock.elapsedRealtime();
+        String selectedProtocol = null;
+        Socket socket = connectSocket(addresses, port, timeoutMs);
+        try {
+            socket.setSoTimeout(timeoutMs);
+
+            if ("https".equals(scheme)) {
+                SSLSocketFactory factory = mSslSocketFactory != null
+                        ? mSslSocketFactory : HttpsURLConnection.getDefaultSSLSocketFactory();
+                SSLSocket sslSocket = (SSLSocket) factory.createSocket(socket, host, port, true);
+                socket = sslSocket;
+                boolean negotiating = protocols != null && Alpn.configure(sslSocket, protocols);
+                sslSocket.startHandshake();
+                if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, sslSocket.getSession())) {
+                    throw new SSLPeerUnverifiedException("Hostname " + host + " not verified.");
+                }
+                if (negotiating) selectedProtocol = Alpn.getSelectedProtocol(sslSocket);
+            }
+            HttpConnection connection = new HttpConnection(key, socket, SystemClock.elapsedRealtime() - startTime);
+            connection.protocol = selectedProtocol;
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Connects to the first of the addresses which accepts, e.g. the IPv4 one if the IPv6 one
+     * is unreachable.
+     */
+    private static Socket connectSocket(InetAddress[] addresses, int port, int timeoutMs) throws IOException {
+        IOException failure = null;
+        for (InetAddress address : addresses) {
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(address, port), timeoutMs);
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                if (failure == null) failure = e;
+                if (NetroidLog.DEBUG) {
+                    NetroidLog.v("Connecting to %s:%d failed: %s", address, port, e);
+                }
+            }
+        }
+        if (failure == null) failure = new UnknownHostException("No address to connect to.");
+        throw failure;
+    }
+
+    static String getMethodName(int method) {
+        switch (method) {
+            case Method.GET:
+                return "GET";
+            case Method.DELETE:
+                return "DELETE";
+            case Method.POST:
+                return "POST";
+            case Method.PUT:
+                return "PUT";
+            case Method.HEAD:
+                return "HEAD";
+            case Method.OPTIONS:
+                return "OPTIONS";
+            case Method.TRACE:
+                return "TRACE";
+            case Method.PATCH:
+                return "PATCH";
+            default:
+                throw new IllegalStateException("Unknown method type.");
+        }
+    }
+
+    /**
+     * Checks if a response message contains a body.
+     */
+    static boolean hasResponseBody(int requestMethod, int responseCode) {
+        return requestMethod != Method.HEAD
+                && !(HttpStatus.SC_CONTINUE <= responseCode && responseCode < HttpStatus.SC_OK)
+                && responseCode != HttpStatus.SC_NO_CONTENT
+                && responseCode != HttpStatus.SC_NOT_MODIFIED;
+    }
+
+    /**
+     * Reads a CRLF terminated line in ISO-8859-1.
+     */
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) throw new ProtocolException("Unexpected end of stream.");
+            if (line.length() == MAX_LINE_LENGTH) throw new ProtocolException("Line too long.");
+            line.append((char) c);
+        }
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') line.setLength(length - 1);
+        return line.toString();
+    }
+
+    /**
+     * One request and its response on a connection. Runs as the abort handle of the request,
+     * which closes the connection unless it was released already.
+     */
+    private class Exchange implements Runnable {
+        final HttpConnection mConnection;
+
+        /**
+         * Whether the status line arrived, a failure past it is never retried.
+         */
+        volatile boolean mResponded;
+
+        /**
+         * Whether the connection went back to the pool or was closed.
+         */
+        private boolean mReleased;
+
+        Exchange(HttpConnection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public void run() {
+            release(false);
+        }
+
+        /**
+         * Recycles the connection if the exchange left it reusable, closes it otherwise.
+         */
+        synchronized void release(boolean reusable) {
+            if (mReleased) return;
+            mReleased = true;
+            if (reusable) {
+                mPool.recycle(mConnection);
+            } else {
+                mConnection.close();
+            }
+        }
+
+        HttpResponse perform(URL url, int port, Request<?> request,
+                             Map<String, String> headers, RequestBody body) throws IOException {
+            mConnection.socket.setSoTimeout(request.getTimeoutMs());
+
+            int method = request.getMethod();
+            boolean closeRequested = writeRequest(url, port, request, headers, body);
+
+            InputStream in = mConnection.in;
+            String[] status;
+            List<Header> responseHeaders;
+            int statusCode;
+            do {
+                // Skip the interim responses, e.g. 100 Continue.
+                status = readLine(in).split(" ", 3);
+                mResponded = true;
+                if (status.length < 2 || !status[0].startsWith("HTTP/1.")) {
+                    throw new ProtocolException("Unexpected status line: " + TextUtils.join(" ", status));
+                }
+                try {
+                    statusCode = Integer.parseInt(status[1]);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Unexpected status code: " + status[1]);
+                }
+                responseHeaders = readHeaders(in);
+            } while (statusCode >= HttpStatus.SC_CONTINUE && statusCode < HttpStatus.SC_OK);
+
+            int minorVersion = status[0].endsWith(".0") ? 0 : 1;
+            BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(
+                    new ProtocolVersion("HTTP", 1, minorVersion), statusCode, status.length > 2 ? status[2] : ""));
+            for (Header header : responseHeaders) {
+                response.addHeader(header);
+            }
+
+            String connectionHeader = getValue(response, HTTP.CONN_DIRECTIVE);
+            boolean keepAlive = !closeRequested && (minorVersion > 0
+                    ? !HTTP.CONN_CLOSE.equalsIgnoreCase(connectionHeader)
+                    : HTTP.CONN_KEEP_ALIVE.equalsIgnoreCase(connectionHeader));
+
+            if (!hasResponseBody(method, statusCode)) {
+                release(keepAlive);
+                return response;
+            }
+
+            BodyStream content;
+            String contentLength = getValue(response, HTTP.CONTENT_LEN);
+            if (HTTP.CHUNK_CODING.equalsIgnoreCase(getValue(response, HTTP.TRANSFER_ENCODING))) {
+                content = new ChunkedBodyStream(in, keepAlive);
+                contentLength = null;
+            } else if (contentLength != null) {
+                try {
+                    content = new FixedLengthBodyStream(in, Long.parseLong(contentLength.trim()), keepAlive);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Unexpected Content-Length: " + contentLength);
+                }
+            } else {
+                // The body ends when the peer closes the connection.
+                content = new BodyStream(in, false);
+            }
+
+            BasicHttpEntity entity = new BasicHttpEntity();
+            entity.setContent(content);
+            entity.setContentLength(contentLength != null ? Long.parseLong(contentLength.trim()) : -1);
+            entity.setContentEncoding(getValue(response, HTTP.CONTENT_ENCODING));
+            entity.setContentType(getValue(response, HTTP.CONTENT_TYPE));
+            response.setEntity(entity);
+            return response;
+        }
+
+        /**
+         * Writes the request line, the headers and the body.
+         *
+         * @return true if the request asked the server to close the connection.
+         */
+        private boolean writeRequest(URL url, int port, Request<?> request,
+                                     Map<String, String> headers, RequestBody body) throws IOException {
+            String target = url.getFile();
+            StringBuilder head = new StringBuilder(256);
+            head.append(getMethodName(request.getMethod())).append(' ')
+                    .append(TextUtils.isEmpty(target) ? "/" : target).append(" HTTP/1.1\r\n");
+
+            boolean hasHost = false;
+            boolean closeRequested = false;
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                String name = header.getKey();
+                if (HTTP.TARGET_HOST.equalsIgnoreCase(name)) hasHost = true;
+                if (HTTP.CONN_DIRECTIVE.equalsIgnoreCase(name)) {
+                    closeRequested = HTTP.CONN_CLOSE.equalsIgnoreCase(header.getValue());
+                }
+                // The body framing is ours.
+                if (HTTP.CONTENT_LEN.equalsIgnoreCase(name) || HTTP.TRANSFER_ENCODING.equalsIgnoreCase(name)) {
+                    continue;
+                }
+                head.append(name).append(": ").append(header.getValue()).append("\r\n");
+            }
+            if (!hasHost) {
+                head.append(HTTP.TARGET_HOST).append(": ").append(url.getHost());
+                if (port != url.getDefaultPort()) head.append(':').append(port);
+                head.append("\r\n");
+            }
+
+            int method = request.getMethod();
+            long contentLength = body != null ? body.getContentLength() : 0;
+            if (body != null) {
+                head.append(HTTP.CONTENT_TYPE).append(": ").append(request.getBodyContentType()).append("\r\n");
+                if (body.getContentEncoding() != null) {
+                    head.append(HTTP.CONTENT_ENCODING).append(": ").append(body.getContentEncoding()).append("\r\n");
+                }
+            }
+            if (contentLength < 0) {
+                head.append(HTTP.TRANSFER_ENCODING).append(": ").append(HTTP.CHUNK_CODING).append("\r\n");
+            } else if (body != null || method == Method.POST || method == Method.PUT || method == Method.PATCH) {
+                head.append(HTTP.CONTENT_LEN).append(": ").append(contentLength).append("\r\n");
+            }
+            head.append("\r\n");
+
+            OutputStream out = mConnection.out;
+            out.write(head.toString().getBytes("ISO-8859-1"));
+            if (body != null) {
+                BodyOutputStream bodyOut = contentLength < 0
+                        ? new ChunkedOutputStream(out) : new FixedLengthOutputStream(out, contentLength);
+                body.writeTo(bodyOut);
+                bodyOut.finish();
+            }
+            out.flush();
+            return closeRequested;
+        }
+
+        private List<Header> readHeaders(InputStream in) throws IOException {
+            List<Header> headers = new ArrayList<Header>();
+            String line;
+            while ((line = readLine(in)).length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) continue;
+                headers.add(new BasicHeader(line.substring(0, colon).trim(), line.substring(colon + 1).trim()));
+            }
+            return headers;
+        }
+
+        private String getValue(HttpResponse response, String name) {
+            Header header = response.getFirstHeader(name);
+            return header != null ? header.getValue() : null;
+        }
+
+        /**
+         * The body of a response which ends when the peer closes the connection.
+         * Subclasses frame it and give the connection back once it's read to the end.
+         */
+        private class BodyStream extends InputStream {
+            final InputStream mIn;
+            final boolean mKeepAlive;
+            boolean mEnded;
+
+            BodyStream(InputStream in, boolean keepAlive) {
+                mIn = in;
+                mKeepAlive = keepAlive;
+            }
+
+            /**
+             * Called once the body was read to the end, releases the connection at once.
+             */
+            void end() {
+                mEnded = true;
+                release(mKeepAlive);
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                if (mEnded) return -1;
+                int read = mIn.read(buffer, offset, count);
+                if (read == -1) end();
+                return read;
+            }
+
+            /**
+             * Closing before the end of the body leaves the connection unusable.
+             */
+            @Override
+            public void close() {
+                if (mEnded) return;
+                mEnded = true;
+                release(false);
+            }
+        }
+
+        private class FixedLengthBodyStream extends BodyStream {
+            private long mRemaining;
+
+            FixedLengthBodyStream(InputStream in, long length, boolean keepAlive) {
+                super(in, keepAlive);
+                mRemaining = length;
+                if (mRemaining == 0) end();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                if (mEnded) return -1;
+                int read = mIn.read(buffer, offset, (int) Math.min(count, mRemaining));
+                if (read == -1) throw new ProtocolException("Unexpected end of body.");
+                mRemaining -= read;
+                if (mRemaining == 0) end();
+                return read;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return mEnded ? 0 : (int) Math.min(mIn.available(), mRemaining);
+            }
+        }
+
+        private class ChunkedBodyStream extends BodyStream {
+            private long mChunkRemaining;
+            private boolean mFirstChunk = true;
+
+            ChunkedBodyStream(InputStream in, boolean keepAlive) {
+                super(in, keepAlive);
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                if (mEnded) return -1;
+                if (mChunkRemaining == 0) {
+                    // The CRLF which ends the previous chunk.
+                    if (!mFirstChunk) readLine(mIn);
+                    mFirstChunk = false;
+
+                    String size = readLine(mIn);
+                    int extension = size.indexOf(';');
+                    if (extension != -1) size = size.substring(0, extension);
+                    try {
+                        mChunkRemaining = Long.parseLong(size.trim(), 16);
+                    } catch (NumberFormatException e) {
+                        throw new ProtocolException("Unexpected chunk size: " + size);
+                    }
+                    if (mChunkRemaining == 0) {
+                        // Skip the trailers.
+                        while (readLine(mIn).length() > 0) {
+                        }
+                        end();
+                        return -1;
+                    }
+                }
+
+                int read = mIn.read(buffer, offset, (int) Math.min(count, mChunkRemaining));
+                if (read == -1) throw new ProtocolException("Unexpected end of chunk.");
+                mChunkRemaining -= read;
+                return read;
+            }
+        }
+    }
+
+    /**
+     * Frames a request body on the connection, never closes it.
+     */
+    private abstract static class BodyOutputStream extends OutputStream {
+        final OutputStream mOut;
+
+        BodyOutputStream(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        /**
+         * Ends the body once it was written entirely.
+         */
+        abstract void finish() throws IOException;
+
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+
+        @Override
+        public void close() {
+            // The connection outlives the body.
+        }
+    }
+
+    private static class FixedLengthOutputStream extends BodyOutputStream {
+        private long mRemaining;
+
+        FixedLengthOutputStream(OutputStream out, long length) {
+            super(out);
+            mRemaining = length;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            if (count > mRemaining) throw new ProtocolException("The body is longer than its Content-Length.");
+            mOut.write(buffer, offset, count);
+            mRemaining -= count;
+        }
+
+        @Override
+        void finish() throws IOException {
+            if (mRemaining > 0) throw new ProtocolException("The body is shorter than its Content-Length.");
+        }
+    }
+
+    private static class ChunkedOutputStream extends BodyOutputStream {
+        private static final byte[] CRLF = {'\r', '\n'};
+        private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+        /**
+         * Collects the small writes, a chunk goes out whenever it's full.
+         */
+        private final byte[] mBuffer = new byte[8 * 1024];
+        private int mCount;
+
+        ChunkedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            while (count > 0) {
+                int length = Math.min(count, mBuffer.length - mCount);
+                System.arraycopy(buffer, offset, mBuffer, mCount, length);
+                mCount += length;
+                offset += length;
+                count -= length;
+                if (mCount == mBuffer.length) writeChunk();
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            if (mCount == 0) return;
+            mOut.write((Integer.toHexString(mCount) + "\r\n").getBytes("ISO-8859-1"));
+            mOut.write(mBuffer, 0, mCount);
+            mOut.write(CRLF);
+            mCount = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeChunk();
+            super.flush();
+        }
+
+        @Override
+        void finish() throws IOException {
+            writeChunk();
+            mOut.write(LAST_CHUNK);
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import android.net.SSLSessionCache;
+import com.vincestyling.netroid.NetroidLog;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An SSLSocketFactory which keeps the TLS sessions of the servers it connected to, so the next
+ * connection to one of them resumes its session by an abbreviated handshake, which saves a round
+ * trip and the key exchange, instead of doing a full one.
+ * <ul>
+ * <li>One instance shared by every stack shares the sessions, e.g. the {@link PooledHttpStack}
+ * of the API requests and the {@link HurlStack} of the downloads, see
+ * {@link HttpClientStack#HttpClientStack(String, SessionCachingSSLSocketFactory)} for the
+ * HttpClient.</li>
+ * <li>The sessions of at most the given number of servers are kept, each for the given timeout,
+ * the least recently used ones go first.</li>
+ * <li>Given a directory, e.g. under {@code Context.getFilesDir()}, the sessions are persisted
+ * to it as well, so the first connections after the application restarted resume too.</li>
+ * </ul>
+ * The platform resolves a session by the host and port of the socket, every socket this factory
+ * creates is bound to its server, even the unconnected ones get it at connect time.
+ * <p/>
+ * The standard JSSE can neither export a session nor import one, so persistence goes through
+ * the {@link SSLSessionCache} of the Android platform provider (Conscrypt), which writes the
+ * sessions and tickets to the directory itself. It's installed by reflection, where it's not
+ * available (other providers, or a platform which hides it) the sessions are kept in memory only,
+ * see {@link #isPersistent()}.
+ * <pre> {@code
+ * SessionCachingSSLSocketFactory sslFactory = new SessionCachingSSLSocketFactory(
+ *         new File(context.getFilesDir(), "ssl_sessions"));
+ * HttpStack apiStack = new PooledHttpStack(userAgent, sslFactory);
+ * HttpStack downloadStack = new HurlStack(userAgent, sslFactory);}</pre>
+ */
+public class SessionCachingSSLSocketFactory extends SSLSocketFactory {
+    /**
+     * Default number of servers whose sessions are kept.
+     */
+    public static final int DEFAULT_MAX_SESSIONS = 64;
+
+    /**
+     * Default time in seconds a session is kept, servers rarely honour a longer one.
+     */
+    public static final int DEFAULT_SESSION_TIMEOUT_S = 12 * 60 * 60;
+
+    private final SSLContext mContext;
+    private final SSLSocketFactory mDelegate;
+
+    /**
+     * Whether the sessions are persisted to the directory.
+     */
+    private final boolean mPersistent;
+
+    /**
+     * The handshakes which negotiated a new session.
+     */
+    private final AtomicLong mFullHandshakeCount = new AtomicLong();
+
+    /**
+     * The handshakes which resumed a kept session.
+     */
+    private final AtomicLong mResumedHandshakeCount = new AtomicLong();
+
+    /**
+     * @param context        The context which makes the sockets, its client session cache is
+     *                       sized and, given a directory, persisted by this factory
+     * @param maxSessions    Number of servers whose sessions are kept, 0 for no limit
+     * @param sessionTimeout Time in seconds a session is kept, 0 for no limit
+     * @param sessionDir     Directory the sessions are persisted to, null to keep them in memory only
+     */
+    public SessionCachingSSLSocketFactory(SSLContext context, int maxSessions, int sessionTimeout, File sessionDir) {
+        if (maxSessions < 0 || sessionTimeout < 0) {
+            throw new IllegalArgumentException("maxSessions and sessionTimeout must not be negative.");
+        }
+        mContext = context;
+        mDelegate = context.getSocketFactory();
+
+        SSLSessionContext sessionContext = context.getClientSessionContext();
+        if (sessionContext != null) {
+            sessionContext.setSessionCacheSize(maxSessions);
+            sessionContext.setSessionTimeout(sessionTimeout);
+        }
+        mPersistent = sessionDir != null && installPersistentCache(context, sessionDir);
+    }
+
+    /**
+     * Creates the factory over a new context of the default key and trust managers.
+     *
+     * @param sessionDir Directory the sessions are persisted to, null to keep them in memory only
+     */
+    public SessionCachingSSLSocketFactory(File sessionDir) {
+        this(newDefaultContext(), DEFAULT_MAX_SESSIONS, DEFAULT_SESSION_TIMEOUT_S, sessionDir);
+    }
+
+    public SessionCachingSSLSocketFactory() {
+        this(null);
+    }
+
+    private static SSLContext newDefaultContext() {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Can't create the TLS context.", e);
+        }
+    }
+
+    /**
+     * Installs a persistent session cache of the given directory on the context, returns false
+     * if the provider doesn't support one.
+     */
+    private static boolean installPersistentCache(SSLContext context, File sessionDir) {
+        try {
+            if (!sessionDir.isDirectory() && !sessionDir.mkdirs()) {
+                throw new IOException("Can't create " + sessionDir);
+            }
+            SSLSessionCache cache = new SSLSessionCache(sessionDir);
+
+            // The platform installs it itself since KitKat.
+            try {
+                Method install = SSLSessionCache.class.getMethod("install", SSLSessionCache.class, SSLContext.class);
+                install.invoke(null, cache, context);
+                return true;
+            } catch (NoSuchMethodException ignored) {
+            }
+
+            // Before that, hand its file cache over to the session context of the provider.
+            Field field = SSLSessionCache.class.getDeclaredField("mSessionCache");
+            field.setAccessible(true);
+            Object fileCache = field.get(cache);
+            SSLSessionContext sessionContext = context.getClientSessionContext();
+            for (Method method : sessionContext.getClass().getMethods()) {
+                if (method.getName().equals("setPersistentCache") && method.getParameterTypes().length == 1
+                        && method.getParameterTypes()[0].isInstance(fileCache)) {
+                    method.invoke(sessionContext, fileCache);
+                    return true;
+                }
+            }
+            throw new NoSuchMethodException("setPersistentCache");
+        } catch (Exception e) {
+            NetroidLog.d("Can't persist the TLS sessions, keeping them in memory: %s", e);
+        } catch (LinkageError e) {
+            NetroidLog.d("Can't persist the TLS sessions, keeping them in memory: %s", e);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the context which makes the sockets and keeps the sessions.
+     */
+    public SSLContext getContext() {
+        return mContext;
+    }
+
+    /**
+     * Returns true if the sessions are persisted, false if they're kept in memory only.
+     */
+    public boolean isPersistent() {
+        return mPersistent;
+    }
+
+    /**
+     * Returns the number of handshakes which negotiated a new session.
+     */
+    public long getFullHandshakeCount() {
+        return mFullHandshakeCount.get();
+    }
+
+    /**
+     * Returns the number of handshakes which resumed a kept session.
+     */
+    public long getResumedHandshakeCount() {
+        return mResumedHandshakeCount.get();
+    }
+
+    /**
+     * Invalidates every kept session, so the next connections do full handshakes, e.g. once the
+     * client certificate changed.
+     */
+    public void clearSessions() {
+        SSLSessionContext sessionContext = mContext.getClientSessionContext();
+        if (sessionContext == null) return;
+        Enumeration<byte[]> ids = sessionContext.getIds();
+        while (ids.hasMoreElements()) {
+            SSLSession session = sessionContext.getSession(ids.nextElement());
+            if (session != null) session.invalidate();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SessionCachingSSLSocketFactory[full=%d resumed=%d persistent=%s]",
+                mFullHandshakeCount.get(), mResumedHandshakeCount.get(), mPersistent);
+    }
+
+    /**
+     * Counts the handshake of the given socket as full or resumed once it completed.
+     */
+    private Socket track(Socket socket) {
+        if (!(socket instanceof SSLSocket)) return socket;
+
+        final long createdTime = System.currentTimeMillis();
+        ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+            @Override
+            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                SSLSession session = event.getSession();
+                // A resumed session was negotiated by an earlier handshake, before this socket.
+                if (session.getCreationTime() < createdTime) {
+                    mResumedHandshakeCount.incrementAndGet();
+                    if (NetroidLog.DEBUG) NetroidLog.v("TLS session resumed for %s", session.getPeerHost());
+                } else {
+                    mFullHandshakeCount.incrementAndGet();
+                }
+            }
+        });
+        return socket;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return mDelegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return mDelegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return track(mDelegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+        return track(mDelegate.createSocket(socket, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return track(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return track(mDelegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return track(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return track(mDelegate.createSocket(address, port, localAddress, localPort));
+    }
+
+    /**
+     * Returns a socket factory for the "https" scheme of an HttpClient, which makes its sockets
+     * by this factory and verifies the host names the way the HttpClient does.
+     */
+    public LayeredSocketFactory getHttpClientSocketFactory() {
+        return new LayeredSocketFactory() {
+            @Override
+            public Socket createSocket() throws IOException {
+                // The HttpClient keeps this very socket, so it's connected in place.
+                return SessionCachingSSLSocketFactory.this.createSocket();
+            }
+
+            @Override
+            public Socket connectSocket(Socket socket, String host, int port, InetAddress localAddress,
+                                        int localPort, HttpParams params) throws IOException {
+                SSLSocket sslSocket = (SSLSocket) (socket != null ? socket : createSocket());
+                if (localAddress != null || localPort > 0) {
+                    sslSocket.bind(new InetSocketAddress(localAddress, localPort > 0 ? localPort : 0));
+                }
+                setHostname(sslSocket, host);
+                sslSocket.connect(new InetSocketAddress(host, port), HttpConnectionParams.getConnectionTimeout(params));
+                sslSocket.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+                verify(sslSocket, host);
+                return sslSocket;
+            }
+
+            @Override
+            public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+                SSLSocket sslSocket = (SSLSocket) SessionCachingSSLSocketFactory.this
+                        .createSocket(socket, host, port, autoClose);
+                verify(sslSocket, host);
+                return sslSocket;
+            }
+
+            @Override
+            public boolean isSecure(Socket socket) {
+                return socket instanceof SSLSocket && !socket.isClosed();
+            }
+        };
+    }
+
+    /**
+     * Completes the handshake of the given socket and verifies the server is the given host.
+     */
+    private static void verify(SSLSocket sslSocket, String host) throws IOException {
+        try {
+            sslSocket.startHandshake();
+            org.apache.http.conn.ssl.SSLSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER.verify(host, sslSocket);
+        } catch (IOException e) {
+            try {
+                sslSocket.close();
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Tells an unconnected socket of the platform provider its server by name, for SNI and so
+     * its session is kept by the host name rather than the address. Other providers take the
+     * name of the address it connects to.
+     */
+    private static void setHostname(SSLSocket sslSocket, String host) {
+        try {
+            sslSocket.getClass().getMethod("setHostname", String.class).invoke(sslSocket, host);
+        } catch (Exception ignored) {
+        }
+    }
+}
@@ -17,6 +17,7 @@ package com.vincestyling.netroid.toolbox;
 
 import android.os.SystemClock;
 import com.vincestyling.netroid.*;
+import com.vincestyling.netroid.cache.DiskCache;
 import com.vincestyling.netroid.stack.HttpStack;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
@@ -26,17 +27,73 @@ import org.apache.http.conn.ConnectTimeoutException;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A network performing Netroid requests over an {@link HttpStack}.
  */
-public class BasicNetwork implements Network {
+public class BasicNetwork implements Network, Preconnectable {
     protected static final boolean DEBUG = NetroidLog.DEBUG;
 
     private static final int SLOW_REQUEST_THRESHOLD_MS = 3000;
 
     private static final int DEFAULT_POOL_SIZE = 4096;
 
+    /**
+     * The default share of hedgeable requests which may be hedged.
+     */
+    public static final double DEFAULT_HEDGE_BUDGET = 0.05;
+
+    /**
+     * Maximum hedges which can be saved up while there's no need to hedge.
+     */
+    private static final double MAX_HEDGE_TOKENS = 10;
+
+    /**
+     * Maximum hedge attempts performing at once, shared by every network,
+     * a hedge beyond it isn't fired.
+     */
+    public static final int MAX_HEDGES_IN_FLIGHT = 4;
+
+    /**
+     * Fires the hedges once their delay passed without a response, created on first use.
+     */
+    private static class HedgeScheduler {
+        static final ScheduledExecutorService INSTANCE =
+                new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "Netroid-HedgeTimer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Performs the hedge attempts, rejects the ones beyond {@link #MAX_HEDGES_IN_FLIGHT},
+     * created on first use.
+     */
+    private static class HedgeExecutor {
+        static final ThreadPoolExecutor INSTANCE = new ThreadPoolExecutor(0, MAX_HEDGES_IN_FLIGHT,
+                30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Netroid-Hedge");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
     private final HttpStack mHttpStack;
 
     /**
@@ -49,6 +106,16 @@ public class BasicNetwork implements Network {
      */
     private Delivery mDelivery;
 
+    /**
+     * The share of hedgeable requests which may be hedged.
+     */
+    private double mHedgeBudget = DEFAULT_HEDGE_BUDGET;
+
+    /**
+     * The hedges which may be fired now, every hedgeable request earns the budget share of one.
+     */
+    private double mHedgeTokens;
+
     /**
      * @param httpStack      HTTP stack to be used
      * @param defaultCharset default charset if response does not provided.
@@ -75,12 +142,51 @@ public class BasicNetwork implements Network {
         mDelivery = delivery;
     }
 
+    /**
+     * Sets the share of the requests which have a {@link HedgePolicy} that may be hedged,
+     * so hedging never inflates the load by more than this share. The default is
+     * {@link #DEFAULT_HEDGE_BUDGET}, 0 disables hedging.
+     */
+    public synchronized void setHedgeBudget(double hedgeBudget) {
+        if (hedgeBudget < 0 || hedgeBudget > 1) {
+            throw new IllegalArgumentException("hedgeBudget must be in [0, 1].");
+        }
+        mHedgeBudget = hedgeBudget;
+    }
+
+    private synchronized void earnHedgeToken() {
+        mHedgeTokens = Math.min(MAX_HEDGE_TOKENS, mHedgeTokens + mHedgeBudget);
+    }
+
+    private synchronized boolean spendHedgeToken() {
+        if (mHedgeBudget <= 0 || mHedgeTokens < 1) return false;
+        mHedgeTokens--;
+        return true;
+    }
+
+    private synchronized void refundHedgeToken() {
+        mHedgeTokens = Math.min(MAX_HEDGE_TOKENS, mHedgeTokens + 1);
+    }
+
+    /**
+     * Preconnects by the stack if it's {@link Preconnectable}, does nothing otherwise, e.g. the
+     * {@link com.vincestyling.netroid.stack.HurlStack} whose connections are pooled out of reach.
+     */
+    @Override
+    public int preconnect(String url, int count) throws IOException {
+        if (!(mHttpStack instanceof Preconnectable)) return 0;
+        return ((Preconnectable) mHttpStack).preconnect(url, count);
+    }
+
     @Override
     public NetworkResponse performRequest(Request<?> request) throws NetroidError {
         // Determine if request had non-http perform.
         NetworkResponse networkResponse = request.perform();
         if (networkResponse != null) return networkResponse;
 
+        // Let the body report its upload progress while the stack writes it.
+        request.setUploadDelivery(mDelivery);
+
         long requestStart = SystemClock.elapsedRealtime();
         while (true) {
             // If the request was cancelled already,
@@ -91,33 +197,60 @@ public class BasicNetwork implements Network {
                 throw new NetworkError(networkResponse);
             }
 
+            // Don't start another attempt once the deadline passed.
+            if (request.isDeadlineExceeded()) {
+                request.addMarker("perform-discard-deadline");
+                throw new DeadlineExceededError();
+            }
+
             HttpResponse httpResponse = null;
             byte[] responseContents = null;
             try {
                 // preparing for this request, normally is reset the request headers.
                 request.prepare();
-
-                httpResponse = mHttpStack.performRequest(request);
+                addCacheHeaders(request);
+
+                HedgePolicy hedgePolicy = request.getHedgePolicy();
+                if (hedgePolicy != null) {
+                    Attempt attempt = performHedged(request, hedgePolicy);
+                    httpResponse = attempt.httpResponse;
+                    attempt.rethrow();
+                    responseContents = attempt.responseContents;
+                } else {
+                    httpResponse = mHttpStack.performRequest(request);
+                    responseContents = request.handleResponse(httpResponse, mDelivery);
+                }
 
                 StatusLine statusLine = httpResponse.getStatusLine();
                 int statusCode = statusLine.getStatusCode();
 
-                responseContents = request.handleResponse(httpResponse, mDelivery);
-
                 // if the request is slow, log it.
                 long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
                 logSlowRequests(requestLifetime, request, responseContents, statusLine);
 
+                // The expired cache entry is still valid, serve it without the body.
+                DiskCache.Entry entry = request.getCacheEntry();
+                if (statusCode == HttpStatus.SC_NOT_MODIFIED && entry != null) {
+                    request.addMarker("network-not-modified");
+                    return new NetworkResponse(statusCode, entry.getData(), entry.getCharset(),
+                            mergeValidators(HttpUtils.convertHeaders(httpResponse), entry), true);
+                }
+
                 if (statusCode < 200 || statusCode > 299) throw new IOException();
 
-                return new NetworkResponse(statusCode, responseContents, parseCharset(httpResponse));
+                return new NetworkResponse(statusCode, responseContents, parseCharset(httpResponse),
+                        HttpUtils.convertHeaders(httpResponse), false);
             } catch (SocketTimeoutException e) {
+                // The I/O was aborted by cancel(), the loop discards the request.
+                if (request.isCanceled()) continue;
                 attemptRetryOnException("socket", request, new TimeoutError());
             } catch (ConnectTimeoutException e) {
+                if (request.isCanceled()) continue;
                 attemptRetryOnException("connection", request, new TimeoutError());
             } catch (MalformedURLException e) {
                 throw new RuntimeException("Bad URL " + request.getUrl(), e);
             } catch (IOException e) {
+                if (request.isCanceled()) continue;
                 if (httpResponse == null) throw new NoConnectionError(e);
 
                 int statusCode = httpResponse.getStatusLine().getStatusCode();
@@ -149,7 +282,229 @@ public class BasicNetwork implements Network {
                 } else {
                     attemptRetryOnException("network", request, new NetworkError());
                 }
+            } finally {
+                // The attempt is over, nothing is left to abort.
+                request.setAbortHandle(null);
+            }
+        }
+    }
+
+    /**
+     * Adds the conditional headers of the expired cache entry the request revalidates, if any.
+     */
+    private static void addCacheHeaders(Request<?> request) {
+        DiskCache.Entry entry = request.getCacheEntry();
+        if (entry == null) return;
+
+        if (entry.getEtag() != null) {
+            request.addHeader("If-None-Match", entry.getEtag());
+        }
+        if (entry.getLastModified() != null) {
+            request.addHeader("If-Modified-Since", entry.getLastModified());
+        }
+    }
+
+    /**
+     * Returns the headers of a 304 with the validators of the cached entry it didn't update,
+     * so the refreshed entry keeps them.
+     */
+    private static Map<String, String> mergeValidators(Map<String, String> headers, DiskCache.Entry entry) {
+        if (!headers.containsKey("ETag") && entry.getEtag() != null) {
+            headers.put("ETag", entry.getEtag());
+        }
+        if (!headers.containsKey("Last-Modified") && entry.getLastModified() != null) {
+            headers.put("Last-Modified", entry.getLastModified());
+        }
+        return headers;
+    }
+
+    /**
+     * Performs an attempt of the given request, if it got no response within the hedge delay,
+     * fires a second attempt on another thread and connection, if the budget and the hedges
+     * in flight allow. The first attempt which completes without an I/O error wins, the other
+     * one is aborted.
+     */
+    private Attempt performHedged(final Request<?> request, final HedgePolicy hedgePolicy) {
+        earnHedgeToken();
+        final HedgeRace race = new HedgeRace(Thread.currentThread());
+        final long hedgeDelayMs = hedgePolicy.getHedgeDelayMs();
+
+        final Runnable hedge = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (race) {
+                    race.hedge = Thread.currentThread();
+                }
+
+                request.addMarker(String.format("hedge [delay=%s]", hedgeDelayMs));
+                Attempt attempt = performAttempt(request, race, false);
+                if (race.finish(attempt, false)) {
+                    // The hedge won, abort the primary attempt.
+                    hedgePolicy.recordLatency(attempt.latencyMs);
+                    race.abortLoser(request, true);
+                }
+                request.setAbortHandle(null);
             }
+        };
+        ScheduledFuture<?> timer = HedgeScheduler.INSTANCE.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (race) {
+                    if (race.primaryDone || request.isCanceled() || !spendHedgeToken()) return;
+                    try {
+                        HedgeExecutor.INSTANCE.execute(hedge);
+                    } catch (RejectedExecutionException e) {
+                        // Enough hedges in flight, the primary attempt goes on alone.
+                        refundHedgeToken();
+                        return;
+                    }
+                    race.hedgeFired = true;
+                }
+            }
+        }, hedgeDelayMs, TimeUnit.MILLISECONDS);
+
+        Attempt attempt = performAttempt(request, race, true);
+        boolean won = race.finish(attempt, true);
+        // Too late to hedge once the primary attempt is over.
+        timer.cancel(false);
+        request.setAbortHandle(null);
+        if (won) {
+            hedgePolicy.recordLatency(attempt.latencyMs);
+            race.abortLoser(request, false);
+            return attempt;
+        }
+        Attempt winner = race.awaitWinner();
+        return winner != null ? winner : attempt;
+    }
+
+    /**
+     * Performs one attempt of the given request, the I/O error is kept in the result. An attempt
+     * which lost the race already doesn't start, nor read the body once the response arrived.
+     * The abort handle is cleared by the caller once the attempt was recorded as finished.
+     */
+    private Attempt performAttempt(Request<?> request, HedgeRace race, boolean isPrimary) {
+        Attempt attempt = new Attempt();
+        long start = SystemClock.elapsedRealtime();
+        try {
+            race.checkAborted(isPrimary);
+            // A hedge could start after the request was canceled, its I/O wouldn't be aborted.
+            if (request.isCanceled()) throw new IOException("Request was canceled.");
+            attempt.httpResponse = mHttpStack.performRequest(request);
+            race.checkAborted(isPrimary);
+            attempt.responseContents = request.handleResponse(attempt.httpResponse, mDelivery);
+        } catch (Exception e) {
+            // Also kept if unchecked, the race must learn about the end of every attempt.
+            attempt.error = e;
+        }
+        attempt.latencyMs = SystemClock.elapsedRealtime() - start;
+        return attempt;
+    }
+
+    /**
+     * The outcome of one attempt.
+     */
+    private static class Attempt {
+        HttpResponse httpResponse;
+        byte[] responseContents;
+        Exception error;
+        long latencyMs;
+
+        /**
+         * Throws the error of this attempt as it was thrown while performing, if any.
+         */
+        void rethrow() throws IOException, NetroidError {
+            if (error instanceof IOException) throw (IOException) error;
+            if (error instanceof NetroidError) throw (NetroidError) error;
+            if (error instanceof RuntimeException) throw (RuntimeException) error;
+        }
+    }
+
+    /**
+     * The primary and the hedge attempt of a request competing for the response.
+     */
+    private static class HedgeRace {
+        final Thread primary;
+
+        /**
+         * The thread performing the hedge attempt, null until it started.
+         */
+        Thread hedge;
+
+        /**
+         * Whether the hedge attempt was handed to the executor.
+         */
+        boolean hedgeFired;
+
+        boolean primaryDone;
+        boolean hedgeDone;
+        Attempt winner;
+
+        /**
+         * Whether the attempt lost while it was still running, it must stop as soon as it can.
+         */
+        boolean primaryAborted;
+        boolean hedgeAborted;
+
+        HedgeRace(Thread primary) {
+            this.primary = primary;
+        }
+
+        /**
+         * Aborts the losing attempt if it's still running. Its I/O is aborted even if it didn't
+         * open its connection yet, since the request keeps the abort pending until the attempt
+         * clears its handle, which it only does after it was recorded as finished here.
+         */
+        synchronized void abortLoser(Request<?> request, boolean isPrimary) {
+            if (isPrimary) {
+                if (primaryDone) return;
+                primaryAborted = true;
+                request.abortAttempt(primary);
+            } else {
+                if (!hedgeFired || hedgeDone) return;
+                hedgeAborted = true;
+                // A hedge which didn't start yet gives up as it starts.
+                if (hedge != null) request.abortAttempt(hedge);
+            }
+        }
+
+        /**
+         * Throws if the given attempt lost the race already.
+         */
+        synchronized void checkAborted(boolean isPrimary) throws IOException {
+            if (isPrimary ? primaryAborted : hedgeAborted) {
+                throw new IOException("Lost the hedge race.");
+            }
+        }
+
+        /**
+         * Records the given attempt finished, returns true if it won.
+         */
+        synchronized boolean finish(Attempt attempt, boolean isPrimary) {
+            if (isPrimary) {
+                primaryDone = true;
+            } else {
+                hedgeDone = true;
+            }
+            notifyAll();
+            if (winner != null || attempt.error != null) return false;
+            winner = attempt;
+            return true;
+        }
+
+        /**
+         * Waits for the hedge attempt after the primary one lost or failed,
+         * returns the winner, or null if neither attempt succeeded.
+         */
+        synchronized Attempt awaitWinner() {
+            while (winner == null && hedgeFired && !hedgeDone) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return winner;
         }
     }
 
@@ -168,7 +523,8 @@ public class BasicNetwork implements Network {
 
     /**
      * Attempts to prepare the request for a retry. If there are no more attempts remaining in the
-     * request's retry policy, a timeout exception is thrown.
+     * request's retry policy, a timeout exception is thrown. If the request's deadline passed,
+     * a {@link DeadlineExceededError} is thrown instead.
      *
      * @param request The request to use.
      */
@@ -177,6 +533,11 @@ public class BasicNetwork implements Network {
         RetryPolicy retryPolicy = request.getRetryPolicy();
         int oldTimeout = request.getTimeoutMs();
 
+        if (request.isDeadlineExceeded()) {
+            request.addMarker(String.format("%s-deadline-giveup [timeout=%s]", logPrefix, oldTimeout));
+            throw new DeadlineExceededError();
+        }
+
         try {
             retryPolicy.retry(exception);
         } catch (NetroidError e) {
@@ -16,6 +16,7 @@
 package com.vincestyling.netroid.toolbox;
 
 import android.os.Looper;
+import com.vincestyling.netroid.DispatchLane;
 import com.vincestyling.netroid.IListener;
 import com.vincestyling.netroid.Listener;
 import com.vincestyling.netroid.NetroidError;
@@ -41,7 +42,8 @@ import java.util.LinkedList;
  * Note: For the multithreading and bandwidth limit reason,
  * we normally start two parallel tasks to download data,
  * don't over three, and remember keep one idle thread to
- * perform common http request at least.
+ * perform common http request at least, or route the
+ * {@link FileDownloadRequest}s to a lane of their own.
  */
 public class FileDownloader {
     /**
@@ -63,11 +65,20 @@ public class FileDownloader {
      * Construct Downloader and init the Task Queue.
      *
      * @param queue             The RequestQueue for dispatching Download task.
-     * @param parallelTaskCount Allows parallel task count,
-     *                          don't forget the value must less than ThreadPoolSize of the RequestQueue.
+     * @param parallelTaskCount Allows parallel task count, don't forget the value must less than
+     *                          ThreadPoolSize of the RequestQueue, unless the downloads are routed to
+     *                          a lane of their own, then it must not exceed the thread count of that lane.
+     * @see RequestQueue#addLane(String, int, int)
      */
     public FileDownloader(RequestQueue queue, int parallelTaskCount) {
-        if (parallelTaskCount >= queue.getThreadPoolSize()) {
+        DispatchLane lane = queue.getLaneFor(FileDownloadRequest.class);
+        if (lane != null) {
+            // The downloads can't hold the threads of the other requests.
+            if (parallelTaskCount > lane.getThreadCount()) {
+                throw new IllegalArgumentException("parallelTaskCount[" + parallelTaskCount
+                        + "] must not exceed threadCount[" + lane.getThreadCount() + "] of the lane " + lane.getName() + ".");
+            }
+        } else if (parallelTaskCount >= queue.getThreadPoolSize()) {
             throw new IllegalArgumentException("parallelTaskCount[" + parallelTaskCount
                     + "] must less than threadPoolSize[" + queue.getThreadPoolSize() + "] of the RequestQueue.");
         }
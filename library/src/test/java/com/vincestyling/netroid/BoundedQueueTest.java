@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedQueueTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private RequestQueue mQueue;
+
+    /**
+     * A queue with a single dispatcher held by the network until released, the first request
+     * added occupies it, the following ones wait in the network queue.
+     */
+    private RequestQueue newQueue(int networkQueueCapacity, RequestQueue.RejectionPolicy policy) {
+        mQueue = new RequestQueue(new FakeNetwork(mRelease), 1, new ExecutorDelivery(DIRECT), null);
+        mQueue.setQueueCapacity(0, networkQueueCapacity, policy);
+        mQueue.start();
+        return mQueue;
+    }
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        if (mQueue != null) mQueue.stop();
+    }
+
+    private static RecordingListener<String> add(RequestQueue queue, String url) throws InterruptedException {
+        RecordingListener<String> listener = new RecordingListener<String>();
+        queue.add(new StringTestRequest(url, listener));
+        // Let the dispatcher take it if it's idle.
+        Thread.sleep(50);
+        return listener;
+    }
+
+    @Test
+    public void rejectsWhenFull() throws Exception {
+        RequestQueue queue = newQueue(1, RequestQueue.RejectionPolicy.REJECT);
+        RecordingListener<String> inFlight = add(queue, "http://a.com/0");
+        RecordingListener<String> queued = add(queue, "http://a.com/1");
+        RecordingListener<String> rejected = add(queue, "http://a.com/2");
+
+        assertTrue(rejected.await(0));
+        assertTrue(rejected.error instanceof RejectedError);
+
+        mRelease.countDown();
+        assertTrue(inFlight.await(1000));
+        assertTrue(queued.await(1000));
+        assertEquals("http://a.com/1", queued.response);
+    }
+
+    @Test
+    public void evictsLowestPriority() throws Exception {
+        RequestQueue queue = newQueue(1, RequestQueue.RejectionPolicy.EVICT_LOWEST);
+        add(queue, "http://a.com/0");
+
+        RecordingListener<String> low = new RecordingListener<String>();
+        StringTestRequest lowRequest = new StringTestRequest("http://a.com/low", low);
+        lowRequest.setPriority(Request.Priority.LOW);
+        queue.add(lowRequest);
+
+        RecordingListener<String> high = new RecordingListener<String>();
+        StringTestRequest highRequest = new StringTestRequest("http://a.com/high", high);
+        highRequest.setPriority(Request.Priority.HIGH);
+        queue.add(highRequest);
+
+        assertTrue(low.await(0));
+        assertTrue(low.error instanceof RejectedError);
+
+        // A request which wouldn't run before the queued one is the one to fail.
+        RecordingListener<String> lower = add(queue, "http://a.com/lower");
+        assertTrue(lower.await(0));
+        assertTrue(lower.error instanceof RejectedError);
+
+        mRelease.countDown();
+        assertTrue(high.await(1000));
+        assertEquals("http://a.com/high", high.response);
+    }
+
+    @Test
+    public void blocksCallerUntilRoom() throws Exception {
+        final RequestQueue queue = newQueue(1, RequestQueue.RejectionPolicy.BLOCK);
+        add(queue, "http://a.com/0");
+        add(queue, "http://a.com/1");
+
+        final RecordingListener<String> blocked = new RecordingListener<String>();
+        final CountDownLatch added = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                queue.add(new StringTestRequest("http://a.com/2", blocked));
+                added.countDown();
+            }
+        }.start();
+
+        assertFalse(added.await(200, TimeUnit.MILLISECONDS));
+        mRelease.countDown();
+        assertTrue(added.await(1000, TimeUnit.MILLISECONDS));
+        assertTrue(blocked.await(1000));
+        assertNull(blocked.error);
+    }
+
+    @Test
+    public void neverBlocksItsOwnDispatcher() throws Exception {
+        final RequestQueue queue = newQueue(1, RequestQueue.RejectionPolicy.BLOCK);
+        final RecordingListener<String> chained = new RecordingListener<String>();
+        // The delivery runs on the dispatcher, which adds the next request while the queue is full.
+        RecordingListener<String> first = new RecordingListener<String>() {
+            @Override
+            public void onSuccess(String response) {
+                queue.add(new StringTestRequest("http://a.com/2", chained));
+                super.onSuccess(response);
+            }
+        };
+        queue.add(new StringTestRequest("http://a.com/0", first));
+        Thread.sleep(50);
+        RecordingListener<String> queued = add(queue, "http://a.com/1");
+
+        mRelease.countDown();
+        assertTrue(first.await(1000));
+        assertTrue(chained.await(1000));
+        assertTrue(chained.error instanceof RejectedError);
+        assertTrue(queued.await(1000));
+        assertEquals("http://a.com/1", queued.response);
+    }
+}
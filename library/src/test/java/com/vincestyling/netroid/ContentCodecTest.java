@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import com.vincestyling.netroid.toolbox.ByteArrayPool;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ContentCodecTest {
+    private static final byte[] TEXT = repeat("{\"id\":1,\"name\":\"netroid\"},", 100);
+
+    private static byte[] repeat(String text, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(text);
+        }
+        return builder.toString().getBytes();
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] data, boolean raw) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = new DeflaterOutputStream(bytes, new Deflater(Deflater.DEFAULT_COMPRESSION, raw));
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[512];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static HttpResponse response(String contentEncoding, byte[] body) {
+        BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
+        if (contentEncoding != null) response.addHeader("Content-Encoding", contentEncoding);
+        response.setEntity(new ByteArrayEntity(body));
+        return response;
+    }
+
+    private static byte[] decode(String contentEncoding, byte[] body) throws IOException {
+        return readAll(HttpUtils.decodeContent(response(contentEncoding, body), new ByteArrayInputStream(body)));
+    }
+
+    private static byte[] written(RequestBody body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        body.writeTo(bytes);
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void decodesGzip() throws Exception {
+        assertArrayEquals(TEXT, decode("gzip", gzip(TEXT)));
+        assertArrayEquals(TEXT, decode(" GZIP ", gzip(TEXT)));
+    }
+
+    @Test
+    public void gzipKeepsStreamDecodedByStack() throws Exception {
+        InputStream decoded = new GZIPInputStream(new ByteArrayInputStream(gzip(TEXT)));
+        assertSame(decoded, ContentCodec.GZIP.decode(decoded));
+    }
+
+    @Test
+    public void decodesZlibAndRawDeflate() throws Exception {
+        assertArrayEquals(TEXT, decode("deflate", deflate(TEXT, false)));
+        assertArrayEquals(TEXT, decode("deflate", deflate(TEXT, true)));
+    }
+
+    @Test
+    public void decodesStackedCodingsInReverse() throws Exception {
+        // Deflated first, then gzipped.
+        assertArrayEquals(TEXT, decode("deflate, gzip", gzip(deflate(TEXT, false))));
+    }
+
+    @Test
+    public void identityIsLeftAsIs() throws Exception {
+        assertArrayEquals(TEXT, decode(null, TEXT));
+        assertArrayEquals(TEXT, decode("identity", TEXT));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownCoding() throws Exception {
+        decode("compress", TEXT);
+    }
+
+    @Test
+    public void responseToBytesDecodes() throws Exception {
+        // Set up by the BasicNetwork otherwise.
+        ByteArrayPool.init(4096);
+        assertArrayEquals(TEXT, HttpUtils.responseToBytes(response("gzip", gzip(TEXT))));
+    }
+
+    @Test
+    public void registersCustomCoding() throws Exception {
+        ContentCodec.register(new ContentCodec("X-Reverse") {
+            @Override
+            public InputStream decode(InputStream in) throws IOException {
+                byte[] data = readAll(in);
+                for (int i = 0; i < data.length / 2; i++) {
+                    byte b = data[i];
+                    data[i] = data[data.length - 1 - i];
+                    data[data.length - 1 - i] = b;
+                }
+                return new ByteArrayInputStream(data);
+            }
+        });
+
+        assertTrue(ContentCodec.getAcceptEncoding().startsWith("gzip, deflate"));
+        assertTrue(ContentCodec.getAcceptEncoding().endsWith("x-reverse"));
+        assertArrayEquals("abc".getBytes(), decode("x-reverse", "cba".getBytes()));
+    }
+
+    /**
+     * A request which posts the given bytes.
+     */
+    private static Request<?> post(final byte[] body) {
+        return new StringTestRequest("http://a.com/") {
+            @Override
+            public byte[] getBody() {
+                return body;
+            }
+        };
+    }
+
+    @Test
+    public void compressesBodyAboveThreshold() throws Exception {
+        RequestBody body = post(TEXT).setBodyCompression(ContentCodec.GZIP, 1024).getRequestBody();
+
+        assertEquals("gzip", body.getContentEncoding());
+        byte[] sent = written(body);
+        assertEquals(sent.length, body.getContentLength());
+        assertTrue(sent.length < TEXT.length);
+        assertArrayEquals(TEXT, readAll(new GZIPInputStream(new ByteArrayInputStream(sent))));
+    }
+
+    @Test
+    public void sendsSmallBodyAsIs() throws Exception {
+        RequestBody body = post(TEXT).setBodyCompression(ContentCodec.GZIP, TEXT.length + 1).getRequestBody();
+
+        assertNull(body.getContentEncoding());
+        assertArrayEquals(TEXT, written(body));
+    }
+
+    @Test
+    public void sendsIncompressibleBodyAsIs() throws Exception {
+        byte[] noise = new byte[4096];
+        new Random(7).nextBytes(noise);
+        RequestBody body = post(noise).setBodyCompression(ContentCodec.DEFLATE, 0).getRequestBody();
+
+        assertNull(body.getContentEncoding());
+        assertEquals(noise.length, body.getContentLength());
+    }
+
+    @Test
+    public void compressesStreamedBodyChunked() throws Exception {
+        Request<?> request = new StringTestRequest("http://a.com/")
+                .setRequestBody(RequestBody.create(new ByteArrayInputStream(TEXT), TEXT.length))
+                .setBodyCompression(ContentCodec.DEFLATE, 0);
+        RequestBody body = request.getRequestBody();
+
+        assertEquals("deflate", body.getContentEncoding());
+        assertEquals(-1, body.getContentLength());
+
+        // The connection stays open after the body was written.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        body.writeTo(new FilterOutputStream(bytes) {
+            @Override
+            public void close() throws IOException {
+                fail("The body closed the connection stream.");
+            }
+        });
+        assertArrayEquals(TEXT, decode("deflate", bytes.toByteArray()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDecodeOnlyCodingForBodies() {
+        new StringTestRequest("http://a.com/").setBodyCompression(new ContentCodec("x-decode-only") {
+            @Override
+            public InputStream decode(InputStream in) {
+                return in;
+            }
+        }, 0);
+    }
+}
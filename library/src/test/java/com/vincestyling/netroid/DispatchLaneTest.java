@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import android.os.Process;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DispatchLaneTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final Object TAG = new Object();
+
+    /**
+     * The requests routed by type.
+     */
+    private static class ImageTestRequest extends StringTestRequest {
+        ImageTestRequest(String url, IListener<String> listener) {
+            super(url, listener);
+        }
+    }
+
+    private static class ThumbnailTestRequest extends ImageTestRequest {
+        ThumbnailTestRequest(String url, IListener<String> listener) {
+            super(url, listener);
+        }
+    }
+
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+
+    /**
+     * Holds the requests whose url contains "/slow" until released, answers the others at once.
+     */
+    private final Network mNetwork = new Network() {
+        @Override
+        public void setDelivery(Delivery delivery) {
+        }
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws NetroidError {
+            if (request.getUrl().contains("/slow")) {
+                try {
+                    mRelease.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new NetroidError("Interrupted.", e);
+                }
+            }
+            return new NetworkResponse(200, request.getUrl().getBytes(), "UTF-8");
+        }
+    };
+
+    private final RequestQueue mQueue = new RequestQueue(mNetwork, 1, new ExecutorDelivery(DIRECT), null);
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        mQueue.stop();
+    }
+
+    @Test
+    public void routedRequestsSkipBusyDefaultLane() throws Exception {
+        mQueue.addLane("images", 1, Process.THREAD_PRIORITY_BACKGROUND);
+        mQueue.routeType(ImageTestRequest.class, "images");
+        mQueue.start();
+
+        RecordingListener<String> slow = new RecordingListener<String>();
+        mQueue.add(new StringTestRequest("http://a.com/slow", slow));
+        RecordingListener<String> image = new RecordingListener<String>();
+        mQueue.add(new ThumbnailTestRequest("http://a.com/0.png", image));
+
+        assertTrue(image.await(1000));
+        assertEquals("http://a.com/0.png", image.response);
+        assertFalse(slow.await(0));
+
+        mRelease.countDown();
+        assertTrue(slow.await(1000));
+    }
+
+    @Test
+    public void busyLaneDoesNotDelayDefaultLane() throws Exception {
+        DispatchLane lane = mQueue.addLane("downloads", 1, Process.THREAD_PRIORITY_BACKGROUND);
+        mQueue.routeTag(TAG, "downloads");
+        mQueue.start();
+
+        RecordingListener<String> first = new RecordingListener<String>();
+        mQueue.add(new StringTestRequest("http://a.com/slow/0", first).setTag(TAG));
+        RecordingListener<String> second = new RecordingListener<String>();
+        mQueue.add(new StringTestRequest("http://a.com/slow/1", second).setTag(TAG));
+        RecordingListener<String> api = new RecordingListener<String>();
+        mQueue.add(new StringTestRequest("http://a.com/api", api));
+
+        assertTrue(api.await(1000));
+        // The lane's only dispatcher is held, the second download waits in the lane's queue.
+        long deadline = System.currentTimeMillis() + 1000;
+        while (lane.getQueuedCount() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, lane.getQueuedCount());
+        assertEquals(1, mQueue.getLane("downloads").getQueueWaitStats(Request.Priority.NORMAL).count);
+
+        mRelease.countDown();
+        assertTrue(first.await(1000));
+        assertTrue(second.await(1000));
+        assertEquals(0, lane.getQueuedCount());
+    }
+
+    @Test
+    public void tagRouteTakesPrecedenceOverType() {
+        DispatchLane images = mQueue.addLane("images", 1, Process.THREAD_PRIORITY_BACKGROUND);
+        DispatchLane api = mQueue.addLane("api", 1, Process.THREAD_PRIORITY_DEFAULT);
+        mQueue.routeType(ImageTestRequest.class, "images");
+        mQueue.routeTag(TAG, "api");
+
+        assertSame(images, mQueue.getLaneFor(ThumbnailTestRequest.class));
+        assertNull(mQueue.getLaneFor(StringTestRequest.class));
+
+        assertSame(images.getQueue(), mQueue.getNetworkQueue(new ThumbnailTestRequest("http://a.com/0.png", null)));
+        assertSame(api.getQueue(), mQueue.getNetworkQueue(new ThumbnailTestRequest("http://a.com/1.png", null).setTag(TAG)));
+        // An unrouted tag falls back to the type route.
+        assertSame(images.getQueue(), mQueue.getNetworkQueue(new ImageTestRequest("http://a.com/2.png", null).setTag("other")));
+        assertSame(mQueue.getNetworkQueue(new StringTestRequest("http://a.com/")),
+                mQueue.getNetworkQueue(new StringTestRequest("http://b.com/")));
+    }
+
+    @Test
+    public void lanesEnforceRateLimitsOnTheirOwn() {
+        mQueue.setRateLimit("a.com", 1, 1);
+        DispatchLane lane = mQueue.addLane("images", 1, Process.THREAD_PRIORITY_BACKGROUND);
+        mQueue.setRateLimit("b.com", 1, 1);
+        mQueue.routeType(ImageTestRequest.class, "images");
+
+        assertEquals(2, mQueue.getRateLimitStats().size());
+        assertEquals(2, lane.getQueue().getRateLimitStats().size());
+
+        // Taking the token of the lane leaves the bucket of the default lane full.
+        ImageTestRequest request = new ImageTestRequest("http://a.com/0.png", null);
+        request.setSequence(0);
+        mQueue.getNetworkQueue(request).add(request);
+        assertSame(request, lane.getQueue().poll());
+        assertTrue(lane.getQueue().getRateLimitStats().get(0).tokens < 1);
+        assertEquals(1, mQueue.getRateLimitStats().get(0).tokens, 0.01);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateLane() {
+        mQueue.addLane("images", 1, Process.THREAD_PRIORITY_BACKGROUND);
+        mQueue.addLane("images", 2, Process.THREAD_PRIORITY_BACKGROUND);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRouteToUnknownLane() {
+        mQueue.routeType(ImageTestRequest.class, "images");
+    }
+}
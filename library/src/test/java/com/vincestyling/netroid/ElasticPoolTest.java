@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ElasticPoolTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private RequestQueue mQueue;
+
+    private RequestQueue newQueue(int coreSize, int maxSize, int growQueueDepth, long growQueueWaitMs) {
+        mQueue = new RequestQueue(new FakeNetwork(mRelease), coreSize, new ExecutorDelivery(DIRECT), null);
+        mQueue.setElasticPool(maxSize, 60000, growQueueDepth, growQueueWaitMs);
+        mQueue.start();
+        return mQueue;
+    }
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        if (mQueue != null) mQueue.stop();
+    }
+
+    private static void awaitDispatcherCount(RequestQueue queue, int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (queue.getDispatcherCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void growsOnQueueDepth() throws Exception {
+        RequestQueue queue = newQueue(1, 3, 2, 60000);
+        for (int i = 0; i < 4; i++) {
+            queue.add(new StringTestRequest("http://a.com/" + i));
+            Thread.sleep(20);
+        }
+        awaitDispatcherCount(queue, 3, 1000);
+        assertEquals(3, queue.getDispatcherCount());
+    }
+
+    @Test
+    public void growsWhileBurstWaits() throws Exception {
+        RequestQueue queue = newQueue(1, 4, 100, 100);
+        // Nothing more is put into the queue after the burst, the head-of-line wait alone makes the pool grow.
+        for (int i = 0; i < 4; i++) {
+            queue.add(new StringTestRequest("http://a.com/" + i));
+        }
+        Thread.sleep(50);
+        assertEquals(1, queue.getDispatcherCount());
+
+        awaitDispatcherCount(queue, 4, 2000);
+        assertEquals(4, queue.getDispatcherCount());
+        assertEquals(4, queue.getPeakDispatcherCount());
+    }
+
+    @Test
+    public void staysAtCoreSizeWhileKeepingUp() throws Exception {
+        RequestQueue queue = newQueue(2, 4, 100, 100);
+        queue.add(new StringTestRequest("http://a.com/0"));
+        queue.add(new StringTestRequest("http://a.com/1"));
+        Thread.sleep(300);
+        assertEquals(2, queue.getDispatcherCount());
+    }
+
+    @Test
+    public void neverGrowsBeyondMaxSize() throws Exception {
+        RequestQueue queue = newQueue(1, 2, 1, 10);
+        for (int i = 0; i < 10; i++) {
+            queue.add(new StringTestRequest("http://a.com/" + i));
+        }
+        Thread.sleep(300);
+        assertEquals(2, queue.getDispatcherCount());
+        assertTrue(queue.getPeakDispatcherCount() <= 2);
+    }
+}
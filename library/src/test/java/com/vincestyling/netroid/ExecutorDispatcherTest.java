@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExecutorDispatcherTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final ExecutorService mPool = Executors.newCachedThreadPool();
+    private RequestQueue mQueue;
+
+    @After
+    public void tearDown() {
+        if (mQueue != null) mQueue.stop();
+        mPool.shutdownNow();
+    }
+
+    /**
+     * Performs the given number of slow requests, each host has a fair share of them.
+     *
+     * @param executor the executor to dispatch on, null for the classic dispatchers
+     * @return the elapsed time in milliseconds until every request was delivered
+     */
+    private long run(int requests, long latencyMs, int dispatchers, Executor executor, int maxConcurrentRequests)
+            throws InterruptedException {
+        FakeNetwork network = new FakeNetwork(latencyMs);
+        mQueue = new RequestQueue(network, dispatchers, new ExecutorDelivery(DIRECT), null);
+        if (executor != null) mQueue.setExecutor(executor, maxConcurrentRequests);
+        mQueue.start();
+
+        final CountDownLatch done = new CountDownLatch(requests);
+        Listener<String> listener = new Listener<String>() {
+            @Override
+            public void onFinish() {
+                done.countDown();
+            }
+        };
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            mQueue.add(new StringTestRequest("http://host" + (i % 10) + ".com/" + i, listener));
+        }
+        assertTrue(done.await(1, TimeUnit.MINUTES));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertEquals(requests, network.performed.get());
+        return elapsedMs;
+    }
+
+    /**
+     * A thousand slow requests overlap on the executor, the classic dispatchers would take
+     * 1000 * 200 ms / 4.
+     */
+    @Test
+    public void thousandSlowRequestsOverlap() throws Exception {
+        long elapsedMs = run(1000, 200, 4, mPool, 1000);
+        assertTrue("took " + elapsedMs + " ms", elapsedMs < 10000);
+    }
+
+    @Test
+    public void classicDispatchersBoundConcurrency() throws Exception {
+        long elapsedMs = run(20, 100, 4, null, 0);
+        // Five rounds of four requests.
+        assertTrue("took " + elapsedMs + " ms", elapsedMs >= 500);
+    }
+
+    @Test
+    public void limitsConcurrentRequests() throws Exception {
+        FakeNetwork network = new FakeNetwork(50);
+        mQueue = new RequestQueue(network, 4, new ExecutorDelivery(DIRECT), null);
+        mQueue.setExecutor(mPool, 8);
+        mQueue.start();
+
+        final CountDownLatch done = new CountDownLatch(100);
+        Listener<String> listener = new Listener<String>() {
+            @Override
+            public void onFinish() {
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < 100; i++) {
+            mQueue.add(new StringTestRequest("http://a.com/" + i, listener));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(100, network.performed.get());
+        assertEquals(8, network.peakInFlight.get());
+        // The network dispatchers aren't started in this mode.
+        assertEquals(0, mQueue.getDispatcherCount());
+    }
+}
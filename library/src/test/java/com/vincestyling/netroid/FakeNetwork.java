@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link Network} which answers every request with its url after an optional delay, or after
+ * being released, and counts the requests performed.
+ */
+public class FakeNetwork implements Network {
+    private final long mDelayMs;
+    private final CountDownLatch mRelease;
+
+    /**
+     * Number of requests performed.
+     */
+    public final AtomicInteger performed = new AtomicInteger();
+
+    /**
+     * Highest number of requests performed at the same time.
+     */
+    public final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+
+    public FakeNetwork(long delayMs) {
+        mDelayMs = delayMs;
+        mRelease = null;
+    }
+
+    /**
+     * Holds every request until the given latch is released.
+     */
+    public FakeNetwork(CountDownLatch release) {
+        mDelayMs = 0;
+        mRelease = release;
+    }
+
+    @Override
+    public void setDelivery(Delivery delivery) {
+    }
+
+    @Override
+    public NetworkResponse performRequest(Request<?> request) throws NetroidError {
+        int inFlight = mInFlight.incrementAndGet();
+        while (true) {
+            int peak = peakInFlight.get();
+            if (inFlight <= peak || peakInFlight.compareAndSet(peak, inFlight)) break;
+        }
+        try {
+            if (mRelease != null) {
+                mRelease.await(10, TimeUnit.SECONDS);
+            } else if (mDelayMs > 0) {
+                Thread.sleep(mDelayMs);
+            }
+        } catch (InterruptedException e) {
+            throw new NetroidError("Interrupted.", e);
+        } finally {
+            mInFlight.decrementAndGet();
+        }
+        performed.incrementAndGet();
+        return new NetworkResponse(200, request.getUrl().getBytes(), "UTF-8");
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import com.vincestyling.netroid.stack.HttpStack;
+import com.vincestyling.netroid.toolbox.BasicNetwork;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HedgeTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final CountDownLatch mReleaseHedges = new CountDownLatch(1);
+    private final FakeStack mStack = new FakeStack();
+    private RequestQueue mQueue;
+
+    /**
+     * Answers "primary" to the first attempt once it took its time, unless it's aborted
+     * meanwhile, and "hedge" to the hedge attempt, at once unless the hedges are held.
+     */
+    private class FakeStack implements HttpStack {
+        volatile long primaryMs;
+        volatile boolean holdHedges;
+        final AtomicInteger primaries = new AtomicInteger();
+        final AtomicInteger hedges = new AtomicInteger();
+        final AtomicInteger hedgesInFlight = new AtomicInteger();
+        final AtomicInteger peakHedgesInFlight = new AtomicInteger();
+
+        @Override
+        public HttpResponse performRequest(Request<?> request) throws IOException, AuthFailureError {
+            final CountDownLatch aborted = new CountDownLatch(1);
+            request.setAbortHandle(new Runnable() {
+                @Override
+                public void run() {
+                    aborted.countDown();
+                }
+            });
+            boolean isHedge = Thread.currentThread().getName().equals("Netroid-Hedge");
+            try {
+                if (isHedge) {
+                    hedges.incrementAndGet();
+                    int inFlight = hedgesInFlight.incrementAndGet();
+                    int peak;
+                    while (inFlight > (peak = peakHedgesInFlight.get())) {
+                        peakHedgesInFlight.compareAndSet(peak, inFlight);
+                    }
+                    try {
+                        if (holdHedges) mReleaseHedges.await(5, TimeUnit.SECONDS);
+                    } finally {
+                        hedgesInFlight.decrementAndGet();
+                    }
+                } else {
+                    primaries.incrementAndGet();
+                    if (aborted.await(primaryMs, TimeUnit.MILLISECONDS)) throw new IOException("Aborted.");
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+
+            String body = isHedge ? "hedge" : "primary";
+            BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, ""));
+            response.setEntity(new ByteArrayEntity(body.getBytes()));
+            return response;
+        }
+    }
+
+    private RequestQueue newQueue(int dispatchers) {
+        BasicNetwork network = new BasicNetwork(mStack, "UTF-8");
+        // Every request may be hedged.
+        network.setHedgeBudget(1);
+        mQueue = new RequestQueue(network, dispatchers, new ExecutorDelivery(DIRECT), null);
+        mQueue.start();
+        return mQueue;
+    }
+
+    @After
+    public void tearDown() {
+        mReleaseHedges.countDown();
+        if (mQueue != null) mQueue.stop();
+    }
+
+    private RecordingListener<String> add(StringTestRequest request, long hedgeDelayMs) {
+        RecordingListener<String> listener = new RecordingListener<String>();
+        request.setListener(listener);
+        request.setHedgePolicy(new HedgePolicy(hedgeDelayMs));
+        mQueue.add(request);
+        return listener;
+    }
+
+    @Test
+    public void slowAttemptIsHedged() throws Exception {
+        newQueue(1);
+        mStack.primaryMs = 5000;
+        RecordingListener<String> listener = add(new StringTestRequest("http://a.com/"), 50);
+
+        assertTrue(listener.await(2000));
+        assertEquals("hedge", listener.response);
+        assertEquals(1, mStack.primaries.get());
+        assertEquals(1, mStack.hedges.get());
+    }
+
+    @Test
+    public void fastAttemptIsNotHedged() throws Exception {
+        newQueue(1);
+        mStack.primaryMs = 10;
+        RecordingListener<String> listener = add(new StringTestRequest("http://a.com/"), 100);
+
+        assertTrue(listener.await(2000));
+        assertEquals("primary", listener.response);
+        // The timer was cancelled with the primary attempt done.
+        Thread.sleep(200);
+        assertEquals(0, mStack.hedges.get());
+    }
+
+    @Test
+    public void requestWithSideEffectsIsNeverHedged() throws Exception {
+        newQueue(1);
+        mStack.primaryMs = 300;
+        RecordingListener<String> listener = add(new StringTestRequest("http://a.com/") {
+            @Override
+            public boolean isSideEffectFree() {
+                return false;
+            }
+        }, 50);
+
+        assertTrue(listener.await(2000));
+        assertEquals("primary", listener.response);
+        assertEquals(0, mStack.hedges.get());
+    }
+
+    @Test
+    public void hedgesInFlightAreCapped() throws Exception {
+        int requests = BasicNetwork.MAX_HEDGES_IN_FLIGHT + 2;
+        newQueue(requests);
+        mStack.primaryMs = 1000;
+        mStack.holdHedges = true;
+        List<RecordingListener<String>> listeners = new ArrayList<RecordingListener<String>>();
+        for (int i = 0; i < requests; i++) {
+            listeners.add(add(new StringTestRequest("http://a.com/" + i), 50));
+        }
+
+        Thread.sleep(300);
+        assertEquals(BasicNetwork.MAX_HEDGES_IN_FLIGHT, mStack.hedgesInFlight.get());
+        mReleaseHedges.countDown();
+
+        int hedged = 0;
+        for (RecordingListener<String> listener : listeners) {
+            assertTrue(listener.await(2000));
+            if ("hedge".equals(listener.response)) hedged++;
+        }
+        assertEquals(BasicNetwork.MAX_HEDGES_IN_FLIGHT, hedged);
+        assertEquals(BasicNetwork.MAX_HEDGES_IN_FLIGHT, mStack.peakHedgesInFlight.get());
+    }
+}
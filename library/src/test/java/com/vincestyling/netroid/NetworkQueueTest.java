@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import android.os.SystemClock;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NetworkQueueTest {
+    private final NetworkQueue mQueue = new NetworkQueue(null);
+    private int mSequence;
+
+    private StringTestRequest add(String url) {
+        return add(url, Request.Priority.NORMAL);
+    }
+
+    private StringTestRequest add(String url, final Request.Priority priority) {
+        StringTestRequest request = new StringTestRequest(url) {
+            @Override
+            public Priority getPriority() {
+                return priority;
+            }
+        };
+        request.setSequence(mSequence++);
+        mQueue.add(request);
+        return request;
+    }
+
+    private void addWithDeadline(String url, long deadlineMs) {
+        StringTestRequest request = new StringTestRequest(url);
+        request.setDeadline(TimeUnit.MILLISECONDS, deadlineMs);
+        request.setSequence(mSequence++);
+        mQueue.add(request);
+    }
+
+    private String pollUrl() {
+        Request request = mQueue.poll();
+        return request != null ? request.getUrl() : null;
+    }
+
+    @Test
+    public void withoutHostSchedulingServesInOrder() {
+        add("http://a.com/0");
+        add("http://a.com/1");
+        add("http://b.com/0");
+
+        assertEquals("http://a.com/0", pollUrl());
+        assertEquals("http://a.com/1", pollUrl());
+        assertEquals("http://b.com/0", pollUrl());
+        assertNull(mQueue.poll());
+    }
+
+    @Test
+    public void takesTurnsBetweenHosts() {
+        mQueue.setHostScheduling(0);
+        add("http://a.com/0");
+        add("http://a.com/1");
+        add("http://a.com/2");
+        add("http://b.com/0");
+        add("http://b.com/1");
+
+        assertEquals("http://a.com/0", pollUrl());
+        assertEquals("http://b.com/0", pollUrl());
+        assertEquals("http://a.com/1", pollUrl());
+        assertEquals("http://b.com/1", pollUrl());
+        assertEquals("http://a.com/2", pollUrl());
+        assertNull(mQueue.poll());
+    }
+
+    @Test
+    public void hostAtLimitWaitsForFinish() {
+        mQueue.setHostScheduling(1);
+        Request first = add("http://a.com/0");
+        add("http://a.com/1");
+        add("http://b.com/0");
+
+        assertEquals("http://a.com/0", pollUrl());
+        assertEquals("http://b.com/0", pollUrl());
+        // a.com has one in flight, its next request stays queued.
+        assertNull(mQueue.poll());
+        assertEquals(1, mQueue.size());
+
+        mQueue.finish(first);
+        assertEquals("http://a.com/1", pollUrl());
+        assertEquals(0, mQueue.size());
+    }
+
+    @Test
+    public void hostPolicyOverridesLimit() {
+        mQueue.setHostScheduling(1);
+        mQueue.setHostPolicy("B.com", 2, 1);
+        add("http://b.com/0");
+        add("http://b.com/1");
+        add("http://b.com/2");
+
+        assertEquals("http://b.com/0", pollUrl());
+        assertEquals("http://b.com/1", pollUrl());
+        assertNull(mQueue.poll());
+    }
+
+    @Test
+    public void heavierHostGetsMoreTurns() {
+        mQueue.setHostScheduling(0);
+        mQueue.setHostPolicy("b.com", 0, 2);
+        for (int i = 0; i < 6; i++) {
+            add("http://a.com/" + i);
+            add("http://b.com/" + i);
+        }
+
+        int taken = 0;
+        for (int i = 0; i < 6; i++) {
+            if (pollUrl().startsWith("http://b.com/")) taken++;
+        }
+        assertEquals(4, taken);
+    }
+
+    @Test
+    public void higherPriorityGoesFirstAcrossHosts() {
+        mQueue.setHostScheduling(0);
+        add("http://a.com/0", Request.Priority.LOW);
+        add("http://a.com/1", Request.Priority.LOW);
+        add("http://b.com/0", Request.Priority.HIGH);
+        add("http://b.com/1", Request.Priority.HIGH);
+
+        assertEquals("http://b.com/0", pollUrl());
+        assertEquals("http://b.com/1", pollUrl());
+        assertEquals("http://a.com/0", pollUrl());
+    }
+
+    @Test
+    public void equalPrioritiesGoByDeadline() {
+        addWithDeadline("http://a.com/late", 3000);
+        add("http://a.com/none");
+        addWithDeadline("http://a.com/soon", 1000);
+        addWithDeadline("http://a.com/later", 2000);
+        add("http://a.com/high", Request.Priority.HIGH);
+
+        // Priority first, then the earliest deadline, the requests without one go last.
+        assertEquals("http://a.com/high", pollUrl());
+        assertEquals("http://a.com/soon", pollUrl());
+        assertEquals("http://a.com/later", pollUrl());
+        assertEquals("http://a.com/late", pollUrl());
+        assertEquals("http://a.com/none", pollUrl());
+    }
+
+    @Test
+    public void withoutAgingLowPriorityWaits() throws Exception {
+        add("http://a.com/low", Request.Priority.LOW);
+        Thread.sleep(100);
+        add("http://a.com/high", Request.Priority.HIGH);
+
+        assertEquals("http://a.com/high", pollUrl());
+        assertEquals("http://a.com/low", pollUrl());
+    }
+
+    @Test
+    public void waitingRaisesPriority() throws Exception {
+        mQueue.setPriorityAging(40, 2);
+        StringTestRequest low = add("http://a.com/low", Request.Priority.LOW);
+        Thread.sleep(100);
+        add("http://a.com/high", Request.Priority.HIGH);
+
+        // Two levels gained, LOW caught up with HIGH and was queued first.
+        assertEquals("http://a.com/low", pollUrl());
+        assertEquals(2, low.getPriorityBoost());
+        assertEquals("http://a.com/high", pollUrl());
+
+        QueueWaitStats stats = mQueue.getWaitStats(Request.Priority.LOW);
+        assertEquals(1, stats.count);
+        assertEquals(1, stats.boostedCount);
+        assertTrue(stats.maxWaitMs >= 100);
+        assertEquals(0, mQueue.getWaitStats(Request.Priority.HIGH).boostedCount);
+    }
+
+    @Test
+    public void boostStopsAtMax() throws Exception {
+        mQueue.setPriorityAging(20, 1);
+        StringTestRequest low = add("http://a.com/low", Request.Priority.LOW);
+        Thread.sleep(100);
+        add("http://a.com/high", Request.Priority.HIGH);
+
+        assertEquals("http://a.com/high", pollUrl());
+        assertEquals(1, low.getPriorityBoost());
+        assertEquals("http://a.com/low", pollUrl());
+    }
+
+    @Test
+    public void agingAcrossHosts() throws Exception {
+        mQueue.setHostScheduling(0);
+        mQueue.setPriorityAging(40, 3);
+        add("http://a.com/low", Request.Priority.LOW);
+        Thread.sleep(100);
+        add("http://b.com/normal", Request.Priority.NORMAL);
+
+        assertEquals("http://a.com/low", pollUrl());
+    }
+
+    @Test
+    public void burstThenOneTokenAtATime() throws Exception {
+        mQueue.setRateLimit("A.com", false, 10, 2);
+        add("http://a.com/0");
+        add("http://a.com/1");
+        add("http://a.com/2");
+        add("http://b.com/0");
+
+        assertEquals("http://a.com/0", pollUrl());
+        assertEquals("http://a.com/1", pollUrl());
+        // a.com ran out of tokens, b.com isn't limited and goes ahead.
+        assertEquals("http://b.com/0", pollUrl());
+        assertNull(mQueue.poll());
+        assertEquals(1, mQueue.size());
+
+        long start = SystemClock.elapsedRealtime();
+        Request request = mQueue.poll(1, TimeUnit.SECONDS);
+        long waitMs = SystemClock.elapsedRealtime() - start;
+        assertEquals("http://a.com/2", request.getUrl());
+        assertTrue(waitMs >= 50 && waitMs < 500);
+
+        RateLimitStats stats = mQueue.getRateLimitStats().get(0);
+        assertEquals("a.com", stats.key);
+        assertEquals(0, stats.waitingCount);
+        assertEquals(1, stats.throttledCount);
+        assertTrue(stats.maxThrottleMs >= 50);
+    }
+
+    @Test
+    public void patternTakesPrecedenceOverHost() {
+        mQueue.setRateLimit("a.com", false, 1000, 100);
+        mQueue.setRateLimit("/api/", true, 0.1, 1);
+        add("http://a.com/api/0");
+        add("http://a.com/api/1");
+        add("http://a.com/img/0");
+
+        assertEquals("http://a.com/api/0", pollUrl());
+        assertEquals("http://a.com/img/0", pollUrl());
+        assertNull(mQueue.poll());
+
+        List<RateLimitStats> stats = mQueue.getRateLimitStats();
+        assertEquals("/api/", stats.get(0).key);
+        assertEquals(1, stats.get(0).waitingCount);
+        assertEquals("a.com", stats.get(1).key);
+        assertEquals(0, stats.get(1).waitingCount);
+    }
+
+    @Test
+    public void raisingTheRateReleasesWaitingRequests() throws Exception {
+        mQueue.setRateLimit("a.com", false, 0.1, 1);
+        add("http://a.com/0");
+        add("http://a.com/1");
+
+        assertEquals("http://a.com/0", pollUrl());
+        assertNull(mQueue.poll());
+
+        mQueue.setRateLimit("a.com", false, 100, 1);
+        Request request = mQueue.poll(500, TimeUnit.MILLISECONDS);
+        assertEquals("http://a.com/1", request.getUrl());
+    }
+
+    @Test
+    public void throttledRequestCanBeRemoved() {
+        mQueue.setRateLimit("a.com", false, 0.1, 1);
+        add("http://a.com/0");
+        Request throttled = add("http://a.com/1");
+
+        assertEquals("http://a.com/0", pollUrl());
+        assertNull(mQueue.poll());
+        assertTrue(mQueue.remove(throttled));
+        assertEquals(0, mQueue.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyBurst() {
+        new RequestQueue(new FakeNetwork(0), 1, null, null).setRateLimit("a.com", 1, 0);
+    }
+}
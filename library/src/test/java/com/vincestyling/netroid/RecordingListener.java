@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the outcome of a request and lets the test wait for it.
+ */
+public class RecordingListener<T> extends Listener<T> {
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    public volatile T response;
+    public volatile NetroidError error;
+    public volatile boolean canceled;
+
+    @Override
+    public void onSuccess(T response) {
+        this.response = response;
+        mDone.countDown();
+    }
+
+    @Override
+    public void onError(NetroidError error) {
+        this.error = error;
+        mDone.countDown();
+    }
+
+    @Override
+    public void onCancel() {
+        canceled = true;
+        mDone.countDown();
+    }
+
+    /**
+     * Waits for the request to succeed, fail or be canceled.
+     *
+     * @return false if it didn't within the given time.
+     */
+    public boolean await(long timeoutMs) throws InterruptedException {
+        return mDone.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+}
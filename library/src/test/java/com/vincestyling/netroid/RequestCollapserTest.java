@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import com.vincestyling.netroid.request.FileDownloadRequest;
+import com.vincestyling.netroid.request.ImageRequest;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RequestCollapserTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private final FakeNetwork mNetwork = new FakeNetwork(mRelease);
+    private RequestQueue mQueue;
+
+    private RequestQueue newQueue(Network network, boolean collapsing) {
+        mQueue = new RequestQueue(network, 2, new ExecutorDelivery(DIRECT), null);
+        mQueue.setRequestCollapsing(collapsing);
+        mQueue.start();
+        return mQueue;
+    }
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        if (mQueue != null) mQueue.stop();
+    }
+
+    /**
+     * Adds a request which skips the cache.
+     */
+    private static RecordingListener<String> add(RequestQueue queue, Request<String> request,
+                                                 RecordingListener<String> listener) {
+        request.setForceUpdate(true);
+        queue.add(request);
+        return listener;
+    }
+
+    private static RecordingListener<String> add(RequestQueue queue, String url) {
+        RecordingListener<String> listener = new RecordingListener<String>();
+        return add(queue, new StringTestRequest(url, listener), listener);
+    }
+
+    @Test
+    public void identicalRequestsShareOneCall() throws Exception {
+        RequestQueue queue = newQueue(mNetwork, true);
+        RecordingListener<String> leader = add(queue, "http://a.com/");
+        RecordingListener<String> first = add(queue, "http://a.com/");
+        RecordingListener<String> second = add(queue, "http://a.com/");
+
+        mRelease.countDown();
+        assertTrue(leader.await(1000));
+        assertTrue(first.await(1000));
+        assertTrue(second.await(1000));
+        assertEquals("http://a.com/", first.response);
+        assertEquals("http://a.com/", second.response);
+        assertEquals(1, mNetwork.performed.get());
+    }
+
+    @Test
+    public void differentRequestsDontCollapse() throws Exception {
+        RequestQueue queue = newQueue(mNetwork, true);
+        RecordingListener<String> a = add(queue, "http://a.com/");
+        RecordingListener<String> b = add(queue, "http://b.com/");
+        RecordingListener<String> other = new RecordingListener<String>();
+        add(queue, new StringTestRequest("http://a.com/", other) {
+        }, other);
+
+        mRelease.countDown();
+        assertTrue(a.await(1000));
+        assertTrue(b.await(1000));
+        assertTrue(other.await(1000));
+        assertEquals(3, mNetwork.performed.get());
+    }
+
+    @Test
+    public void notCollapsedWhenDisabled() throws Exception {
+        RequestQueue queue = newQueue(mNetwork, false);
+        RecordingListener<String> first = add(queue, "http://a.com/");
+        RecordingListener<String> second = add(queue, "http://a.com/");
+
+        mRelease.countDown();
+        assertTrue(first.await(1000));
+        assertTrue(second.await(1000));
+        assertEquals(2, mNetwork.performed.get());
+    }
+
+    @Test
+    public void followerTakesOverCanceledLeader() throws Exception {
+        RequestQueue queue = newQueue(mNetwork, true);
+        RecordingListener<String> leaderListener = new RecordingListener<String>();
+        StringTestRequest leader = new StringTestRequest("http://a.com/", leaderListener);
+        add(queue, leader, leaderListener);
+        RecordingListener<String> follower = add(queue, "http://a.com/");
+
+        // Let a dispatcher take the leader before canceling it.
+        Thread.sleep(50);
+        leader.cancel();
+        mRelease.countDown();
+
+        assertTrue(follower.await(1000));
+        assertEquals("http://a.com/", follower.response);
+        assertNull(leaderListener.response);
+        assertEquals(2, mNetwork.performed.get());
+    }
+
+    @Test
+    public void leaderErrorReachesFollowers() throws Exception {
+        RequestQueue queue = newQueue(new FakeNetwork(mRelease) {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) throws NetroidError {
+                super.performRequest(request);
+                throw new ServerError();
+            }
+        }, true);
+        RecordingListener<String> leader = add(queue, "http://a.com/");
+        RecordingListener<String> follower = add(queue, "http://a.com/");
+
+        mRelease.countDown();
+        assertTrue(leader.await(1000));
+        assertTrue(follower.await(1000));
+        assertTrue(leader.error instanceof ServerError);
+        assertTrue(follower.error instanceof ServerError);
+        assertFalse(follower.canceled);
+    }
+
+    @Test
+    public void downloadsToDifferentFilesDontCollapse() throws Exception {
+        RequestQueue queue = newQueue(mNetwork, true);
+        RecordingListener<Void> first = new RecordingListener<Void>();
+        FileDownloadRequest firstRequest = new FileDownloadRequest(mFolder.newFile("first.apk"), "http://a.com/app.apk");
+        firstRequest.setListener(first);
+        queue.add(firstRequest);
+        RecordingListener<Void> second = new RecordingListener<Void>();
+        FileDownloadRequest secondRequest = new FileDownloadRequest(mFolder.newFile("second.apk"), "http://a.com/app.apk");
+        secondRequest.setListener(second);
+        queue.add(secondRequest);
+
+        mRelease.countDown();
+        assertTrue(first.await(1000));
+        assertTrue(second.await(1000));
+        assertEquals(2, mNetwork.performed.get());
+    }
+
+    @Test
+    public void imageDecodeSettingsArePartOfTheKey() {
+        RequestCollapser collapser = new RequestCollapser(new ExecutorDelivery(DIRECT), null);
+        assertFalse(collapser.join(new ImageRequest("http://a.com/a.png", 100, 100)));
+        assertTrue(collapser.join(new ImageRequest("http://a.com/a.png", 100, 100)));
+        assertFalse(collapser.join(new ImageRequest("http://a.com/a.png", 200, 200)));
+    }
+}
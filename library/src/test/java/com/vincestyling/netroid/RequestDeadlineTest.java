@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RequestDeadlineTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private final FakeNetwork mNetwork = new FakeNetwork(mRelease);
+    private final RequestQueue mQueue = new RequestQueue(mNetwork, 1, new ExecutorDelivery(DIRECT), null);
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        mQueue.stop();
+    }
+
+    @Test
+    public void expiredRequestNeverReachesNetwork() throws Exception {
+        mQueue.start();
+        mRelease.countDown();
+        RecordingListener<String> listener = new RecordingListener<String>();
+        mQueue.add(new StringTestRequest("http://a.com/", listener).setDeadline(TimeUnit.MILLISECONDS, 0));
+
+        assertTrue(listener.await(1000));
+        assertTrue(listener.error instanceof DeadlineExceededError);
+        assertEquals(0, mNetwork.performed.get());
+    }
+
+    @Test
+    public void expiredRequestSkipsCache() throws Exception {
+        mQueue.start();
+        mRelease.countDown();
+        RecordingListener<String> listener = new RecordingListener<String>();
+        StringTestRequest request = new StringTestRequest("http://a.com/", listener);
+        request.setCacheExpireTime(TimeUnit.MINUTES, 1);
+        request.setDeadline(TimeUnit.MILLISECONDS, 0);
+        mQueue.add(request);
+
+        assertTrue(listener.await(1000));
+        assertTrue(listener.error instanceof DeadlineExceededError);
+        assertEquals(0, mNetwork.performed.get());
+    }
+
+    @Test
+    public void deadlinePassingInQueueFailsRequest() throws Exception {
+        mQueue.start();
+        RecordingListener<String> first = new RecordingListener<String>();
+        mQueue.add(new StringTestRequest("http://a.com/0", first));
+        // Let the only dispatcher take it, it's held until released.
+        Thread.sleep(50);
+        RecordingListener<String> late = new RecordingListener<String>();
+        mQueue.add(new StringTestRequest("http://a.com/1", late).setDeadline(TimeUnit.MILLISECONDS, 50));
+
+        Thread.sleep(100);
+        mRelease.countDown();
+        assertTrue(first.await(1000));
+        assertTrue(late.await(1000));
+        assertNull(late.response);
+        assertTrue(late.error instanceof DeadlineExceededError);
+        assertEquals(1, mNetwork.performed.get());
+    }
+
+    @Test
+    public void timeoutIsCappedByRemainingTime() {
+        StringTestRequest request = new StringTestRequest("http://a.com/");
+        request.setRetryPolicy(new DefaultRetryPolicy(5000, 0, 1f));
+        assertEquals(5000, request.getTimeoutMs());
+
+        request.setDeadline(TimeUnit.MILLISECONDS, 300);
+        int timeoutMs = request.getTimeoutMs();
+        assertTrue(timeoutMs > 0 && timeoutMs <= 300);
+
+        // Never zero, which would mean no timeout at all.
+        request.setDeadline(TimeUnit.MILLISECONDS, 0);
+        assertEquals(1, request.getTimeoutMs());
+    }
+
+    @Test
+    public void timeoutIsKeptBelowRemainingTime() {
+        StringTestRequest request = new StringTestRequest("http://a.com/");
+        request.setRetryPolicy(new DefaultRetryPolicy(500, 0, 1f));
+        request.setDeadline(TimeUnit.SECONDS, 10);
+        assertEquals(500, request.getTimeoutMs());
+    }
+}
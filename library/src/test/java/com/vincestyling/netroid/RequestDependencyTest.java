@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RequestDependencyTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * The urls in the order they went to the network.
+     */
+    private final List<String> mPerformed = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Answers after a short delay, fails the urls which contain "/fail".
+     */
+    private final FakeNetwork mNetwork = new FakeNetwork(30) {
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws NetroidError {
+            mPerformed.add(request.getUrl());
+            NetworkResponse response = super.performRequest(request);
+            if (request.getUrl().contains("/fail")) throw new ServerError();
+            return response;
+        }
+    };
+
+    private final RequestQueue mQueue = new RequestQueue(mNetwork, 3, new ExecutorDelivery(DIRECT), null);
+
+    @After
+    public void tearDown() {
+        mQueue.stop();
+    }
+
+    private static class ResultHolder implements Request.DependencyListener<String> {
+        volatile String result;
+
+        @Override
+        public void onDependencyResolved(String result) {
+            this.result = result;
+        }
+    }
+
+    @Test
+    public void dependentWaitsForResult() throws Exception {
+        mQueue.start();
+        RecordingListener<String> tokenListener = new RecordingListener<String>();
+        StringTestRequest token = new StringTestRequest("http://a.com/token", tokenListener);
+        RecordingListener<String> profileListener = new RecordingListener<String>();
+        StringTestRequest profile = new StringTestRequest("http://a.com/profile", profileListener);
+        ResultHolder holder = new ResultHolder();
+        profile.dependsOn(token, holder);
+
+        // The dependent may be added first, it holds no dispatcher meanwhile.
+        mQueue.add(profile);
+        mQueue.add(token);
+
+        assertTrue(profileListener.await(1000));
+        assertEquals("http://a.com/profile", profileListener.response);
+        assertEquals("http://a.com/token", holder.result);
+        assertEquals("http://a.com/token", mPerformed.get(0));
+        assertEquals("http://a.com/profile", mPerformed.get(1));
+    }
+
+    @Test
+    public void diamondRunsBranchesInParallel() throws Exception {
+        mQueue.start();
+        StringTestRequest root = new StringTestRequest("http://a.com/root");
+        StringTestRequest left = new StringTestRequest("http://a.com/left");
+        StringTestRequest right = new StringTestRequest("http://a.com/right");
+        RecordingListener<String> joinListener = new RecordingListener<String>();
+        StringTestRequest join = new StringTestRequest("http://a.com/join", joinListener);
+        left.dependsOn(root);
+        right.dependsOn(root);
+        join.dependsOn(left).dependsOn(right);
+
+        mQueue.add(join);
+        mQueue.add(left);
+        mQueue.add(right);
+        mQueue.add(root);
+
+        assertTrue(joinListener.await(1000));
+        assertEquals(4, mPerformed.size());
+        assertEquals("http://a.com/root", mPerformed.get(0));
+        assertEquals("http://a.com/join", mPerformed.get(3));
+        assertEquals(2, mNetwork.peakInFlight.get());
+    }
+
+    @Test
+    public void failureFailsTheWholeChain() throws Exception {
+        mQueue.start();
+        StringTestRequest first = new StringTestRequest("http://a.com/fail");
+        RecordingListener<String> secondListener = new RecordingListener<String>();
+        StringTestRequest second = new StringTestRequest("http://a.com/second", secondListener);
+        RecordingListener<String> thirdListener = new RecordingListener<String>();
+        StringTestRequest third = new StringTestRequest("http://a.com/third", thirdListener);
+        second.dependsOn(first);
+        third.dependsOn(second);
+
+        mQueue.add(third);
+        mQueue.add(second);
+        mQueue.add(first);
+
+        assertTrue(thirdListener.await(1000));
+        assertTrue(secondListener.await(0));
+        assertSame(first, ((DependencyError) secondListener.error).dependency);
+        assertSame(second, ((DependencyError) thirdListener.error).dependency);
+        assertNull(thirdListener.response);
+        assertEquals(1, mPerformed.size());
+    }
+
+    @Test
+    public void canceledDependencyFailsDependent() throws Exception {
+        mQueue.start();
+        StringTestRequest first = new StringTestRequest("http://a.com/first");
+        RecordingListener<String> secondListener = new RecordingListener<String>();
+        StringTestRequest second = new StringTestRequest("http://a.com/second", secondListener);
+        second.dependsOn(first);
+
+        first.cancel();
+        mQueue.add(second);
+        mQueue.add(first);
+
+        assertTrue(secondListener.await(1000));
+        assertTrue(secondListener.error instanceof DependencyError);
+        assertTrue(mPerformed.isEmpty());
+    }
+
+    @Test
+    public void dependencyFinishedAlready() throws Exception {
+        mQueue.start();
+        RecordingListener<String> firstListener = new RecordingListener<String>();
+        StringTestRequest first = new StringTestRequest("http://a.com/first", firstListener);
+        mQueue.add(first);
+        assertTrue(firstListener.await(1000));
+
+        RecordingListener<String> secondListener = new RecordingListener<String>();
+        StringTestRequest second = new StringTestRequest("http://a.com/second", secondListener);
+        ResultHolder holder = new ResultHolder();
+        second.dependsOn(first, holder);
+        mQueue.add(second);
+
+        assertTrue(secondListener.await(1000));
+        assertEquals("http://a.com/second", secondListener.response);
+        // The result isn't kept once nothing waits for it.
+        assertNull(holder.result);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSelfDependency() {
+        StringTestRequest request = new StringTestRequest("http://a.com/");
+        request.dependsOn(request);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsIndirectCycle() {
+        StringTestRequest a = new StringTestRequest("http://a.com/a");
+        StringTestRequest b = new StringTestRequest("http://a.com/b");
+        StringTestRequest c = new StringTestRequest("http://a.com/c");
+        a.dependsOn(b);
+        b.dependsOn(c);
+        c.dependsOn(a);
+    }
+}
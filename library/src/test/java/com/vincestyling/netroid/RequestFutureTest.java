@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestFutureTest {
+    private RequestQueue mQueue;
+
+    @After
+    public void tearDown() {
+        if (mQueue != null) mQueue.stop();
+    }
+
+    private static <T> RequestFuture<T> pending() {
+        return new RequestFuture<T>(null);
+    }
+
+    private static final RequestFuture.Transform<String, Integer> LENGTH = new RequestFuture.Transform<String, Integer>() {
+        @Override
+        public Integer apply(String result) {
+            return result.length();
+        }
+    };
+
+    @Test
+    public void thenTransformsResult() throws Exception {
+        RequestFuture<String> source = pending();
+        RequestFuture<Integer> length = source.then(LENGTH);
+        assertFalse(length.isDone());
+
+        source.complete("netroid", null, false);
+        assertTrue(length.isSuccess());
+        assertEquals(Integer.valueOf(7), length.get());
+    }
+
+    @Test
+    public void thenPassesErrorAndCancellation() throws Exception {
+        RequestFuture<String> failed = pending();
+        RequestFuture<Integer> afterFailed = failed.then(LENGTH);
+        NetroidError error = new ServerError();
+        failed.complete(null, error, false);
+        assertSame(error, afterFailed.getError());
+        try {
+            afterFailed.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(error, e.getCause());
+        }
+
+        RequestFuture<String> cancelled = pending();
+        RequestFuture<Integer> afterCancelled = cancelled.then(LENGTH);
+        cancelled.cancel(false);
+        assertTrue(afterCancelled.isCancelled());
+        try {
+            afterCancelled.get();
+            fail();
+        } catch (CancellationException expected) {
+        }
+    }
+
+    @Test
+    public void thenTurnsThrownTransformIntoError() throws Exception {
+        RequestFuture<String> source = pending();
+        RequestFuture<Integer> length = source.then(LENGTH);
+        source.complete(null, null, false);
+        assertTrue(length.getError() != null);
+        assertTrue(length.getError().getCause() instanceof NullPointerException);
+    }
+
+    @Test
+    public void callbackAddedAfterCompletionRunsAtOnce() {
+        RequestFuture<String> future = pending();
+        future.complete("done", null, false);
+        final AtomicInteger calls = new AtomicInteger();
+        future.addCallback(new RequestFuture.Callback<String>() {
+            @Override
+            public void onComplete(RequestFuture<? extends String> f) {
+                calls.incrementAndGet();
+            }
+        });
+        assertEquals(1, calls.get());
+        // Completes only once.
+        assertFalse(future.complete("again", null, false));
+        assertEquals("done", future.getResult());
+    }
+
+    @Test
+    public void allOfKeepsOrder() throws Exception {
+        RequestFuture<String> first = pending();
+        RequestFuture<String> second = pending();
+        RequestFuture<List<String>> all = RequestFuture.allOf(Arrays.asList(first, second));
+
+        second.complete("b", null, false);
+        assertFalse(all.isDone());
+        first.complete("a", null, false);
+        assertEquals(Arrays.asList("a", "b"), all.get());
+
+        assertTrue(RequestFuture.allOf(new ArrayList<RequestFuture<String>>()).get().isEmpty());
+    }
+
+    @Test
+    public void allOfFailsOnFirstError() {
+        RequestFuture<String> first = pending();
+        RequestFuture<String> second = pending();
+        RequestFuture<List<String>> all = RequestFuture.allOf(Arrays.asList(first, second));
+
+        NetroidError error = new NetworkError();
+        second.complete(null, error, false);
+        assertSame(error, all.getError());
+        first.complete("a", null, false);
+        assertSame(error, all.getError());
+    }
+
+    @Test
+    public void combineBothResults() throws Exception {
+        RequestFuture<String> name = pending();
+        RequestFuture<Integer> count = pending();
+        RequestFuture<String> combined = RequestFuture.combine(name, count,
+                new RequestFuture.Combiner<String, Integer, String>() {
+                    @Override
+                    public String combine(String first, Integer second) {
+                        return first + "=" + second;
+                    }
+                });
+        count.complete(3, null, false);
+        name.complete("items", null, false);
+        assertEquals("items=3", combined.get());
+    }
+
+    @Test
+    public void getTimesOut() throws Exception {
+        RequestFuture<String> future = pending();
+        try {
+            future.get(50, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException expected) {
+        }
+        assertFalse(future.isDone());
+    }
+
+    @Test
+    public void withTimeoutFails() throws Exception {
+        RequestFuture<String> future = RequestFutureTest.<String>pending().withTimeout(50, TimeUnit.MILLISECONDS);
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutError);
+        }
+    }
+
+    @Test
+    public void withTimeoutIsCancelledOnCompletion() throws Exception {
+        RequestFuture<String> future = RequestFutureTest.<String>pending().withTimeout(1, TimeUnit.HOURS);
+        assertTrue(future.complete("done", null, false));
+
+        Field field = Class.forName("com.vincestyling.netroid.RequestFuture$TimeoutScheduler").getDeclaredField("INSTANCE");
+        field.setAccessible(true);
+        ScheduledThreadPoolExecutor scheduler = (ScheduledThreadPoolExecutor) field.get(null);
+        for (Runnable task : scheduler.getQueue()) {
+            assertTrue(((Future<?>) task).isCancelled());
+        }
+        assertEquals("done", future.get());
+
+        // A completed future schedules nothing.
+        future.withTimeout(1, TimeUnit.HOURS);
+        for (Runnable task : scheduler.getQueue()) {
+            assertTrue(((Future<?>) task).isCancelled());
+        }
+    }
+
+    @Test
+    public void submitAndThenSubmit() throws Exception {
+        mQueue = new RequestQueue(new FakeNetwork(0), 2, new ExecutorDelivery(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }), null);
+        mQueue.start();
+
+        RequestFuture<String> detail = mQueue.submit(new StringTestRequest("http://a.com/list"))
+                .thenSubmit(mQueue, new RequestFuture.Transform<String, Request<String>>() {
+                    @Override
+                    public Request<String> apply(String result) {
+                        return new StringTestRequest(result + "/detail");
+                    }
+                });
+        assertEquals("http://a.com/list/detail", detail.get(1, TimeUnit.SECONDS));
+        assertNull(detail.getRequest());
+    }
+
+    @Test
+    public void cancelCancelsRequest() {
+        StringTestRequest request = new StringTestRequest("http://a.com/");
+        RequestFuture<String> future = RequestFuture.attach(request);
+        assertTrue(future.cancel(true));
+        assertTrue(request.isCanceled());
+        assertTrue(future.isCancelled());
+        assertFalse(future.cancel(true));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RequestRegistryTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final RequestRegistry mRegistry = new RequestRegistry();
+
+    private static Request<?> request(Object tag) {
+        return new StringTestRequest("http://a.com/").setTag(tag);
+    }
+
+    @Test
+    public void indexesByTag() {
+        Object tagA = new Object();
+        Object tagB = new Object();
+        Request<?> a0 = request(tagA);
+        Request<?> a1 = request(tagA);
+        mRegistry.register(a0);
+        mRegistry.register(a1);
+        mRegistry.register(request(tagB));
+        mRegistry.register(request(null));
+
+        assertEquals(4, mRegistry.size());
+        assertEquals(2, mRegistry.countByTag(tagA));
+        assertEquals(1, mRegistry.countByTag(tagB));
+        assertEquals(0, mRegistry.countByTag(new Object()));
+
+        List<Request<?>> snapshot = mRegistry.snapshot(tagA);
+        assertEquals(2, snapshot.size());
+        assertTrue(snapshot.contains(a0) && snapshot.contains(a1));
+        assertEquals(4, mRegistry.snapshot().size());
+    }
+
+    @Test
+    public void comparesTagsByIdentity() {
+        String tag = new String("images");
+        mRegistry.register(request(tag));
+
+        assertEquals(1, mRegistry.countByTag(tag));
+        assertEquals(0, mRegistry.countByTag(new String("images")));
+    }
+
+    @Test
+    public void registersOnce() {
+        Object tag = new Object();
+        Request<?> request = request(tag);
+        mRegistry.register(request);
+        mRegistry.register(request);
+
+        assertEquals(1, mRegistry.size());
+        assertEquals(1, mRegistry.countByTag(tag));
+    }
+
+    @Test
+    public void unregisterDropsEmptyBucket() {
+        Object tag = new Object();
+        Request<?> first = request(tag);
+        mRegistry.register(first);
+        mRegistry.unregister(first);
+        // Unregistering twice is harmless.
+        mRegistry.unregister(first);
+
+        assertEquals(0, mRegistry.size());
+        assertEquals(0, mRegistry.countByTag(tag));
+        assertTrue(mRegistry.snapshot(tag).isEmpty());
+
+        Request<?> second = request(tag);
+        mRegistry.register(second);
+        assertEquals(1, mRegistry.countByTag(tag));
+    }
+
+    @Test
+    public void concurrentChurnKeepsCounts() throws Exception {
+        final Object tag = new Object();
+        final int threads = 8;
+        final int perThread = 2000;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    // Keep every other request registered, so buckets keep emptying and refilling.
+                    for (int j = 0; j < perThread; j++) {
+                        Request<?> request = request(tag);
+                        mRegistry.register(request);
+                        if (j % 2 == 0) mRegistry.unregister(request);
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(threads * perThread / 2, mRegistry.size());
+        assertEquals(threads * perThread / 2, mRegistry.countByTag(tag));
+    }
+
+    @Test
+    public void queueCancelsOnlyTheTag() {
+        RequestQueue queue = new RequestQueue(new FakeNetwork(0), 1, new ExecutorDelivery(DIRECT), null);
+        Object tag = new Object();
+        Request<?> tagged = queue.add(request(tag));
+        Request<?> other = queue.add(request(new Object()));
+
+        assertEquals(2, queue.getCurrentRequestCount());
+        assertEquals(1, queue.countByTag(tag));
+
+        queue.cancelAll(tag);
+        assertTrue(tagged.isCanceled());
+        assertFalse(other.isCanceled());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void queueRejectsNullTag() {
+        new RequestQueue(new FakeNetwork(0), 1, null, null).cancelAll((Object) null);
+    }
+}
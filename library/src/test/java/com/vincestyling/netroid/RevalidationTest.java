@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+import com.vincestyling.netroid.cache.DiskCache;
+import com.vincestyling.netroid.stack.HttpStack;
+import com.vincestyling.netroid.toolbox.BasicNetwork;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RevalidationTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final String URL = "http://a.com/data";
+    private static final String LAST_MODIFIED = "Sun, 18 Oct 2015 00:00:00 GMT";
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Answers with the response set by the test, records the headers it was sent.
+     */
+    private final FakeStack mStack = new FakeStack();
+    private DiskCache mCache;
+    private RequestQueue mQueue;
+
+    private static class FakeStack implements HttpStack {
+        volatile HttpResponse response;
+        volatile Map<String, String> sentHeaders;
+
+        @Override
+        public HttpResponse performRequest(Request<?> request) throws IOException, AuthFailureError {
+            sentHeaders = new HashMap<String, String>(request.getHeaders());
+            return response;
+        }
+    }
+
+    private static HttpResponse response(int statusCode, String body, String... headers) {
+        BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, statusCode, ""));
+        for (int i = 0; i < headers.length; i += 2) {
+            response.addHeader(headers[i], headers[i + 1]);
+        }
+        if (body != null) {
+            response.addHeader("Content-Type", "text/plain; charset=UTF-8");
+            response.setEntity(new ByteArrayEntity(body.getBytes()));
+        }
+        return response;
+    }
+
+    @Before
+    public void setUp() {
+        mCache = new DiskCache(mFolder.getRoot());
+        mCache.initialize();
+        mQueue = new RequestQueue(new BasicNetwork(mStack, "UTF-8"), 1, new ExecutorDelivery(DIRECT), mCache);
+        mQueue.start();
+    }
+
+    @After
+    public void tearDown() {
+        mQueue.stop();
+    }
+
+    /**
+     * Caches an expired entry for the url.
+     */
+    private void putExpired(String data, String etag, String lastModified) {
+        DiskCache.Entry entry = new DiskCache.Entry(data.getBytes(), "UTF-8");
+        entry.setEtag(etag);
+        entry.setLastModified(lastModified);
+        entry.setExpireTime(System.currentTimeMillis() - 1000);
+        mCache.putEntry(URL, entry);
+    }
+
+    private RecordingListener<String> fetch() throws InterruptedException {
+        RecordingListener<String> listener = new RecordingListener<String>();
+        StringTestRequest request = new StringTestRequest(URL, listener);
+        request.setCacheExpireTime(TimeUnit.MINUTES, 1);
+        mQueue.add(request);
+        assertTrue(listener.await(2000));
+        return listener;
+    }
+
+    @Test
+    public void notModifiedServesCachedBody() throws Exception {
+        putExpired("cached", "\"v1\"", LAST_MODIFIED);
+        mStack.response = response(304, null);
+
+        RecordingListener<String> listener = fetch();
+        assertEquals("cached", listener.response);
+        assertEquals("\"v1\"", mStack.sentHeaders.get("If-None-Match"));
+        assertEquals(LAST_MODIFIED, mStack.sentHeaders.get("If-Modified-Since"));
+
+        // The entry is fresh again and keeps its validators.
+        DiskCache.Entry entry = mCache.getEntry(URL);
+        assertFalse(entry.isExpired());
+        assertEquals("cached", new String(entry.getData()));
+        assertEquals("\"v1\"", entry.getEtag());
+        assertEquals(LAST_MODIFIED, entry.getLastModified());
+    }
+
+    @Test
+    public void notModifiedUpdatesValidators() throws Exception {
+        putExpired("cached", "\"v1\"", LAST_MODIFIED);
+        mStack.response = response(304, null, "ETag", "\"v2\"");
+
+        assertEquals("cached", fetch().response);
+        DiskCache.Entry entry = mCache.getEntry(URL);
+        assertEquals("\"v2\"", entry.getEtag());
+        assertEquals(LAST_MODIFIED, entry.getLastModified());
+    }
+
+    @Test
+    public void changedResponseReplacesEntry() throws Exception {
+        putExpired("cached", "\"v1\"", null);
+        mStack.response = response(200, "fresh", "ETag", "\"v2\"");
+
+        assertEquals("fresh", fetch().response);
+        assertEquals("\"v1\"", mStack.sentHeaders.get("If-None-Match"));
+        assertNull(mStack.sentHeaders.get("If-Modified-Since"));
+
+        DiskCache.Entry entry = mCache.getEntry(URL);
+        assertFalse(entry.isExpired());
+        assertEquals("fresh", new String(entry.getData()));
+        assertEquals("\"v2\"", entry.getEtag());
+    }
+
+    @Test
+    public void noValidatorsNoConditionalRequest() throws Exception {
+        putExpired("cached", null, null);
+        mStack.response = response(200, "fresh");
+
+        assertEquals("fresh", fetch().response);
+        assertFalse(mStack.sentHeaders.containsKey("If-None-Match"));
+        assertFalse(mStack.sentHeaders.containsKey("If-Modified-Since"));
+    }
+
+    @Test
+    public void notModifiedWithoutEntryIsAnError() throws Exception {
+        mStack.response = response(304, "");
+
+        RecordingListener<String> listener = fetch();
+        assertNull(listener.response);
+        assertTrue(listener.error instanceof ServerError);
+        assertNull(mCache.getEntry(URL));
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid;
+
+/**
+ * A request which answers the response body as a string.
+ */
+public class StringTestRequest extends Request<String> {
+    private Priority mPriority = Priority.NORMAL;
+
+    public StringTestRequest(String url, IListener<String> listener) {
+        super(url, listener);
+    }
+
+    public StringTestRequest(String url) {
+        this(url, null);
+    }
+
+    public StringTestRequest(int method, String url) {
+        super(method, url, null);
+    }
+
+    public void setPriority(Priority priority) {
+        mPriority = priority;
+    }
+
+    @Override
+    public Priority getPriority() {
+        return mPriority;
+    }
+
+    @Override
+    public boolean isSideEffectFree() {
+        return true;
+    }
+
+    @Override
+    protected Response<String> parseNetworkResponse(NetworkResponse response) {
+        return Response.success(new String(response.data), response);
+    }
+}
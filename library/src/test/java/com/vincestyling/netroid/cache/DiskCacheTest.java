@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.cache;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskCacheTest {
+    private static final String KEY = "http://a.com/data";
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mRoot;
+    private DiskCache mCache;
+
+    @Before
+    public void setUp() {
+        mRoot = new File(mFolder.getRoot(), "cache");
+        mCache = new DiskCache(mRoot);
+        mCache.initialize();
+    }
+
+    private static DiskCache.Entry entry(String data, String etag, long expireTime) {
+        DiskCache.Entry entry = new DiskCache.Entry(data.getBytes(), "UTF-8");
+        entry.setEtag(etag);
+        entry.setLastModified(etag != null ? "Sun, 18 Oct 2015 00:00:00 GMT" : null);
+        entry.setExpireTime(expireTime);
+        return entry;
+    }
+
+    private static long later() {
+        return System.currentTimeMillis() + 60000;
+    }
+
+    private List<String> listFiles() {
+        List<String> names = new ArrayList<String>();
+        File[] files = mRoot.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                names.add(file.getName());
+            }
+        }
+        return names;
+    }
+
+    @Test
+    public void roundTripsAcrossRestart() {
+        long expireTime = later();
+        mCache.putEntry(KEY, entry("body", "\"v1\"", expireTime));
+
+        DiskCache reopened = new DiskCache(mRoot);
+        reopened.initialize();
+        DiskCache.Entry entry = reopened.getEntry(KEY);
+        assertNotNull(entry);
+        assertEquals("body", new String(entry.getData()));
+        assertEquals("UTF-8", entry.getCharset());
+        assertEquals("\"v1\"", entry.getEtag());
+        assertEquals("Sun, 18 Oct 2015 00:00:00 GMT", entry.getLastModified());
+        assertEquals(expireTime, entry.getExpireTime());
+    }
+
+    @Test
+    public void writeLeavesNoTemporaryFile() {
+        mCache.putEntry(KEY, entry("first", null, later()));
+        mCache.putEntry(KEY, entry("second", null, later()));
+
+        List<String> files = listFiles();
+        assertEquals(1, files.size());
+        assertFalse(files.get(0).endsWith(".tmp"));
+        assertEquals("second", new String(mCache.getEntry(KEY).getData()));
+    }
+
+    @Test
+    public void initializeDropsUnfinishedWrites() throws Exception {
+        mCache.putEntry(KEY, entry("body", null, later()));
+        File leftover = new File(mCache.getFileForKey(KEY).getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(leftover);
+        fos.write("half a hea".getBytes());
+        fos.close();
+
+        DiskCache reopened = new DiskCache(mRoot);
+        reopened.initialize();
+        assertFalse(leftover.exists());
+        assertEquals("body", new String(reopened.getEntry(KEY).getData()));
+    }
+
+    @Test
+    public void replacingKeepsOpenReaderOnOldFile() throws Exception {
+        mCache.putEntry(KEY, entry("old body", null, later()));
+        // A reader which opened the file before the replacement.
+        InputStream in = new FileInputStream(mCache.getFileForKey(KEY));
+        try {
+            mCache.putEntry(KEY, entry("new body", null, later()));
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, count);
+            }
+            assertTrue(new String(bytes.toByteArray()).endsWith("old body"));
+        } finally {
+            in.close();
+        }
+        assertEquals("new body", new String(mCache.getEntry(KEY).getData()));
+    }
+
+    @Test
+    public void entryMetadataComesFromTheFileRead() {
+        mCache.putEntry(KEY, entry("old body", "\"v1\"", later()));
+        // A second instance indexes the old header, then the file is replaced behind its back.
+        DiskCache stale = new DiskCache(mRoot);
+        stale.initialize();
+        mCache.putEntry(KEY, entry("new body", "\"v2\"", later()));
+
+        DiskCache.Entry entry = stale.getEntry(KEY);
+        assertEquals("new body", new String(entry.getData()));
+        assertEquals("\"v2\"", entry.getEtag());
+    }
+
+    @Test
+    public void initializeKeepsExpiredEntriesWithValidators() {
+        long past = System.currentTimeMillis() - 1000;
+        mCache.putEntry(KEY, entry("validated", "\"v1\"", past));
+        mCache.putEntry("http://a.com/plain", entry("plain", null, past));
+
+        DiskCache reopened = new DiskCache(mRoot);
+        reopened.initialize();
+        DiskCache.Entry entry = reopened.getEntry(KEY);
+        assertTrue(entry.isExpired());
+        assertTrue(entry.hasValidators());
+        assertNull(reopened.getEntry("http://a.com/plain"));
+        assertEquals(1, listFiles().size());
+    }
+
+    @Test
+    public void readersNeverSeeTornEntries() throws Exception {
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        mCache.putEntry(KEY, entry("v0", "v0", later()));
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= 300; i++) {
+                    mCache.putEntry(KEY, entry("v" + i, "v" + i, later()));
+                }
+            }
+        };
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int i = 0; i < 3; i++) {
+            readers.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 300; j++) {
+                        DiskCache.Entry entry = mCache.getEntry(KEY);
+                        if (entry == null) {
+                            failure.set("entry vanished");
+                        } else if (!new String(entry.getData()).equals(entry.getEtag())) {
+                            failure.set(new String(entry.getData()) + " with " + entry.getEtag());
+                        }
+                    }
+                }
+            });
+        }
+
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+        assertArrayEquals("v300".getBytes(), mCache.getEntry(KEY).getData());
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.request;
+
+import com.vincestyling.netroid.ExecutorDelivery;
+import com.vincestyling.netroid.Listener;
+import com.vincestyling.netroid.RequestBody;
+import com.vincestyling.netroid.toolbox.ByteArrayPool;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MultipartRequestTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        // Set up by the BasicNetwork otherwise.
+        ByteArrayPool.init(64 * 1024);
+    }
+
+    private static String getBoundary(MultipartRequest request) {
+        String contentType = request.getBodyContentType();
+        assertTrue(contentType.startsWith("multipart/form-data; boundary="));
+        return contentType.substring("multipart/form-data; boundary=".length());
+    }
+
+    private static byte[] write(MultipartRequest request) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        request.getRequestBody().writeTo(bytes);
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void encodesFieldsAndFiles() throws Exception {
+        MultipartRequest request = new MultipartRequest("http://a.com/upload", null)
+                .addPart("title", "Holiday")
+                .addPart("note", "note.txt", "hello".getBytes(), "text/plain");
+        String boundary = getBoundary(request);
+
+        String expected = "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"title\"\r\n"
+                + "Content-Type: text/plain; charset=UTF-8\r\n"
+                + "\r\n"
+                + "Holiday\r\n"
+                + "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"note\"; filename=\"note.txt\"\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "\r\n"
+                + "hello\r\n"
+                + "--" + boundary + "--\r\n";
+        byte[] body = write(request);
+        assertEquals(expected, new String(body, "UTF-8"));
+        assertEquals(body.length, request.getRequestBody().getContentLength());
+    }
+
+    @Test
+    public void encodesTextByParamsEncoding() throws Exception {
+        MultipartRequest request = new MultipartRequest("http://a.com/upload", null)
+                .addPart("city", "Z\u00fcrich");
+
+        String body = new String(write(request), "UTF-8");
+        assertTrue(body.contains("\r\n\r\nZ\u00fcrich\r\n"));
+    }
+
+    @Test
+    public void escapesNames() throws Exception {
+        MultipartRequest request = new MultipartRequest("http://a.com/upload", null)
+                .addPart("a\"b", "evil\r\nname.txt", new byte[0], "text/plain");
+
+        String body = new String(write(request), "UTF-8");
+        assertTrue(body.contains("name=\"a%22b\"; filename=\"evil%0D%0Aname.txt\"\r\n"));
+    }
+
+    @Test
+    public void streamsLargeFile() throws Exception {
+        byte[] content = new byte[200 * 1024];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        File file = mFolder.newFile("photo.jpg");
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(content);
+        fos.close();
+
+        MultipartRequest request = new MultipartRequest("http://a.com/upload", null)
+                .addPart("photo", file, "image/jpeg");
+        RequestBody requestBody = request.getRequestBody();
+        byte[] body = write(request);
+        assertEquals(body.length, requestBody.getContentLength());
+        assertTrue(requestBody.isRepeatable());
+
+        String header = "Content-Disposition: form-data; name=\"photo\"; filename=\"photo.jpg\"\r\n"
+                + "Content-Type: image/jpeg\r\n\r\n";
+        int start = new String(body, "ISO-8859-1").indexOf(header) + header.length();
+        assertArrayEquals(content, Arrays.copyOfRange(body, start, start + content.length));
+        // Written twice, it's the same body.
+        assertArrayEquals(body, write(request));
+    }
+
+    @Test
+    public void streamOfUnknownLengthGoesChunked() throws Exception {
+        MultipartRequest request = new MultipartRequest("http://a.com/upload", null)
+                .addPart("title", "Holiday")
+                .addPart("log", "log.txt", new ByteArrayInputStream("line".getBytes()), -1, "text/plain");
+        RequestBody requestBody = request.getRequestBody();
+
+        assertEquals(-1, requestBody.getContentLength());
+        assertFalse(requestBody.isRepeatable());
+        assertTrue(new String(write(request), "UTF-8").contains("\r\n\r\nline\r\n--"));
+    }
+
+    @Test
+    public void boundaryIsRandom() {
+        assertNotEquals(getBoundary(new MultipartRequest("http://a.com/", null)),
+                getBoundary(new MultipartRequest("http://a.com/", null)));
+    }
+
+    @Test
+    public void postsUploadProgress() throws Exception {
+        final long[] progress = new long[2];
+        MultipartRequest request = new MultipartRequest("http://a.com/upload", new Listener<String>() {
+            @Override
+            public void onSuccess(String response) {
+            }
+
+            @Override
+            public void onUploadProgress(long totalSize, long uploadedSize) {
+                progress[0] = totalSize;
+                progress[1] = uploadedSize;
+            }
+        });
+        request.addPart("data", "data.bin", new byte[10000], "application/octet-stream");
+        request.setUploadDelivery(new ExecutorDelivery(DIRECT));
+
+        byte[] body = write(request);
+        assertEquals(body.length, progress[0]);
+        assertEquals(body.length, progress[1]);
+    }
+
+    @Test(expected = IOException.class)
+    public void streamPartIsSentOnce() throws Exception {
+        MultipartRequest request = new MultipartRequest("http://a.com/upload", null)
+                .addPart("log", "log.txt", new ByteArrayInputStream("line".getBytes()), 4, "text/plain");
+        write(request);
+        write(request);
+    }
+}
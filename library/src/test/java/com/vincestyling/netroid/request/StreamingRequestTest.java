@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.request;
+
+import com.vincestyling.netroid.AuthFailureError;
+import com.vincestyling.netroid.ExecutorDelivery;
+import com.vincestyling.netroid.ParseError;
+import com.vincestyling.netroid.RecordingListener;
+import com.vincestyling.netroid.Request;
+import com.vincestyling.netroid.RequestQueue;
+import com.vincestyling.netroid.stack.HttpStack;
+import com.vincestyling.netroid.toolbox.BasicNetwork;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StreamingRequestTest {
+    /**
+     * Delivers on a thread of its own, in the order of posting.
+     */
+    private final ExecutorService mDeliveryThread = Executors.newSingleThreadExecutor();
+
+    /**
+     * The partial and final results in the order they were delivered.
+     */
+    private final List<String> mDelivered = Collections.synchronizedList(new ArrayList<String>());
+
+    private RequestQueue mQueue;
+
+    @After
+    public void tearDown() {
+        if (mQueue != null) mQueue.stop();
+        mDeliveryThread.shutdownNow();
+    }
+
+    /**
+     * Answers every request with the given body, of unknown length.
+     */
+    private static HttpStack newStack(final InputStream body) {
+        return new HttpStack() {
+            @Override
+            public HttpResponse performRequest(Request<?> request) throws IOException, AuthFailureError {
+                BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
+                BasicHttpEntity entity = new BasicHttpEntity();
+                entity.setContent(body);
+                entity.setContentLength(-1);
+                response.setEntity(entity);
+                return response;
+            }
+        };
+    }
+
+    /**
+     * Posts every line of the body as a partial result, answers the count of lines. Reads
+     * a chunk at a time so the underlying stream decides where the reads stop.
+     */
+    private class LineRequest extends StreamingRequest<String, Integer> {
+        volatile IOException readError;
+
+        LineRequest(RecordingListener<Integer> listener) {
+            super("http://a.com/lines", listener, new PartialListener<String>() {
+                @Override
+                public void onPartialResponse(String partial) {
+                    mDelivered.add(partial);
+                }
+            });
+        }
+
+        @Override
+        protected Integer parseStream(InputStream in, long contentLength, String charset)
+                throws IOException, ParseError {
+            int count = 0;
+            StringBuilder line = new StringBuilder();
+            byte[] buffer = new byte[64];
+            int read;
+            try {
+                while ((read = in.read(buffer)) != -1) {
+                    for (int i = 0; i < read; i++) {
+                        if (buffer[i] != '\n') {
+                            line.append((char) buffer[i]);
+                            continue;
+                        }
+                        postPartialResponse(line.toString());
+                        line.setLength(0);
+                        count++;
+                    }
+                }
+            } catch (IOException e) {
+                readError = e;
+                throw e;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Records the final result among the partial ones.
+     */
+    private class FinalListener extends RecordingListener<Integer> {
+        @Override
+        public void onSuccess(Integer response) {
+            mDelivered.add("final:" + response);
+            super.onSuccess(response);
+        }
+    }
+
+    /**
+     * Answers one chunk per read, blocks before the chunk at {@code stallAt} until released.
+     */
+    private static class ChunkedStream extends InputStream {
+        final CountDownLatch released = new CountDownLatch(1);
+        final CountDownLatch stalled = new CountDownLatch(1);
+        private final String[] mChunks;
+        private final int mStallAt;
+        private int mNext;
+        volatile boolean closed;
+
+        ChunkedStream(int stallAt, String... chunks) {
+            mChunks = chunks;
+            mStallAt = stallAt;
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mNext == mChunks.length) return -1;
+            if (mNext == mStallAt) {
+                stalled.countDown();
+                try {
+                    released.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            byte[] chunk = mChunks[mNext++].getBytes("UTF-8");
+            System.arraycopy(chunk, 0, buffer, offset, chunk.length);
+            return chunk.length;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private void awaitDelivered(int count) throws InterruptedException {
+        for (int i = 0; i < 200 && mDelivered.size() < count; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void partialResultsAreDeliveredBeforeTheFinalOne() throws Exception {
+        mQueue = new RequestQueue(new BasicNetwork(newStack(new ByteArrayInputStream(
+                "a\nb\nc\n".getBytes("UTF-8"))), "UTF-8"), 1, new ExecutorDelivery(mDeliveryThread), null);
+        mQueue.start();
+
+        FinalListener listener = new FinalListener();
+        mQueue.add(new LineRequest(listener));
+
+        assertTrue(listener.await(2000));
+        assertEquals(Integer.valueOf(3), listener.response);
+        assertEquals(Arrays.asList("a", "b", "c", "final:3"), mDelivered);
+    }
+
+    @Test
+    public void partialResultsArriveWhileTheBodyIsStillStreaming() throws Exception {
+        ChunkedStream body = new ChunkedStream(1, "a\n", "b\n");
+        mQueue = new RequestQueue(new BasicNetwork(newStack(body), "UTF-8"), 1,
+                new ExecutorDelivery(mDeliveryThread), null);
+        mQueue.start();
+
+        FinalListener listener = new FinalListener();
+        mQueue.add(new LineRequest(listener));
+
+        assertTrue(body.stalled.await(2000, TimeUnit.MILLISECONDS));
+        // The first line was delivered before the rest of the body arrived.
+        awaitDelivered(1);
+        assertEquals(Collections.singletonList("a"), mDelivered);
+        body.released.countDown();
+
+        assertTrue(listener.await(2000));
+        assertEquals(Arrays.asList("a", "b", "final:2"), mDelivered);
+    }
+
+    @Test
+    public void cancelDuringReadEndsTheParsing() throws Exception {
+        final ChunkedStream body = new ChunkedStream(1, "a\n", "b\n", "c\n");
+        final LineRequest request = new LineRequest(new FinalListener());
+        final ExecutorDelivery delivery = new ExecutorDelivery(mDeliveryThread);
+        final List<Exception> thrown = Collections.synchronizedList(new ArrayList<Exception>());
+        Thread parser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    request.handleResponse(newStack(body).performRequest(request), delivery);
+                } catch (Exception e) {
+                    thrown.add(e);
+                }
+            }
+        };
+        parser.start();
+
+        assertTrue(body.stalled.await(2000, TimeUnit.MILLISECONDS));
+        awaitDelivered(1);
+        request.cancel();
+        body.released.countDown();
+        parser.join(2000);
+
+        // The read in progress completes, the next one fails.
+        assertEquals(1, thrown.size());
+        assertTrue(thrown.get(0) instanceof InterruptedIOException);
+        assertTrue(request.readError instanceof InterruptedIOException);
+        assertTrue(body.closed);
+
+        mDeliveryThread.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+        // Nothing of what was parsed after the cancel reaches the listener.
+        assertEquals(Collections.singletonList("a"), mDelivered);
+    }
+
+    @Test
+    public void readAfterCancelFails() throws Exception {
+        final LineRequest request = new LineRequest(new FinalListener());
+        request.cancel();
+        try {
+            request.handleResponse(newStack(new ChunkedStream(-1, "a\n")).performRequest(request),
+                    new ExecutorDelivery(mDeliveryThread));
+            fail();
+        } catch (InterruptedIOException expected) {
+        }
+        assertTrue(mDelivered.isEmpty());
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DnsCacheTest {
+    private static final long TTL_MS = 1000;
+    private static final long NEGATIVE_TTL_MS = 200;
+    private static final long STALE_MS = 5000;
+
+    /**
+     * Answers 10.0.0.n for the n-th lookup of a host, fails the hosts starting with "unknown".
+     */
+    private static class FakeDns implements Dns {
+        private final Map<String, Integer> mLookups = new HashMap<String, Integer>();
+        volatile CountDownLatch gate;
+        volatile boolean failing;
+
+        @Override
+        public InetAddress[] lookup(String host) throws UnknownHostException {
+            int count;
+            synchronized (this) {
+                count = lookups(host) + 1;
+                mLookups.put(host, count);
+                notifyAll();
+            }
+            CountDownLatch gate = this.gate;
+            if (gate != null) {
+                try {
+                    gate.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new UnknownHostException("Interrupted");
+                }
+            }
+            if (failing || host.startsWith("unknown")) throw new UnknownHostException("No such host " + host);
+            return new InetAddress[]{InetAddress.getByAddress(host, new byte[]{10, 0, 0, (byte) count})};
+        }
+
+        synchronized int lookups(String host) {
+            Integer count = mLookups.get(host);
+            return count != null ? count : 0;
+        }
+
+        /**
+         * Waits for the background lookups to reach the given count.
+         */
+        synchronized void awaitLookups(String host, int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (lookups(host) < count && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            assertEquals(count, lookups(host));
+        }
+    }
+
+    private final FakeDns mDns = new FakeDns();
+    private final AtomicLong mNow = new AtomicLong(100000);
+
+    private DnsCache newCache(long negativeTtlMs) {
+        return new DnsCache(mDns, TTL_MS, negativeTtlMs, STALE_MS) {
+            @Override
+            long now() {
+                return mNow.get();
+            }
+        };
+    }
+
+    private static int lastOctet(InetAddress[] addresses) {
+        return addresses[0].getAddress()[3];
+    }
+
+    /**
+     * Waits until a background refresh was kept, the lookup of the delegate returns a bit before.
+     */
+    private static void awaitAnswer(DnsCache cache, String host, int octet) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (lastOctet(cache.lookup(host)) != octet && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(octet, lastOctet(cache.lookup(host)));
+    }
+
+    @Test
+    public void keepsAnswerForTtl() throws Exception {
+        DnsCache cache = newCache(NEGATIVE_TTL_MS);
+        assertEquals(1, lastOctet(cache.lookup("a.com")));
+        mNow.addAndGet(TTL_MS - 1);
+        assertEquals(1, lastOctet(cache.lookup("A.COM")));
+        assertEquals(1, mDns.lookups("a.com"));
+
+        // Past the stale period, the lookup waits for a new answer.
+        mNow.addAndGet(STALE_MS + 1);
+        assertEquals(2, lastOctet(cache.lookup("a.com")));
+        assertEquals(2, mDns.lookups("a.com"));
+    }
+
+    @Test
+    public void keepsFailureForNegativeTtl() throws Exception {
+        DnsCache cache = newCache(NEGATIVE_TTL_MS);
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.lookup("unknown.com");
+                fail();
+            } catch (UnknownHostException expected) {
+            }
+        }
+        assertEquals(1, mDns.lookups("unknown.com"));
+
+        mNow.addAndGet(NEGATIVE_TTL_MS);
+        try {
+            cache.lookup("unknown.com");
+            fail();
+        } catch (UnknownHostException expected) {
+        }
+        assertEquals(2, mDns.lookups("unknown.com"));
+    }
+
+    @Test
+    public void noNegativeTtlKeepsNoFailure() throws Exception {
+        DnsCache cache = newCache(0);
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.lookup("unknown.com");
+                fail();
+            } catch (UnknownHostException expected) {
+            }
+        }
+        assertEquals(2, mDns.lookups("unknown.com"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void servesStaleWhileRefreshing() throws Exception {
+        DnsCache cache = newCache(NEGATIVE_TTL_MS);
+        cache.lookup("a.com");
+        mNow.addAndGet(TTL_MS + 1);
+
+        mDns.gate = new CountDownLatch(1);
+        // The stale answer comes at once, the refresh runs in the background.
+        assertEquals(1, lastOctet(cache.lookup("a.com")));
+        assertEquals(1, lastOctet(cache.lookup("a.com")));
+        mDns.awaitLookups("a.com", 2);
+        mDns.gate.countDown();
+
+        awaitAnswer(cache, "a.com", 2);
+        assertEquals(2, mDns.lookups("a.com"));
+    }
+
+    @Test
+    public void failedRefreshKeepsStaleAnswer() throws Exception {
+        DnsCache cache = newCache(NEGATIVE_TTL_MS);
+        cache.lookup("a.com");
+        mNow.addAndGet(TTL_MS + 1);
+
+        mDns.failing = true;
+        assertEquals(1, lastOctet(cache.lookup("a.com")));
+        mDns.awaitLookups("a.com", 2);
+        Thread.sleep(50);
+        assertEquals(1, lastOctet(cache.lookup("a.com")));
+    }
+
+    @Test
+    public void refreshesHotHostAhead() throws Exception {
+        DnsCache cache = newCache(NEGATIVE_TTL_MS);
+        cache.lookup("hot.com");
+        cache.lookup("cold.com");
+        cache.lookup("hot.com");
+        cache.lookup("hot.com");
+
+        mNow.addAndGet(TTL_MS * 3 / 4);
+        // Still fresh, but the hot host gets a new answer before it turns stale.
+        assertEquals(1, lastOctet(cache.lookup("hot.com")));
+        assertEquals(1, lastOctet(cache.lookup("cold.com")));
+        mDns.awaitLookups("hot.com", 2);
+        awaitAnswer(cache, "hot.com", 2);
+
+        Thread.sleep(50);
+        assertEquals(1, mDns.lookups("cold.com"));
+    }
+
+    @Test
+    public void concurrentLookupsShareOne() throws Exception {
+        final DnsCache cache = newCache(NEGATIVE_TTL_MS);
+        mDns.gate = new CountDownLatch(1);
+
+        final AtomicReference<InetAddress[]> other = new AtomicReference<InetAddress[]>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    other.set(cache.lookup("a.com"));
+                } catch (UnknownHostException ignored) {
+                }
+            }
+        };
+        thread.start();
+        mDns.awaitLookups("a.com", 1);
+
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cache.lookup("a.com");
+                } catch (UnknownHostException ignored) {
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(100);
+        // The second lookup waits for the first one instead of asking the delegate.
+        assertTrue(waiter.isAlive());
+        assertEquals(1, mDns.lookups("a.com"));
+
+        mDns.gate.countDown();
+        thread.join(5000);
+        waiter.join(5000);
+        assertEquals(1, lastOctet(other.get()));
+        assertEquals(1, mDns.lookups("a.com"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        DnsCache cache = newCache(NEGATIVE_TTL_MS);
+        for (int i = 0; i < DnsCache.MAX_ENTRIES; i++) {
+            cache.lookup("host" + i + ".com");
+        }
+        // Touch the eldest, the next one becomes the least recently used.
+        cache.lookup("host0.com");
+        cache.lookup("new.com");
+        assertEquals(DnsCache.MAX_ENTRIES, cache.size());
+
+        cache.lookup("host0.com");
+        assertEquals(1, mDns.lookups("host0.com"));
+        cache.lookup("host1.com");
+        assertEquals(2, mDns.lookups("host1.com"));
+    }
+
+    @Test
+    public void clearDropsAnswers() throws Exception {
+        DnsCache cache = newCache(NEGATIVE_TTL_MS);
+        cache.lookup("a.com");
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(2, lastOctet(cache.lookup("a.com")));
+    }
+}
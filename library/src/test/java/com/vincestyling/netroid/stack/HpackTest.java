@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the HPACK coding against the examples of RFC 7541 appendix C.
+ */
+public class HpackTest {
+    private static byte[] hex(String hex) {
+        hex = hex.replace(" ", "");
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static List<String[]> fields(String... nameValues) {
+        List<String[]> fields = new ArrayList<String[]>();
+        for (int i = 0; i < nameValues.length; i += 2) {
+            fields.add(new String[]{nameValues[i], nameValues[i + 1]});
+        }
+        return fields;
+    }
+
+    private static void assertFields(List<String[]> expected, List<String[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(Arrays.asList(expected.get(i)), Arrays.asList(actual.get(i)));
+        }
+    }
+
+    private static void assertDecodes(Hpack.Decoder decoder, String block, List<String[]> expected) throws Exception {
+        byte[] bytes = hex(block);
+        assertFields(expected, decoder.decode(bytes, bytes.length));
+    }
+
+    private static byte[] encode(List<String[]> fields) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Hpack.encode(fields, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * An integer which doesn't fit its prefix, like C.1.2 but on the 7-bit prefix of a string length.
+     */
+    @Test
+    public void multiByteInteger() throws Exception {
+        char[] value = new char[1337];
+        Arrays.fill(value, 'a');
+        List<String[]> fields = fields("x-long", new String(value));
+        byte[] encoded = encode(fields);
+        // Literal without indexing, new name, then the value length 1337 on a 7-bit prefix: 7f ba 09.
+        assertEquals(0x7f, encoded[8] & 0xff);
+        assertEquals(0xba, encoded[9] & 0xff);
+        assertEquals(0x09, encoded[10] & 0xff);
+        assertFields(fields, new Hpack.Decoder().decode(encoded, encoded.length));
+    }
+
+    /**
+     * C.2.1, literal header field with indexing.
+     */
+    @Test
+    public void literalWithIndexing() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertDecodes(decoder, "400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572",
+                fields("custom-key", "custom-header"));
+        // The entry went to the dynamic table, index 62.
+        assertDecodes(decoder, "be", fields("custom-key", "custom-header"));
+    }
+
+    /**
+     * C.2.2, literal header field without indexing, which is how the encoder sends a known name.
+     */
+    @Test
+    public void literalWithoutIndexing() throws Exception {
+        String block = "040c 2f73 616d 706c 652f 7061 7468";
+        assertDecodes(new Hpack.Decoder(), block, fields(":path", "/sample/path"));
+        assertArrayEquals(hex(block), encode(fields(":path", "/sample/path")));
+    }
+
+    /**
+     * C.2.3, literal header field never indexed.
+     */
+    @Test
+    public void literalNeverIndexed() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertDecodes(decoder, "1008 7061 7373 776f 7264 0673 6563 7265 74", fields("password", "secret"));
+        try {
+            decoder.decode(hex("be"), 1);
+            fail("Never indexed field went to the dynamic table.");
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    /**
+     * C.2.4, indexed header field, which is how the encoder sends a static table entry.
+     */
+    @Test
+    public void indexedField() throws Exception {
+        assertDecodes(new Hpack.Decoder(), "82", fields(":method", "GET"));
+        assertArrayEquals(hex("82"), encode(fields(":method", "GET")));
+    }
+
+    /**
+     * The encoder sends a new name as a literal without indexing, C.2.1 but for the first byte.
+     */
+    @Test
+    public void encodesNewName() throws Exception {
+        assertArrayEquals(hex("000a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572"),
+                encode(fields("custom-key", "custom-header")));
+    }
+
+    /**
+     * C.3, requests without Huffman coding sharing a dynamic table.
+     */
+    @Test
+    public void requestsWithoutHuffman() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertDecodes(decoder, "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d",
+                fields(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"));
+        assertDecodes(decoder, "8286 84be 5808 6e6f 2d63 6163 6865",
+                fields(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                        "cache-control", "no-cache"));
+        assertDecodes(decoder, "8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65",
+                fields(":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+                        "custom-key", "custom-value"));
+    }
+
+    /**
+     * C.4, the same requests with Huffman coding.
+     */
+    @Test
+    public void requestsWithHuffman() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertDecodes(decoder, "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff",
+                fields(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"));
+        assertDecodes(decoder, "8286 84be 5886 a8eb 1064 9cbf",
+                fields(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                        "cache-control", "no-cache"));
+        assertDecodes(decoder, "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf",
+                fields(":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+                        "custom-key", "custom-value"));
+    }
+
+    /**
+     * C.5, responses without Huffman coding which evict entries of a 256 bytes dynamic table. The
+     * examples assume the table size was set to 256, the first block starts with that update here.
+     */
+    @Test
+    public void responsesWithoutHuffman() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertDecodes(decoder, "3fe1 01"
+                        + "4803 3330 3258 0770 7269 7661 7465 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133"
+                        + "2032 303a 3133 3a32 3120 474d 546e 1768 7474 7073 3a2f 2f77 7777 2e65 7861 6d70"
+                        + "6c65 2e63 6f6d",
+                fields(":status", "302", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                        "location", "https://www.example.com"));
+        assertDecodes(decoder, "4803 3330 37c1 c0bf",
+                fields(":status", "307", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                        "location", "https://www.example.com"));
+        assertDecodes(decoder, "88c1 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133 2032 303a 3133 3a32 3220 474d"
+                        + "54c0 5a04 677a 6970 7738 666f 6f3d 4153 444a 4b48 514b 425a 584f 5157 454f 5049"
+                        + "5541 5851 5745 4f49 553b 206d 6178 2d61 6765 3d33 3630 303b 2076 6572 7369 6f6e"
+                        + "3d31",
+                fields(":status", "200", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:22 GMT",
+                        "location", "https://www.example.com", "content-encoding", "gzip",
+                        "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1"));
+        // Only the three entries added by the last block are left, the oldest one is index 64.
+        assertDecodes(decoder, "c0", fields("date", "Mon, 21 Oct 2013 20:13:22 GMT"));
+        try {
+            decoder.decode(hex("c1"), 1);
+            fail("Evicted entry still in the dynamic table.");
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    /**
+     * C.6, the same responses with Huffman coding.
+     */
+    @Test
+    public void responsesWithHuffman() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertDecodes(decoder, "3fe1 01"
+                        + "4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81 66e0 82a6"
+                        + "2d1b ff6e 919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3",
+                fields(":status", "302", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                        "location", "https://www.example.com"));
+        assertDecodes(decoder, "4883 640e ffc1 c0bf",
+                fields(":status", "307", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                        "location", "https://www.example.com"));
+        assertDecodes(decoder, "88c1 6196 d07a be94 1054 d444 a820 0595 040b 8166 e084 a62d 1bff c05a 839b d9ab"
+                        + "77ad 94e7 821d d7f2 e6c7 b335 dfdf cd5b 3960 d5af 2708 7f36 72c1 ab27 0fb5 291f"
+                        + "9587 3160 65c0 03ed 4ee5 b106 3d50 07",
+                fields(":status", "200", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:22 GMT",
+                        "location", "https://www.example.com", "content-encoding", "gzip",
+                        "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1"));
+    }
+
+    @Test
+    public void rejectsTableSizeAboveSettings() throws Exception {
+        try {
+            // Table size update to 4097.
+            new Hpack.Decoder().decode(hex("3fe2 1f"), 3);
+            fail();
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedBlock() throws Exception {
+        try {
+            new Hpack.Decoder().decode(hex("400a 6375 7374"), 5);
+            fail();
+        } catch (ProtocolException expected) {
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives an {@link Http2Connection} frame by frame from a peer on the other end of a local socket.
+ */
+public class Http2ConnectionTest {
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int END_STREAM = 0x1;
+    private static final int END_HEADERS = 0x4;
+
+    private static final int TIMEOUT_MS = 5000;
+
+    private ServerSocket mServer;
+    private Socket mPeerSocket;
+    private DataInputStream mPeerIn;
+    private OutputStream mPeerOut;
+    private Http2Connection mConnection;
+
+    private static class Frame {
+        int type;
+        int flags;
+        int streamId;
+        byte[] payload;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        Socket socket = new Socket(mServer.getInetAddress(), mServer.getLocalPort());
+        mPeerSocket = mServer.accept();
+        mPeerSocket.setSoTimeout(TIMEOUT_MS);
+        mPeerIn = new DataInputStream(mPeerSocket.getInputStream());
+        mPeerOut = mPeerSocket.getOutputStream();
+
+        HttpConnection connection = new HttpConnection("https://127.0.0.1:" + mServer.getLocalPort(), socket, 0);
+        connection.protocol = "h2";
+        mConnection = new Http2Connection(connection);
+        mConnection.start();
+
+        byte[] preface = new byte[24];
+        mPeerIn.readFully(preface);
+        assertEquals("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n", new String(preface, "US-ASCII"));
+        Frame settings = readFrame();
+        assertEquals(SETTINGS, settings.type);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mConnection.close(new IOException("Test ended."));
+        mPeerSocket.close();
+        mServer.close();
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        byte[] header = {(byte) (payload.length >>> 16), (byte) (payload.length >>> 8), (byte) payload.length,
+                (byte) type, (byte) flags, (byte) (streamId >>> 24), (byte) (streamId >>> 16),
+                (byte) (streamId >>> 8), (byte) streamId};
+        mPeerOut.write(header);
+        mPeerOut.write(payload);
+        mPeerOut.flush();
+    }
+
+    private Frame readFrame() throws IOException {
+        byte[] header = new byte[9];
+        mPeerIn.readFully(header);
+        Frame frame = new Frame();
+        int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+        frame.type = header[3] & 0xff;
+        frame.flags = header[4] & 0xff;
+        frame.streamId = toInt(header, 5) & 0x7fffffff;
+        frame.payload = new byte[length];
+        mPeerIn.readFully(frame.payload);
+        return frame;
+    }
+
+    /**
+     * Reads the next frame of the given type, skips the settings, pings and window updates before it.
+     */
+    private Frame expect(int type) throws IOException {
+        while (true) {
+            Frame frame = readFrame();
+            if (frame.type == type) return frame;
+            if (frame.type != SETTINGS && frame.type != PING && frame.type != WINDOW_UPDATE) {
+                fail("Expected frame type " + type + " but was " + frame.type);
+            }
+        }
+    }
+
+    private static int toInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length * 4];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i * 4] = (byte) (values[i] >>> 24);
+            bytes[i * 4 + 1] = (byte) (values[i] >>> 16);
+            bytes[i * 4 + 2] = (byte) (values[i] >>> 8);
+            bytes[i * 4 + 3] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    private static byte[] setting(int id, int value) {
+        return new byte[]{(byte) (id >>> 8), (byte) id,
+                (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    private static List<String[]> request(String path) {
+        List<String[]> fields = new ArrayList<String[]>();
+        fields.add(new String[]{":method", "GET"});
+        fields.add(new String[]{":scheme", "https"});
+        fields.add(new String[]{":authority", "127.0.0.1"});
+        fields.add(new String[]{":path", path});
+        return fields;
+    }
+
+    private static byte[] encode(List<String[]> fields) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Hpack.encode(fields, out);
+        return out.toByteArray();
+    }
+
+    private static byte[] responseBlock(String status) throws IOException {
+        List<String[]> fields = new ArrayList<String[]>();
+        fields.add(new String[]{":status", status});
+        fields.add(new String[]{"content-type", "text/plain"});
+        return encode(fields);
+    }
+
+    private static String statusOf(List<String[]> fields) {
+        for (String[] field : fields) {
+            if (":status".equals(field[0])) return field[1];
+        }
+        return null;
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void exchange() throws Exception {
+        Http2Connection.Stream stream = mConnection.newStream(request("/"), true, TIMEOUT_MS);
+        Frame headers = expect(HEADERS);
+        assertEquals(1, headers.streamId);
+        assertEquals(END_HEADERS | END_STREAM, headers.flags);
+        List<String[]> fields = new Hpack.Decoder().decode(headers.payload, headers.payload.length);
+        assertEquals(Arrays.asList(":path", "/"), Arrays.asList(fields.get(3)));
+
+        writeFrame(HEADERS, END_HEADERS, 1, responseBlock("200"));
+        writeFrame(DATA, END_STREAM, 1, "hello".getBytes("UTF-8"));
+        assertEquals("200", statusOf(stream.awaitHeaders()));
+        assertEquals("hello", readAll(stream.getInputStream()));
+        assertTrue(mConnection.isUsable());
+    }
+
+    @Test
+    public void receivesContinuation() throws Exception {
+        Http2Connection.Stream stream = mConnection.newStream(request("/"), true, TIMEOUT_MS);
+        expect(HEADERS);
+
+        byte[] block = responseBlock("200");
+        // END_STREAM goes on the HEADERS frame, CONTINUATION has no such flag.
+        writeFrame(HEADERS, END_STREAM, 1, Arrays.copyOfRange(block, 0, 2));
+        writeFrame(CONTINUATION, 0, 1, Arrays.copyOfRange(block, 2, 5));
+        writeFrame(CONTINUATION, END_HEADERS, 1, Arrays.copyOfRange(block, 5, block.length));
+
+        List<String[]> fields = stream.awaitHeaders();
+        assertEquals("200", statusOf(fields));
+        assertEquals(Arrays.asList("content-type", "text/plain"), Arrays.asList(fields.get(1)));
+        assertEquals("", readAll(stream.getInputStream()));
+    }
+
+    @Test
+    public void sendsContinuationBeyondMaxFrameSize() throws Exception {
+        char[] value = new char[20000];
+        Arrays.fill(value, 'v');
+        List<String[]> fields = request("/");
+        fields.add(new String[]{"x-large", new String(value)});
+        mConnection.newStream(fields, true, TIMEOUT_MS);
+
+        Frame headers = expect(HEADERS);
+        assertEquals(END_STREAM, headers.flags);
+        assertEquals(16384, headers.payload.length);
+        Frame continuation = readFrame();
+        assertEquals(CONTINUATION, continuation.type);
+        assertEquals(END_HEADERS, continuation.flags);
+        assertEquals(1, continuation.streamId);
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        block.write(headers.payload);
+        block.write(continuation.payload);
+        List<String[]> decoded = new Hpack.Decoder().decode(block.toByteArray(), block.size());
+        assertEquals(new String(value), decoded.get(4)[1]);
+    }
+
+    @Test
+    public void interleavedContinuationFailsConnection() throws Exception {
+        Http2Connection.Stream stream = mConnection.newStream(request("/"), true, TIMEOUT_MS);
+        expect(HEADERS);
+
+        byte[] block = responseBlock("200");
+        writeFrame(HEADERS, 0, 1, Arrays.copyOfRange(block, 0, 2));
+        writeFrame(PING, 0, 0, new byte[8]);
+
+        Frame goAway = expect(GOAWAY);
+        assertEquals(0x1, toInt(goAway.payload, 4));
+        try {
+            stream.awaitHeaders();
+            fail();
+        } catch (ProtocolException expected) {
+        }
+        assertFalse(mConnection.isUsable());
+    }
+
+    @Test
+    public void sendWindowHoldsBody() throws Exception {
+        writeFrame(SETTINGS, 0, 0, setting(0x4, 10));
+        assertEquals(0x1, expect(SETTINGS).flags);
+
+        final Http2Connection.Stream stream = mConnection.newStream(request("/upload"), false, TIMEOUT_MS);
+        expect(HEADERS);
+        final byte[] body = new byte[25];
+        for (int i = 0; i < body.length; i++) body[i] = (byte) i;
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    stream.writeData(body, 0, body.length, true);
+                } catch (IOException ignored) {
+                }
+            }
+        };
+        writer.start();
+
+        Frame first = expect(DATA);
+        assertArrayEquals(Arrays.copyOfRange(body, 0, 10), first.payload);
+        assertEquals(0, first.flags);
+
+        // Nothing more until the window opens.
+        Thread.sleep(100);
+        assertEquals(0, mPeerSocket.getInputStream().available());
+
+        writeFrame(WINDOW_UPDATE, 0, 1, bytes(15));
+        Frame rest = expect(DATA);
+        assertArrayEquals(Arrays.copyOfRange(body, 10, 25), rest.payload);
+        assertEquals(END_STREAM, rest.flags);
+        writer.join(TIMEOUT_MS);
+    }
+
+    @Test
+    public void readingOpensReceiveWindow() throws Exception {
+        Http2Connection.Stream stream = mConnection.newStream(request("/"), true, TIMEOUT_MS);
+        expect(HEADERS);
+        writeFrame(HEADERS, END_HEADERS, 1, responseBlock("200"));
+        stream.awaitHeaders();
+
+        int half = Http2Connection.STREAM_WINDOW / 2;
+        byte[] chunk = new byte[16384];
+        for (int sent = 0; sent < half; sent += chunk.length) {
+            writeFrame(DATA, 0, 1, chunk);
+        }
+        InputStream in = stream.getInputStream();
+        byte[] buffer = new byte[chunk.length];
+        for (int read = 0; read < half; ) {
+            int count = in.read(buffer);
+            assertTrue(count > 0);
+            read += count;
+        }
+
+        Frame update;
+        do {
+            update = expect(WINDOW_UPDATE);
+        } while (update.streamId != 1);
+        assertEquals(half, toInt(update.payload, 0));
+    }
+
+    @Test
+    public void overflowingReceiveWindowResetsStream() throws Exception {
+        Http2Connection.Stream stream = mConnection.newStream(request("/"), true, TIMEOUT_MS);
+        expect(HEADERS);
+        writeFrame(HEADERS, END_HEADERS, 1, responseBlock("200"));
+
+        byte[] chunk = new byte[16384];
+        for (int sent = 0; sent <= Http2Connection.STREAM_WINDOW; sent += chunk.length) {
+            writeFrame(DATA, 0, 1, chunk);
+        }
+        Frame reset = expect(RST_STREAM);
+        assertEquals(1, reset.streamId);
+        assertEquals(0x3, toInt(reset.payload, 0));
+        try {
+            readAll(stream.getInputStream());
+            fail();
+        } catch (ProtocolException expected) {
+        }
+        // Only the stream failed.
+        assertTrue(mConnection.isUsable());
+    }
+
+    @Test
+    public void goAwayRefusesUnprocessedStreams() throws Exception {
+        Http2Connection.Stream processed = mConnection.newStream(request("/1"), true, TIMEOUT_MS);
+        Http2Connection.Stream unprocessed = mConnection.newStream(request("/3"), true, TIMEOUT_MS);
+        expect(HEADERS);
+        expect(HEADERS);
+
+        writeFrame(GOAWAY, 0, 0, bytes(1, 0));
+        try {
+            unprocessed.awaitHeaders();
+            fail();
+        } catch (Http2Connection.RefusedStreamException expected) {
+        }
+        assertFalse(mConnection.isUsable());
+        try {
+            mConnection.newStream(request("/5"), true, TIMEOUT_MS);
+            fail();
+        } catch (Http2Connection.RefusedStreamException expected) {
+        }
+
+        // The stream the peer processed still completes.
+        writeFrame(HEADERS, END_HEADERS, 1, responseBlock("200"));
+        writeFrame(DATA, END_STREAM, 1, "done".getBytes("UTF-8"));
+        assertEquals("200", statusOf(processed.awaitHeaders()));
+        assertEquals("done", readAll(processed.getInputStream()));
+    }
+
+    @Test
+    public void refusedStreamIsRetried() throws Exception {
+        Http2Connection.Stream refused = mConnection.newStream(request("/"), true, TIMEOUT_MS);
+        expect(HEADERS);
+        writeFrame(RST_STREAM, 0, 1, bytes(0x7));
+        try {
+            refused.awaitHeaders();
+            fail();
+        } catch (Http2Connection.RefusedStreamException expected) {
+        }
+
+        // Safe to retry, the connection still takes new streams.
+        assertTrue(mConnection.isUsable());
+        Http2Connection.Stream retry = mConnection.newStream(request("/"), true, TIMEOUT_MS);
+        assertEquals(3, expect(HEADERS).streamId);
+        writeFrame(HEADERS, END_HEADERS | END_STREAM, 3, responseBlock("204"));
+        assertEquals("204", statusOf(retry.awaitHeaders()));
+    }
+
+    @Test
+    public void otherResetIsNotRetryable() throws Exception {
+        Http2Connection.Stream stream = mConnection.newStream(request("/"), true, TIMEOUT_MS);
+        expect(HEADERS);
+        writeFrame(RST_STREAM, 0, 1, bytes(0x2));
+        try {
+            stream.awaitHeaders();
+            fail();
+        } catch (Http2Connection.RefusedStreamException e) {
+            fail("Internal error is no refusal.");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void maxConcurrentStreamsHoldsNewStream() throws Exception {
+        writeFrame(SETTINGS, 0, 0, setting(0x3, 1));
+        assertEquals(0x1, expect(SETTINGS).flags);
+
+        mConnection.newStream(request("/1"), true, TIMEOUT_MS);
+        expect(HEADERS);
+        try {
+            mConnection.newStream(request("/3"), true, 200);
+            fail();
+        } catch (java.net.SocketTimeoutException expected) {
+        }
+
+        writeFrame(HEADERS, END_HEADERS | END_STREAM, 1, responseBlock("204"));
+        Thread.sleep(100);
+        mConnection.newStream(request("/3"), true, TIMEOUT_MS);
+        assertEquals(3, expect(HEADERS).streamId);
+    }
+}
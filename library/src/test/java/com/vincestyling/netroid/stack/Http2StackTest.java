@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import com.vincestyling.netroid.StringTestRequest;
+import org.apache.http.HttpResponse;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Concurrent requests of an {@link Http2Stack} to a local TLS server, which only answers
+ * once all of them arrived: over HTTP/2 they share one connection and one handshake,
+ * over HTTP/1.1 each of them needs a connection of its own.
+ */
+public class Http2StackTest {
+    private static final int CONCURRENT_REQUESTS = 8;
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int SETTINGS = 0x4;
+
+    private static final int ACK = 0x1;
+    private static final int END_STREAM = 0x1;
+    private static final int END_HEADERS = 0x4;
+
+    /**
+     * Counted down by the server as each request arrives, it answers once all did.
+     */
+    private final CountDownLatch mArrived = new CountDownLatch(CONCURRENT_REQUESTS);
+
+    private HostnameVerifier mDefaultVerifier;
+    private SSLContext mContext;
+    private LocalServer mServer;
+    private Http2Stack mStack;
+
+    @Before
+    public void setUp() throws Exception {
+        mDefaultVerifier = HttpsURLConnection.getDefaultHostnameVerifier();
+        HttpsURLConnection.setDefaultHostnameVerifier(LocalTls.LOCALHOST_VERIFIER);
+        mContext = LocalTls.newContext();
+        mStack = new Http2Stack("test", mContext.getSocketFactory());
+    }
+
+    @After
+    public void tearDown() {
+        HttpsURLConnection.setDefaultHostnameVerifier(mDefaultVerifier);
+        mStack.evictAll();
+        if (mServer != null) mServer.close();
+    }
+
+    private void startServer(String protocol, LocalServer.Handler handler) throws IOException {
+        SSLServerSocket server = LocalTls.newServerSocket(mContext, protocol);
+        Assume.assumeTrue("ALPN needs Java 9 or later.", server != null);
+        mServer = new LocalServer(server, handler);
+    }
+
+    /**
+     * Performs the requests at once, each on a thread of its own, returns their responses.
+     */
+    private List<HttpResponse> performConcurrently() throws Exception {
+        final List<HttpResponse> responses = Collections.synchronizedList(new ArrayList<HttpResponse>());
+        final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+            final String url = "https://127.0.0.1:" + mServer.getPort() + "/" + i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        HttpResponse response = mStack.performRequest(new StringTestRequest(url));
+                        assertEquals("ok", read(response.getEntity().getContent()));
+                        responses.add(response);
+                    } catch (Exception e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        if (!failures.isEmpty()) throw failures.get(0);
+        assertEquals(CONCURRENT_REQUESTS, responses.size());
+        return responses;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toString("UTF-8");
+    }
+
+    private static void writeFrame(OutputStream out, int type, int flags, int streamId, byte[] payload)
+            throws IOException {
+        byte[] header = {(byte) (payload.length >>> 16), (byte) (payload.length >>> 8), (byte) payload.length,
+                (byte) type, (byte) flags, (byte) (streamId >>> 24), (byte) (streamId >>> 16),
+                (byte) (streamId >>> 8), (byte) streamId};
+        out.write(header);
+        out.write(payload);
+        out.flush();
+    }
+
+    private ConnectionStats stats() {
+        List<ConnectionStats> stats = mStack.getConnectionPool().getStats();
+        assertEquals(1, stats.size());
+        return stats.get(0);
+    }
+
+    @Test
+    public void concurrentRequestsShareOneHttp2Connection() throws Exception {
+        startServer("h2", new LocalServer.Handler() {
+            @Override
+            public void handle(Socket socket, int index) throws IOException {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                in.readFully(new byte[24]);
+
+                List<Integer> streamIds = new ArrayList<Integer>();
+                while (streamIds.size() < CONCURRENT_REQUESTS) {
+                    byte[] header = new byte[9];
+                    in.readFully(header);
+                    int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+                    int streamId = ((header[5] & 0x7f) << 24) | ((header[6] & 0xff) << 16)
+                            | ((header[7] & 0xff) << 8) | (header[8] & 0xff);
+                    in.readFully(new byte[length]);
+                    if (header[3] == SETTINGS && (header[4] & ACK) == 0) {
+                        writeFrame(out, SETTINGS, ACK, 0, new byte[0]);
+                    } else if (header[3] == HEADERS) {
+                        streamIds.add(streamId);
+                        mArrived.countDown();
+                    }
+                }
+
+                List<String[]> fields = new ArrayList<String[]>();
+                fields.add(new String[]{":status", "200"});
+                ByteArrayOutputStream block = new ByteArrayOutputStream();
+                Hpack.encode(fields, block);
+                for (int streamId : streamIds) {
+                    writeFrame(out, HEADERS, END_HEADERS, streamId, block.toByteArray());
+                    writeFrame(out, DATA, END_STREAM, streamId, "ok".getBytes("UTF-8"));
+                }
+                // Until the client closes the connection.
+                while (in.read() != -1) ;
+            }
+        });
+
+        List<HttpResponse> responses = performConcurrently();
+        assertEquals(2, responses.get(0).getProtocolVersion().getMajor());
+        assertEquals(1, mServer.getConnectionCount());
+        assertEquals(1, mStack.getHttp2ConnectionCount());
+        ConnectionStats stats = stats();
+        assertEquals(1, stats.newCount);
+        assertEquals(CONCURRENT_REQUESTS - 1, stats.reusedCount);
+    }
+
+    @Test
+    public void concurrentHttp11RequestsNeedAConnectionEach() throws Exception {
+        startServer("http/1.1", new LocalServer.Handler() {
+            @Override
+            public void handle(Socket socket, int index) throws IOException {
+                InputStream in = socket.getInputStream();
+                while (LocalServer.readHead(in) != null) {
+                    mArrived.countDown();
+                    try {
+                        mArrived.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    LocalServer.write(socket.getOutputStream(), "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+                }
+            }
+        });
+
+        List<HttpResponse> responses = performConcurrently();
+        assertEquals(1, responses.get(0).getProtocolVersion().getMajor());
+        assertEquals(CONCURRENT_REQUESTS, mServer.getConnectionCount());
+        assertEquals(0, mStack.getHttp2ConnectionCount());
+        ConnectionStats stats = stats();
+        assertEquals(CONCURRENT_REQUESTS, stats.newCount);
+        assertEquals(0, stats.reusedCount);
+        assertTrue(stats.totalHandshakeMs >= stats.maxHandshakeMs);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HttpConnectionTest {
+    private ServerSocket mServer;
+    private Socket mPeer;
+    private HttpConnection mConnection;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        Socket socket = new Socket(mServer.getInetAddress(), mServer.getLocalPort());
+        socket.setSoTimeout(5000);
+        mPeer = mServer.accept();
+        mConnection = new HttpConnection("http://127.0.0.1:" + mServer.getLocalPort(), socket, 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mConnection.close();
+        mPeer.close();
+        mServer.close();
+    }
+
+    private void idleFor(long nanos) {
+        mConnection.idleSinceNanos = System.nanoTime() - nanos;
+    }
+
+    @Test
+    public void openConnectionIsHealthy() {
+        idleFor(HttpConnection.PROBE_IDLE_NANOS);
+        assertTrue(mConnection.isHealthy());
+        idleFor(0);
+        assertTrue(mConnection.isHealthy());
+    }
+
+    @Test
+    public void probeKeepsReadTimeout() throws Exception {
+        idleFor(HttpConnection.PROBE_IDLE_NANOS);
+        assertTrue(mConnection.isHealthy());
+        assertEquals(5000, mConnection.socket.getSoTimeout());
+    }
+
+    @Test
+    public void closedByPeerAfterLongIdle() throws Exception {
+        mPeer.close();
+        Thread.sleep(50);
+        idleFor(HttpConnection.PROBE_IDLE_NANOS);
+        assertFalse(mConnection.isHealthy());
+    }
+
+    @Test
+    public void recentlyIdleIsNotProbed() throws Exception {
+        mPeer.close();
+        Thread.sleep(50);
+        // No read for a connection idle this shortly, a stale one fails its exchange and is retried.
+        idleFor(0);
+        assertTrue(mConnection.isHealthy());
+    }
+
+    @Test
+    public void unexpectedDataIsUnhealthy() throws Exception {
+        mPeer.getOutputStream().write('x');
+        mPeer.getOutputStream().flush();
+        Thread.sleep(50);
+        idleFor(0);
+        assertFalse(mConnection.isHealthy());
+    }
+
+    @Test
+    public void closedSocketIsUnhealthy() {
+        mConnection.close();
+        idleFor(0);
+        assertFalse(mConnection.isHealthy());
+    }
+}
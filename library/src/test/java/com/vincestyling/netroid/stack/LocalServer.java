@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A scripted HTTP server on a local socket, each connection it accepts is handed to the
+ * {@link Handler} on a thread of its own.
+ */
+public class LocalServer {
+    public interface Handler {
+        /**
+         * Serves the given connection, it's closed once this returns.
+         *
+         * @param index The number of connections accepted before this one
+         */
+        void handle(Socket socket, int index) throws IOException;
+    }
+
+    private final ServerSocket mServer;
+    private final Handler mHandler;
+    private final List<Socket> mSockets = new ArrayList<Socket>();
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+
+    public LocalServer(Handler handler) throws IOException {
+        this(new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1")), handler);
+    }
+
+    /**
+     * @param server A bound server socket, e.g. an SSLServerSocket
+     */
+    public LocalServer(ServerSocket server, Handler handler) {
+        mServer = server;
+        mHandler = handler;
+        Thread acceptor = new Thread("LocalServer") {
+            @Override
+            public void run() {
+                accept();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void accept() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServer.accept();
+            } catch (IOException e) {
+                // Closed.
+                return;
+            }
+            synchronized (mSockets) {
+                mSockets.add(socket);
+            }
+            final int index = mConnectionCount.getAndIncrement();
+            Thread thread = new Thread("LocalServer-" + index) {
+                @Override
+                public void run() {
+                    try {
+                        mHandler.handle(socket, index);
+                    } catch (IOException ignored) {
+                        // The client or the test closed the connection.
+                    } finally {
+                        closeQuietly(socket);
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public String url(String path) {
+        return "http://127.0.0.1:" + mServer.getLocalPort() + path;
+    }
+
+    public int getPort() {
+        return mServer.getLocalPort();
+    }
+
+    /**
+     * Returns the number of connections accepted so far.
+     */
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    /**
+     * Stops accepting and closes every connection still open.
+     */
+    public void close() {
+        closeQuietly(mServer);
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    /**
+     * Reads a request line and its headers, leaves the body in the stream.
+     *
+     * @return The head without its final blank line, null if the client closed the connection
+     */
+    public static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b == -1) return null;
+            head.write(b);
+            matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+        String text = head.toString("US-ASCII");
+        return text.substring(0, text.length() - 4);
+    }
+
+    /**
+     * Returns the value of the given header of a head read by {@link #readHead(InputStream)}, or null.
+     */
+    public static String header(String head, String name) {
+        for (String line : head.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                return line.substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    public static void write(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
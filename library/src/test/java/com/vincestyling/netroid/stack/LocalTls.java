@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * The self-signed certificate of 127.0.0.1 in localhost.jks, which both the local TLS servers
+ * present and the clients trust.
+ */
+final class LocalTls {
+    private static final char[] PASSWORD = "password".toCharArray();
+
+    /**
+     * Accepts 127.0.0.1 only, the platform's default verifier of the JVM accepts no host at all.
+     */
+    static final HostnameVerifier LOCALHOST_VERIFIER = new HostnameVerifier() {
+        @Override
+        public boolean verify(String hostname, SSLSession session) {
+            return "127.0.0.1".equals(hostname);
+        }
+    };
+
+    private LocalTls() {
+    }
+
+    static SSLContext newContext() throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        InputStream in = LocalTls.class.getResourceAsStream("/localhost.jks");
+        try {
+            keyStore.load(in, PASSWORD);
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, PASSWORD);
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        return context;
+    }
+
+    /**
+     * Returns a server socket on 127.0.0.1 of the given context.
+     *
+     * @param protocols The protocols the server selects from by ALPN, by preference, none to not negotiate
+     * @return null if ALPN was asked for but the JVM doesn't support it
+     */
+    static SSLServerSocket newServerSocket(SSLContext context, String... protocols) throws IOException {
+        SSLServerSocket server = (SSLServerSocket) context.getServerSocketFactory()
+                .createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        if (protocols.length == 0) return server;
+        try {
+            // From Java 9, like Alpn does on the client side.
+            SSLParameters parameters = server.getSSLParameters();
+            Method method = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+            method.invoke(parameters, (Object) protocols);
+            server.setSSLParameters(parameters);
+            return server;
+        } catch (Exception e) {
+            server.close();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import com.vincestyling.netroid.StringTestRequest;
+import com.vincestyling.netroid.toolbox.BasicNetwork;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exchanges of a {@link PooledHttpStack} with a scripted server on a local socket.
+ */
+public class PooledHttpStackTest {
+    private static final String OK = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+
+    /**
+     * The raw responses by request path.
+     */
+    private final Map<String, String> mResponses = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The paths after whose response the server closes the connection without telling.
+     */
+    private final Set<String> mHangUps = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * The heads of the requests the server received.
+     */
+    private final List<String> mHeads = Collections.synchronizedList(new ArrayList<String>());
+
+    private LocalServer mServer;
+    private PooledHttpStack mStack;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new LocalServer(new LocalServer.Handler() {
+            @Override
+            public void handle(Socket socket, int index) throws IOException {
+                InputStream in = socket.getInputStream();
+                String head;
+                while ((head = LocalServer.readHead(in)) != null) {
+                    mHeads.add(head);
+                    String path = head.split(" ")[1];
+                    String response = mResponses.get(path);
+                    LocalServer.write(socket.getOutputStream(),
+                            response != null ? response : "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n");
+                    if (mHangUps.contains(path)) return;
+                }
+            }
+        });
+        mStack = new PooledHttpStack("test");
+    }
+
+    @After
+    public void tearDown() {
+        mStack.getConnectionPool().evictAll();
+        mServer.close();
+    }
+
+    private HttpResponse perform(String path) throws Exception {
+        return mStack.performRequest(new StringTestRequest(mServer.url(path)));
+    }
+
+    private static String read(HttpEntity entity) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = entity.getContent();
+        byte[] buffer = new byte[3];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toString("UTF-8");
+    }
+
+    private String fetch(String path) throws Exception {
+        return read(perform(path).getEntity());
+    }
+
+    private ConnectionStats stats() {
+        List<ConnectionStats> stats = mStack.getConnectionPool().getStats();
+        assertEquals(1, stats.size());
+        return stats.get(0);
+    }
+
+    @Test
+    public void contentLengthFramesTheBody() throws Exception {
+        mResponses.put("/a", "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello");
+        mResponses.put("/b", OK);
+
+        assertEquals("hello", fetch("/a"));
+        assertEquals("ok", fetch("/b"));
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void chunkedBodyWithExtensionsAndTrailers() throws Exception {
+        mResponses.put("/chunked", "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5;name=value\r\nhello\r\n6\r\n world\r\n0\r\nX-Trailer: t\r\n\r\n");
+        mResponses.put("/next", OK);
+
+        HttpResponse response = perform("/chunked");
+        assertEquals(-1, response.getEntity().getContentLength());
+        assertEquals("hello world", read(response.getEntity()));
+        // The trailers were consumed, the connection is in sync for the next exchange.
+        assertEquals("ok", fetch("/next"));
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void bodyWithoutFramingEndsWithTheConnection() throws Exception {
+        mResponses.put("/eof", "HTTP/1.1 200 OK\r\n\r\nuntil the end");
+        mHangUps.add("/eof");
+        mResponses.put("/next", OK);
+
+        assertEquals("until the end", fetch("/eof"));
+        assertEquals("ok", fetch("/next"));
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void keepsAliveByDefault() throws Exception {
+        mResponses.put("/", OK);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("ok", fetch("/"));
+        }
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void connectionCloseIsNotReused() throws Exception {
+        mResponses.put("/close", "HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 2\r\n\r\nok");
+
+        assertEquals("ok", fetch("/close"));
+        assertEquals("ok", fetch("/close"));
+        assertEquals(2, mServer.getConnectionCount());
+        assertEquals(0, mStack.getConnectionPool().getIdleCount());
+    }
+
+    @Test
+    public void http10ClosesUnlessKeepAlive() throws Exception {
+        mResponses.put("/10", "HTTP/1.0 200 OK\r\nContent-Length: 2\r\n\r\nok");
+        mResponses.put("/10-keep-alive", "HTTP/1.0 200 OK\r\nConnection: keep-alive\r\nContent-Length: 2\r\n\r\nok");
+
+        assertEquals("ok", fetch("/10"));
+        assertEquals(0, mStack.getConnectionPool().getIdleCount());
+        assertEquals("ok", fetch("/10-keep-alive"));
+        assertEquals(1, mStack.getConnectionPool().getIdleCount());
+        assertEquals("ok", fetch("/10-keep-alive"));
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void skipsInterimResponses() throws Exception {
+        mResponses.put("/", "HTTP/1.1 100 Continue\r\n\r\n"
+                + "HTTP/1.1 103 Early Hints\r\nLink: </style.css>; rel=preload\r\n\r\n" + OK);
+
+        HttpResponse response = perform("/");
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals("ok", read(response.getEntity()));
+    }
+
+    @Test
+    public void retriesOnStaleReusedConnection() throws Exception {
+        mResponses.put("/first", OK);
+        mHangUps.add("/first");
+        mResponses.put("/second", OK);
+
+        assertEquals("ok", fetch("/first"));
+        // The server closed the pooled connection meanwhile.
+        Thread.sleep(100);
+        assertEquals("ok", fetch("/second"));
+        assertEquals(2, mServer.getConnectionCount());
+        assertEquals(2, stats().newCount);
+    }
+
+    @Test
+    public void followsRedirectsOnTheSameConnection() throws Exception {
+        mResponses.put("/old", "HTTP/1.1 302 Found\r\nLocation: /new\r\nContent-Length: 5\r\n\r\nmoved");
+        mResponses.put("/new", "HTTP/1.1 200 OK\r\nContent-Length: 3\r\n\r\nnew");
+
+        assertEquals("new", fetch("/old"));
+        assertEquals(2, mHeads.size());
+        assertTrue(mHeads.get(1).startsWith("GET /new HTTP/1.1"));
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void connectionReturnsToPoolAtBodyEnd() throws Exception {
+        mResponses.put("/", "HTTP/1.1 200 OK\r\nContent-Length: 6\r\n\r\nlonger");
+
+        HttpResponse response = perform("/");
+        assertEquals(0, mStack.getConnectionPool().getIdleCount());
+        assertEquals("longer", read(response.getEntity()));
+        assertEquals(1, mStack.getConnectionPool().getIdleCount());
+    }
+
+    @Test
+    public void bodyClosedEarlyClosesConnection() throws Exception {
+        mResponses.put("/", "HTTP/1.1 200 OK\r\nContent-Length: 6\r\n\r\nlonger");
+
+        HttpResponse response = perform("/");
+        InputStream in = response.getEntity().getContent();
+        in.read();
+        in.close();
+        assertEquals(0, mStack.getConnectionPool().getIdleCount());
+        assertEquals("longer", fetch("/"));
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void keepsAtMostMaxIdlePerHost() throws Exception {
+        mStack = new PooledHttpStack("test", null, new ConnectionPool(1, ConnectionPool.DEFAULT_KEEP_ALIVE_MS));
+        mResponses.put("/", OK);
+
+        // Both exchanges are open at once, each on a connection of its own.
+        HttpResponse first = perform("/");
+        HttpResponse second = perform("/");
+        read(first.getEntity());
+        read(second.getEntity());
+
+        assertEquals(2, mServer.getConnectionCount());
+        assertEquals(1, mStack.getConnectionPool().getIdleCount());
+        assertEquals(1, stats().idleCount);
+    }
+
+    @Test
+    public void reapsIdleConnectionsAfterKeepAlive() throws Exception {
+        mStack = new PooledHttpStack("test", null, new ConnectionPool(5, 100));
+        mResponses.put("/", OK);
+
+        assertEquals("ok", fetch("/"));
+        assertEquals(1, mStack.getConnectionPool().getIdleCount());
+        Thread.sleep(400);
+        assertEquals(0, mStack.getConnectionPool().getIdleCount());
+
+        assertEquals("ok", fetch("/"));
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void countsNewAndReusedConnections() throws Exception {
+        mResponses.put("/", OK);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("ok", fetch("/"));
+        }
+        ConnectionStats stats = stats();
+        assertEquals("http://127.0.0.1:" + mServer.getPort(), stats.origin);
+        assertEquals(1, stats.newCount);
+        assertEquals(2, stats.reusedCount);
+        assertTrue(stats.totalHandshakeMs >= 0);
+        assertTrue(stats.maxHandshakeMs <= stats.totalHandshakeMs);
+        assertEquals(1, stats.idleCount);
+    }
+
+    private void awaitConnectionCount(int count) throws InterruptedException {
+        // The server accepts on a thread of its own.
+        for (int i = 0; i < 100 && mServer.getConnectionCount() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void preconnectOpensTheMissingIdleConnections() throws Exception {
+        mResponses.put("/", OK);
+
+        assertEquals(2, mStack.preconnect(mServer.url("/"), 2));
+        awaitConnectionCount(2);
+        assertEquals(2, mStack.getConnectionPool().getIdleCount());
+        // Both are idle already.
+        assertEquals(0, mStack.preconnect(mServer.url("/other"), 2));
+        assertEquals(1, mStack.preconnect(mServer.url("/"), 3));
+        awaitConnectionCount(3);
+
+        ConnectionStats stats = stats();
+        assertEquals(3, stats.preconnectCount);
+        assertEquals(0, stats.newCount);
+        assertEquals(3, stats.idleCount);
+    }
+
+    @Test
+    public void countsPreconnectHits() throws Exception {
+        mResponses.put("/", OK);
+
+        assertEquals(1, mStack.preconnect(mServer.url("/"), 1));
+        assertEquals("ok", fetch("/"));
+        assertEquals("ok", fetch("/"));
+        assertEquals(1, mServer.getConnectionCount());
+
+        ConnectionStats stats = stats();
+        assertEquals(1, stats.preconnectCount);
+        assertEquals(1, stats.preconnectHitCount);
+        assertEquals(0, stats.preconnectMissCount);
+        assertEquals(0, stats.newCount);
+        assertEquals(2, stats.reusedCount);
+    }
+
+    @Test
+    public void countsPreconnectMisses() throws Exception {
+        mStack = new PooledHttpStack("test", null, new ConnectionPool(5, 100));
+
+        assertEquals(2, mStack.preconnect(mServer.url("/"), 2));
+        Thread.sleep(400);
+        assertEquals(0, mStack.getConnectionPool().getIdleCount());
+
+        ConnectionStats stats = stats();
+        assertEquals(2, stats.preconnectCount);
+        assertEquals(0, stats.preconnectHitCount);
+        assertEquals(2, stats.preconnectMissCount);
+    }
+
+    @Test
+    public void basicNetworkPreconnectsByItsStack() throws Exception {
+        assertEquals(1, new BasicNetwork(mStack, "UTF-8").preconnect(mServer.url("/"), 1));
+        awaitConnectionCount(1);
+        // Not a Preconnectable stack.
+        assertEquals(0, new BasicNetwork(new HurlStack("test"), "UTF-8").preconnect(mServer.url("/"), 1));
+        Thread.sleep(100);
+        assertEquals(1, mServer.getConnectionCount());
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import com.vincestyling.netroid.Request;
+import com.vincestyling.netroid.RequestBody;
+import com.vincestyling.netroid.StringTestRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Sends request bodies of known and unknown length through each stack to a local server,
+ * which decodes them as the headers tell: a known length goes out with its Content-Length,
+ * an unknown one chunked.
+ */
+public class RequestBodyFramingTest {
+    /**
+     * Spans several chunks of the {@link PooledHttpStack}.
+     */
+    private static final byte[] BODY = new byte[20 * 1024 + 3];
+
+    static {
+        for (int i = 0; i < BODY.length; i++) {
+            BODY[i] = (byte) ('a' + i % 26);
+        }
+    }
+
+    /**
+     * The heads and bodies of the requests the server received.
+     */
+    private final List<String> mHeads = Collections.synchronizedList(new ArrayList<String>());
+    private final List<byte[]> mBodies = Collections.synchronizedList(new ArrayList<byte[]>());
+
+    private LocalServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new LocalServer(new LocalServer.Handler() {
+            @Override
+            public void handle(Socket socket, int index) throws IOException {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                String head;
+                while ((head = LocalServer.readHead(in)) != null) {
+                    if ("100-continue".equalsIgnoreCase(LocalServer.header(head, "Expect"))) {
+                        LocalServer.write(out, "HTTP/1.1 100 Continue\r\n\r\n");
+                    }
+                    byte[] body = readBody(in, head);
+                    mHeads.add(head);
+                    mBodies.add(body);
+                    LocalServer.write(out, "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+    }
+
+    private static byte[] readBody(DataInputStream in, String head) throws IOException {
+        String contentLength = LocalServer.header(head, "Content-Length");
+        if (contentLength != null) {
+            byte[] body = new byte[Integer.parseInt(contentLength)];
+            in.readFully(body);
+            return body;
+        }
+        if (!"chunked".equalsIgnoreCase(LocalServer.header(head, "Transfer-Encoding"))) return null;
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            String size = readLine(in);
+            int semicolon = size.indexOf(';');
+            int length = Integer.parseInt(semicolon < 0 ? size : size.substring(0, semicolon), 16);
+            if (length == 0) break;
+            byte[] chunk = new byte[length];
+            in.readFully(chunk);
+            body.write(chunk);
+            readLine(in);
+        }
+        // The trailers.
+        while (readLine(in).length() > 0) ;
+        return body.toByteArray();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) throw new IOException("Unexpected end of the stream.");
+            if (b != '\r') line.append((char) b);
+        }
+        return line.toString();
+    }
+
+    private Request<?> newRequest(RequestBody body) {
+        StringTestRequest request = new StringTestRequest(Request.Method.POST, mServer.url("/upload"));
+        request.setRequestBody(body);
+        return request;
+    }
+
+    private static RequestBody knownLength() {
+        return RequestBody.create(BODY);
+    }
+
+    private static RequestBody unknownLength() {
+        return RequestBody.create(new ByteArrayInputStream(BODY), -1);
+    }
+
+    /**
+     * Posts the body, returns the head the server received.
+     */
+    private String post(HttpStack stack, RequestBody body) throws Exception {
+        HttpResponse response = stack.performRequest(newRequest(body));
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        response.getEntity().consumeContent();
+        assertEquals(1, mHeads.size());
+        assertArrayEquals(BODY, mBodies.get(0));
+        return mHeads.get(0);
+    }
+
+    private void assertSentWithContentLength(String head) {
+        assertEquals(String.valueOf(BODY.length), LocalServer.header(head, "Content-Length"));
+        assertNull(LocalServer.header(head, "Transfer-Encoding"));
+    }
+
+    private void assertSentChunked(String head) {
+        assertEquals("chunked", LocalServer.header(head, "Transfer-Encoding"));
+        assertNull(LocalServer.header(head, "Content-Length"));
+    }
+
+    @Test
+    public void hurlStackSendsKnownLengthWithContentLength() throws Exception {
+        assertSentWithContentLength(post(new HurlStack("test"), knownLength()));
+    }
+
+    @Test
+    public void hurlStackSendsUnknownLengthChunked() throws Exception {
+        assertSentChunked(post(new HurlStack("test"), unknownLength()));
+    }
+
+    @Test
+    public void httpClientStackSendsKnownLengthWithContentLength() throws Exception {
+        assertSentWithContentLength(post(new HttpClientStack(new DefaultHttpClient()), knownLength()));
+    }
+
+    @Test
+    public void httpClientStackSendsUnknownLengthChunked() throws Exception {
+        assertSentChunked(post(new HttpClientStack(new DefaultHttpClient()), unknownLength()));
+    }
+
+    @Test
+    public void pooledHttpStackSendsKnownLengthWithContentLength() throws Exception {
+        PooledHttpStack stack = new PooledHttpStack("test");
+        try {
+            assertSentWithContentLength(post(stack, knownLength()));
+        } finally {
+            stack.getConnectionPool().evictAll();
+        }
+    }
+
+    @Test
+    public void pooledHttpStackSendsUnknownLengthChunked() throws Exception {
+        PooledHttpStack stack = new PooledHttpStack("test");
+        try {
+            assertSentChunked(post(stack, unknownLength()));
+        } finally {
+            stack.getConnectionPool().evictAll();
+        }
+    }
+
+    /**
+     * Declares one length, writes another.
+     */
+    private static RequestBody misdeclared(final int declared, final int written) {
+        return new RequestBody() {
+            @Override
+            public long getContentLength() {
+                return declared;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(BODY, 0, written);
+            }
+        };
+    }
+
+    private void assertRejected(RequestBody body, String message) throws Exception {
+        PooledHttpStack stack = new PooledHttpStack("test");
+        try {
+            stack.performRequest(newRequest(body));
+            fail();
+        } catch (ProtocolException e) {
+            assertEquals(message, e.getMessage());
+        } finally {
+            stack.getConnectionPool().evictAll();
+        }
+        assertEquals(0, stack.getConnectionPool().getIdleCount());
+    }
+
+    @Test
+    public void pooledHttpStackRejectsBodyLongerThanDeclared() throws Exception {
+        assertRejected(misdeclared(10, 11), "The body is longer than its Content-Length.");
+    }
+
+    @Test
+    public void pooledHttpStackRejectsBodyShorterThanDeclared() throws Exception {
+        assertRejected(misdeclared(10, 9), "The body is shorter than its Content-Length.");
+    }
+}
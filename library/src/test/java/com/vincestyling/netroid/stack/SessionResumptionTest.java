@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import com.vincestyling.netroid.StringTestRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Connects through each stack to a local TLS server which closes every connection after one
+ * exchange, so each request hand-shakes anew: the {@link SessionCachingSSLSocketFactory} does a
+ * full handshake the first time only, the next ones resume its session, across the stacks
+ * sharing the factory too.
+ */
+public class SessionResumptionTest {
+    private HostnameVerifier mDefaultVerifier;
+    private LocalServer mServer;
+    private SessionCachingSSLSocketFactory mFactory;
+    private PooledHttpStack mPooledStack;
+
+    @Before
+    public void setUp() throws Exception {
+        mDefaultVerifier = HttpsURLConnection.getDefaultHostnameVerifier();
+        HttpsURLConnection.setDefaultHostnameVerifier(LocalTls.LOCALHOST_VERIFIER);
+
+        mServer = new LocalServer(LocalTls.newServerSocket(LocalTls.newContext()), new LocalServer.Handler() {
+            @Override
+            public void handle(Socket socket, int index) throws IOException {
+                if (LocalServer.readHead(socket.getInputStream()) == null) return;
+                LocalServer.write(socket.getOutputStream(),
+                        "HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 2\r\n\r\nok");
+            }
+        });
+
+        mFactory = new SessionCachingSSLSocketFactory(LocalTls.newContext(),
+                SessionCachingSSLSocketFactory.DEFAULT_MAX_SESSIONS,
+                SessionCachingSSLSocketFactory.DEFAULT_SESSION_TIMEOUT_S, null);
+        mPooledStack = new PooledHttpStack("test", mFactory);
+    }
+
+    @After
+    public void tearDown() {
+        HttpsURLConnection.setDefaultHostnameVerifier(mDefaultVerifier);
+        mPooledStack.getConnectionPool().evictAll();
+        mServer.close();
+    }
+
+    private HurlStack newHurlStack() {
+        return new HurlStack("test", mFactory);
+    }
+
+    /**
+     * Registers the factory the way {@link HttpClientStack#HttpClientStack(String, SessionCachingSSLSocketFactory)}
+     * does, over a client the JVM offers.
+     */
+    private HttpClientStack newHttpClientStack() {
+        DefaultHttpClient client = new DefaultHttpClient();
+        client.getConnectionManager().getSchemeRegistry().register(
+                new Scheme("https", mFactory.getHttpClientSocketFactory(), 443));
+        return new HttpClientStack(client);
+    }
+
+    private void fetch(HttpStack stack) throws Exception {
+        HttpResponse response = stack.performRequest(
+                new StringTestRequest("https://127.0.0.1:" + mServer.getPort() + "/"));
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        response.getEntity().consumeContent();
+    }
+
+    /**
+     * Waits for the handshakes to be counted, the JSSE notifies of them on a thread of its own.
+     */
+    private void assertHandshakes(long full, long resumed) throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            if (mFactory.getFullHandshakeCount() + mFactory.getResumedHandshakeCount() >= full + resumed) break;
+            Thread.sleep(10);
+        }
+        assertEquals(full, mFactory.getFullHandshakeCount());
+        assertEquals(resumed, mFactory.getResumedHandshakeCount());
+    }
+
+    @Test
+    public void hurlStackResumesTheSession() throws Exception {
+        HurlStack stack = newHurlStack();
+        fetch(stack);
+        assertHandshakes(1, 0);
+        fetch(stack);
+        fetch(stack);
+        assertHandshakes(1, 2);
+        assertEquals(3, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void httpClientStackResumesTheSession() throws Exception {
+        HttpClientStack stack = newHttpClientStack();
+        fetch(stack);
+        assertHandshakes(1, 0);
+        fetch(stack);
+        fetch(stack);
+        assertHandshakes(1, 2);
+        assertEquals(3, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void pooledHttpStackResumesTheSession() throws Exception {
+        fetch(mPooledStack);
+        assertHandshakes(1, 0);
+        fetch(mPooledStack);
+        fetch(mPooledStack);
+        assertHandshakes(1, 2);
+
+        List<ConnectionStats> stats = mPooledStack.getConnectionPool().getStats();
+        assertEquals(1, stats.size());
+        // Every connection was closed by the server, none reused, each resumed the session.
+        assertEquals(3, stats.get(0).newCount);
+        assertEquals(0, stats.get(0).reusedCount);
+    }
+
+    @Test
+    public void stacksSharingTheFactoryShareTheSession() throws Exception {
+        fetch(newHurlStack());
+        assertHandshakes(1, 0);
+        fetch(mPooledStack);
+        fetch(newHttpClientStack());
+        assertHandshakes(1, 2);
+    }
+
+    @Test
+    public void clearedSessionsHandShakeInFull() throws Exception {
+        fetch(mPooledStack);
+        fetch(mPooledStack);
+        assertHandshakes(1, 1);
+
+        mFactory.clearSessions();
+        fetch(mPooledStack);
+        assertHandshakes(2, 1);
+        fetch(mPooledStack);
+        assertHandshakes(2, 2);
+        assertFalse(mFactory.isPersistent());
+    }
+}
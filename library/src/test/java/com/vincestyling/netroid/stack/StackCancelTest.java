@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 Vince Styling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vincestyling.netroid.stack;
+
+import com.vincestyling.netroid.DefaultRetryPolicy;
+import com.vincestyling.netroid.ExecutorDelivery;
+import com.vincestyling.netroid.RecordingListener;
+import com.vincestyling.netroid.RequestQueue;
+import com.vincestyling.netroid.StringTestRequest;
+import com.vincestyling.netroid.toolbox.BasicNetwork;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cancels a request blocked in a read the server stalls, in the middle of the body or before
+ * the status line, on a queue with a single dispatcher, which must be free for the next
+ * request right away.
+ */
+public class StackCancelTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Far longer than the test waits for anything.
+     */
+    private static final int READ_TIMEOUT_MS = 30 * 1000;
+
+    private final CountDownLatch mStalled = new CountDownLatch(1);
+    private LocalServer mServer;
+    private RequestQueue mQueue;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new LocalServer(new LocalServer.Handler() {
+            @Override
+            public void handle(Socket socket, int index) throws IOException {
+                InputStream in = socket.getInputStream();
+                String head;
+                while ((head = LocalServer.readHead(in)) != null) {
+                    if (head.startsWith("GET /stall-body ")) {
+                        LocalServer.write(socket.getOutputStream(),
+                                "HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n0123456789");
+                    }
+                    if (head.startsWith("GET /stall-")) {
+                        mStalled.countDown();
+                        // Never send the rest, wait for the client to give up.
+                        while (in.read() != -1) ;
+                        return;
+                    }
+                    LocalServer.write(socket.getOutputStream(),
+                            "HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: close\r\n\r\nok");
+                    return;
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        if (mQueue != null) mQueue.stop();
+        mServer.close();
+    }
+
+    private void assertCancelReleasesDispatcher(HttpStack stack, String path) throws Exception {
+        mQueue = new RequestQueue(new BasicNetwork(stack, "UTF-8"), 1, new ExecutorDelivery(DIRECT), null);
+        mQueue.start();
+
+        RecordingListener<String> stalled = new RecordingListener<String>();
+        StringTestRequest request = new StringTestRequest(mServer.url(path), stalled);
+        request.setRetryPolicy(new DefaultRetryPolicy(READ_TIMEOUT_MS, 0, 1));
+        mQueue.add(request);
+        assertTrue(mStalled.await(5, TimeUnit.SECONDS));
+        // Let the dispatcher block in the read of the rest of the body.
+        Thread.sleep(100);
+
+        long start = System.nanoTime();
+        request.cancel();
+        RecordingListener<String> next = new RecordingListener<String>();
+        mQueue.add(new StringTestRequest(mServer.url("/next"), next));
+
+        // The only dispatcher has to be back long before the read would time out.
+        assertTrue(next.await(5000));
+        assertEquals("ok", next.response);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        assertNull(stalled.response);
+        assertNull(stalled.error);
+    }
+
+    /**
+     * Only before the status line, the JDK's HttpURLConnection waits for a read of the body
+     * in progress to disconnect, unlike the Android one which closes the socket at once.
+     */
+    @Test
+    public void hurlStackBeforeStatusLine() throws Exception {
+        assertCancelReleasesDispatcher(new HurlStack("test"), "/stall-head");
+    }
+
+    @Test
+    public void httpClientStackBeforeStatusLine() throws Exception {
+        assertCancelReleasesDispatcher(new HttpClientStack(new DefaultHttpClient()), "/stall-head");
+    }
+
+    @Test
+    public void httpClientStackMidBody() throws Exception {
+        assertCancelReleasesDispatcher(new HttpClientStack(new DefaultHttpClient()), "/stall-body");
+    }
+
+    @Test
+    public void pooledHttpStackBeforeStatusLine() throws Exception {
+        assertCancelReleasesDispatcher(new PooledHttpStack("test"), "/stall-head");
+    }
+
+    @Test
+    public void pooledHttpStackMidBody() throws Exception {
+        assertCancelReleasesDispatcher(new PooledHttpStack("test"), "/stall-body");
+    }
+}
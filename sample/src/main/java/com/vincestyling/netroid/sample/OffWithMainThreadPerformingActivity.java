@@ -45,7 +45,7 @@ public class OffWithMainThreadPerformingActivity extends BaseActivity {
                 produceDummyUrls();
 
                 // the two requests would be perform just like a transaction.
-                Netroid.add(new TransactionalRequest(urls.get(0), urls.get(1), new Listener<String>() {
+                TransactionalRequest request = new TransactionalRequest(urls.get(0), urls.get(1), new Listener<String>() {
                     private ProgressDialog mProgressDialog;
 
                     @Override
@@ -66,7 +66,9 @@ public class OffWithMainThreadPerformingActivity extends BaseActivity {
 
                         txvResult.setText(result);
                     }
-                }));
+                });
+                Netroid.add(request.getClauseRequest());
+                Netroid.add(request);
             }
         });
 
@@ -6,7 +6,8 @@ import com.vincestyling.netroid.request.StringRequest;
 import com.vincestyling.netroid.sample.AppLog;
 
 /**
- * This request claim two urls, one perform as blocking mode in {@link #prepare()}, the other perform as normal request.
+ * This request claim two urls, the clause request performs first, this request depends on it
+ * and won't be scheduled until the clause result arrived, so no dispatcher thread is blocked.
  * We comparing both url's response in {@link #parseNetworkResponse(NetworkResponse)} and return the compared result.
  * <p/>
  * Just like a transaction flow, the second statement must depends on the first statement's result, and so on.
@@ -15,29 +16,25 @@ import com.vincestyling.netroid.sample.AppLog;
  * the final verdict, how remarkable we can do it like this elegant code.
  */
 public class TransactionalRequest extends Request<String> {
-    private String clauseUrl;
+    private final StringRequest clauseRequest;
 
     private String clauseResult;
 
-    public TransactionalRequest(String url, String clauseUrl, IListener<String> listener) {
+    public TransactionalRequest(String url, final String clauseUrl, IListener<String> listener) {
         super(url, listener);
-        this.clauseUrl = clauseUrl;
-    }
-
-    // perform the clause request in blocking mode first.
-    @Override
-    public void prepare() {
-        // preparing may invoke again when the host request timeouted,
-        // so don't perform the clause request repeatedly.
-        if (clauseResult != null) return;
-
-        Netroid.perform(new StringRequest(clauseUrl, new Listener<String>() {
+        clauseRequest = new StringRequest(clauseUrl, null);
+        dependsOn(clauseRequest, new DependencyListener<String>() {
             @Override
-            public void onSuccess(String response) {
-                clauseResult = response;
+            public void onDependencyResolved(String result) {
+                clauseResult = result;
                 AppLog.e("perform clause request url[%s] result : %s", clauseUrl, clauseResult);
             }
-        }));
+        });
+    }
+
+    // the clause request must be added to the queue as well.
+    public StringRequest getClauseRequest() {
+        return clauseRequest;
     }
 
     @Override